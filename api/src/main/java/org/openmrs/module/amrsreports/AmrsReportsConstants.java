@@ -16,4 +16,57 @@ public class AmrsReportsConstants {
 	public static final String GP_PRODUCTION_SERVER_URL = "amrsreports.productionServerURL";
 
 	public static final String TRANSFER_IN = "Transfer In";
+
+	// derived table builder settings
+	public static final String GP_BUILDER_MODE = "amrsreports.builder.mode";
+
+	public static final String BUILDER_MODE_FULL = "full";
+
+	public static final String BUILDER_MODE_INCREMENTAL = "incremental";
+
+	public static final String GP_BUILDER_THREADS = "amrsreports.builder.threads";
+
+	public static final String GP_BUILDER_RANGE_SIZE = "amrsreports.builder.rangeSize";
+
+	public static final String GP_BUILDER_STEP_THREADS = "amrsreports.builder.stepThreads";
+
+	public static final String GP_BUILDER_RESUME = "amrsreports.builder.resume";
+
+	public static final String GP_ENROLLMENT_ENGINE = "amrsreports.builder.enrollmentEngine";
+
+	public static final String ENROLLMENT_ENGINE_SQL = "sql";
+
+	public static final String ENROLLMENT_ENGINE_STREAMING = "streaming";
+
+	public static final String GP_ARV_LAST_OBS_ID = "amrsreports.arv.lastObsId";
+
+	public static final String GP_ARV_LAST_BUILD_DATE = "amrsreports.arv.lastBuildDate";
+
+	public static final String GP_ENROLLMENT_LAST_BUILD_DATE = "amrsreports.enrollment.lastBuildDate";
+
+	public static final String GP_TABLES_BUILD_VERSION = "amrsreports.tables.buildVersion";
+
+	// report queue settings
+	public static final String GP_QUEUE_WORKERS = "amrsreports.queue.workers";
+
+	public static final String GP_QUEUE_MAX_EVALUATIONS = "amrsreports.queue.maxEvaluations";
+
+	public static final String GP_QUEUE_LEASE_MINUTES = "amrsreports.queue.leaseMinutes";
+
+	public static final String GP_QUEUE_AGING_MINUTES = "amrsreports.queue.agingMinutes";
+
+	public static final String GP_QUEUE_FAIR_SHARE_BY = "amrsreports.queue.fairShareBy";
+
+	public static final String GP_TASK_LOCK_WAIT_SECONDS = "amrsreports.task.lockWaitSeconds";
+
+	// report evaluation settings
+	public static final String GP_REPORT_CHUNK_SIZE = "amrsreports.report.chunkSize";
+
+	public static final String GP_REPORT_STREAMING_OUTPUT = "amrsreports.report.streamingOutput";
+
+	public static final String GP_REPORT_COLUMN_THREADS = "amrsreports.report.columnThreads";
+
+	public static final String GP_REPORT_CACHE_SIZE = "amrsreports.report.cacheSize";
+
+	public static final String GP_REPORT_CACHE_SPILL_MEGABYTES = "amrsreports.report.cacheSpillMegabytes";
 }
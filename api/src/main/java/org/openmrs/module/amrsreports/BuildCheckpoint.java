@@ -0,0 +1,68 @@
+package org.openmrs.module.amrsreports;
+
+import org.openmrs.BaseOpenmrsObject;
+
+import java.util.Date;
+
+/**
+ * Durable marker for a completed step of a derived table build, optionally carrying a value the rest of the build
+ * needs if it is resumed
+ */
+public class BuildCheckpoint extends BaseOpenmrsObject {
+
+	private Integer buildCheckpointId;
+	private String buildId;
+	private String step;
+	private String value;
+	private Date dateCompleted;
+
+	public Integer getBuildCheckpointId() {
+		return buildCheckpointId;
+	}
+
+	public void setBuildCheckpointId(Integer buildCheckpointId) {
+		this.buildCheckpointId = buildCheckpointId;
+	}
+
+	@Override
+	public Integer getId() {
+		return getBuildCheckpointId();
+	}
+
+	@Override
+	public void setId(Integer id) {
+		setBuildCheckpointId(id);
+	}
+
+	public String getBuildId() {
+		return buildId;
+	}
+
+	public void setBuildId(String buildId) {
+		this.buildId = buildId;
+	}
+
+	public String getStep() {
+		return step;
+	}
+
+	public void setStep(String step) {
+		this.step = step;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public void setValue(String value) {
+		this.value = value;
+	}
+
+	public Date getDateCompleted() {
+		return dateCompleted;
+	}
+
+	public void setDateCompleted(Date dateCompleted) {
+		this.dateCompleted = dateCompleted;
+	}
+}
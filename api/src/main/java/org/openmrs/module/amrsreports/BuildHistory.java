@@ -0,0 +1,94 @@
+package org.openmrs.module.amrsreports;
+
+import org.openmrs.BaseOpenmrsObject;
+
+import java.util.Date;
+
+/**
+ * Record of a single step run while building the derived tables
+ */
+public class BuildHistory extends BaseOpenmrsObject {
+
+	private Integer buildHistoryId;
+	private String buildId;
+	private String builder;
+	private String step;
+	private Date dateStarted;
+	private Date dateFinished;
+	private Integer rowsAffected;
+
+	public Integer getBuildHistoryId() {
+		return buildHistoryId;
+	}
+
+	public void setBuildHistoryId(Integer buildHistoryId) {
+		this.buildHistoryId = buildHistoryId;
+	}
+
+	@Override
+	public Integer getId() {
+		return getBuildHistoryId();
+	}
+
+	@Override
+	public void setId(Integer id) {
+		setBuildHistoryId(id);
+	}
+
+	public String getBuildId() {
+		return buildId;
+	}
+
+	public void setBuildId(String buildId) {
+		this.buildId = buildId;
+	}
+
+	public String getBuilder() {
+		return builder;
+	}
+
+	public void setBuilder(String builder) {
+		this.builder = builder;
+	}
+
+	public String getStep() {
+		return step;
+	}
+
+	public void setStep(String step) {
+		this.step = step;
+	}
+
+	public Date getDateStarted() {
+		return dateStarted;
+	}
+
+	public void setDateStarted(Date dateStarted) {
+		this.dateStarted = dateStarted;
+	}
+
+	public Date getDateFinished() {
+		return dateFinished;
+	}
+
+	public void setDateFinished(Date dateFinished) {
+		this.dateFinished = dateFinished;
+	}
+
+	public Integer getRowsAffected() {
+		return rowsAffected;
+	}
+
+	public void setRowsAffected(Integer rowsAffected) {
+		this.rowsAffected = rowsAffected;
+	}
+
+	/**
+	 * @return time taken by the step in milliseconds, or null if it has not finished
+	 */
+	public Long getDuration() {
+		if (dateStarted == null || dateFinished == null)
+			return null;
+		return dateFinished.getTime() - dateStarted.getTime();
+	}
+}
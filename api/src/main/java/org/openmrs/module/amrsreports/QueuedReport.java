@@ -1,6 +1,7 @@
 package org.openmrs.module.amrsreports;
 
 import org.openmrs.BaseOpenmrsObject;
+import org.openmrs.User;
 
 import java.util.Date;
 
@@ -17,11 +18,31 @@ public class QueuedReport extends BaseOpenmrsObject {
 	private String status;
 	private String csvFilename;
 	private String xlsFilename;
+	private String leaseOwner;
+	private Date leaseExpiry;
+	private Integer version;
+	private Integer priority;
+	private User requestedBy;
+	private String batchId;
+	private String contentKey;
+	private Date dateStarted;
+	private Date dateCompleted;
+	private Integer patientCount;
+	private String progressPhase;
+	private Integer progressStep;
+	private Integer progressSteps;
+	private Date estimatedCompletion;
+	private Boolean cancelRequested;
 
 	public static final String STATUS_NEW = "NEW";
 	public static final String STATUS_ERROR = "ERROR";
 	public static final String STATUS_RUNNING = "RUNNING";
 	public static final String STATUS_COMPLETE = "COMPLETE";
+	public static final String STATUS_CANCELLED = "CANCELLED";
+
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_HIGH = 2;
 
 	public Integer getQueuedReportId() {
 		return queuedReportId;
@@ -96,4 +117,136 @@ public class QueuedReport extends BaseOpenmrsObject {
 	public void setXlsFilename(String xlsFilename) {
 		this.xlsFilename = xlsFilename;
 	}
+
+	public String getLeaseOwner() {
+		return leaseOwner;
+	}
+
+	public void setLeaseOwner(String leaseOwner) {
+		this.leaseOwner = leaseOwner;
+	}
+
+	public Date getLeaseExpiry() {
+		return leaseExpiry;
+	}
+
+	public void setLeaseExpiry(Date leaseExpiry) {
+		this.leaseExpiry = leaseExpiry;
+	}
+
+	public Integer getVersion() {
+		return version;
+	}
+
+	public void setVersion(Integer version) {
+		this.version = version;
+	}
+
+	public Integer getPriority() {
+		return priority;
+	}
+
+	public void setPriority(Integer priority) {
+		this.priority = priority;
+	}
+
+	public User getRequestedBy() {
+		return requestedBy;
+	}
+
+	public void setRequestedBy(User requestedBy) {
+		this.requestedBy = requestedBy;
+	}
+
+	/**
+	 * reports queued together for several facilities share a batch id, so they can be evaluated together
+	 */
+	public String getBatchId() {
+		return batchId;
+	}
+
+	public void setBatchId(String batchId) {
+		this.batchId = batchId;
+	}
+
+	/**
+	 * identifies what the output files contain: the report, facility and evaluation date, and the versions of the
+	 * derived tables and module that produced them
+	 */
+	public String getContentKey() {
+		return contentKey;
+	}
+
+	public void setContentKey(String contentKey) {
+		this.contentKey = contentKey;
+	}
+
+	// progress is written only while the report is evaluated; see QueuedReportService#saveQueuedReportProgress
+
+	public Date getDateStarted() {
+		return dateStarted;
+	}
+
+	public void setDateStarted(Date dateStarted) {
+		this.dateStarted = dateStarted;
+	}
+
+	public Date getDateCompleted() {
+		return dateCompleted;
+	}
+
+	public void setDateCompleted(Date dateCompleted) {
+		this.dateCompleted = dateCompleted;
+	}
+
+	public Integer getPatientCount() {
+		return patientCount;
+	}
+
+	public void setPatientCount(Integer patientCount) {
+		this.patientCount = patientCount;
+	}
+
+	public String getProgressPhase() {
+		return progressPhase;
+	}
+
+	public void setProgressPhase(String progressPhase) {
+		this.progressPhase = progressPhase;
+	}
+
+	public Integer getProgressStep() {
+		return progressStep;
+	}
+
+	public void setProgressStep(Integer progressStep) {
+		this.progressStep = progressStep;
+	}
+
+	public Integer getProgressSteps() {
+		return progressSteps;
+	}
+
+	public void setProgressSteps(Integer progressSteps) {
+		this.progressSteps = progressSteps;
+	}
+
+	public Date getEstimatedCompletion() {
+		return estimatedCompletion;
+	}
+
+	public void setEstimatedCompletion(Date estimatedCompletion) {
+		this.estimatedCompletion = estimatedCompletion;
+	}
+
+	/**
+	 * set when cancelling a running report, for whichever server is running it to pick up
+	 */
+	public Boolean getCancelRequested() {
+		return cancelRequested;
+	}
+
+	public void setCancelRequested(Boolean cancelRequested) {
+		this.cancelRequested = cancelRequested;
+	}
 }
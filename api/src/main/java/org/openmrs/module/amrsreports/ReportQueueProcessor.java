@@ -6,6 +6,22 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.amrsreports.service.QueuedReportService;
+import org.openmrs.module.amrsreports.util.OperationCancelledException;
+import org.openmrs.module.amrsreports.util.ReportEvaluationLimiter;
+import org.openmrs.module.amrsreports.util.TableBuilderUtil;
+import org.openmrs.module.amrsreports.util.WorkerSession;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Processor for queued reports
@@ -14,9 +30,20 @@ public class ReportQueueProcessor {
 
 	private final Log log = LogFactory.getLog(this.getClass());
 
-	private static Boolean isRunning = false; // allow only one running
+	private static final AtomicBoolean isRunning = new AtomicBoolean(false); // allow only one running
+
+	// shared by the worker threads processing reports at the same time
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private static final int DEFAULT_MAX_EVALUATIONS = 2;
+
+	private static final int DEFAULT_LEASE_MINUTES = 10;
+
+	// how often cancellations requested on other servers are picked up
+	private static final int CANCELLATION_CHECK_SECONDS = 10;
 
-	private static Integer count = 0;
+	// identifies this server when leasing reports from a queue shared with other servers
+	private static final String LEASE_OWNER = getHostName() + ":" + UUID.randomUUID().toString().substring(0, 8);
 
 	/**
 	 * Empty constructor (requires context to be set using <code>setContext(Context)</code> method before any other calls
@@ -38,16 +65,20 @@ public class ReportQueueProcessor {
 
 		try {
 			Context.getService(QueuedReportService.class).processQueuedReport(queuedReport);
+		} catch (OptimisticLockingFailureException e) {
+			leaseLost(queuedReport, e);
+		} catch (OperationCancelledException e) {
+			log.info("Queued report " + queuedReport.getId() + " was cancelled");
+			finishWithStatus(queuedReport, QueuedReport.STATUS_CANCELLED);
 		} catch (Exception e) {
 			log.error("Unable to process amrs reports queue!", e);
-            queuedReport.setStatus(QueuedReport.STATUS_ERROR);
-            Context.getService(QueuedReportService.class).saveQueuedReport(queuedReport);
+			finishWithStatus(queuedReport, QueuedReport.STATUS_ERROR);
 		}
 
-		if (++count > 25) {
+		if (count.incrementAndGet() > 25) {
 			// clean up memory after processing each queue entry (otherwise, the
 			// memory-intensive process may crash or eat up all our memory)
-			count = 0;
+			count.set(0);
 			try {
 				Context.flushSession();
 				Context.clearSession();
@@ -64,34 +95,202 @@ public class ReportQueueProcessor {
 	 * @return true if a queue entry was processed, false if queue was empty
 	 */
 	public boolean processNextQueuedReport() {
-		boolean entryProcessed = false;
-		QueuedReport queuedReport = Context.getService(QueuedReportService.class).getNextQueuedReport();
-		if (queuedReport != null) {
+		QueuedReport queuedReport = Context.getService(QueuedReportService.class)
+				.claimNextQueuedReport(LEASE_OWNER, getLeaseMinutes());
+
+		if (queuedReport == null)
+			return false;
+
+		if (queuedReport.getBatchId() == null) {
 			processQueuedReport(queuedReport);
-			entryProcessed = true;
+		} else {
+			processQueuedReportBatch(Context.getService(QueuedReportService.class)
+					.claimQueuedReportBatch(queuedReport, LEASE_OWNER, getLeaseMinutes()));
 		}
-		return entryProcessed;
+
+		return true;
 	}
 
 	/**
-	 * Starts up a thread to process all existing queue entries
+	 * Process the claimed reports of a batch together
 	 */
-	public void processQueuedReports() throws APIException {
-		synchronized (isRunning) {
-			if (isRunning) {
-				log.warn("Report queue processor aborting (another processor already running)");
-				return;
+	public void processQueuedReportBatch(List<QueuedReport> batch) {
+
+		if (log.isDebugEnabled())
+			log.debug("Processing batch of " + batch.size() + " queued reports");
+
+		try {
+			Context.getService(QueuedReportService.class).processQueuedReportBatch(batch);
+		} catch (OptimisticLockingFailureException e) {
+			for (QueuedReport queuedReport : batch) {
+				leaseLost(queuedReport, e);
+			}
+		} catch (OperationCancelledException e) {
+			log.info("Batch of " + batch.size() + " queued reports was cancelled");
+
+			// the batch shares one evaluation, so cancelling any of its reports stops all of them
+			for (QueuedReport queuedReport : batch) {
+				finishWithStatus(queuedReport, QueuedReport.STATUS_CANCELLED);
+			}
+		} catch (Exception e) {
+			log.error("Unable to process amrs reports queue!", e);
+
+			// the batch is processed in one transaction, so none of its reports were completed
+			for (QueuedReport queuedReport : batch) {
+				finishWithStatus(queuedReport, QueuedReport.STATUS_ERROR);
 			}
-			isRunning = true;
+		}
+
+		Context.flushSession();
+		Context.clearSession();
+	}
+
+	/**
+	 * Starts up a thread to process all existing queue entries, or a pool of workers if more than one is configured
+	 */
+	public void processQueuedReports() throws APIException {
+		if (!isRunning.compareAndSet(false, true)) {
+			log.warn("Report queue processor aborting (another processor already running)");
+			return;
 		}
 		try {
 			log.debug("Start processing queued reports");
-			while (processNextQueuedReport()) {
-				// loop until queue is empty
+
+			ReportEvaluationLimiter.setMaxEvaluations(TableBuilderUtil.getIntegerGlobalProperty(
+					AmrsReportsConstants.GP_QUEUE_MAX_EVALUATIONS, DEFAULT_MAX_EVALUATIONS));
+
+			int workers = TableBuilderUtil.getIntegerGlobalProperty(AmrsReportsConstants.GP_QUEUE_WORKERS, 1);
+
+			ScheduledExecutorService heartbeat = startLeaseRenewal();
+			try {
+				if (workers > 1) {
+					processWithWorkers(workers);
+				} else {
+					while (processNextQueuedReport()) {
+						// loop until queue is empty
+					}
+				}
+			} finally {
+				heartbeat.shutdownNow();
 			}
+
 			log.debug("Done processing queued reports");
 		} finally {
-			isRunning = false;
+			isRunning.set(false);
+		}
+	}
+
+	/**
+	 * processes the queue on a pool of workers, each claiming reports until the queue is empty; every worker has its
+	 * own session and user context
+	 */
+	private void processWithWorkers(int workers) {
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+		for (int i = 0; i < workers; i++) {
+			pool.submit(new Runnable() {
+				public void run() {
+					WorkerSession.open();
+					try {
+						while (processNextQueuedReport()) {
+							// each worker keeps its own session small
+							Context.flushSession();
+							Context.clearSession();
+						}
+					} catch (Exception e) {
+						log.error("Report queue worker stopped unexpectedly", e);
+					} finally {
+						WorkerSession.close();
+					}
+				}
+			});
+		}
+
+		pool.shutdown();
+
+		try {
+			while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+				log.debug("Waiting for report queue workers to finish");
+			}
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			throw new APIException("Interrupted while processing queued reports", e);
+		}
+	}
+
+	/**
+	 * renews this server's leases on its running reports a few times per lease period, for as long as the queue is
+	 * being processed, so long evaluations are not taken over by another server; also stops the reports whose
+	 * cancellation was requested on another server
+	 */
+	private ScheduledExecutorService startLeaseRenewal() {
+		final int leaseMinutes = getLeaseMinutes();
+
+		ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+		long period = Math.max(1, leaseMinutes * 60 / 3);
+
+		heartbeat.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				WorkerSession.open();
+				try {
+					int renewed = Context.getService(QueuedReportService.class).renewLeases(LEASE_OWNER, leaseMinutes);
+					if (log.isDebugEnabled())
+						log.debug("Renewed " + renewed + " report leases held by " + LEASE_OWNER);
+				} catch (Exception e) {
+					log.error("Could not renew report leases held by " + LEASE_OWNER, e);
+				} finally {
+					WorkerSession.close();
+				}
+			}
+		}, period, period, TimeUnit.SECONDS);
+
+		// cancellations requested on another server only reach this one through the database
+		heartbeat.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				WorkerSession.open();
+				try {
+					Context.getService(QueuedReportService.class).processCancellationRequests(LEASE_OWNER);
+				} catch (Exception e) {
+					log.error("Could not process report cancellations for " + LEASE_OWNER, e);
+				} finally {
+					WorkerSession.close();
+				}
+			}
+		}, CANCELLATION_CHECK_SECONDS, CANCELLATION_CHECK_SECONDS, TimeUnit.SECONDS);
+
+		return heartbeat;
+	}
+
+	/**
+	 * records how a report that did not complete ended, unless another server has taken it over
+	 */
+	private void finishWithStatus(QueuedReport queuedReport, String status) {
+		queuedReport.setStatus(status);
+		try {
+			Context.getService(QueuedReportService.class).saveQueuedReport(queuedReport);
+		} catch (OptimisticLockingFailureException lost) {
+			leaseLost(queuedReport, lost);
+		}
+	}
+
+	/**
+	 * another server has claimed the report after this server's lease ran out, so leave the report to it
+	 */
+	private void leaseLost(QueuedReport queuedReport, Exception e) {
+		log.warn("Lease on queued report " + queuedReport.getId() + " was lost to another server; discarding this run", e);
+		Context.evictFromSession(queuedReport);
+	}
+
+	private int getLeaseMinutes() {
+		return Math.max(1, TableBuilderUtil.getIntegerGlobalProperty(
+				AmrsReportsConstants.GP_QUEUE_LEASE_MINUTES, DEFAULT_LEASE_MINUTES));
+	}
+
+	private static String getHostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "unknown";
 		}
 	}
 }
@@ -15,11 +15,29 @@
 package org.openmrs.module.amrsreports.builder;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.AdministrationService;
+import org.openmrs.module.amrsreports.AmrsReportsConstants;
 import org.openmrs.module.amrsreports.util.TableBuilderUtil;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class ARVTableBuilder {
 
+	private static final Log log = LogFactory.getLog(ARVTableBuilder.class);
+
+	private static final String BUILDER = "ARV";
+
 	private static ARVTableBuilder instance;
 
 	public static ARVTableBuilder getInstance() {
@@ -35,6 +53,9 @@ public class ARVTableBuilder {
 	private static final String MACRO_DROP_TABLE =
 			"DROP TABLE IF EXISTS `:table`";
 
+	private static final String MACRO_TRUNCATE_TABLE =
+			"TRUNCATE TABLE `:table`";
+
 	private static final String MACRO_CREATE_TABLE =
 			"CREATE TABLE `:table` (" +
 					"  `:table_id` int(11) NOT NULL AUTO_INCREMENT," +
@@ -66,9 +87,9 @@ public class ARVTableBuilder {
 					"  KEY `:table_encounter_ref` (`encounter_id`)," +
 					"  INDEX `:table_on_ART_idx` (`on_ART`)," +
 					"  CONSTRAINT `:table_unique_encounter_id` UNIQUE (encounter_id)," +
-					"  CONSTRAINT `:table_patient_ref` FOREIGN KEY (`patient_id`) REFERENCES `patient` (`patient_id`)," +
-					"  CONSTRAINT `:table_encounter_ref` FOREIGN KEY (`encounter_id`) REFERENCES `encounter` (`encounter_id`)," +
-					"  CONSTRAINT `:table_location_ref` FOREIGN KEY (`location_id`) REFERENCES `location` (`location_id`)" +
+					"  FOREIGN KEY (`patient_id`) REFERENCES `patient` (`patient_id`)," +
+					"  FOREIGN KEY (`encounter_id`) REFERENCES `encounter` (`encounter_id`)," +
+					"  FOREIGN KEY (`location_id`) REFERENCES `location` (`location_id`)" +
 					") ENGINE=InnoDB DEFAULT CHARSET=utf8";
 
 	private static String MACRO_UPDATE_DRUG =
@@ -89,6 +110,7 @@ public class ARVTableBuilder {
 					"      on e.patient_id = p.person_id and p.voided = 0" +
 					"    join patient pt" +
 					"      on e.patient_id = pt.patient_id and pt.voided = 0" +
+					"    :restriction" +
 					"  where " +
 					"    o.voided = 0" +
 					"    and o.concept_id in (:questions)" +
@@ -101,7 +123,8 @@ public class ARVTableBuilder {
 					"  :column = 1";
 
 	private static String MACRO_UPDATE_ON_ART =
-			"update :table" +
+			"update :table t" +
+					" :restriction" +
 					" set on_ART=1" +
 					" where" +
 					"   ABACAVIR +" +
@@ -124,57 +147,521 @@ public class ARVTableBuilder {
 					"   OTHER +" +
 					"   UNKNOWN >= 3";
 
+	private static final String CREATE_DIRTY_TABLE =
+			"CREATE TABLE IF NOT EXISTS `amrsreports_arv_dirty` (" +
+					"  `encounter_id` int(11) NOT NULL," +
+					"  PRIMARY KEY (`encounter_id`)" +
+					") ENGINE=InnoDB DEFAULT CHARSET=utf8";
+
+	private static final String CLEAR_DIRTY_TABLE =
+			"delete from amrsreports_arv_dirty";
+
+	private static final String DROP_DIRTY_TABLE =
+			"DROP TABLE IF EXISTS `amrsreports_arv_dirty`";
+
+	private static final String RESTRICT_TO_DIRTY =
+			"join amrsreports_arv_dirty dirty on dirty.encounter_id = :column";
+
+	private static final String QUERY_DIRTY_FROM_OBS =
+			"insert ignore into amrsreports_arv_dirty (encounter_id)" +
+					"  select distinct" +
+					"    o.encounter_id" +
+					"  from" +
+					"    obs o" +
+					"  where" +
+					"    o.concept_id in (:questions)" +
+					"    and o.encounter_id is not NULL" +
+					"    and (" +
+					"      o.obs_id > :lastObsId" +
+					"      or o.date_voided >= ':lastBuildDate'" +
+					"    )";
+
+	private static final String QUERY_DIRTY_FROM_ENCOUNTERS =
+			"insert ignore into amrsreports_arv_dirty (encounter_id)" +
+					"  select" +
+					"    e.encounter_id" +
+					"  from" +
+					"    encounter e" +
+					"  where" +
+					"    e.date_changed >= ':lastBuildDate'" +
+					"    or e.date_voided >= ':lastBuildDate'";
+
+	private static final String QUERY_DIRTY_FROM_PATIENTS =
+			"insert ignore into amrsreports_arv_dirty (encounter_id)" +
+					"  select" +
+					"    e.encounter_id" +
+					"  from" +
+					"    encounter e" +
+					"    join person p" +
+					"      on e.patient_id = p.person_id" +
+					"    join patient pt" +
+					"      on e.patient_id = pt.patient_id" +
+					"  where" +
+					"    p.date_changed >= ':lastBuildDate'" +
+					"    or p.date_voided >= ':lastBuildDate'" +
+					"    or pt.date_changed >= ':lastBuildDate'" +
+					"    or pt.date_voided >= ':lastBuildDate'";
+
+	private static final String MACRO_DELETE_DIRTY =
+			"delete t" +
+					" from :table t" +
+					"   join amrsreports_arv_dirty dirty on dirty.encounter_id = t.encounter_id";
+
+	private static final String QUERY_MAX_OBS_ID =
+			"select max(obs_id) from obs";
+
+	private static final String COLUMNS =
+			"patient_id, encounter_id, location_id, encounter_date, on_ART," +
+					" ABACAVIR, ATAZANAVIR, DARUNAVIR, DIDANOSINE, EFAVIRENZ, EMTRICITABINE, ETRAVIRINE," +
+					" INDINAVIR, LAMIVUDINE, LOPINAVIR, NELFINAVIR, NEVIRAPINE, RALTEGRAVIR, RITONAVIR," +
+					" STAVUDINE, TENOFOVIR, ZIDOVUDINE, OTHER, UNKNOWN";
+
+	private static final String MACRO_COUNT_DIFFERENCES =
+			"select count(*) from (" +
+					"  select :columns" +
+					"  from (" +
+					"    select :columns from :table" +
+					"    union all" +
+					"    select :columns from :verify" +
+					"  ) combined" +
+					"  group by :columns" +
+					"  having count(*) = 1" +
+					") differences";
+
+	private static final String MACRO_PIVOT_DRUGS =
+			"insert into :table (" +
+					"  encounter_id," +
+					"  location_id," +
+					"  patient_id," +
+					"  encounter_date," +
+					"  :columns" +
+					" )" +
+					"  select " +
+					"    e.encounter_id, e.location_id, e.patient_id, e.encounter_datetime," +
+					"    :flags" +
+					"  from " +
+					"    obs o" +
+					"    join encounter e" +
+					"      on e.encounter_id = o.encounter_id and e.voided = 0" +
+					"    join person p" +
+					"      on e.patient_id = p.person_id and p.voided = 0" +
+					"    join patient pt" +
+					"      on e.patient_id = pt.patient_id and pt.voided = 0" +
+					"    :restriction" +
+					"  where " +
+					"    o.voided = 0" +
+					"    and o.concept_id in (:questions)" +
+					"    and o.value_coded in (:concepts)" +
+					"  group by" +
+					"    e.encounter_id" +
+					"  order by" +
+					"    e.encounter_datetime asc";
+
+	/**
+	 * drug columns and the answer concepts that indicate each drug
+	 */
+	private static final Map<String, Integer[]> DRUG_CONCEPTS = new LinkedHashMap<String, Integer[]>();
+
+	static {
+		DRUG_CONCEPTS.put("ABACAVIR", new Integer[]{814, 817, 6679});
+		DRUG_CONCEPTS.put("ATAZANAVIR", new Integer[]{6159, 6160});
+		DRUG_CONCEPTS.put("DARUNAVIR", new Integer[]{6157});
+		DRUG_CONCEPTS.put("DIDANOSINE", new Integer[]{796});
+		DRUG_CONCEPTS.put("EFAVIRENZ", new Integer[]{633, 6964});
+		DRUG_CONCEPTS.put("EMTRICITABINE", new Integer[]{791, 6180});
+		DRUG_CONCEPTS.put("ETRAVIRINE", new Integer[]{6158});
+		DRUG_CONCEPTS.put("INDINAVIR", new Integer[]{749});
+		DRUG_CONCEPTS.put("LAMIVUDINE", new Integer[]{628, 630, 792, 817, 1400, 6467, 6679, 6964, 6965});
+		DRUG_CONCEPTS.put("LOPINAVIR", new Integer[]{794});
+		DRUG_CONCEPTS.put("NELFINAVIR", new Integer[]{635});
+		DRUG_CONCEPTS.put("NEVIRAPINE", new Integer[]{631, 792, 6467});
+		DRUG_CONCEPTS.put("RALTEGRAVIR", new Integer[]{6156});
+		DRUG_CONCEPTS.put("RITONAVIR", new Integer[]{794, 795, 6160});
+		DRUG_CONCEPTS.put("STAVUDINE", new Integer[]{625, 792, 6965});
+		DRUG_CONCEPTS.put("TENOFOVIR", new Integer[]{802, 1400, 6180, 6964});
+		DRUG_CONCEPTS.put("ZIDOVUDINE", new Integer[]{630, 797, 817, 6467});
+		DRUG_CONCEPTS.put("UNKNOWN", new Integer[]{5811});
+		DRUG_CONCEPTS.put("OTHER", new Integer[]{5424});
+	}
+
 	private static String TABLE_CURRENT = "amrsreports_arv_current";
 	private static String QUESTIONS_CURRENT = "966, 1088, 1250, 1895, 2154";
 
 	private static String TABLE_PREVIOUS = "amrsreports_arv_previous";
 	private static String QUESTIONS_PREVIOUS = "1086, 1087, 2157";
 
+	private static String SUFFIX_VERIFY = "_verify";
+	private static String SUFFIX_PER_DRUG = "_bench_per_drug";
+	private static String SUFFIX_PIVOT = "_bench_pivot";
+
+	private static final int BENCHMARK_ROUNDS = 3;
+
+	private static final String MYSQL_DATETIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+	private static final String CHECKPOINT_MAX_OBS_ID = "ARV: max obs id";
+
 	private AdministrationService administrationService;
 
 	/**
-	 * drops, creates and fills out the ARV encounter table
+	 * builds the ARV encounter tables, incrementally if configured to do so and a previous build exists
 	 */
 	public void execute() {
+		String mode = TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_BUILDER_MODE);
+
+		if (OpenmrsUtil.nullSafeEquals(AmrsReportsConstants.BUILDER_MODE_INCREMENTAL, mode) && canBuildIncrementally())
+			executeIncremental();
+		else
+			executeFull();
+	}
+
+	/**
+	 * creates and fills out staging copies of the ARV encounter tables, then swaps them in place of the current ones
+	 */
+	public void executeFull() {
+		// remember where this build started so the next incremental build can pick up from here
+		Object maxObsId = TableBuilderUtil.getSingleValue(QUERY_MAX_OBS_ID);
+		Date buildDate = new Date();
+
+		buildTables(TABLE_CURRENT + TableBuilderUtil.STAGING_SUFFIX, TABLE_PREVIOUS + TableBuilderUtil.STAGING_SUFFIX, "");
+		TableBuilderUtil.publishStagingTables(TABLE_CURRENT, TABLE_PREVIOUS);
+
+		saveHighWaterMark(maxObsId, buildDate);
+	}
+
+	/**
+	 * adds the steps of a build to the graph: a full build fills the current and previous tables independently, while
+	 * an incremental build runs as a single step
+	 *
+	 * @return the name of the last step, which later builds can depend on
+	 */
+	public String addSteps(BuildGraph graph, String... dependsOn) {
+		String mode = TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_BUILDER_MODE);
+
+		if (OpenmrsUtil.nullSafeEquals(AmrsReportsConstants.BUILDER_MODE_INCREMENTAL, mode) && canBuildIncrementally()) {
+			graph.addStep("ARV: incremental", new Runnable() {
+				public void run() {
+					executeIncremental();
+				}
+			}, dependsOn);
+			return "ARV: incremental";
+		}
+
+		final String currentTable = TABLE_CURRENT + TableBuilderUtil.STAGING_SUFFIX;
+		final String previousTable = TABLE_PREVIOUS + TableBuilderUtil.STAGING_SUFFIX;
+
+		// the high-water mark is taken before any table is filled, and kept with the build in case it is resumed
+		graph.addStep("ARV: create tables", new Runnable() {
+			public void run() {
+				Object maxObsId = TableBuilderUtil.getSingleValue(QUERY_MAX_OBS_ID);
+				TableBuilderUtil.saveCheckpoint(CHECKPOINT_MAX_OBS_ID, maxObsId == null ? null : maxObsId.toString());
+				createTables(currentTable, previousTable);
+			}
+		}, dependsOn);
+
+		// each table is emptied first, so a fill interrupted part way through can be run again
+		graph.addStep("ARV: fill current", new Runnable() {
+			public void run() {
+				TableBuilderUtil.runUpdateSQL(MACRO_TRUNCATE_TABLE.replaceAll(":table", currentTable));
+				fillTable(currentTable, QUESTIONS_CURRENT, "");
+			}
+		}, "ARV: create tables");
+
+		graph.addStep("ARV: fill previous", new Runnable() {
+			public void run() {
+				TableBuilderUtil.runUpdateSQL(MACRO_TRUNCATE_TABLE.replaceAll(":table", previousTable));
+				fillTable(previousTable, QUESTIONS_PREVIOUS, "");
+			}
+		}, "ARV: create tables");
+
+		graph.addStep("ARV: publish", new Runnable() {
+			public void run() {
+				TableBuilderUtil.publishStagingTables(TABLE_CURRENT, TABLE_PREVIOUS);
+				saveHighWaterMark(TableBuilderUtil.getCheckpointValue(CHECKPOINT_MAX_OBS_ID),
+						TableBuilderUtil.getBuildStartDate());
+			}
+		}, "ARV: fill current", "ARV: fill previous");
+
+		return "ARV: publish";
+	}
+
+	/**
+	 * updates the ARV encounter tables only for encounters with new, changed or voided observations since the last
+	 * build; falls back to a full build if there is no previous build to work from.  The rows of those encounters are
+	 * deleted and filled out again in the published tables within a single transaction, so readers never see the
+	 * changes half applied and the work done depends on the number of changed encounters, not the size of the tables.
+	 */
+	public void executeIncremental() {
+		if (!canBuildIncrementally()) {
+			log.info("No previous ARV table build found; performing a full build instead.");
+			executeFull();
+			return;
+		}
+
+		Object maxObsId = TableBuilderUtil.getSingleValue(QUERY_MAX_OBS_ID);
+		Date buildDate = new Date();
+
+		String lastObsId = TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_ARV_LAST_OBS_ID);
+		String lastBuildDate = TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_ARV_LAST_BUILD_DATE);
+
+		// collect all encounters affected since the last build
+		TableBuilderUtil.runUpdateSQL(CREATE_DIRTY_TABLE);
+		TableBuilderUtil.runUpdateSQL(CLEAR_DIRTY_TABLE);
+
+		TableBuilderUtil.runUpdateSQL(BUILDER, "collect changed obs", QUERY_DIRTY_FROM_OBS
+				.replaceAll(":questions", QUESTIONS_CURRENT + ", " + QUESTIONS_PREVIOUS)
+				.replaceAll(":lastObsId", lastObsId)
+				.replaceAll(":lastBuildDate", lastBuildDate));
+		TableBuilderUtil.runUpdateSQL(BUILDER, "collect changed encounters",
+				QUERY_DIRTY_FROM_ENCOUNTERS.replaceAll(":lastBuildDate", lastBuildDate));
+		TableBuilderUtil.runUpdateSQL(BUILDER, "collect changed patients",
+				QUERY_DIRTY_FROM_PATIENTS.replaceAll(":lastBuildDate", lastBuildDate));
+
+		// remove the old rows for those encounters and recalculate them, all or nothing
+		Map<String, String> steps = new LinkedHashMap<String, String>();
+		for (String table : new String[]{TABLE_CURRENT, TABLE_PREVIOUS}) {
+			steps.put("delete changed rows from " + table, MACRO_DELETE_DIRTY.replaceAll(":table", table));
+		}
+		steps.put("fill " + TABLE_CURRENT, getFillQuery(TABLE_CURRENT, QUESTIONS_CURRENT, RESTRICT_TO_DIRTY));
+		steps.put("update on_ART in " + TABLE_CURRENT, getUpdateOnARTQuery(TABLE_CURRENT, RESTRICT_TO_DIRTY));
+		steps.put("fill " + TABLE_PREVIOUS, getFillQuery(TABLE_PREVIOUS, QUESTIONS_PREVIOUS, RESTRICT_TO_DIRTY));
+		steps.put("update on_ART in " + TABLE_PREVIOUS, getUpdateOnARTQuery(TABLE_PREVIOUS, RESTRICT_TO_DIRTY));
+
+		TableBuilderUtil.runUpdateSQLInTransaction(BUILDER, steps);
+
+		TableBuilderUtil.runUpdateSQL(DROP_DIRTY_TABLE);
+
+		saveHighWaterMark(maxObsId, buildDate);
+	}
+
+	/**
+	 * builds a fresh copy of the ARV tables and compares them to the existing ones, row for row
+	 *
+	 * @return a summary of the differences found
+	 */
+	public String verify() {
+		String currentVerify = TABLE_CURRENT + SUFFIX_VERIFY;
+		String previousVerify = TABLE_PREVIOUS + SUFFIX_VERIFY;
+
+		buildTables(currentVerify, previousVerify, "");
+
+		List<String> results = new ArrayList<String>();
+		for (String table : new String[]{TABLE_CURRENT, TABLE_PREVIOUS}) {
+			Object differences = TableBuilderUtil.getSingleValue(MACRO_COUNT_DIFFERENCES
+					.replaceAll(":columns", COLUMNS)
+					.replaceAll(":table", table)
+					.replaceAll(":verify", table + SUFFIX_VERIFY));
+			results.add(table + ": " + differences + " differing rows");
+		}
+
+		for (String table : new String[]{currentVerify, previousVerify}) {
+			TableBuilderUtil.runUpdateSQL(MACRO_DROP_TABLE.replaceAll(":table", table));
+		}
+
+		String summary = "ARV table verification complete; " + StringUtils.join(results, ", ");
+		log.info(summary);
+		return summary;
+	}
+
+	/**
+	 * builds the ARV tables both with one query per drug and with the single-pass pivot, reporting timings, the
+	 * number of rows the server reads for each approach and whether the results match.  A first pass of each approach
+	 * is discarded so the buffer pool is warm for both, and the measured rounds alternate which approach goes first.
+	 *
+	 * @return a summary of the comparison
+	 */
+	public String benchmark() {
+		String currentPerDrug = TABLE_CURRENT + SUFFIX_PER_DRUG;
+		String previousPerDrug = TABLE_PREVIOUS + SUFFIX_PER_DRUG;
+		String currentPivot = TABLE_CURRENT + SUFFIX_PIVOT;
+		String previousPivot = TABLE_PREVIOUS + SUFFIX_PIVOT;
+
+		// warm up
+		measureFill(currentPerDrug, previousPerDrug, true);
+		measureFill(currentPivot, previousPivot, false);
+
+		long[] perDrug = new long[2];
+		long[] pivot = new long[2];
+		for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+			boolean perDrugFirst = round % 2 == 0;
+			add(perDrugFirst ? perDrug : pivot, measureFill(perDrugFirst ? currentPerDrug : currentPivot,
+					perDrugFirst ? previousPerDrug : previousPivot, perDrugFirst));
+			add(perDrugFirst ? pivot : perDrug, measureFill(perDrugFirst ? currentPivot : currentPerDrug,
+					perDrugFirst ? previousPivot : previousPerDrug, !perDrugFirst));
+		}
+
+		List<String> differences = new ArrayList<String>();
+		for (String table : new String[]{TABLE_CURRENT, TABLE_PREVIOUS}) {
+			Object count = TableBuilderUtil.getSingleValue(MACRO_COUNT_DIFFERENCES
+					.replaceAll(":columns", COLUMNS)
+					.replaceAll(":table", table + SUFFIX_PER_DRUG)
+					.replaceAll(":verify", table + SUFFIX_PIVOT));
+			differences.add(table + ": " + count + " differing rows");
+		}
+
+		for (String table : new String[]{currentPerDrug, previousPerDrug, currentPivot, previousPivot}) {
+			TableBuilderUtil.runUpdateSQL(MACRO_DROP_TABLE.replaceAll(":table", table));
+		}
+
+		String summary = String.format("ARV table benchmark complete, averaged over %d rounds after a warm-up;" +
+				" per drug: %d ms, %d rows read; pivot: %d ms, %d rows read; %s", BENCHMARK_ROUNDS,
+				perDrug[0] / BENCHMARK_ROUNDS, perDrug[1] / BENCHMARK_ROUNDS,
+				pivot[0] / BENCHMARK_ROUNDS, pivot[1] / BENCHMARK_ROUNDS, StringUtils.join(differences, ", "));
+		log.info(summary);
+		return summary;
+	}
+
+	/**
+	 * recreates and fills out the given tables with one of the two approaches
+	 *
+	 * @return the milliseconds taken and the rows read by the server, from its Handler_read counters
+	 */
+	private long[] measureFill(String currentTable, String previousTable, boolean perDrug) {
+		createTables(currentTable, previousTable);
+
+		long rowsRead = TableBuilderUtil.getRowsRead();
+		long start = System.currentTimeMillis();
+
+		if (perDrug)
+			fillTablesPerDrug(currentTable, previousTable, "");
+		else
+			fillTables(currentTable, previousTable, "");
+
+		return new long[]{System.currentTimeMillis() - start, TableBuilderUtil.getRowsRead() - rowsRead};
+	}
+
+	private static void add(long[] totals, long[] measurement) {
+		for (int i = 0; i < totals.length; i++) {
+			totals[i] += measurement[i];
+		}
+	}
+
+	/**
+	 * determines whether enough information exists from a previous build to update the tables incrementally
+	 */
+	private boolean canBuildIncrementally() {
+		if (StringUtils.isBlank(TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_ARV_LAST_OBS_ID))
+				|| StringUtils.isBlank(TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_ARV_LAST_BUILD_DATE)))
+			return false;
 
 		for (String table : new String[]{TABLE_CURRENT, TABLE_PREVIOUS}) {
+			if (!TableBuilderUtil.tableExists(table))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * stores the high-water mark for the next incremental build
+	 */
+	private void saveHighWaterMark(Object maxObsId, Date buildDate) {
+		TableBuilderUtil.saveGlobalProperty(AmrsReportsConstants.GP_ARV_LAST_OBS_ID,
+				maxObsId == null ? "0" : maxObsId.toString());
+		TableBuilderUtil.saveGlobalProperty(AmrsReportsConstants.GP_ARV_LAST_BUILD_DATE,
+				new SimpleDateFormat(MYSQL_DATETIME_FORMAT).format(buildDate));
+	}
+
+	/**
+	 * drops, creates and fills out the given ARV tables
+	 */
+	private void buildTables(String currentTable, String previousTable, String restriction) {
+		createTables(currentTable, previousTable);
+		fillTables(currentTable, previousTable, restriction);
+	}
+
+	/**
+	 * drops and creates the given ARV tables
+	 */
+	private void createTables(String currentTable, String previousTable) {
+		for (String table : new String[]{currentTable, previousTable}) {
 			// drop the table
 			TableBuilderUtil.runUpdateSQL(MACRO_DROP_TABLE.replaceAll(":table", table));
 			// recreate the table
 			TableBuilderUtil.runUpdateSQL(MACRO_CREATE_TABLE.replaceAll(":table", table));
 		}
+	}
+
+	/**
+	 * fills out the given ARV tables, optionally restricted by a join clause on encounter_id
+	 */
+	private void fillTables(String currentTable, String previousTable, String restriction) {
+		fillTable(currentTable, QUESTIONS_CURRENT, restriction);
+		fillTable(previousTable, QUESTIONS_PREVIOUS, restriction);
+	}
+
+	/**
+	 * sets all of the ARV columns in a single pass over the given table, then its on_ART column
+	 */
+	private void fillTable(String table, String questions, String restriction) {
+		TableBuilderUtil.runUpdateSQL(BUILDER, "fill " + table, getFillQuery(table, questions, restriction));
+
+		updateOnART(table, restriction);
+	}
+
+	/**
+	 * @return the single-pass query setting all of the ARV columns in the given table
+	 */
+	private String getFillQuery(String table, String questions, String restriction) {
+		return buildPivotQuery(restriction.replaceAll(":column", "e.encounter_id"))
+				.replaceAll(":table", table)
+				.replaceAll(":questions", questions);
+	}
+
+	/**
+	 * fills out the given ARV tables with one query per drug per table; kept for benchmarking against the pivot
+	 */
+	private void fillTablesPerDrug(String currentTable, String previousTable, String restriction) {
 
 		// update all of the ARVs
-		updateARVs("ABACAVIR", 814, 817, 6679);
-		updateARVs("ATAZANAVIR", 6159, 6160);
-		updateARVs("DARUNAVIR", 6157);
-		updateARVs("DIDANOSINE", 796);
-		updateARVs("EFAVIRENZ", 633, 6964);
-		updateARVs("EMTRICITABINE", 791, 6180);
-		updateARVs("ETRAVIRINE", 6158);
-		updateARVs("INDINAVIR", 749);
-		updateARVs("LAMIVUDINE", 628, 630, 792, 817, 1400, 6467, 6679, 6964, 6965);
-		updateARVs("LOPINAVIR", 794);
-		updateARVs("NELFINAVIR", 635);
-		updateARVs("NEVIRAPINE", 631, 792, 6467);
-		updateARVs("RALTEGRAVIR", 6156);
-		updateARVs("RITONAVIR", 794, 795, 6160);
-		updateARVs("STAVUDINE", 625, 792, 6965);
-		updateARVs("TENOFOVIR", 802, 1400, 6180, 6964);
-		updateARVs("ZIDOVUDINE", 630, 797, 817, 6467);
-		updateARVs("UNKNOWN", 5811);
-		updateARVs("OTHER", 5424);
+		for (Map.Entry<String, Integer[]> drug : DRUG_CONCEPTS.entrySet()) {
+			updateARVs(currentTable, previousTable, restriction, drug.getKey(), drug.getValue());
+		}
 
-		for (String table : new String[]{TABLE_CURRENT, TABLE_PREVIOUS}) {
-			// update on_ART column
-			TableBuilderUtil.runUpdateSQL(MACRO_UPDATE_ON_ART.replaceAll(":table", table));
+		updateOnART(currentTable, restriction);
+		updateOnART(previousTable, restriction);
+	}
+
+	/**
+	 * updates the on_ART column in the given table
+	 */
+	private void updateOnART(String table, String restriction) {
+		TableBuilderUtil.runUpdateSQL(BUILDER, "update on_ART in " + table, getUpdateOnARTQuery(table, restriction));
+	}
+
+	/**
+	 * @return the query setting the on_ART column in the given table
+	 */
+	private String getUpdateOnARTQuery(String table, String restriction) {
+		return MACRO_UPDATE_ON_ART
+				.replaceAll(":restriction", restriction.replaceAll(":column", "t.encounter_id"))
+				.replaceAll(":table", table);
+	}
+
+	/**
+	 * creates the single-pass query from the drug to concept mapping, leaving :table and :questions to be filled in
+	 */
+	private String buildPivotQuery(String restriction) {
+		List<String> columns = new ArrayList<String>();
+		List<String> flags = new ArrayList<String>();
+		Set<Integer> allConcepts = new TreeSet<Integer>();
+
+		for (Map.Entry<String, Integer[]> drug : DRUG_CONCEPTS.entrySet()) {
+			columns.add(drug.getKey());
+			flags.add(String.format("max(o.value_coded in (%s))", StringUtils.join(drug.getValue(), ",")));
+			allConcepts.addAll(Arrays.asList(drug.getValue()));
 		}
+
+		return MACRO_PIVOT_DRUGS
+				.replaceAll(":restriction", restriction)
+				.replaceAll(":columns", StringUtils.join(columns, ", "))
+				.replaceAll(":flags", StringUtils.join(flags, ", "))
+				.replaceAll(":concepts", StringUtils.join(allConcepts, ","));
 	}
 
 	/**
 	 * updates ARV columns based on the drug and related concept IDs
 	 */
-	private void updateARVs(String drug, Integer... concepts) {
+	private void updateARVs(String currentTable, String previousTable, String restriction, String drug, Integer... concepts) {
 		// do nothing if no concepts were passed in
 		if (concepts.length == 0)
 			return;
@@ -186,15 +673,18 @@ public class ARVTableBuilder {
 		else
 			condition = String.format("in (%s)", StringUtils.join(concepts, ","));
 
-		String baseQuery = MACRO_UPDATE_DRUG.replaceAll(":condition", condition).replaceAll(":column", drug);
+		String baseQuery = MACRO_UPDATE_DRUG
+				.replaceAll(":restriction", restriction.replaceAll(":column", "e.encounter_id"))
+				.replaceAll(":condition", condition)
+				.replaceAll(":column", drug);
 
 		// run query with for current questions
-		String query = baseQuery.replaceAll(":table", TABLE_CURRENT).replaceAll(":questions", QUESTIONS_CURRENT);
-		TableBuilderUtil.runUpdateSQL(query);
+		String query = baseQuery.replaceAll(":table", currentTable).replaceAll(":questions", QUESTIONS_CURRENT);
+		TableBuilderUtil.runUpdateSQL(BUILDER, drug + " in " + currentTable, query);
 
 		// run query with for historical questions
-		query = baseQuery.replaceAll(":table", TABLE_PREVIOUS).replaceAll(":questions", QUESTIONS_PREVIOUS);
-		TableBuilderUtil.runUpdateSQL(query);
+		query = baseQuery.replaceAll(":table", previousTable).replaceAll(":questions", QUESTIONS_PREVIOUS);
+		TableBuilderUtil.runUpdateSQL(BUILDER, drug + " in " + previousTable, query);
 	}
 
 }
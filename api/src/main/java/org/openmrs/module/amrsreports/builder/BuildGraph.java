@@ -0,0 +1,346 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.builder;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.api.APIException;
+import org.openmrs.module.amrsreports.util.OperationCancelledException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A set of named build steps with explicit dependencies between them.  Executing the graph runs every step after all
+ * of its dependencies have finished, running independent steps at the same time on a bounded pool of threads.  Steps
+ * that write the same table can be marked exclusive on it, so that they run one at a time even when they do not
+ * depend on each other.  Step
+ * durations are kept so the critical path -- the chain of dependent steps that determined the total build time -- can
+ * be reported afterwards.
+ */
+public class BuildGraph {
+
+	private final Map<String, Runnable> steps = new LinkedHashMap<String, Runnable>();
+
+	private final Map<String, List<String>> dependencies = new LinkedHashMap<String, List<String>>();
+
+	private final Map<String, Long> durations = new ConcurrentHashMap<String, Long>();
+
+	private final Set<String> completed = new HashSet<String>();
+
+	private final Map<String, String> resources = new HashMap<String, String>();
+
+	/**
+	 * adds a step that runs only after the named steps have finished
+	 */
+	public void addStep(String name, Runnable work, String... dependsOn) {
+		if (steps.containsKey(name))
+			throw new IllegalArgumentException("Duplicate build step: " + name);
+
+		steps.put(name, work);
+		dependencies.put(name, new ArrayList<String>(Arrays.asList(dependsOn)));
+	}
+
+	/**
+	 * keeps a step from running at the same time as any other step exclusive on the same resource, such as a table
+	 * they both update
+	 */
+	public void setExclusive(String name, String resource) {
+		if (!steps.containsKey(name))
+			throw new IllegalArgumentException("Unknown build step: " + name);
+
+		resources.put(name, resource);
+	}
+
+	public boolean hasStep(String name) {
+		return steps.containsKey(name);
+	}
+
+	/**
+	 * marks a step as already completed, for instance by an earlier attempt at the same build, so it is skipped
+	 */
+	public void markComplete(String name) {
+		if (steps.containsKey(name))
+			completed.add(name);
+	}
+
+	/**
+	 * runs all steps, at most the given number at a time; with one thread the steps run in order on the calling
+	 * thread.  The first failing step stops any further steps from starting.  Steps marked complete are skipped.
+	 *
+	 * @should run steps after their dependencies
+	 * @should run independent steps concurrently
+	 * @should not run dependents of a failed step
+	 * @should fail on circular dependencies
+	 * @should fail on unknown dependencies
+	 * @should skip steps marked complete
+	 * @should not run steps exclusive on the same resource concurrently
+	 */
+	public void execute(int threads) {
+		List<String> order = getExecutionOrder();
+		order.removeAll(completed);
+
+		if (threads <= 1) {
+			for (String step : order) {
+				long started = System.currentTimeMillis();
+				steps.get(step).run();
+				stepCompleted(step);
+				durations.put(step, System.currentTimeMillis() - started);
+			}
+			return;
+		}
+
+		// the number of unfinished dependencies for each step, and the steps waiting on each step
+		Map<String, Integer> waiting = new HashMap<String, Integer>();
+		Map<String, List<String>> dependents = new HashMap<String, List<String>>();
+
+		for (String step : order) {
+			List<String> pending = new ArrayList<String>(dependencies.get(step));
+			pending.removeAll(completed);
+
+			waiting.put(step, pending.size());
+			for (String dependency : pending) {
+				if (!dependents.containsKey(dependency))
+					dependents.put(dependency, new ArrayList<String>());
+				dependents.get(dependency).add(step);
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CompletionService<String> finished = new ExecutorCompletionService<String>(pool);
+
+		// ready steps waiting for another step to release their resource, and the resources in use
+		List<String> blocked = new ArrayList<String>();
+		Set<String> busy = new HashSet<String>();
+
+		int running = 0;
+		APIException failure = null;
+
+		for (String step : order) {
+			if (waiting.get(step) == 0)
+				blocked.add(step);
+		}
+		running += startUnblocked(finished, blocked, busy);
+
+		try {
+			while (running > 0) {
+				try {
+					String step = finished.take().get();
+					running--;
+					busy.remove(resources.get(step));
+
+					if (failure != null)
+						continue;
+
+					if (dependents.containsKey(step)) {
+						for (String dependent : dependents.get(step)) {
+							int remaining = waiting.get(dependent) - 1;
+							waiting.put(dependent, remaining);
+							if (remaining == 0)
+								blocked.add(dependent);
+						}
+					}
+
+					running += startUnblocked(finished, blocked, busy);
+				} catch (ExecutionException e) {
+					running--;
+					if (failure == null)
+						failure = e.getCause() instanceof APIException ? (APIException) e.getCause()
+								: new APIException("Build step failed", e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			throw new APIException("Interrupted while running build steps", e);
+		}
+
+		pool.shutdown();
+
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * submits the ready steps whose resource is free, oldest first, and marks their resources in use
+	 *
+	 * @return the number of steps submitted
+	 */
+	private int startUnblocked(CompletionService<String> finished, List<String> blocked, Set<String> busy) {
+		int started = 0;
+
+		for (Iterator<String> it = blocked.iterator(); it.hasNext(); ) {
+			String step = it.next();
+			String resource = resources.get(step);
+
+			if (resource != null) {
+				if (busy.contains(resource))
+					continue;
+				busy.add(resource);
+			}
+
+			it.remove();
+			finished.submit(newTask(step));
+			started++;
+		}
+
+		return started;
+	}
+
+	/**
+	 * runs the work of a step on a pool thread; subclasses may set up the thread for the work here
+	 */
+	protected void runInWorker(Runnable work) {
+		work.run();
+	}
+
+	/**
+	 * called on the thread that ran a step, right after it finishes successfully
+	 */
+	protected void stepCompleted(String step) {
+		// pass
+	}
+
+	/**
+	 * @return the time taken by a step in milliseconds, or null if it has not run
+	 */
+	public Long getDuration(String step) {
+		return durations.get(step);
+	}
+
+	/**
+	 * finds the chain of dependent steps with the longest total duration in the last execution
+	 *
+	 * @should find the longest chain of dependent steps
+	 */
+	public List<String> getCriticalPath() {
+		Map<String, Long> finish = new HashMap<String, Long>();
+		Map<String, String> previous = new HashMap<String, String>();
+
+		String last = null;
+
+		for (String step : getExecutionOrder()) {
+			// a step starts once its latest-finishing dependency is done
+			long start = 0;
+			for (String dependency : dependencies.get(step)) {
+				if (!previous.containsKey(step) || finish.get(dependency) > start) {
+					start = finish.get(dependency);
+					previous.put(step, dependency);
+				}
+			}
+
+			Long duration = durations.get(step);
+			finish.put(step, start + (duration == null ? 0 : duration));
+
+			if (last == null || finish.get(step) >= finish.get(last))
+				last = step;
+		}
+
+		LinkedList<String> path = new LinkedList<String>();
+		for (String step = last; step != null; step = previous.get(step)) {
+			path.addFirst(step);
+		}
+
+		return path;
+	}
+
+	/**
+	 * describes the critical path of the last execution, with the duration of each step
+	 */
+	public String describeCriticalPath() {
+		List<String> parts = new ArrayList<String>();
+		long total = 0;
+
+		for (String step : getCriticalPath()) {
+			Long duration = durations.get(step);
+			if (duration == null) {
+				parts.add(step + " (skipped)");
+			} else {
+				total += duration;
+				parts.add(String.format("%s (%d ms)", step, duration));
+			}
+		}
+
+		return String.format("Critical path of %d ms: %s", total, StringUtils.join(parts, " > "));
+	}
+
+	/**
+	 * orders the steps so that each comes after its dependencies, keeping the order they were added in otherwise
+	 */
+	private List<String> getExecutionOrder() {
+		for (Map.Entry<String, List<String>> entry : dependencies.entrySet()) {
+			for (String dependency : entry.getValue()) {
+				if (!steps.containsKey(dependency))
+					throw new APIException("Build step " + entry.getKey() + " depends on unknown step " + dependency);
+			}
+		}
+
+		List<String> order = new ArrayList<String>();
+		List<String> remaining = new ArrayList<String>(steps.keySet());
+
+		while (!remaining.isEmpty()) {
+			String next = null;
+			for (String step : remaining) {
+				if (order.containsAll(dependencies.get(step))) {
+					next = step;
+					break;
+				}
+			}
+
+			if (next == null)
+				throw new APIException("Build steps have a circular dependency: " + StringUtils.join(remaining, ", "));
+
+			order.add(next);
+			remaining.remove(next);
+		}
+
+		return order;
+	}
+
+	private Callable<String> newTask(final String step) {
+		return new Callable<String>() {
+			public String call() throws Exception {
+				long started = System.currentTimeMillis();
+				try {
+					runInWorker(new Runnable() {
+						public void run() {
+							steps.get(step).run();
+							stepCompleted(step);
+						}
+					});
+				} catch (OperationCancelledException e) {
+					throw e;
+				} catch (RuntimeException e) {
+					throw new APIException("Build step " + step + " failed", e);
+				}
+				durations.put(step, System.currentTimeMillis() - started);
+				return step;
+			}
+		};
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.builder;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.amrsreports.util.CancellationToken;
+import org.openmrs.module.amrsreports.util.TableBuilderUtil;
+import org.openmrs.util.PrivilegeConstants;
+
+/**
+ * A build graph whose pool threads each get their own session, and so their own database connection, running as the
+ * user who created the graph.  Each completed step is checkpointed against the current build so that an interrupted
+ * build can be resumed.  Pool threads share the cancellation token of the thread that created the graph, so a
+ * cancelled build stops after the steps already running.
+ */
+public class ContextBuildGraph extends BuildGraph {
+
+	private final UserContext userContext;
+
+	private final CancellationToken token;
+
+	public ContextBuildGraph() {
+		this.userContext = Context.getUserContext();
+		this.token = CancellationToken.getCurrent();
+	}
+
+	@Override
+	protected void runInWorker(Runnable work) {
+		Context.openSession();
+		Context.setUserContext(userContext);
+		Context.addProxyPrivilege(PrivilegeConstants.SQL_LEVEL_ACCESS);
+		CancellationToken.setCurrent(token);
+		try {
+			// steps are not started once the build is cancelled
+			CancellationToken.checkCurrent();
+			work.run();
+		} finally {
+			CancellationToken.setCurrent(null);
+			Context.removeProxyPrivilege(PrivilegeConstants.SQL_LEVEL_ACCESS);
+			Context.closeSession();
+		}
+	}
+
+	@Override
+	protected void stepCompleted(String step) {
+		TableBuilderUtil.saveCheckpoint(step, null);
+	}
+}
@@ -1,12 +1,37 @@
 package org.openmrs.module.amrsreports.builder;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.module.amrsreports.AmrsReportsConstants;
+import org.openmrs.module.amrsreports.util.CancellationToken;
+import org.openmrs.module.amrsreports.util.OperationCancelledException;
 import org.openmrs.module.amrsreports.util.TableBuilderUtil;
+import org.openmrs.module.amrsreports.util.WorkerSession;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Builds the HIV Care Enrollment table via SQL statements
  */
 public class HIVCareEnrollmentBuilder {
 
+	private static final Log log = LogFactory.getLog(HIVCareEnrollmentBuilder.class);
+
+	private static final String BUILDER = "Enrollment";
+
 	private static HIVCareEnrollmentBuilder instance;
 
 	public static HIVCareEnrollmentBuilder getInstance() {
@@ -19,13 +44,154 @@ public class HIVCareEnrollmentBuilder {
 		// pass
 	}
 
-	private static final String QUERY_CLEAR_RECORDS =
-			"delete from amrsreports_hiv_care_enrollment";
+	private static final String TABLE_ENROLLMENT = "amrsreports_hiv_care_enrollment";
+
+	private static final String PATIENTS_PLACEHOLDER = ":patients\\(([\\w.]+)\\)";
+
+	private static final String ALL_PATIENTS = "1=1";
+
+	private static final String MACRO_PATIENT_RANGE = "$1 between %d and %d";
+
+	private static final int DEFAULT_RANGE_SIZE = 20000;
+
+	private static final String MACRO_DELETE_RANGE =
+			"delete from `:table` where patient_id between %d and %d";
+
+	// set once the staging table for a build in ranges exists, so a resumed build keeps the ranges already built
+	private static final String CHECKPOINT_RANGES_TABLE = "Enrollment: ranges table created";
+
+	private static final String CHECKPOINT_RANGE = "Enrollment: range %d-%d";
+
+	private static final String QUERY_MIN_PATIENT_ID =
+			"select min(patient_id) from patient";
+
+	private static final String QUERY_MAX_PATIENT_ID =
+			"select max(patient_id) from patient";
+
+	private static final String DIRTY_PATIENTS = "$1 in (select patient_id from amrsreports_enrollment_dirty)";
+
+	private static final String CREATE_DIRTY_TABLE =
+			"CREATE TABLE IF NOT EXISTS `amrsreports_enrollment_dirty` (" +
+					"  `patient_id` int(11) NOT NULL," +
+					"  PRIMARY KEY (`patient_id`)" +
+					") ENGINE=InnoDB DEFAULT CHARSET=utf8";
+
+	private static final String CLEAR_DIRTY_TABLE =
+			"delete from amrsreports_enrollment_dirty";
+
+	private static final String DROP_DIRTY_TABLE =
+			"DROP TABLE IF EXISTS `amrsreports_enrollment_dirty`";
+
+	private static final String QUERY_DIRTY_FROM_OBS =
+			"insert ignore into amrsreports_enrollment_dirty (patient_id)" +
+					"  select distinct" +
+					"    o.person_id" +
+					"  from" +
+					"    obs o" +
+					"  where" +
+					"    o.date_created >= ':lastBuildDate'" +
+					"    or o.date_voided >= ':lastBuildDate'";
+
+	private static final String QUERY_DIRTY_FROM_ENCOUNTERS =
+			"insert ignore into amrsreports_enrollment_dirty (patient_id)" +
+					"  select distinct" +
+					"    e.patient_id" +
+					"  from" +
+					"    encounter e" +
+					"  where" +
+					"    e.date_created >= ':lastBuildDate'" +
+					"    or e.date_changed >= ':lastBuildDate'" +
+					"    or e.date_voided >= ':lastBuildDate'";
+
+	private static final String QUERY_DIRTY_FROM_PERSONS =
+			"insert ignore into amrsreports_enrollment_dirty (patient_id)" +
+					"  select" +
+					"    p.person_id" +
+					"  from" +
+					"    person p" +
+					"  where" +
+					"    p.date_created >= ':lastBuildDate'" +
+					"    or p.date_changed >= ':lastBuildDate'" +
+					"    or p.date_voided >= ':lastBuildDate'";
+
+	private static final String QUERY_DIRTY_FROM_PATIENTS =
+			"insert ignore into amrsreports_enrollment_dirty (patient_id)" +
+					"  select" +
+					"    pt.patient_id" +
+					"  from" +
+					"    patient pt" +
+					"  where" +
+					"    pt.date_created >= ':lastBuildDate'" +
+					"    or pt.date_changed >= ':lastBuildDate'" +
+					"    or pt.date_voided >= ':lastBuildDate'";
+
+	private static final String QUERY_DIRTY_FROM_PERSON_ATTRIBUTES =
+			"insert ignore into amrsreports_enrollment_dirty (patient_id)" +
+					"  select distinct" +
+					"    pa.person_id" +
+					"  from" +
+					"    person_attribute pa" +
+					"  where" +
+					"    pa.date_created >= ':lastBuildDate'" +
+					"    or pa.date_changed >= ':lastBuildDate'" +
+					"    or pa.date_voided >= ':lastBuildDate'";
+
+	private static final String QUERY_DELETE_DIRTY =
+			"delete ae" +
+					" from :table ae" +
+					"   join amrsreports_enrollment_dirty dirty on dirty.patient_id = ae.patient_id";
+
+	private static final String SUFFIX_VERIFY = "_verify";
+
+	private static final String COMPARED_COLUMNS =
+			"patient_id, first_hiv_encounter_id, first_hiv_encounter_location_id, first_hiv_encounter_date," +
+					" first_hiv_encounter_age, enrollment_date, enrollment_age, enrollment_location_id, enrollment_reason," +
+					" last_hiv_encounter_date, last_hiv_encounter_location_id, first_positive_obs_date," +
+					" first_positive_obs_location_id, last_positive_obs_date, last_negative_obs_date, last_who_stage," +
+					" last_who_stage_date, first_arv_date, first_arv_location_id, last_discontinue_date," +
+					" last_discontinue_reason, transferred_in_date";
+
+	private static final String MACRO_COUNT_DIFFERENCES =
+			"select count(*) from (" +
+					"  select :columns" +
+					"  from (" +
+					"    select :columns from :table" +
+					"    union all" +
+					"    select :columns from :verify" +
+					"  ) combined" +
+					"  group by :columns" +
+					"  having count(*) = 1" +
+					") differences";
+
+	private static final String MYSQL_DATETIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+	private static final String MACRO_DROP_TABLE =
+			"DROP TABLE IF EXISTS `:table`";
+
+	private static final String MACRO_TRUNCATE_TABLE =
+			"TRUNCATE TABLE `:table`";
+
+	private static final String MACRO_CREATE_TABLE =
+			"CREATE TABLE `:table` LIKE `:source`";
+
+	/**
+	 * the foreign keys of the enrollment table, as added by the module's liquibase changesets
+	 */
+	private static final String[][] FOREIGN_KEYS = new String[][]{
+			{"amrsreports_hiv_care_enrollment_patient_ref", "patient_id", "patient", "patient_id"},
+			{"amrsreports_hiv_care_enrollment_enrollment_location_ref", "enrollment_location_id", "location", "location_id"},
+			{"amrsreports_hiv_care_enrollment_first_hiv_encounter_location_ref", "first_hiv_encounter_location_id", "location", "location_id"},
+			{"amrsreports_hiv_care_enrollment_first_positive_obs_location_ref", "first_positive_obs_location_id", "location", "location_id"},
+			{"amrsreports_hiv_care_enrollment_first_arv_location_ref", "first_arv_location_id", "location", "location_id"},
+			{"amrsreports_hiv_care_enrollment_last_hiv_encounter_location_ref", "last_hiv_encounter_location_id", "location", "location_id"},
+			{"amrsreports_hiv_care_enrollment_first_hiv_encounter_ref", "first_hiv_encounter_id", "encounter", "encounter_id"}
+	};
 
 	private static final String QUERY_DELETE_FAKE_PATIENTS =
 			"delete" +
-					" from amrsreports_hiv_care_enrollment" +
-					" where patient_id in (" +
+					" from :table" +
+					" where :patients(patient_id)" +
+					"   and patient_id in (" +
 					"   select person_id" +
 					"   from person_attribute pa" +
 					"   where" +
@@ -34,7 +200,7 @@ public class HIVCareEnrollmentBuilder {
 					"     and pa.value ='true')";
 
 	private static final String QUERY_INSERT_FROM_ENCOUNTERS =
-			"insert into amrsreports_hiv_care_enrollment (" +
+			"insert into :table (" +
 					"   patient_id," +
 					"   first_hiv_encounter_id," +
 					"   first_hiv_encounter_location_id," +
@@ -66,6 +232,7 @@ public class HIVCareEnrollmentBuilder {
 					"   	      where" +
 					"   	          encounter_type in (1,2,3,4,13)" +
 					"   	          and encounter.voided=0" +
+					"   	          and :patients(encounter.patient_id)" +
 					"   	      order by encounter_datetime asc" +
 					"   ) e" +
 					"   group by patient_id) fir" +
@@ -73,7 +240,7 @@ public class HIVCareEnrollmentBuilder {
 					"   on p.person_id=fir.patient_id";
 
 	private static final String QUERY_UPDATE_LAST_POSITIVE =
-			"update amrsreports_hiv_care_enrollment ae" +
+			"update :table ae" +
 					"  join" +
 					"  (" +
 					"  	select person_id, obs_datetime" +
@@ -82,10 +249,11 @@ public class HIVCareEnrollmentBuilder {
 					"	      o.person_id, o.obs_datetime" +
 					"	    from " +
 					"	      obs o" +
-					"           join amrsreports_hiv_care_enrollment ae" +
+					"           join :table ae" +
 					"           on o.person_id = ae.patient_id" +
 					"	    where" +
 					"	      o.voided = 0" +
+					"	      and :patients(ae.patient_id)" +
 					"	      and (" +
 					"	        (o.concept_id in (1040, 1030, 1042) and o.value_coded = 703)" +
 					"	        or" +
@@ -97,10 +265,12 @@ public class HIVCareEnrollmentBuilder {
 					"  ) last" +
 					"  on ae.patient_id = last.person_id" +
 					" set" +
-					"  ae.last_positive_obs_date = last.obs_datetime";
+					"  ae.last_positive_obs_date = last.obs_datetime" +
+					" where" +
+					"  :patients(ae.patient_id)";
 
 	private static final String QUERY_UPDATE_LAST_WHO_STAGE_AND_DATE =
-			"update amrsreports_hiv_care_enrollment ae" +
+			"update :table ae" +
 					"  join" +
 					"  (" +
 					"  	select person_id, obs_datetime, stage from (" +
@@ -116,10 +286,11 @@ public class HIVCareEnrollmentBuilder {
 					"                     if(o.value_coded=1207, 'A4'," +
 					"                       if(o.value_coded=1223, 'P4', NULL)))))))) as stage" +
 					"	    from " +
-					"	      obs o join amrsreports_hiv_care_enrollment ae on o.person_id = ae.patient_id" +
+					"	      obs o join :table ae on o.person_id = ae.patient_id" +
 					"	    where " +
 					"	      o.voided = 0" +
 					"	      and o.concept_id in (1224, 5356)" +
+					"	      and :patients(ae.patient_id)" +
 					"	    order by o.obs_datetime desc" +
 					"	) ordered" +
 					"    group by person_id" +
@@ -127,10 +298,12 @@ public class HIVCareEnrollmentBuilder {
 					"  on who.person_id = ae.patient_id" +
 					" set" +
 					"  ae.last_who_stage = who.stage," +
-					"  ae.last_who_stage_date = who.obs_datetime";
+					"  ae.last_who_stage_date = who.obs_datetime" +
+					" where" +
+					"  :patients(ae.patient_id)";
 
 	private static final String QUERY_UPDATE_FIRST_ARV_DATE =
-			"update amrsreports_hiv_care_enrollment ae" +
+			"update :table ae" +
 					"  join" +
 					"  (" +
 					"    select patient_id, encounter_date, location_id from (" +
@@ -139,10 +312,11 @@ public class HIVCareEnrollmentBuilder {
 					"        ac.encounter_date," +
 					"        ac.location_id" +
 					"      from" +
-					"        amrsreports_arv_current ac join amrsreports_hiv_care_enrollment ae" +
+					"        amrsreports_arv_current ac join :table ae" +
 					"          on ac.patient_id = ae.patient_id" +
 					"      where" +
 					"        ac.on_ART=1" +
+					"        and :patients(ae.patient_id)" +
 					"      order by ac.encounter_date asc" +
 					"    ) ordered" +
 					"    group by patient_id" +
@@ -150,31 +324,36 @@ public class HIVCareEnrollmentBuilder {
 					"  on arv.patient_id = ae.patient_id" +
 					" set" +
 					"  ae.first_arv_date = arv.encounter_date," +
-					"  ae.first_arv_location_id = arv.location_id";
+					"  ae.first_arv_location_id = arv.location_id" +
+					" where" +
+					"  :patients(ae.patient_id)";
 
 	private static final String QUERY_UPDATE_LAST_NEGATIVE =
-			"update amrsreports_hiv_care_enrollment ae" +
+			"update :table ae" +
 					"  join" +
 					"  (" +
 					"  	select person_id, obs_datetime from (" +
 					"	    select " +
 					"	      o.person_id, o.obs_datetime" +
 					"	    from " +
-					"	      obs o join amrsreports_hiv_care_enrollment ae" +
+					"	      obs o join :table ae" +
 					"	        on o.person_id = ae.patient_id" +
 					"	    where" +
 					"	      o.voided = 0" +
 					"	      and (o.concept_id in (1040, 1030, 1042) and o.value_coded = 664)" +
+					"	      and :patients(ae.patient_id)" +
 					"	    order by obs_datetime desc" +
 					"    ) ordered" +
 					"    group by person_id" +
 					"  ) last" +
 					"  on ae.patient_id = last.person_id" +
 					" set" +
-					"  ae.last_negative_obs_date = last.obs_datetime";
+					"  ae.last_negative_obs_date = last.obs_datetime" +
+					" where" +
+					"  :patients(ae.patient_id)";
 
 	private static final String QUERY_UPDATE_FIRST_POSITIVE =
-			"update amrsreports_hiv_care_enrollment ae" +
+			"update :table ae" +
 					"  join person p on p.person_id = ae.patient_id" +
 					"  join" +
 					"  (" +
@@ -182,11 +361,12 @@ public class HIVCareEnrollmentBuilder {
 					"	    select " +
 					"	      o.person_id, o.obs_datetime, o.location_id" +
 					"	    from " +
-					"	      obs o join amrsreports_hiv_care_enrollment ae" +
+					"	      obs o join :table ae" +
 					"	        on o.person_id = ae.patient_id" +
 					"           and ae.last_positive_obs_date is not NULL" +
 					"	    where" +
 					"	      o.voided = 0" +
+					"	      and :patients(ae.patient_id)" +
 					"	      and (" +
 					"	        (o.concept_id in (1040, 1030, 1042) and o.value_coded = 703)" +
 					"	        or" +
@@ -199,31 +379,36 @@ public class HIVCareEnrollmentBuilder {
 					"  on ae.patient_id = first.person_id" +
 					" set" +
 					"  ae.first_positive_obs_location_id = first.location_id," +
-					"  ae.first_positive_obs_date = first.obs_datetime";
+					"  ae.first_positive_obs_date = first.obs_datetime" +
+					" where" +
+					"  :patients(ae.patient_id)";
 
 	private static final String QUERY_UPDATE_TRANSFER_INS =
 			"update" +
-					"  amrsreports_hiv_care_enrollment ae" +
+					"  :table ae" +
 					"  join" +
 					"  (" +
 					"    select " +
 					"      o.person_id, o.obs_datetime" +
 					"    from " +
-					"      obs o join amrsreports_hiv_care_enrollment ae" +
+					"      obs o join :table ae" +
 					"        on o.encounter_id = ae.first_hiv_encounter_id" +
 					"    where" +
 					"      o.voided = 0" +
 					"      and o.concept_id = 7015" +
 					"      and o.value_coded = 1287" +
+					"      and :patients(ae.patient_id)" +
 					"    group by person_id" +
 					"  ) t" +
 					"  on ae.patient_id = t.person_id" +
 					" set" +
-					"   transferred_in_date = t.obs_datetime";
+					"   transferred_in_date = t.obs_datetime" +
+					" where" +
+					"  :patients(ae.patient_id)";
 
 	private static final String QUERY_UPDATE_DISCONTINUES =
 			"update" +
-					"	amrsreports_hiv_care_enrollment ae" +
+					"	:table ae" +
 					"	join (" +
 					"		select" +
 					"			patient_id, encounter_datetime as last_encounter_date, location_id as last_encounter_location" +
@@ -232,11 +417,12 @@ public class HIVCareEnrollmentBuilder {
 					"				patient_id, encounter_datetime, location_id" +
 					"			from " +
 					"				encounter" +
-					"				join amrsreports_hiv_care_enrollment ae" +
+					"				join :table ae" +
 					"				  on encounter.patient_id = ae.patient_id" +
 					"			where" +
 					"				voided = 0" +
 					"				and encounter_type in (1,2,3,4,13,10,11,12,17,18,19,20,21,22,23,25,26,44,46,47,48,67)" +
+					"				and :patients(ae.patient_id)" +
 					"			order by encounter_datetime desc" +
 					"		) ordered" +
 					"		group by patient_id" +
@@ -250,7 +436,7 @@ public class HIVCareEnrollmentBuilder {
 					"				o.person_id, o.obs_datetime, o.value_coded" +
 					"			from " +
 					"				obs o" +
-					"				join amrsreports_hiv_care_enrollment ae" +
+					"				join :table ae" +
 					"			      on o.person_id = ae.patient_id" +
 					"			where" +
 					"				o.voided = 0" +
@@ -258,6 +444,7 @@ public class HIVCareEnrollmentBuilder {
 					"					(o.concept_id = 1946 and o.value_coded = 1065)" +
 					"					or (o.concept_id = 1596 and o.value_coded = 1946)" +
 					"				)" +
+					"				and :patients(ae.patient_id)" +
 					"			order by obs_datetime desc" +
 					"		) ordered" +
 					"		group by person_id" +
@@ -267,20 +454,23 @@ public class HIVCareEnrollmentBuilder {
 					"   ae.last_hiv_encounter_date = last_encounter_date," +
 					"   ae.last_hiv_encounter_location_id = last_encounter_location," +
 					" 	ae.last_discontinue_date = last_obs_date," +
-					"   ae.last_discontinue_reason = last_reason";
+					"   ae.last_discontinue_reason = last_reason" +
+					" where" +
+					"  :patients(ae.patient_id)";
 
 	private static final String QUERY_FILL_ENROLLMENT_FROM_FIRST_ENCOUNTER =
-			"update amrsreports_hiv_care_enrollment" +
+			"update :table" +
 					" set" +
 					"  enrollment_date = first_hiv_encounter_date," +
 					"  enrollment_age = first_hiv_encounter_age," +
 					"  enrollment_location_id = first_hiv_encounter_location_id," +
 					"  enrollment_reason = 'FIRST ENCOUNTER OVER TWO'" +
 					" where" +
-					"  first_hiv_encounter_age >= 2";
+					"  first_hiv_encounter_age >= 2" +
+					"  and :patients(patient_id)";
 
 	private static final String QUERY_FILL_ENROLLMENT_FOR_PEDS_WITH_ONLY_ADULT_ENCOUNTERS =
-			"update amrsreports_hiv_care_enrollment ae" +
+			"update :table ae" +
 					" set" +
 					"  enrollment_date = first_hiv_encounter_date," +
 					"  enrollment_age = first_hiv_encounter_age," +
@@ -288,6 +478,7 @@ public class HIVCareEnrollmentBuilder {
 					"  enrollment_reason = 'ONLY ADULT ENCOUNTERS'" +
 					" where" +
 					"  enrollment_reason is NULL" +
+					"  and :patients(ae.patient_id)" +
 					"  and not exists (" +
 					"    select 1" +
 					"    from encounter" +
@@ -297,7 +488,7 @@ public class HIVCareEnrollmentBuilder {
 					"      and voided =  0)";
 
 	private static final String QUERY_FILL_ENROLLMENT_FROM_FIRST_POSITIVE_OBS =
-			"update amrsreports_hiv_care_enrollment ae" +
+			"update :table ae" +
 					"  join person p on p.person_id = ae.patient_id" +
 					" set" +
 					"  ae.enrollment_location_id = ae.first_positive_obs_location_id," +
@@ -306,10 +497,11 @@ public class HIVCareEnrollmentBuilder {
 					"  ae.enrollment_reason = 'POSITIVE OBSERVATION'" +
 					" where" +
 					"  ae.enrollment_reason is NULL" +
-					"  and ae.last_positive_obs_date is not NULL";
+					"  and ae.last_positive_obs_date is not NULL" +
+					"  and :patients(ae.patient_id)";
 
 	private static final String QUERY_FILL_ENROLLMENT_FROM_ARVS =
-			"update amrsreports_hiv_care_enrollment ae" +
+			"update :table ae" +
 					"  join person p on p.person_id = ae.patient_id" +
 					" set" +
 					"  ae.enrollment_date = ae.first_arv_date," +
@@ -325,50 +517,416 @@ public class HIVCareEnrollmentBuilder {
 					"    )" +
 					"  )" +
 					"  and ae.last_who_stage_date is not NULL" +
-					"  and ae.first_arv_date is not NULL";
-
-	public void execute() {
-		// clear the table
-		TableBuilderUtil.runUpdateSQL(QUERY_CLEAR_RECORDS);
-
+					"  and ae.first_arv_date is not NULL" +
+					"  and :patients(ae.patient_id)";
+
+	private static final String STEP_INSERT = "insert from encounters";
+	private static final String STEP_DELETE_FAKE = "delete fake patients";
+	private static final String STEP_LAST_WHO_STAGE = "last WHO stage";
+	private static final String STEP_FIRST_ARV_DATE = "first ARV date";
+	private static final String STEP_LAST_POSITIVE = "last positive obs";
+	private static final String STEP_LAST_NEGATIVE = "last negative obs";
+	private static final String STEP_FIRST_POSITIVE = "first positive obs";
+	private static final String STEP_FROM_FIRST_ENCOUNTER = "enroll from first encounter";
+	private static final String STEP_PEDS_WITH_ONLY_ADULT_ENCOUNTERS = "enroll peds with only adult encounters";
+	private static final String STEP_FROM_FIRST_POSITIVE_OBS = "enroll from first positive obs";
+	private static final String STEP_FROM_ARVS = "enroll from ARVs";
+	private static final String STEP_TRANSFER_INS = "transfer ins";
+	private static final String STEP_DISCONTINUES = "discontinues";
+
+	/**
+	 * the query for each build step, in the order a sequential build runs them
+	 */
+	private static final Map<String, String> STEPS = new LinkedHashMap<String, String>();
+
+	/**
+	 * the steps each step reads the results of, and so must follow when steps run concurrently
+	 */
+	private static final Map<String, String[]> STEP_DEPENDENCIES = new HashMap<String, String[]>();
+
+	static {
 		// insert from enrollment query
-		TableBuilderUtil.runUpdateSQL(QUERY_INSERT_FROM_ENCOUNTERS);
+		addStepDefinition(STEP_INSERT, QUERY_INSERT_FROM_ENCOUNTERS);
 
 		// remove fake patients
-		TableBuilderUtil.runUpdateSQL(QUERY_DELETE_FAKE_PATIENTS);
+		addStepDefinition(STEP_DELETE_FAKE, QUERY_DELETE_FAKE_PATIENTS, STEP_INSERT);
 
 		// update everyone with latest WHO stage
-		TableBuilderUtil.runUpdateSQL(QUERY_UPDATE_LAST_WHO_STAGE_AND_DATE);
+		addStepDefinition(STEP_LAST_WHO_STAGE, QUERY_UPDATE_LAST_WHO_STAGE_AND_DATE, STEP_DELETE_FAKE);
 
 		// update everyone with first ARV date
-		TableBuilderUtil.runUpdateSQL(QUERY_UPDATE_FIRST_ARV_DATE);
+		addStepDefinition(STEP_FIRST_ARV_DATE, QUERY_UPDATE_FIRST_ARV_DATE, STEP_DELETE_FAKE);
 
 		// update everyone with latest positive obs
-		TableBuilderUtil.runUpdateSQL(QUERY_UPDATE_LAST_POSITIVE);
+		addStepDefinition(STEP_LAST_POSITIVE, QUERY_UPDATE_LAST_POSITIVE, STEP_DELETE_FAKE);
 
 		// update everyone with latest negative obs
-		TableBuilderUtil.runUpdateSQL(QUERY_UPDATE_LAST_NEGATIVE);
+		addStepDefinition(STEP_LAST_NEGATIVE, QUERY_UPDATE_LAST_NEGATIVE, STEP_DELETE_FAKE);
 
-		// update everyone with first positive obs and location
-		TableBuilderUtil.runUpdateSQL(QUERY_UPDATE_FIRST_POSITIVE);
+		// update everyone with first positive obs and location; only patients with a last positive obs are updated
+		addStepDefinition(STEP_FIRST_POSITIVE, QUERY_UPDATE_FIRST_POSITIVE, STEP_LAST_POSITIVE);
 
 		// fill out enrollment info for patients >= 2 years old at first encounter (Group A)
-		TableBuilderUtil.runUpdateSQL(QUERY_FILL_ENROLLMENT_FROM_FIRST_ENCOUNTER);
+		addStepDefinition(STEP_FROM_FIRST_ENCOUNTER, QUERY_FILL_ENROLLMENT_FROM_FIRST_ENCOUNTER, STEP_DELETE_FAKE);
 
 		// fill out enrollment info for remainin patients with only adult encounters (Group A)
-		TableBuilderUtil.runUpdateSQL(QUERY_FILL_ENROLLMENT_FOR_PEDS_WITH_ONLY_ADULT_ENCOUNTERS);
+		addStepDefinition(STEP_PEDS_WITH_ONLY_ADULT_ENCOUNTERS, QUERY_FILL_ENROLLMENT_FOR_PEDS_WITH_ONLY_ADULT_ENCOUNTERS,
+				STEP_FROM_FIRST_ENCOUNTER);
 
 		// fill out enrollment info for remaining with any positive observation (Groups B and C)
-		TableBuilderUtil.runUpdateSQL(QUERY_FILL_ENROLLMENT_FROM_FIRST_POSITIVE_OBS);
+		addStepDefinition(STEP_FROM_FIRST_POSITIVE_OBS, QUERY_FILL_ENROLLMENT_FROM_FIRST_POSITIVE_OBS,
+				STEP_PEDS_WITH_ONLY_ADULT_ENCOUNTERS, STEP_FIRST_POSITIVE, STEP_LAST_POSITIVE);
 
 		// fill out enrollment info for patients taking ARVs if not found yet or if earlier than first positive obs (Group E)
-		TableBuilderUtil.runUpdateSQL(QUERY_FILL_ENROLLMENT_FROM_ARVS);
+		addStepDefinition(STEP_FROM_ARVS, QUERY_FILL_ENROLLMENT_FROM_ARVS,
+				STEP_FROM_FIRST_POSITIVE_OBS, STEP_FIRST_ARV_DATE, STEP_LAST_WHO_STAGE);
 
 		// update everyone with transfer in status
-		TableBuilderUtil.runUpdateSQL(QUERY_UPDATE_TRANSFER_INS);
+		addStepDefinition(STEP_TRANSFER_INS, QUERY_UPDATE_TRANSFER_INS, STEP_DELETE_FAKE);
 
 		// update everyone with discontinue status
-		TableBuilderUtil.runUpdateSQL(QUERY_UPDATE_DISCONTINUES);
+		addStepDefinition(STEP_DISCONTINUES, QUERY_UPDATE_DISCONTINUES, STEP_DELETE_FAKE);
+	}
+
+	private static void addStepDefinition(String step, String query, String... dependsOn) {
+		STEPS.put(step, query);
+		STEP_DEPENDENCIES.put(step, dependsOn);
+	}
+
+	/**
+	 * builds the enrollment table, incrementally if configured to do so and a previous build exists
+	 */
+	public void execute() {
+		String mode = TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_BUILDER_MODE);
+
+		if (OpenmrsUtil.nullSafeEquals(AmrsReportsConstants.BUILDER_MODE_INCREMENTAL, mode) && canBuildIncrementally())
+			executeIncremental();
+		else
+			executeFull();
+	}
+
+	/**
+	 * adds the steps of a build to the graph.  A full build with the SQL engine on one connection is split into its
+	 * individual statements, so that the ARV and pregnancy builds can run alongside the enrollment updates that do not
+	 * need them; otherwise the build runs as a single step.  The statements all update the same staging table, so they
+	 * are exclusive on it and run one at a time, each after the steps whose columns it reads.
+	 *
+	 * @param arvStep the step that publishes the ARV tables, which the enrollment build reads
+	 * @return the name of the last step, which later builds can depend on
+	 */
+	public String addSteps(BuildGraph graph, String arvStep) {
+		String mode = TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_BUILDER_MODE);
+		String engine = TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_ENROLLMENT_ENGINE);
+		int threads = TableBuilderUtil.getIntegerGlobalProperty(AmrsReportsConstants.GP_BUILDER_THREADS, 1);
+
+		if ((OpenmrsUtil.nullSafeEquals(AmrsReportsConstants.BUILDER_MODE_INCREMENTAL, mode) && canBuildIncrementally())
+				|| OpenmrsUtil.nullSafeEquals(AmrsReportsConstants.ENROLLMENT_ENGINE_STREAMING, engine)
+				|| threads > 1) {
+			graph.addStep(BUILDER, new Runnable() {
+				public void run() {
+					execute();
+				}
+			}, arvStep);
+			return BUILDER;
+		}
+
+		final String table = TABLE_ENROLLMENT + TableBuilderUtil.STAGING_SUFFIX;
+
+		String create = BUILDER + ": create table";
+		graph.addStep(create, new Runnable() {
+			public void run() {
+				createTable(table);
+			}
+		});
+
+		for (final Map.Entry<String, String> step : STEPS.entrySet()) {
+			List<String> dependsOn = new ArrayList<String>();
+			for (String dependency : STEP_DEPENDENCIES.get(step.getKey())) {
+				dependsOn.add(BUILDER + ": " + dependency);
+			}
+
+			if (dependsOn.isEmpty())
+				dependsOn.add(create);
+
+			// the first ARV date comes from the published ARV table
+			if (STEP_FIRST_ARV_DATE.equals(step.getKey()) && arvStep != null)
+				dependsOn.add(arvStep);
+
+			String name = BUILDER + ": " + step.getKey();
+			graph.addStep(name, new Runnable() {
+				public void run() {
+					// the updates can safely run again, but the insert must start from an empty table
+					if (STEP_INSERT.equals(step.getKey()))
+						TableBuilderUtil.runUpdateSQL(MACRO_TRUNCATE_TABLE.replaceAll(":table", table));
+
+					runStep(step.getKey(), table, ALL_PATIENTS, step.getValue());
+				}
+			}, dependsOn.toArray(new String[dependsOn.size()]));
+
+			// concurrent updates of the same table wait on each other's row locks, or deadlock
+			graph.setExclusive(name, table);
+		}
+
+		List<String> allSteps = new ArrayList<String>();
+		for (String step : STEPS.keySet()) {
+			allSteps.add(BUILDER + ": " + step);
+		}
+
+		String publish = BUILDER + ": publish";
+		graph.addStep(publish, new Runnable() {
+			public void run() {
+				publish();
+				saveLastBuildDate(TableBuilderUtil.getBuildStartDate());
+			}
+		}, allSteps.toArray(new String[allSteps.size()]));
+
+		return publish;
+	}
+
+	/**
+	 * fills out a staging copy of the enrollment table, then swaps it in place of the current one
+	 */
+	public void executeFull() {
+		Date buildDate = new Date();
+
+		String table = TABLE_ENROLLMENT + TableBuilderUtil.STAGING_SUFFIX;
+
+		int threads = TableBuilderUtil.getIntegerGlobalProperty(AmrsReportsConstants.GP_BUILDER_THREADS, 1);
+		int rangeSize = TableBuilderUtil.getIntegerGlobalProperty(AmrsReportsConstants.GP_BUILDER_RANGE_SIZE, DEFAULT_RANGE_SIZE);
+
+		String engine = TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_ENROLLMENT_ENGINE);
+
+		if (OpenmrsUtil.nullSafeEquals(AmrsReportsConstants.ENROLLMENT_ENGINE_STREAMING, engine)) {
+			createTable(table);
+			Date started = new Date();
+			long rows = HIVCareEnrollmentStreamingBuilder.getInstance().fill(table);
+			TableBuilderUtil.recordStep(BUILDER, "streaming engine", started, new Date(), (int) rows);
+		}
+		else if (threads > 1 && rangeSize > 0) {
+			// a resumed build keeps the staging table and the ranges it already holds
+			boolean resume = TableBuilderUtil.isCheckpointed(CHECKPOINT_RANGES_TABLE) && TableBuilderUtil.tableExists(table);
+			if (!resume) {
+				createTable(table);
+				TableBuilderUtil.saveCheckpoint(CHECKPOINT_RANGES_TABLE, null);
+			}
+			executeInRanges(table, rangeSize, threads, resume);
+		}
+		else {
+			createTable(table);
+			runSteps(table, ALL_PATIENTS);
+		}
+
+		// publish the new table
+		publish();
+
+		saveLastBuildDate(buildDate);
+	}
+
+	/**
+	 * recomputes enrollment only for patients whose obs, encounters, person, patient or person attribute records
+	 * were created, changed or voided since the last build, using the same steps as a full build.  Patient merges
+	 * are covered by the voided patient and the moved encounters and obs.  Their rows are deleted and recomputed in
+	 * the published table within a single transaction, so readers never see the changes half applied and the work
+	 * done depends on the number of changed patients, not the size of the table.
+	 */
+	public void executeIncremental() {
+		if (!canBuildIncrementally()) {
+			log.info("No previous enrollment build found; performing a full build instead.");
+			executeFull();
+			return;
+		}
+
+		Date buildDate = new Date();
+		String lastBuildDate = TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_ENROLLMENT_LAST_BUILD_DATE);
+
+		// collect all patients affected since the last build
+		TableBuilderUtil.runUpdateSQL(CREATE_DIRTY_TABLE);
+		TableBuilderUtil.runUpdateSQL(CLEAR_DIRTY_TABLE);
+
+		for (String query : new String[]{QUERY_DIRTY_FROM_OBS, QUERY_DIRTY_FROM_ENCOUNTERS, QUERY_DIRTY_FROM_PERSONS,
+				QUERY_DIRTY_FROM_PATIENTS, QUERY_DIRTY_FROM_PERSON_ATTRIBUTES}) {
+			TableBuilderUtil.runUpdateSQL(BUILDER, "collect changed patients", query.replaceAll(":lastBuildDate", lastBuildDate));
+		}
+
+		// remove their rows and recalculate them, all or nothing
+		Map<String, String> steps = new LinkedHashMap<String, String>();
+		steps.put("delete changed patients", getStepQuery(TABLE_ENROLLMENT, ALL_PATIENTS, QUERY_DELETE_DIRTY));
+		for (Map.Entry<String, String> step : STEPS.entrySet()) {
+			steps.put(step.getKey(), getStepQuery(TABLE_ENROLLMENT, DIRTY_PATIENTS, step.getValue()));
+		}
+
+		TableBuilderUtil.runUpdateSQLInTransaction(BUILDER, steps);
+
+		TableBuilderUtil.runUpdateSQL(DROP_DIRTY_TABLE);
+
+		saveLastBuildDate(buildDate);
+	}
+
+	/**
+	 * fills a copy of the enrollment table with the streaming engine and compares it to the current table, built by
+	 * the SQL statements, row for row
+	 *
+	 * @return a summary of the differences found
+	 */
+	public String compareEngines() {
+		String table = TABLE_ENROLLMENT + SUFFIX_VERIFY;
+
+		TableBuilderUtil.runUpdateSQL(MACRO_DROP_TABLE.replaceAll(":table", table));
+		TableBuilderUtil.runUpdateSQL(MACRO_CREATE_TABLE.replaceAll(":table", table).replaceAll(":source", TABLE_ENROLLMENT));
+
+		HIVCareEnrollmentStreamingBuilder.getInstance().fill(table);
+
+		Object differences = TableBuilderUtil.getSingleValue(MACRO_COUNT_DIFFERENCES
+				.replaceAll(":columns", COMPARED_COLUMNS)
+				.replaceAll(":table", TABLE_ENROLLMENT)
+				.replaceAll(":verify", table));
+
+		TableBuilderUtil.runUpdateSQL(MACRO_DROP_TABLE.replaceAll(":table", table));
+
+		String summary = "Enrollment engine comparison complete; " + differences + " differing rows";
+		log.info(summary);
+		return summary;
+	}
+
+	/**
+	 * swaps the staging table in place of the current one, with the foreign keys CREATE TABLE ... LIKE leaves out
+	 */
+	private void publish() {
+		TableBuilderUtil.addStagingForeignKeys(TABLE_ENROLLMENT, FOREIGN_KEYS);
+		TableBuilderUtil.publishStagingTables(TABLE_ENROLLMENT);
+	}
+
+	/**
+	 * creates an empty copy of the enrollment table
+	 */
+	private void createTable(String table) {
+		TableBuilderUtil.runUpdateSQL(MACRO_DROP_TABLE.replaceAll(":table", table));
+		TableBuilderUtil.runUpdateSQL(MACRO_CREATE_TABLE.replaceAll(":table", table).replaceAll(":source", TABLE_ENROLLMENT));
+	}
+
+	/**
+	 * determines whether a previous build exists to update incrementally
+	 */
+	private boolean canBuildIncrementally() {
+		return TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_ENROLLMENT_LAST_BUILD_DATE) != null
+				&& TableBuilderUtil.tableExists(TABLE_ENROLLMENT);
+	}
+
+	/**
+	 * stores the start time of this build for the next incremental build
+	 */
+	private void saveLastBuildDate(Date buildDate) {
+		TableBuilderUtil.saveGlobalProperty(AmrsReportsConstants.GP_ENROLLMENT_LAST_BUILD_DATE,
+				new SimpleDateFormat(MYSQL_DATETIME_FORMAT).format(buildDate));
+	}
+
+	/**
+	 * splits the patient_id space into ranges and runs all steps for each range on a bounded pool of threads, each
+	 * with its own session and connection.  Each range's steps are recorded in the build history under the range,
+	 * and each finished range is checkpointed, so resuming into the same staging table only runs the ranges that did
+	 * not finish; those are emptied first, as the insert must start from no rows.  The workers share the cancellation
+	 * token of the calling thread.
+	 */
+	private void executeInRanges(final String table, int rangeSize, int threads, boolean resume) {
+		Object min = TableBuilderUtil.getSingleValue(QUERY_MIN_PATIENT_ID);
+		Object max = TableBuilderUtil.getSingleValue(QUERY_MAX_PATIENT_ID);
+
+		if (min == null || max == null)
+			return;
+
+		final CancellationToken token = CancellationToken.getCurrent();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+
+		long started = System.currentTimeMillis();
+		int skipped = 0;
+
+		for (long start = Long.valueOf(min.toString()); start <= Long.valueOf(max.toString()); start += rangeSize) {
+			final long from = start;
+			final long to = start + rangeSize - 1;
+			final String checkpoint = String.format(CHECKPOINT_RANGE, from, to);
+
+			if (resume && TableBuilderUtil.isCheckpointed(checkpoint)) {
+				skipped++;
+				continue;
+			}
+
+			results.add(pool.submit(new Callable<Long>() {
+				public Long call() throws Exception {
+					WorkerSession.open();
+					CancellationToken.setCurrent(token);
+					try {
+						// ranges are not started once the build is cancelled
+						CancellationToken.checkCurrent();
+
+						long rangeStarted = System.currentTimeMillis();
+
+						// clear out what an interrupted attempt at this range left behind
+						TableBuilderUtil.runUpdateSQL(String.format(MACRO_DELETE_RANGE, from, to).replaceAll(":table", table));
+
+						String patients = String.format(MACRO_PATIENT_RANGE, from, to);
+						for (Map.Entry<String, String> step : STEPS.entrySet()) {
+							runStep(step.getKey() + " [" + from + "-" + to + "]", table, patients, step.getValue());
+						}
+
+						TableBuilderUtil.saveCheckpoint(checkpoint, null);
+
+						long elapsed = System.currentTimeMillis() - rangeStarted;
+						log.info(String.format("Enrollment for patients %d to %d built in %d ms", from, to, elapsed));
+						return elapsed;
+					} finally {
+						CancellationToken.setCurrent(null);
+						WorkerSession.close();
+					}
+				}
+			}));
+		}
+
+		pool.shutdown();
+
+		try {
+			for (Future<Long> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			throw new APIException("Interrupted while building enrollment ranges", e);
+		} catch (ExecutionException e) {
+			pool.shutdownNow();
+			if (e.getCause() instanceof OperationCancelledException)
+				throw (OperationCancelledException) e.getCause();
+			throw new APIException("Could not build enrollment range", e.getCause());
+		}
+
+		log.info(String.format("Enrollment built in %d ranges of %d patients on %d threads in %d ms, %d ranges kept"
+				+ " from an earlier attempt", results.size(), rangeSize, threads, System.currentTimeMillis() - started,
+				skipped));
+	}
+
+	/**
+	 * runs all build steps in order against the given table for the patients matched by the condition
+	 */
+	private void runSteps(String table, String patients) {
+		for (Map.Entry<String, String> step : STEPS.entrySet()) {
+			runStep(step.getKey(), table, patients, step.getValue());
+		}
+	}
+
+	/**
+	 * runs a single build step against the given table, restricting :patients(column) placeholders with the given
+	 * condition, where $1 stands for the column
+	 */
+	private void runStep(String step, String table, String patients, String query) {
+		TableBuilderUtil.runUpdateSQL(BUILDER, step, getStepQuery(table, patients, query));
+	}
+
+	/**
+	 * @return the query of a build step against the given table for the patients matched by the condition
+	 */
+	private String getStepQuery(String table, String patients, String query) {
+		return query
+				.replaceAll(":table", table)
+				.replaceAll(PATIENTS_PLACEHOLDER, patients);
 	}
 
 }
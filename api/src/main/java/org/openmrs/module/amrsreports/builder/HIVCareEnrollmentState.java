@@ -0,0 +1,371 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.builder;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Enrollment state for a single patient, folded from that patient's encounters, observations and ARV records in any
+ * order.  Follows the same rules as the statements in HIVCareEnrollmentBuilder; where those rely on MySQL picking an
+ * arbitrary row among ties, the earliest event (and lowest encounter id) wins.
+ */
+public class HIVCareEnrollmentState {
+
+	public static final String REASON_FIRST_ENCOUNTER = "FIRST ENCOUNTER OVER TWO";
+	public static final String REASON_ADULT_ENCOUNTERS = "ONLY ADULT ENCOUNTERS";
+	public static final String REASON_POSITIVE_OBS = "POSITIVE OBSERVATION";
+	public static final String REASON_ARVS = "ARVS";
+
+	private static final List<Integer> HIV_ENCOUNTER_TYPES = Arrays.asList(1, 2, 3, 4, 13);
+	private static final List<Integer> PEDS_ENCOUNTER_TYPES = Arrays.asList(3, 4);
+	private static final List<Integer> LAST_ENCOUNTER_TYPES = Arrays.asList(
+			1, 2, 3, 4, 13, 10, 11, 12, 17, 18, 19, 20, 21, 22, 23, 25, 26, 44, 46, 47, 48, 67);
+
+	private static final List<Integer> HIV_TESTS = Arrays.asList(1040, 1030, 1042);
+	private static final Integer HIV_POSITIVE = 703;
+	private static final Integer HIV_NEGATIVE = 664;
+	private static final Integer PROBLEM_ADDED = 6042;
+	private static final Integer HIV_INFECTED = 1169;
+	private static final List<Integer> WHO_STAGES = Arrays.asList(1224, 5356);
+	private static final Integer DISCONTINUED = 1946;
+	private static final Integer REASON_EXITED_CARE = 1596;
+	private static final Integer YES = 1065;
+	private static final Integer TRANSFER_IN_QUESTION = 7015;
+	private static final Integer TRANSFER_IN_ANSWER = 1287;
+
+	private static final Map<Integer, String> STAGE_NAMES = new HashMap<Integer, String>();
+
+	static {
+		STAGE_NAMES.put(1204, "A1");
+		STAGE_NAMES.put(1220, "P1");
+		STAGE_NAMES.put(1205, "A2");
+		STAGE_NAMES.put(1221, "P2");
+		STAGE_NAMES.put(1206, "A3");
+		STAGE_NAMES.put(1222, "P3");
+		STAGE_NAMES.put(1207, "A4");
+		STAGE_NAMES.put(1223, "P4");
+	}
+
+	private static final long MILLIS_PER_DAY = 1000L * 60 * 60 * 24;
+
+	private final Integer patientId;
+
+	private boolean validPerson = false;
+	private boolean fake = false;
+	private boolean pedsEncounter = false;
+	private Date birthdate;
+
+	private Integer firstHIVEncounterId;
+	private Date firstHIVEncounterDate;
+	private Integer firstHIVEncounterLocationId;
+
+	private Date lastHIVEncounterDate;
+	private Integer lastHIVEncounterLocationId;
+
+	private Date firstPositiveObsDate;
+	private Integer firstPositiveObsLocationId;
+	private Date lastPositiveObsDate;
+	private Date lastNegativeObsDate;
+
+	private String lastWHOStage;
+	private Date lastWHOStageDate;
+
+	private Date firstARVDate;
+	private Integer firstARVLocationId;
+
+	private Date lastDiscontinueDate;
+	private String lastDiscontinueReason;
+
+	// transfer in dates by encounter, resolved against the first HIV encounter once all events are in
+	private Map<Integer, Date> transferIns = new HashMap<Integer, Date>();
+
+	private Date enrollmentDate;
+	private Integer enrollmentLocationId;
+	private Double enrollmentAge;
+	private String enrollmentReason;
+
+	public HIVCareEnrollmentState(Integer patientId) {
+		this.patientId = patientId;
+	}
+
+	/**
+	 * records that the patient is a valid (not voided) person and patient, along with the birthdate
+	 */
+	public void consumePerson(Date birthdate) {
+		this.validPerson = true;
+		this.birthdate = birthdate;
+	}
+
+	/**
+	 * records that the patient is marked as a test patient
+	 */
+	public void consumeFakeFlag() {
+		this.fake = true;
+	}
+
+	/**
+	 * folds in a non-voided encounter
+	 *
+	 * @should set the first HIV encounter from the earliest HIV encounter
+	 * @should set the last HIV encounter from the latest encounter of any tracked type
+	 */
+	public void consumeEncounter(Integer encounterId, Integer encounterType, Date date, Integer locationId) {
+		if (date == null)
+			return;
+
+		if (HIV_ENCOUNTER_TYPES.contains(encounterType)) {
+			if (firstHIVEncounterDate == null || date.before(firstHIVEncounterDate)
+					|| (date.equals(firstHIVEncounterDate) && encounterId < firstHIVEncounterId)) {
+				firstHIVEncounterId = encounterId;
+				firstHIVEncounterDate = date;
+				firstHIVEncounterLocationId = locationId;
+			}
+		}
+
+		if (PEDS_ENCOUNTER_TYPES.contains(encounterType))
+			pedsEncounter = true;
+
+		if (LAST_ENCOUNTER_TYPES.contains(encounterType)) {
+			if (lastHIVEncounterDate == null || date.after(lastHIVEncounterDate)) {
+				lastHIVEncounterDate = date;
+				lastHIVEncounterLocationId = locationId;
+			}
+		}
+	}
+
+	/**
+	 * folds in a non-voided observation
+	 *
+	 * @should track first and last positive observations
+	 * @should track the latest WHO stage
+	 */
+	public void consumeObs(Integer conceptId, Integer valueCoded, Date date, Integer locationId, Integer encounterId) {
+		if (conceptId == null || date == null)
+			return;
+
+		boolean positive = (HIV_TESTS.contains(conceptId) && HIV_POSITIVE.equals(valueCoded))
+				|| (PROBLEM_ADDED.equals(conceptId) && HIV_INFECTED.equals(valueCoded));
+
+		if (positive) {
+			if (firstPositiveObsDate == null || date.before(firstPositiveObsDate)) {
+				firstPositiveObsDate = date;
+				firstPositiveObsLocationId = locationId;
+			}
+			if (lastPositiveObsDate == null || date.after(lastPositiveObsDate))
+				lastPositiveObsDate = date;
+		}
+
+		if (HIV_TESTS.contains(conceptId) && HIV_NEGATIVE.equals(valueCoded)) {
+			if (lastNegativeObsDate == null || date.after(lastNegativeObsDate))
+				lastNegativeObsDate = date;
+		}
+
+		if (WHO_STAGES.contains(conceptId)) {
+			if (lastWHOStageDate == null || date.after(lastWHOStageDate)) {
+				lastWHOStageDate = date;
+				lastWHOStage = STAGE_NAMES.get(valueCoded);
+			}
+		}
+
+		boolean discontinued = (DISCONTINUED.equals(conceptId) && YES.equals(valueCoded))
+				|| (REASON_EXITED_CARE.equals(conceptId) && DISCONTINUED.equals(valueCoded));
+
+		if (discontinued) {
+			if (lastDiscontinueDate == null || date.after(lastDiscontinueDate)) {
+				lastDiscontinueDate = date;
+				lastDiscontinueReason = valueCoded == null ? null : valueCoded.toString();
+			}
+		}
+
+		if (TRANSFER_IN_QUESTION.equals(conceptId) && TRANSFER_IN_ANSWER.equals(valueCoded) && encounterId != null) {
+			Date existing = transferIns.get(encounterId);
+			if (existing == null || date.before(existing))
+				transferIns.put(encounterId, date);
+		}
+	}
+
+	/**
+	 * folds in an encounter from amrsreports_arv_current where the patient was on ART
+	 */
+	public void consumeARV(Date date, Integer locationId) {
+		if (date == null)
+			return;
+
+		if (firstARVDate == null || date.before(firstARVDate)) {
+			firstARVDate = date;
+			firstARVLocationId = locationId;
+		}
+	}
+
+	/**
+	 * @return whether this patient gets a row in the enrollment table
+	 * @should require a valid person with an HIV encounter who is not a test patient
+	 */
+	public boolean isEnrolled() {
+		return validPerson && !fake && firstHIVEncounterId != null;
+	}
+
+	/**
+	 * determines enrollment date, location, age and reason from the folded events
+	 *
+	 * @should enroll patients two and over at their first encounter
+	 * @should enroll children with only adult encounters at their first encounter
+	 * @should enroll from the first positive observation if not already enrolled
+	 * @should enroll from ARVs if earlier than the first positive observation and staged
+	 */
+	public void computeEnrollment() {
+		enrollmentDate = null;
+		enrollmentLocationId = null;
+		enrollmentAge = null;
+		enrollmentReason = null;
+
+		Double firstHIVEncounterAge = getFirstHIVEncounterAge();
+
+		if (firstHIVEncounterAge != null && firstHIVEncounterAge >= 2) {
+			enroll(firstHIVEncounterDate, firstHIVEncounterLocationId, firstHIVEncounterAge, REASON_FIRST_ENCOUNTER);
+		} else if (!pedsEncounter) {
+			enroll(firstHIVEncounterDate, firstHIVEncounterLocationId, firstHIVEncounterAge, REASON_ADULT_ENCOUNTERS);
+		} else if (lastPositiveObsDate != null) {
+			enroll(firstPositiveObsDate, firstPositiveObsLocationId, yearsSinceBirth(firstPositiveObsDate), REASON_POSITIVE_OBS);
+		}
+
+		boolean arvsFirst = enrollmentReason == null
+				|| (REASON_POSITIVE_OBS.equals(enrollmentReason) && firstARVDate != null && enrollmentDate.after(firstARVDate));
+
+		if (arvsFirst && lastWHOStageDate != null && firstARVDate != null)
+			enroll(firstARVDate, firstARVLocationId, yearsSinceBirth(firstARVDate), REASON_ARVS);
+	}
+
+	private void enroll(Date date, Integer locationId, Double age, String reason) {
+		enrollmentDate = date;
+		enrollmentLocationId = locationId;
+		enrollmentAge = age;
+		enrollmentReason = reason;
+	}
+
+	/**
+	 * matches MySQL's datediff(date, birthdate) / 365.25, which compares calendar days and keeps four decimals
+	 */
+	private Double yearsSinceBirth(Date date) {
+		if (date == null || birthdate == null)
+			return null;
+
+		long days = Math.round((startOfDay(date) - startOfDay(birthdate)) / (double) MILLIS_PER_DAY);
+		return Math.round(days / 365.25 * 10000) / 10000.0;
+	}
+
+	private long startOfDay(Date date) {
+		Calendar c = Calendar.getInstance();
+		c.setTime(date);
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		return c.getTimeInMillis();
+	}
+
+	public Integer getPatientId() {
+		return patientId;
+	}
+
+	public Integer getFirstHIVEncounterId() {
+		return firstHIVEncounterId;
+	}
+
+	public Date getFirstHIVEncounterDate() {
+		return firstHIVEncounterDate;
+	}
+
+	public Integer getFirstHIVEncounterLocationId() {
+		return firstHIVEncounterLocationId;
+	}
+
+	public Double getFirstHIVEncounterAge() {
+		return yearsSinceBirth(firstHIVEncounterDate);
+	}
+
+	public Date getLastHIVEncounterDate() {
+		return lastHIVEncounterDate;
+	}
+
+	public Integer getLastHIVEncounterLocationId() {
+		return lastHIVEncounterLocationId;
+	}
+
+	public Date getFirstPositiveObsDate() {
+		return firstPositiveObsDate;
+	}
+
+	public Integer getFirstPositiveObsLocationId() {
+		return firstPositiveObsLocationId;
+	}
+
+	public Date getLastPositiveObsDate() {
+		return lastPositiveObsDate;
+	}
+
+	public Date getLastNegativeObsDate() {
+		return lastNegativeObsDate;
+	}
+
+	public String getLastWHOStage() {
+		return lastWHOStage;
+	}
+
+	public Date getLastWHOStageDate() {
+		return lastWHOStageDate;
+	}
+
+	public Date getFirstARVDate() {
+		return firstARVDate;
+	}
+
+	public Integer getFirstARVLocationId() {
+		return firstARVLocationId;
+	}
+
+	public Date getLastDiscontinueDate() {
+		return lastDiscontinueDate;
+	}
+
+	public String getLastDiscontinueReason() {
+		return lastDiscontinueReason;
+	}
+
+	public Date getTransferredInDate() {
+		return firstHIVEncounterId == null ? null : transferIns.get(firstHIVEncounterId);
+	}
+
+	public Date getEnrollmentDate() {
+		return enrollmentDate;
+	}
+
+	public Integer getEnrollmentLocationId() {
+		return enrollmentLocationId;
+	}
+
+	public Double getEnrollmentAge() {
+		return enrollmentAge;
+	}
+
+	public String getEnrollmentReason() {
+		return enrollmentReason;
+	}
+}
@@ -0,0 +1,334 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.builder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.module.amrsreports.util.CancellationToken;
+import org.openmrs.module.amrsreports.util.OperationCancelledException;
+import org.openmrs.module.amrsreports.util.TableBuilderUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+
+/**
+ * Fills the HIV Care Enrollment table from a single scan of the relevant person, encounter, obs and ARV rows ordered
+ * by patient, folding each patient's events into a HIVCareEnrollmentState and writing rows back in batches.  Only one
+ * patient's state is held in memory at a time.
+ */
+public class HIVCareEnrollmentStreamingBuilder {
+
+	private static final Log log = LogFactory.getLog(HIVCareEnrollmentStreamingBuilder.class);
+
+	private static HIVCareEnrollmentStreamingBuilder instance;
+
+	public static HIVCareEnrollmentStreamingBuilder getInstance() {
+		if (instance == null)
+			instance = new HIVCareEnrollmentStreamingBuilder();
+		return instance;
+	}
+
+	private HIVCareEnrollmentStreamingBuilder() {
+		// pass
+	}
+
+	private static final int BATCH_SIZE = 1000;
+
+	private static final String EVENT_PERSON = "P";
+	private static final String EVENT_FAKE = "F";
+	private static final String EVENT_ENCOUNTER = "E";
+	private static final String EVENT_OBS = "O";
+	private static final String EVENT_ARV = "A";
+
+	private static final String QUERY_EVENTS =
+			"select person_id, event, event_date, location_id, encounter_id, code, value_coded" +
+					" from (" +
+					"   select" +
+					"     p.person_id, 'P' as event, p.birthdate as event_date, NULL as location_id," +
+					"     NULL as encounter_id, NULL as code, NULL as value_coded" +
+					"   from person p" +
+					"     join patient pt on pt.patient_id = p.person_id and pt.voided = 0" +
+					"   where p.voided = 0" +
+					"   union all" +
+					"   select" +
+					"     pa.person_id, 'F', NULL, NULL, NULL, NULL, NULL" +
+					"   from person_attribute pa" +
+					"   where" +
+					"     pa.person_attribute_type_id = 28" +
+					"     and pa.voided = 0" +
+					"     and pa.value = 'true'" +
+					"   union all" +
+					"   select" +
+					"     e.patient_id, 'E', e.encounter_datetime, e.location_id, e.encounter_id, e.encounter_type, NULL" +
+					"   from encounter e" +
+					"   where" +
+					"     e.voided = 0" +
+					"     and e.encounter_type in (1,2,3,4,13,10,11,12,17,18,19,20,21,22,23,25,26,44,46,47,48,67)" +
+					"   union all" +
+					"   select" +
+					"     o.person_id, 'O', o.obs_datetime, o.location_id, o.encounter_id, o.concept_id, o.value_coded" +
+					"   from obs o" +
+					"   where" +
+					"     o.voided = 0" +
+					"     and o.concept_id in (1040, 1030, 1042, 6042, 1224, 5356, 1946, 1596, 7015)" +
+					"   union all" +
+					"   select" +
+					"     ac.patient_id, 'A', ac.encounter_date, ac.location_id, ac.encounter_id, NULL, NULL" +
+					"   from amrsreports_arv_current ac" +
+					"   where ac.on_ART = 1" +
+					" ) events" +
+					" order by person_id";
+
+	private static final String MACRO_INSERT =
+			"insert into :table (" +
+					"  patient_id," +
+					"  first_hiv_encounter_id," +
+					"  first_hiv_encounter_location_id," +
+					"  first_hiv_encounter_date," +
+					"  first_hiv_encounter_age," +
+					"  enrollment_date," +
+					"  enrollment_age," +
+					"  enrollment_location_id," +
+					"  enrollment_reason," +
+					"  last_hiv_encounter_date," +
+					"  last_hiv_encounter_location_id," +
+					"  first_positive_obs_date," +
+					"  first_positive_obs_location_id," +
+					"  last_positive_obs_date," +
+					"  last_negative_obs_date," +
+					"  last_who_stage," +
+					"  last_who_stage_date," +
+					"  first_arv_date," +
+					"  first_arv_location_id," +
+					"  last_discontinue_date," +
+					"  last_discontinue_reason," +
+					"  transferred_in_date," +
+					"  uuid" +
+					" ) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, UUID())";
+
+	/**
+	 * fills the given (empty) enrollment table
+	 *
+	 * @return the number of rows written
+	 */
+	public long fill(String table) {
+		Connection reader = null;
+		Connection writer = null;
+		Statement events = null;
+		PreparedStatement insert = null;
+		boolean readerAutoCommit = true;
+		boolean writerAutoCommit = true;
+
+		long patients = 0;
+		long started = System.currentTimeMillis();
+
+		// a cancelled build stops between batches, and cancelling stops the statements in flight
+		CancellationToken token = CancellationToken.getCurrent();
+
+		try {
+			reader = TableBuilderUtil.getConnection();
+			readerAutoCommit = reader.getAutoCommit();
+			writer = TableBuilderUtil.getConnection();
+			writerAutoCommit = writer.getAutoCommit();
+			writer.setAutoCommit(false);
+
+			// stream rows instead of loading the entire result into memory
+			events = reader.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			events.setFetchSize(Integer.MIN_VALUE);
+
+			insert = writer.prepareStatement(MACRO_INSERT.replaceAll(":table", table));
+
+			if (token != null) {
+				token.addStatement(events);
+				token.addStatement(insert);
+			}
+
+			ResultSet rs = events.executeQuery(QUERY_EVENTS);
+
+			HIVCareEnrollmentState state = null;
+			int pending = 0;
+
+			while (rs.next()) {
+				Integer personId = rs.getInt(1);
+
+				if (state == null || !state.getPatientId().equals(personId)) {
+					if (addRow(insert, state)) {
+						patients++;
+						pending++;
+					}
+
+					if (pending >= BATCH_SIZE) {
+						if (token != null)
+							token.check();
+
+						insert.executeBatch();
+						writer.commit();
+						pending = 0;
+					}
+
+					state = new HIVCareEnrollmentState(personId);
+				}
+
+				String event = rs.getString(2);
+				Date date = rs.getTimestamp(3);
+				Integer locationId = getInteger(rs, 4);
+				Integer encounterId = getInteger(rs, 5);
+				Integer code = getInteger(rs, 6);
+				Integer valueCoded = getInteger(rs, 7);
+
+				if (EVENT_PERSON.equals(event))
+					state.consumePerson(date);
+				else if (EVENT_FAKE.equals(event))
+					state.consumeFakeFlag();
+				else if (EVENT_ENCOUNTER.equals(event))
+					state.consumeEncounter(encounterId, code, date, locationId);
+				else if (EVENT_OBS.equals(event))
+					state.consumeObs(code, valueCoded, date, locationId, encounterId);
+				else if (EVENT_ARV.equals(event))
+					state.consumeARV(date, locationId);
+			}
+
+			if (addRow(insert, state))
+				patients++;
+
+			insert.executeBatch();
+			writer.commit();
+
+			rs.close();
+
+		} catch (SQLException e) {
+			if (token != null && token.isCancelled())
+				throw new OperationCancelledException("Enrollment table build was cancelled", e);
+			throw new APIException("Could not build enrollment table", e);
+		} finally {
+			if (token != null) {
+				token.removeStatement(events);
+				token.removeStatement(insert);
+			}
+			close(events);
+			close(insert);
+			close(reader, readerAutoCommit);
+			close(writer, writerAutoCommit);
+		}
+
+		log.info(String.format("Enrollment for %d patients streamed in %d ms", patients,
+				System.currentTimeMillis() - started));
+
+		return patients;
+	}
+
+	/**
+	 * adds a row for the patient to the insert batch if the patient is enrolled
+	 *
+	 * @return whether a row was added
+	 */
+	private boolean addRow(PreparedStatement insert, HIVCareEnrollmentState state) throws SQLException {
+		if (state == null || !state.isEnrolled())
+			return false;
+
+		state.computeEnrollment();
+
+		int i = 1;
+		setInteger(insert, i++, state.getPatientId());
+		setInteger(insert, i++, state.getFirstHIVEncounterId());
+		setInteger(insert, i++, state.getFirstHIVEncounterLocationId());
+		setDate(insert, i++, state.getFirstHIVEncounterDate());
+		setDouble(insert, i++, state.getFirstHIVEncounterAge());
+		setDate(insert, i++, state.getEnrollmentDate());
+		setDouble(insert, i++, state.getEnrollmentAge());
+		setInteger(insert, i++, state.getEnrollmentLocationId());
+		insert.setString(i++, state.getEnrollmentReason());
+		setDate(insert, i++, state.getLastHIVEncounterDate());
+		setInteger(insert, i++, state.getLastHIVEncounterLocationId());
+		setDate(insert, i++, state.getFirstPositiveObsDate());
+		setInteger(insert, i++, state.getFirstPositiveObsLocationId());
+		setDate(insert, i++, state.getLastPositiveObsDate());
+		setDate(insert, i++, state.getLastNegativeObsDate());
+		insert.setString(i++, state.getLastWHOStage());
+		setDate(insert, i++, state.getLastWHOStageDate());
+		setDate(insert, i++, state.getFirstARVDate());
+		setInteger(insert, i++, state.getFirstARVLocationId());
+		setDate(insert, i++, state.getLastDiscontinueDate());
+		insert.setString(i++, state.getLastDiscontinueReason());
+		setDate(insert, i, state.getTransferredInDate());
+
+		insert.addBatch();
+		return true;
+	}
+
+	private Integer getInteger(ResultSet rs, int column) throws SQLException {
+		int value = rs.getInt(column);
+		return rs.wasNull() ? null : value;
+	}
+
+	private void setInteger(PreparedStatement ps, int index, Integer value) throws SQLException {
+		if (value == null)
+			ps.setNull(index, Types.INTEGER);
+		else
+			ps.setInt(index, value);
+	}
+
+	private void setDouble(PreparedStatement ps, int index, Double value) throws SQLException {
+		if (value == null)
+			ps.setNull(index, Types.DOUBLE);
+		else
+			ps.setDouble(index, value);
+	}
+
+	private void setDate(PreparedStatement ps, int index, Date value) throws SQLException {
+		if (value == null)
+			ps.setNull(index, Types.TIMESTAMP);
+		else
+			ps.setTimestamp(index, new Timestamp(value.getTime()));
+	}
+
+	private void close(Statement statement) {
+		if (statement == null)
+			return;
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			log.warn("Could not close statement", e);
+		}
+	}
+
+	/**
+	 * rolls back anything left uncommitted and gives the connection back to the pool as it was borrowed
+	 */
+	private void close(Connection connection, boolean autoCommit) {
+		if (connection == null)
+			return;
+		try {
+			if (!connection.getAutoCommit())
+				connection.rollback();
+			if (connection.getAutoCommit() != autoCommit)
+				connection.setAutoCommit(autoCommit);
+		} catch (SQLException e) {
+			log.warn("Could not reset connection", e);
+		}
+		try {
+			TableBuilderUtil.closeConnection(connection);
+		} catch (SQLException e) {
+			log.warn("Could not close connection", e);
+		}
+	}
+}
@@ -15,10 +15,21 @@
 package org.openmrs.module.amrsreports.builder;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.amrsreports.util.TableBuilderUtil;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class PregnancyTableBuilder {
 
+	private static final Log log = LogFactory.getLog(PregnancyTableBuilder.class);
+
+	private static final String BUILDER = "Pregnancy";
+
 	private static PregnancyTableBuilder instance;
 
 	public static PregnancyTableBuilder getInstance() {
@@ -31,11 +42,13 @@ public class PregnancyTableBuilder {
 		// pass
 	}
 
+	private static final String TABLE_PREGNANCY = "amrsreports_pregnancy";
+
 	private static final String DROP_TABLE =
-			"DROP TABLE IF EXISTS `amrsreports_pregnancy`";
+			"DROP TABLE IF EXISTS `:table`";
 
 	private static final String CREATE_TABLE =
-			"CREATE TABLE `amrsreports_pregnancy` (" +
+			"CREATE TABLE `:table` (" +
 					"  `pregnancy_id` int(11) NOT NULL AUTO_INCREMENT," +
 					"  `person_id` int(11) NOT NULL," +
 					"  `pregnancy_date` datetime NOT NULL," +
@@ -59,7 +72,7 @@ public class PregnancyTableBuilder {
 					") ENGINE=InnoDB DEFAULT CHARSET=utf8";
 
 	private static String MACRO_UPDATE_COLUMN =
-			"insert into amrsreports_pregnancy (" +
+			"insert into :table (" +
 					"  person_id, " +
 					"  pregnancy_date, " +
 					"  :column" +
@@ -85,7 +98,7 @@ public class PregnancyTableBuilder {
 					"  :column = 1";
 
 	private static final String UPDATE_EDD_FROM_LMP =
-			"insert into amrsreports_pregnancy (" +
+			"insert into :table (" +
 					"  person_id, " +
 					"  pregnancy_date, " +
 					"  due_date," +
@@ -117,7 +130,7 @@ public class PregnancyTableBuilder {
 					"  due_date_source = 'LMP'";
 
 	private static final String UPDATE_EDD_FROM_EDC =
-			"insert into amrsreports_pregnancy (" +
+			"insert into :table (" +
 					"  person_id, " +
 					"  pregnancy_date, " +
 					"  due_date," +
@@ -149,7 +162,7 @@ public class PregnancyTableBuilder {
 					"  due_date_source = 'EDC'";
 
 	private static String MACRO_UPDATE_EDD =
-			"INSERT INTO amrsreports_pregnancy (" +
+			"INSERT INTO :table (" +
 					"	person_id," +
 					"	pregnancy_date," +
 					"	due_date," +
@@ -172,78 +185,317 @@ public class PregnancyTableBuilder {
 					"	due_date = VALUES(due_date)," +
 					"   due_date_source = ':source'";
 
+	private static final String MACRO_PIVOT =
+			"insert into :table (" +
+					"  person_id," +
+					"  pregnancy_date," +
+					"  due_date," +
+					"  due_date_source," +
+					"  :columns" +
+					" )" +
+					"  select" +
+					"    e.patient_id," +
+					"    DATE_FORMAT(e.encounter_datetime, '%Y-%m-%d') as p_date," +
+					"    coalesce(:dueDates)," +
+					"    case :sources end," +
+					"    :flags" +
+					"  from" +
+					"    obs o" +
+					"    join encounter e" +
+					"      on e.encounter_id = o.encounter_id and e.voided = 0" +
+					"    join person p" +
+					"      on e.patient_id = p.person_id and p.voided = 0" +
+					"    join patient pt" +
+					"      on e.patient_id = pt.patient_id and pt.voided = 0" +
+					"  where" +
+					"    o.voided = 0" +
+					"    and o.concept_id in (:concepts)" +
+					"  group by" +
+					"    e.patient_id, p_date" +
+					"  having" +
+					"    max(:anyCriteria) = 1";
+
+	private static final String MACRO_COUNT_DIFFERENCES =
+			"select count(*) from (" +
+					"  select :columns" +
+					"  from (" +
+					"    select :columns from :table" +
+					"    union all" +
+					"    select :columns from :verify" +
+					"  ) combined" +
+					"  group by :columns" +
+					"  having count(*) = 1" +
+					") differences";
+
+	private static final String COMPARED_COLUMNS = "person_id, pregnancy_date, due_date, due_date_source";
+
+	private static final String SUFFIX_PER_COLUMN = "_bench_per_column";
+	private static final String SUFFIX_PIVOT = "_bench_pivot";
+
+	private static final int BENCHMARK_ROUNDS = 3;
+
 	/**
-	 * drops, creates and fills out the pregnancy table
+	 * every concept read by the flag and due date criteria
+	 */
+	private static final String PREGNANCY_CONCEPTS =
+			"45, 1181, 1251, 1279, 1790, 1834, 1835, 1836, 1854, 1855, 1856, 1992, 2055, 5272, 5596, 5992, 6042";
+
+	/**
+	 * criteria for each flag column; a column is set if any obs on that day for that patient matches
+	 */
+	private static final Map<String, String> FLAG_CRITERIA = new LinkedHashMap<String, String>();
+
+	/**
+	 * criteria and due date calculation for each due date source, most trusted first; when a patient has several
+	 * sources on the same day, the most trusted one is used
+	 */
+	private static final Map<String, String[]> DUE_DATE_SOURCES = new LinkedHashMap<String, String[]>();
+
+	static {
+		FLAG_CRITERIA.put("pregstatus", "concept_id = 5272 and value_coded = 1065 and e.form_id <> 245");
+		FLAG_CRITERIA.put("probpreg", "concept_id in (6042, 1790) and value_coded in (44, 47, 46)");
+		FLAG_CRITERIA.put("testpreg", "(concept_id = 45 and value_coded = 703) or (concept_id = 1856 and value_coded <> 1175)");
+		FLAG_CRITERIA.put("reasnvispreg", "concept_id in (1834, 1835) and value_coded = 1831");
+		// TODO add setting fundpreg and durpreg columns to 1 in updateEDD
+		FLAG_CRITERIA.put("durpreg", "concept_id in (1279, 5992) and value_numeric > 0");
+		FLAG_CRITERIA.put("fundpreg", "concept_id = 1855 and value_numeric > 0");
+		FLAG_CRITERIA.put("ancpreg", "concept_id = 2055 and value_coded = 1065");
+		FLAG_CRITERIA.put("eddpreg", "concept_id in (5596, 1854) and value_coded > obs_datetime");
+		FLAG_CRITERIA.put("arvpreg", "(concept_id = 1181 and value_coded = 1148)" +
+				" or (concept_id = 1251 and value_coded = 1776)" +
+				" or (concept_id = 1992 and value_coded not in (1066, 67))");
+
+		// EDD = valueDatetime of EDC observation
+		DUE_DATE_SOURCES.put("EDC", new String[]{
+				"concept_id in (1854, 5596) and value_datetime IS NOT NULL",
+				"value_datetime"});
+
+		// EDD = valueDatetime of LMP + 287 days
+		DUE_DATE_SOURCES.put("LMP", new String[]{
+				"concept_id in (1836) and value_datetime IS NOT NULL",
+				"DATE_ADD(value_datetime, INTERVAL (287) DAY)"});
+
+		// obs date + (280 days - # days in weeks pregnant)
+		DUE_DATE_SOURCES.put("Weeks Pregnant", new String[]{
+				"concept_id = 1279",
+				"DATE_ADD(o.obs_datetime, INTERVAL (280 - (o.value_numeric * 7)) DAY)"});
+
+		// obs date + (280 days - # days in weeks gestation) ... value over 9 is considered to mean weeks
+		DUE_DATE_SOURCES.put("Gestation (weeks)", new String[]{
+				"concept_id = 5992 AND value_numeric > 9",
+				"DATE_ADD(o.obs_datetime, INTERVAL (280 - (o.value_numeric * 7)) DAY)"});
+
+		// obs date + (280 days - # days in months gestation)
+		DUE_DATE_SOURCES.put("Gestation (Months)", new String[]{
+				"concept_id = 5992 AND value_numeric <= 9",
+				"DATE_ADD(o.obs_datetime, INTERVAL (280 - (o.value_numeric * 30)) DAY)"});
+
+		// obs date + (280 days - # days in weeks gestation from fundal height)
+		DUE_DATE_SOURCES.put("Fundal Height", new String[]{
+				"concept_id = 1855",
+				"DATE_ADD(o.obs_datetime, INTERVAL (280 - (o.value_numeric * 7)) DAY)"});
+	}
+
+	/**
+	 * creates and fills out a staging copy of the pregnancy table, then swaps it in place of the current one
 	 */
 	public void execute() {
+		String table = TABLE_PREGNANCY + TableBuilderUtil.STAGING_SUFFIX;
 
 		// drop the table
-		TableBuilderUtil.runUpdateSQL(DROP_TABLE);
+		TableBuilderUtil.runUpdateSQL(DROP_TABLE.replaceAll(":table", table));
 
 		// recreate the table
-		TableBuilderUtil.runUpdateSQL(CREATE_TABLE);
+		TableBuilderUtil.runUpdateSQL(CREATE_TABLE.replaceAll(":table", table));
+
+		fillTablePivot(table);
+
+		// publish the new table
+		TableBuilderUtil.publishStagingTables(TABLE_PREGNANCY);
+	}
+
+	/**
+	 * adds the build to the graph as a single step; the table is filled by one statement, so there is nothing to
+	 * split up
+	 *
+	 * @return the name of the step, which later builds can depend on
+	 */
+	public String addSteps(BuildGraph graph, String... dependsOn) {
+		graph.addStep("Pregnancy", new Runnable() {
+			public void run() {
+				execute();
+			}
+		}, dependsOn);
+		return "Pregnancy";
+	}
+
+	/**
+	 * builds the pregnancy table both with one statement per column and with the single pass, reporting timings, the
+	 * number of rows the server reads for each approach and the number of rows that differ.  A first pass of each
+	 * approach is discarded so the buffer pool is warm for both, and the measured rounds alternate which approach goes
+	 * first.
+	 *
+	 * @return a summary of the comparison
+	 */
+	public String benchmark() {
+		String perColumn = TABLE_PREGNANCY + SUFFIX_PER_COLUMN;
+		String pivot = TABLE_PREGNANCY + SUFFIX_PIVOT;
+
+		// warm up
+		measureFill(perColumn, false);
+		measureFill(pivot, true);
+
+		long[] perColumnTotals = new long[2];
+		long[] pivotTotals = new long[2];
+		for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+			boolean perColumnFirst = round % 2 == 0;
+			add(perColumnFirst ? perColumnTotals : pivotTotals,
+					measureFill(perColumnFirst ? perColumn : pivot, !perColumnFirst));
+			add(perColumnFirst ? pivotTotals : perColumnTotals,
+					measureFill(perColumnFirst ? pivot : perColumn, perColumnFirst));
+		}
+
+		Object differences = TableBuilderUtil.getSingleValue(MACRO_COUNT_DIFFERENCES
+				.replaceAll(":columns", COMPARED_COLUMNS + ", " + StringUtils.join(FLAG_CRITERIA.keySet(), ", "))
+				.replaceAll(":table", perColumn)
+				.replaceAll(":verify", pivot));
+
+		for (String table : new String[]{perColumn, pivot}) {
+			TableBuilderUtil.runUpdateSQL(DROP_TABLE.replaceAll(":table", table));
+		}
+
+		String summary = String.format("Pregnancy table benchmark complete, averaged over %d rounds after a warm-up;" +
+				" per column: %d ms, %d rows read in %d passes over obs; single pass: %d ms, %d rows read;" +
+				" %s differing rows", BENCHMARK_ROUNDS,
+				perColumnTotals[0] / BENCHMARK_ROUNDS, perColumnTotals[1] / BENCHMARK_ROUNDS,
+				FLAG_CRITERIA.size() + DUE_DATE_SOURCES.size(),
+				pivotTotals[0] / BENCHMARK_ROUNDS, pivotTotals[1] / BENCHMARK_ROUNDS, differences);
+		log.info(summary);
+		return summary;
+	}
+
+	/**
+	 * recreates and fills out the given table with one of the two approaches
+	 *
+	 * @return the milliseconds taken and the rows read by the server, from its Handler_read counters
+	 */
+	private long[] measureFill(String table, boolean pivot) {
+		TableBuilderUtil.runUpdateSQL(DROP_TABLE.replaceAll(":table", table));
+		TableBuilderUtil.runUpdateSQL(CREATE_TABLE.replaceAll(":table", table));
+
+		long rowsRead = TableBuilderUtil.getRowsRead();
+		long start = System.currentTimeMillis();
+
+		if (pivot)
+			fillTablePivot(table);
+		else
+			fillTablePerColumn(table);
+
+		return new long[]{System.currentTimeMillis() - start, TableBuilderUtil.getRowsRead() - rowsRead};
+	}
+
+	private static void add(long[] totals, long[] measurement) {
+		for (int i = 0; i < totals.length; i++) {
+			totals[i] += measurement[i];
+		}
+	}
+
+	/**
+	 * fills out the given pregnancy table with a single pass over the pregnancy obs, grouped by patient and day
+	 */
+	private void fillTablePivot(String table) {
+		List<String> flags = new ArrayList<String>();
+		List<String> criteria = new ArrayList<String>();
+
+		for (String flagCriteria : FLAG_CRITERIA.values()) {
+			flags.add(String.format("ifnull(max(%s), 0)", flagCriteria));
+			criteria.add("(" + flagCriteria + ")");
+		}
+
+		List<String> dueDates = new ArrayList<String>();
+		List<String> dueDateSources = new ArrayList<String>();
+
+		for (Map.Entry<String, String[]> source : DUE_DATE_SOURCES.entrySet()) {
+			String dueDate = String.format("max(case when %s then %s end)", source.getValue()[0], source.getValue()[1]);
+			dueDates.add(dueDate);
+			dueDateSources.add(String.format("when %s is not null then '%s'", dueDate, source.getKey()));
+			criteria.add("(" + source.getValue()[0] + ")");
+		}
+
+		String query = MACRO_PIVOT
+				.replaceAll(":table", table)
+				.replaceAll(":columns", StringUtils.join(FLAG_CRITERIA.keySet(), ", "))
+				.replaceAll(":dueDates", StringUtils.join(dueDates, ", "))
+				.replaceAll(":sources", StringUtils.join(dueDateSources, " "))
+				.replaceAll(":flags", StringUtils.join(flags, ", "))
+				.replaceAll(":concepts", PREGNANCY_CONCEPTS)
+				.replaceAll(":anyCriteria", StringUtils.join(criteria, " or "));
+
+		TableBuilderUtil.runUpdateSQL(BUILDER, "single pass", query);
+	}
+
+	/**
+	 * fills out the given pregnancy table with one statement per column and due date source; kept for benchmarking
+	 * against the single pass
+	 */
+	private void fillTablePerColumn(String table) {
 
 		// update all of the columns
-		updateColumn("pregstatus", "concept_id = 5272 and value_coded = 1065 and e.form_id <> 245");
-		updateColumn("probpreg", "concept_id in (6042, 1790) and value_coded in (44, 47, 46)");
-		updateColumn("testpreg", "(concept_id = 45 and value_coded = 703) or (concept_id = 1856 and value_coded <> 1175)");
-		updateColumn("reasnvispreg", "concept_id in (1834, 1835) and value_coded = 1831");
-		// TODO add setting fundpreg and durpreg columns to 1 in updateEDD
-		updateColumn("durpreg", "concept_id in (1279, 5992) and value_numeric > 0");
-		updateColumn("fundpreg", "concept_id = 1855 and value_numeric > 0");
-		updateColumn("ancpreg", "concept_id = 2055 and value_coded = 1065");
-		updateColumn("eddpreg", "concept_id in (5596, 1854) and value_coded > obs_datetime");
-		updateColumn("arvpreg", "(concept_id = 1181 and value_coded = 1148)" +
-				" or (concept_id = 1251 and value_coded = 1776)" +
-				" or (concept_id = 1992 and value_coded not in (1066, 67))");
+		for (Map.Entry<String, String> flag : FLAG_CRITERIA.entrySet()) {
+			updateColumn(table, flag.getKey(), flag.getValue());
+		}
 
 		// update due dates based on obsDatetime and valueNumeric
 
 		// obs date + (280 days - # days in weeks gestation from fundal height)
-		updateEDD("Fundal Height", 7, "concept_id = 1855");
+		updateEDD(table, "Fundal Height", 7, "concept_id = 1855");
 
 		// obs date + (280 days - # days in months gestation)
-		updateEDD("Gestation (Months)", 30, "concept_id = 5992 AND value_numeric <= 9");
+		updateEDD(table, "Gestation (Months)", 30, "concept_id = 5992 AND value_numeric <= 9");
 
 		// obs date + (280 days - # days in weeks gestation) ... value over 9 is considered to mean weeks
-		updateEDD("Gestation (weeks)", 7, "concept_id = 5992 AND value_numeric > 9");
+		updateEDD(table, "Gestation (weeks)", 7, "concept_id = 5992 AND value_numeric > 9");
 
 		// obs date + (280 days - # days in weeks pregnant)
-		updateEDD("Weeks Pregnant", 7, "concept_id = 1279");
+		updateEDD(table, "Weeks Pregnant", 7, "concept_id = 1279");
 
 		// update due dates based on valueDatetime
 
 		// EDD = valueDatetime of LMP + 287 days
-		TableBuilderUtil.runUpdateSQL(UPDATE_EDD_FROM_LMP);
+		TableBuilderUtil.runUpdateSQL(BUILDER, "due date from LMP", UPDATE_EDD_FROM_LMP.replaceAll(":table", table));
 
 		// EDD = valueDatetime of EDC observation
-		TableBuilderUtil.runUpdateSQL(UPDATE_EDD_FROM_EDC);
+		TableBuilderUtil.runUpdateSQL(BUILDER, "due date from EDC", UPDATE_EDD_FROM_EDC.replaceAll(":table", table));
 	}
 
 	/**
 	 * updates a given column based on provided criteria
 	 */
-	private void updateColumn(String column, String criteria) {
+	private void updateColumn(String table, String column, String criteria) {
 		if (StringUtils.isBlank(column) || StringUtils.isBlank(criteria))
 			return;
 
-		String query = MACRO_UPDATE_COLUMN.replaceAll(":criteria", criteria).replaceAll(":column", column);
-		TableBuilderUtil.runUpdateSQL(query);
+		String query = MACRO_UPDATE_COLUMN
+				.replaceAll(":table", table)
+				.replaceAll(":criteria", criteria)
+				.replaceAll(":column", column);
+		TableBuilderUtil.runUpdateSQL(BUILDER, column, query);
 	}
 
 	/**
 	 * updates due_date based on provided criteria
 	 */
-	private void updateEDD(String source, Integer days, String criteria) {
+	private void updateEDD(String table, String source, Integer days, String criteria) {
 		if (days == null || StringUtils.isBlank(criteria))
 			return;
 
 		String query = MACRO_UPDATE_EDD
+				.replaceAll(":table", table)
 				.replaceAll(":source", source)
 				.replaceAll(":criteria", criteria)
 				.replaceAll(":days", days.toString());
 
-		TableBuilderUtil.runUpdateSQL(query);
+		TableBuilderUtil.runUpdateSQL(BUILDER, "due date from " + source, query);
 	}
 
 }
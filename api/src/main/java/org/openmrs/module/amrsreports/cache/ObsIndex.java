@@ -0,0 +1,407 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.cache;
+
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Obs;
+import org.openmrs.Person;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.service.MohCoreService;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The obs of a cohort for a set of question concepts, held in compact arrays and bucketed by person and concept, so
+ * that the columns of a report can read their obs from one query instead of each querying obs themselves.
+ * <p/>
+ * While a report is evaluated, the concepts all of its columns need are registered as this thread's scope; the first
+ * column to ask for the index of a cohort and date loads it for all of them, and the others read the same index.
+ * Columns evaluated outside a scope, or needing concepts the scope does not cover, get an index of their own.
+ */
+public class ObsIndex {
+
+	private static final int NO_VALUE = Integer.MIN_VALUE;
+
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	private static final ThreadLocal<Scope> current = new ThreadLocal<Scope>();
+
+	private int size = 0;
+
+	private int[] obsIds = new int[16];
+	private int[] personIds = new int[16];
+	private int[] conceptIds = new int[16];
+	private long[] obsDatetimes = new long[16];
+	private int[] valueCoded = new int[16];
+	private double[] valueNumerics = new double[16];
+	private long[] valueDatetimes = new long[16];
+	private int[] encounterTypeIds = new int[16];
+
+	// start and end positions of each person's obs of each concept, keyed by person and concept
+	private Map<Long, int[]> buckets = null;
+
+	/**
+	 * the concepts needed by the report being evaluated on this thread, and the index last loaded for them.  A scope
+	 * may be shared with threads evaluating columns alongside this one, which then wait for a single load.
+	 */
+	public static class Scope {
+
+		private final Set<Integer> conceptIds;
+
+		private Set<Integer> memberIds;
+
+		private Date evaluationDate;
+
+		private ObsIndex index;
+
+		private Scope(Collection<Integer> conceptIds) {
+			this.conceptIds = new HashSet<Integer>(conceptIds);
+		}
+
+		private boolean isLoadedFor(EvaluationContext context) {
+			if (index == null || evaluationDate == null || !evaluationDate.equals(context.getEvaluationDate()))
+				return false;
+
+			Cohort cohort = context.getBaseCohort();
+			return cohort == null ? memberIds == null : cohort.getMemberIds().equals(memberIds);
+		}
+	}
+
+	/**
+	 * starts sharing indexes of the given concepts between the columns evaluated on this thread
+	 */
+	public static void startScope(Collection<Integer> conceptIds) {
+		current.set(new Scope(conceptIds));
+	}
+
+	public static void endScope() {
+		current.remove();
+	}
+
+	/**
+	 * @return this thread's scope, or null, for sharing with threads evaluating columns of the same report
+	 */
+	public static Scope getCurrentScope() {
+		return current.get();
+	}
+
+	/**
+	 * joins another thread's scope, or leaves any scope if given null
+	 */
+	public static void setCurrentScope(Scope scope) {
+		if (scope == null)
+			current.remove();
+		else
+			current.set(scope);
+	}
+
+	/**
+	 * @return the index of the context's cohort, up to the end of its evaluation date, covering at least the given
+	 *         concepts
+	 */
+	public static ObsIndex getIndex(EvaluationContext context, Collection<Integer> conceptIds) {
+		Scope scope = current.get();
+
+		if (scope == null || !scope.conceptIds.containsAll(conceptIds))
+			return load(context, conceptIds);
+
+		synchronized (scope) {
+			if (!scope.isLoadedFor(context)) {
+				// let go of the previous index before loading the next
+				scope.index = null;
+				scope.index = load(context, scope.conceptIds);
+				scope.evaluationDate = context.getEvaluationDate();
+				scope.memberIds = context.getBaseCohort() == null ? null
+						: new HashSet<Integer>(context.getBaseCohort().getMemberIds());
+			}
+
+			return scope.index;
+		}
+	}
+
+	private static ObsIndex load(EvaluationContext context, Collection<Integer> conceptIds) {
+		Cohort cohort = context.getBaseCohort();
+		return Context.getService(MohCoreService.class).getObsIndex(cohort == null ? null : cohort.getMemberIds(),
+				conceptIds, DateUtil.getEndOfDayIfTimeExcluded(context.getEvaluationDate()));
+	}
+
+	/**
+	 * adds an obs; obs are best added ordered by person, concept and date, as the index then needs no sorting
+	 */
+	public void add(Integer obsId, Integer personId, Integer conceptId, Date obsDatetime, Integer valueCodedId,
+	                Double valueNumeric, Date valueDatetime, Integer encounterTypeId) {
+
+		if (size == obsIds.length)
+			grow();
+
+		obsIds[size] = obsId == null ? NO_VALUE : obsId;
+		personIds[size] = personId;
+		conceptIds[size] = conceptId;
+		obsDatetimes[size] = obsDatetime == null ? NO_DATE : obsDatetime.getTime();
+		valueCoded[size] = valueCodedId == null ? NO_VALUE : valueCodedId;
+		valueNumerics[size] = valueNumeric == null ? Double.NaN : valueNumeric;
+		valueDatetimes[size] = valueDatetime == null ? NO_DATE : valueDatetime.getTime();
+		encounterTypeIds[size] = encounterTypeId == null ? NO_VALUE : encounterTypeId;
+
+		size++;
+		buckets = null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the people with obs in the index, in order of person id
+	 */
+	public Set<Integer> getPersonIds() {
+		Set<Integer> ids = new TreeSet<Integer>();
+		for (int i = 0; i < size; i++) {
+			ids.add(personIds[i]);
+		}
+		return ids;
+	}
+
+	/**
+	 * gets a person's obs of any of the given concepts, on or before the given date, oldest first.  The obs are built
+	 * from the index and are not attached to the session; they carry ids for their concept, coded answer, person and
+	 * encounter type, along with their dates and numeric value.
+	 *
+	 * @param onOrBefore the latest obs date to include, or null for all
+	 * @should return the obs of all given concepts oldest first
+	 * @should leave out obs after the given date
+	 * @should return an empty list for unknown people
+	 */
+	public List<Obs> getObs(Integer personId, Collection<Integer> concepts, Date onOrBefore) {
+		int[] positions = find(personId, concepts, onOrBefore);
+
+		List<Obs> obs = new ArrayList<Obs>(positions.length);
+		for (int i : positions) {
+			obs.add(toObs(i));
+		}
+		return obs;
+	}
+
+	/**
+	 * finds the positions of a person's obs of any of the given concepts, on or before the given date, oldest first.
+	 * Reading obs by position with the getters below creates no objects, unlike {@link #getObs}.
+	 *
+	 * @param onOrBefore the latest obs date to include, or null for all
+	 * @should find the obs of all given concepts oldest first
+	 */
+	public int[] find(Integer personId, Collection<Integer> concepts, Date onOrBefore) {
+		Map<Long, int[]> buckets = getBuckets();
+
+		int[] found = new int[0];
+		int count = 0;
+		for (Integer conceptId : concepts) {
+			int[] bucket = buckets.get(key(personId, conceptId));
+			if (bucket == null)
+				continue;
+
+			if (count + bucket[1] - bucket[0] > found.length)
+				found = Arrays.copyOf(found, count + bucket[1] - bucket[0]);
+
+			for (int i = bucket[0]; i < bucket[1]; i++) {
+				if (onOrBefore == null || obsDatetimes[i] <= onOrBefore.getTime())
+					found[count++] = i;
+			}
+		}
+
+		if (count < found.length)
+			found = Arrays.copyOf(found, count);
+
+		// buckets are each in date order; merge those of different concepts
+		if (concepts.size() > 1)
+			found = byDate.sort(found);
+
+		return found;
+	}
+
+	public int getConceptId(int position) {
+		return conceptIds[position];
+	}
+
+	/**
+	 * @return the id of the obs' coded answer, or 0 if it has none
+	 */
+	public int getValueCodedId(int position) {
+		return valueCoded[position] == NO_VALUE ? 0 : valueCoded[position];
+	}
+
+	/**
+	 * @return the obs date in milliseconds since the epoch
+	 */
+	public long getObsDatetime(int position) {
+		return obsDatetimes[position];
+	}
+
+	/**
+	 * @return the obs' date value, or null if it has none
+	 */
+	public Date getValueDatetime(int position) {
+		return valueDatetimes[position] == NO_DATE ? null : new Date(valueDatetimes[position]);
+	}
+
+	private final PositionSort byDate = new PositionSort() {
+		protected int compare(int a, int b) {
+			int c = compareLong(obsDatetimes[a], obsDatetimes[b]);
+			return c != 0 ? c : compareLong(obsIds[a], obsIds[b]);
+		}
+	};
+
+	/**
+	 * builds a detached obs.  Its concepts are bare new Concept(id) objects; they still match the cached concepts the
+	 * converters and snapshots compare them with, because in OpenMRS 1.8 Concept.equals compares concept ids only.
+	 */
+	private Obs toObs(int i) {
+		Obs obs = new Obs();
+		if (obsIds[i] != NO_VALUE)
+			obs.setObsId(obsIds[i]);
+		obs.setPerson(new Person(personIds[i]));
+		obs.setConcept(new Concept(conceptIds[i]));
+		if (obsDatetimes[i] != NO_DATE)
+			obs.setObsDatetime(new Date(obsDatetimes[i]));
+		if (valueCoded[i] != NO_VALUE)
+			obs.setValueCoded(new Concept(valueCoded[i]));
+		if (!Double.isNaN(valueNumerics[i]))
+			obs.setValueNumeric(valueNumerics[i]);
+		if (valueDatetimes[i] != NO_DATE)
+			obs.setValueDatetime(new Date(valueDatetimes[i]));
+		if (encounterTypeIds[i] != NO_VALUE) {
+			Encounter encounter = new Encounter();
+			encounter.setEncounterType(new EncounterType(encounterTypeIds[i]));
+			obs.setEncounter(encounter);
+		}
+		return obs;
+	}
+
+	/**
+	 * @return the buckets, built on the first read; built under a lock, as an index shared by a scope is read by
+	 *         several threads at once
+	 */
+	private synchronized Map<Long, int[]> getBuckets() {
+		if (buckets == null)
+			buildBuckets();
+		return buckets;
+	}
+
+	/**
+	 * finds where each person's obs of each concept start and end, sorting the obs first if they were not added in
+	 * order
+	 */
+	private void buildBuckets() {
+		if (!isSorted())
+			sort();
+
+		buckets = new HashMap<Long, int[]>();
+		int start = 0;
+		for (int i = 1; i <= size; i++) {
+			if (i == size || personIds[i] != personIds[start] || conceptIds[i] != conceptIds[start]) {
+				buckets.put(key(personIds[start], conceptIds[start]), new int[]{start, i});
+				start = i;
+			}
+		}
+	}
+
+	private boolean isSorted() {
+		for (int i = 1; i < size; i++) {
+			if (compare(i - 1, i) > 0)
+				return false;
+		}
+		return true;
+	}
+
+	private int compare(int a, int b) {
+		if (personIds[a] != personIds[b])
+			return personIds[a] < personIds[b] ? -1 : 1;
+		if (conceptIds[a] != conceptIds[b])
+			return conceptIds[a] < conceptIds[b] ? -1 : 1;
+		int c = compareLong(obsDatetimes[a], obsDatetimes[b]);
+		return c != 0 ? c : compareLong(obsIds[a], obsIds[b]);
+	}
+
+	private void sort() {
+		int[] order = new PositionSort() {
+			protected int compare(int a, int b) {
+				return ObsIndex.this.compare(a, b);
+			}
+		}.sort(size);
+
+		int[] sortedObsIds = new int[size];
+		int[] sortedPersonIds = new int[size];
+		int[] sortedConceptIds = new int[size];
+		long[] sortedObsDatetimes = new long[size];
+		int[] sortedValueCoded = new int[size];
+		double[] sortedValueNumerics = new double[size];
+		long[] sortedValueDatetimes = new long[size];
+		int[] sortedEncounterTypeIds = new int[size];
+
+		for (int i = 0; i < size; i++) {
+			int from = order[i];
+			sortedObsIds[i] = obsIds[from];
+			sortedPersonIds[i] = personIds[from];
+			sortedConceptIds[i] = conceptIds[from];
+			sortedObsDatetimes[i] = obsDatetimes[from];
+			sortedValueCoded[i] = valueCoded[from];
+			sortedValueNumerics[i] = valueNumerics[from];
+			sortedValueDatetimes[i] = valueDatetimes[from];
+			sortedEncounterTypeIds[i] = encounterTypeIds[from];
+		}
+
+		obsIds = sortedObsIds;
+		personIds = sortedPersonIds;
+		conceptIds = sortedConceptIds;
+		obsDatetimes = sortedObsDatetimes;
+		valueCoded = sortedValueCoded;
+		valueNumerics = sortedValueNumerics;
+		valueDatetimes = sortedValueDatetimes;
+		encounterTypeIds = sortedEncounterTypeIds;
+	}
+
+	private void grow() {
+		int capacity = obsIds.length * 2;
+		obsIds = Arrays.copyOf(obsIds, capacity);
+		personIds = Arrays.copyOf(personIds, capacity);
+		conceptIds = Arrays.copyOf(conceptIds, capacity);
+		obsDatetimes = Arrays.copyOf(obsDatetimes, capacity);
+		valueCoded = Arrays.copyOf(valueCoded, capacity);
+		valueNumerics = Arrays.copyOf(valueNumerics, capacity);
+		valueDatetimes = Arrays.copyOf(valueDatetimes, capacity);
+		encounterTypeIds = Arrays.copyOf(encounterTypeIds, capacity);
+	}
+
+	private static Long key(int personId, int conceptId) {
+		return ((long) personId << 32) | (conceptId & 0xffffffffL);
+	}
+
+	private static int compareLong(long a, long b) {
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.cache;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Dates per patient, held as primitive arrays instead of maps of date lists, for columns that only need a date or
+ * two out of each row they fetch.  Dates are kept as milliseconds since the epoch, so they keep their time of day.
+ */
+public class PatientDates {
+
+	private int size = 0;
+
+	private int[] patientIds = new int[16];
+
+	private long[] dates = new long[16];
+
+	private boolean sorted = true;
+
+	// distinct patient ids, and where each one's dates start; built on the first read
+	private int[] distinctIds = null;
+
+	private int[] starts = null;
+
+	/**
+	 * adds a date for a patient; null dates are ignored.  Dates are best added ordered by patient and date, as they
+	 * then need no sorting.
+	 */
+	public void add(int patientId, Date date) {
+		if (date != null)
+			add(patientId, date.getTime());
+	}
+
+	/**
+	 * adds a date, in milliseconds since the epoch, for a patient
+	 */
+	public void add(int patientId, long date) {
+		if (size == patientIds.length) {
+			patientIds = Arrays.copyOf(patientIds, size * 2);
+			dates = Arrays.copyOf(dates, size * 2);
+		}
+
+		patientIds[size] = patientId;
+		dates[size] = date;
+
+		if (size > 0 && compare(size - 1, size) > 0)
+			sorted = false;
+
+		size++;
+		distinctIds = null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the patients with at least one date, in order of patient id
+	 * @should return each patient once in order
+	 */
+	public int[] getPatientIds() {
+		seal();
+		return distinctIds.clone();
+	}
+
+	/**
+	 * @return a patient's dates, oldest first, each date once
+	 * @should return the dates oldest first without repeats
+	 * @should return an empty array for unknown patients
+	 */
+	public long[] getDates(int patientId) {
+		seal();
+
+		int i = Arrays.binarySearch(distinctIds, patientId);
+		if (i < 0)
+			return new long[0];
+
+		long[] found = new long[starts[i + 1] - starts[i]];
+		int count = 0;
+		for (int j = starts[i]; j < starts[i + 1]; j++) {
+			if (count == 0 || found[count - 1] != dates[j])
+				found[count++] = dates[j];
+		}
+		return count == found.length ? found : Arrays.copyOf(found, count);
+	}
+
+	/**
+	 * @return a patient's earliest date, or null
+	 * @should return the earliest date for the patient
+	 */
+	public Date getFirst(int patientId) {
+		seal();
+		int i = Arrays.binarySearch(distinctIds, patientId);
+		return i < 0 ? null : new Date(dates[starts[i]]);
+	}
+
+	/**
+	 * @return a patient's latest date, or null
+	 */
+	public Date getLast(int patientId) {
+		seal();
+		int i = Arrays.binarySearch(distinctIds, patientId);
+		return i < 0 ? null : new Date(dates[starts[i + 1] - 1]);
+	}
+
+	/**
+	 * sorts the dates if they were not added in order and finds where each patient's dates start
+	 */
+	private void seal() {
+		if (distinctIds != null)
+			return;
+
+		if (!sorted)
+			sort();
+
+		int distinct = 0;
+		for (int i = 0; i < size; i++) {
+			if (i == 0 || patientIds[i] != patientIds[i - 1])
+				distinct++;
+		}
+
+		distinctIds = new int[distinct];
+		starts = new int[distinct + 1];
+
+		int d = 0;
+		for (int i = 0; i < size; i++) {
+			if (i == 0 || patientIds[i] != patientIds[i - 1]) {
+				distinctIds[d] = patientIds[i];
+				starts[d++] = i;
+			}
+		}
+		starts[distinct] = size;
+	}
+
+	private void sort() {
+		int[] order = new PositionSort() {
+			protected int compare(int a, int b) {
+				return PatientDates.this.compare(a, b);
+			}
+		}.sort(size);
+
+		int[] sortedPatientIds = new int[size];
+		long[] sortedDates = new long[size];
+		for (int i = 0; i < size; i++) {
+			sortedPatientIds[i] = patientIds[order[i]];
+			sortedDates[i] = dates[order[i]];
+		}
+
+		patientIds = sortedPatientIds;
+		dates = sortedDates;
+		sorted = true;
+	}
+
+	private int compare(int a, int b) {
+		if (patientIds[a] != patientIds[b])
+			return patientIds[a] < patientIds[b] ? -1 : 1;
+		return dates[a] < dates[b] ? -1 : (dates[a] == dates[b] ? 0 : 1);
+	}
+}
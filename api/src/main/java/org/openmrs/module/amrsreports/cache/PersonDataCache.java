@@ -0,0 +1,674 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Cohort;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.AmrsReportsConstants;
+import org.openmrs.module.amrsreports.service.MohCoreService;
+import org.openmrs.module.amrsreports.util.TableBuilderUtil;
+import org.openmrs.module.reporting.data.BaseDataDefinition;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps evaluated person data between reports, so a column evaluated for a cohort and date is not evaluated again
+ * when the same or another report asks for it with the same cohort and date.  Entries are keyed by the definition's
+ * class and fields, a fingerprint of the cohort, the evaluation date and the build of the derived tables, and are
+ * only good until those tables are rebuilt; the first lookup under a new build drops everything kept for the old one.
+ * Columns also reading obs, encounters or people are further keyed by a stamp of those records for the cohort, so
+ * their entries are no longer found once any of the records change, and age out like any other.
+ * <p/>
+ * The cache is bounded by the number of values it holds, and lets go of the least recently used entries first.
+ * Entries let go of can be written to files in a spill directory, itself bounded by size, and are read back from
+ * there when asked for again.  Values that cannot be serialized are simply not spilled.  Files are written, read and
+ * deleted without holding the cache's lock, so lookups from other threads are not held up by the disk.
+ *
+ * @see org.openmrs.module.amrsreports.reporting.data.DerivedTableDataDefinition
+ * @see org.openmrs.module.amrsreports.reporting.data.IndependentDataDefinition
+ */
+public class PersonDataCache {
+
+	private static final Log log = LogFactory.getLog(PersonDataCache.class);
+
+	private static final String SPILL_FOLDER = "amrsreports_cache";
+
+	private static final String SPILL_SUFFIX = ".cache";
+
+	private static final ThreadLocal<Scope> current = new ThreadLocal<Scope>();
+
+	private static PersonDataCache instance = null;
+
+	private final File spillDirectory;
+
+	private int maxValues = 0;
+
+	private long maxSpillBytes = 0;
+
+	private String buildVersion = null;
+
+	// entries in memory, least recently used first, and their weight: one for each entry and each value it holds
+	private final LinkedHashMap<String, Map<Integer, Object>> memory =
+			new LinkedHashMap<String, Map<Integer, Object>>(16, 0.75f, true);
+
+	private long memoryWeight = 0;
+
+	// spilled entries by key with their files, least recently used first
+	private final LinkedHashMap<String, SpillFile> spilled = new LinkedHashMap<String, SpillFile>(16, 0.75f, true);
+
+	private long spilledBytes = 0;
+
+	// entries let go of from memory, waiting to be written to the spill directory once the lock is released
+	private final List<Map.Entry<String, Map<Integer, Object>>> pendingSpills =
+			new ArrayList<Map.Entry<String, Map<Integer, Object>>>();
+
+	// spill files no longer needed, waiting to be deleted once the lock is released
+	private final List<File> pendingDeletes = new ArrayList<File>();
+
+	// counts the times everything was dropped, so a file written meanwhile is not taken for a current entry
+	private long generation = 0;
+
+	// makes every spill file name unique, so a file being read or deleted is never written again
+	private final AtomicLong spillSequence = new AtomicLong();
+
+	private long hits = 0;
+
+	private long spillHits = 0;
+
+	private long misses = 0;
+
+	private long evictions = 0;
+
+	/**
+	 * the cache settings and build of the derived tables, read once for the report being evaluated on this thread
+	 * instead of for every column, and the records stamp of the cohort last evaluated.  A scope may be shared with
+	 * threads evaluating columns alongside this one, which then wait for a single stamp query.
+	 */
+	public static class Scope {
+
+		private final int maxValues;
+
+		private final long maxSpillBytes;
+
+		private final String buildVersion;
+
+		private Set<Integer> memberIds;
+
+		private String recordsStamp;
+
+		private Scope() {
+			this.maxValues = TableBuilderUtil.getIntegerGlobalProperty(AmrsReportsConstants.GP_REPORT_CACHE_SIZE, 0);
+			this.maxSpillBytes = 1024L * 1024L *
+					TableBuilderUtil.getIntegerGlobalProperty(AmrsReportsConstants.GP_REPORT_CACHE_SPILL_MEGABYTES, 0);
+			this.buildVersion = TableBuilderUtil.getTablesBuildVersion();
+		}
+
+		/**
+		 * @return whether anything is cached: the cache has room and the derived tables have been built
+		 */
+		public boolean isEnabled() {
+			return maxValues > 0 && buildVersion != null;
+		}
+
+		public int getMaxValues() {
+			return maxValues;
+		}
+
+		public long getMaxSpillBytes() {
+			return maxSpillBytes;
+		}
+
+		public String getBuildVersion() {
+			return buildVersion;
+		}
+
+		/**
+		 * @return the stamp of the obs, encounters and people of the context's cohort, queried once per cohort
+		 * @see org.openmrs.module.amrsreports.service.MohCoreService#getRecordsStamp(java.util.Set)
+		 */
+		public synchronized String getRecordsStamp(EvaluationContext context) {
+			Cohort cohort = context.getBaseCohort();
+			Set<Integer> ids = cohort == null ? null : cohort.getMemberIds();
+
+			if (recordsStamp == null || (ids == null ? memberIds != null : !ids.equals(memberIds))) {
+				recordsStamp = Context.getService(MohCoreService.class).getRecordsStamp(ids);
+				memberIds = ids == null ? null : new HashSet<Integer>(ids);
+			}
+
+			return recordsStamp;
+		}
+	}
+
+	/**
+	 * starts reading the cache settings and records stamps once for the columns evaluated on this thread
+	 */
+	public static void startScope() {
+		current.set(new Scope());
+	}
+
+	public static void endScope() {
+		current.remove();
+	}
+
+	/**
+	 * @return this thread's scope, or null, for sharing with threads evaluating columns of the same report
+	 */
+	public static Scope getCurrentScope() {
+		return current.get();
+	}
+
+	/**
+	 * joins another thread's scope, or leaves any scope if given null
+	 */
+	public static void setCurrentScope(Scope scope) {
+		if (scope == null)
+			current.remove();
+		else
+			current.set(scope);
+	}
+
+	/**
+	 * @return this thread's scope, or a scope for a single column evaluated outside any report
+	 */
+	public static Scope getScope() {
+		Scope scope = current.get();
+		return scope == null ? new Scope() : scope;
+	}
+
+	/**
+	 * @param spillDirectory where entries let go of are written, or null to never spill; files left there by an earlier
+	 *                       cache are removed
+	 */
+	PersonDataCache(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+
+		if (spillDirectory != null) {
+			File[] leftovers = spillDirectory.listFiles();
+			if (leftovers != null) {
+				for (File file : leftovers) {
+					if (file.getName().endsWith(SPILL_SUFFIX) && !file.delete())
+						log.warn("Could not delete cache file " + file.getAbsolutePath());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the cache shared by all reports, spilling into a folder of the application data directory
+	 */
+	public static synchronized PersonDataCache getInstance() {
+		if (instance == null)
+			instance = new PersonDataCache(OpenmrsUtil.getDirectoryInApplicationDataDirectory(SPILL_FOLDER));
+		return instance;
+	}
+
+	/**
+	 * builds the key for a definition evaluated in a context on a build of the derived tables and, for columns reading
+	 * obs, encounters or people, on the records of the cohort as they were when stamped
+	 *
+	 * @param recordsStamp the stamp of the cohort's records, or null for columns reading the derived tables alone
+	 * @should differ for another cohort, date or build
+	 * @should not depend on the order of the cohort
+	 * @should differ once the records of the cohort change
+	 */
+	public static String getKey(PersonDataDefinition definition, EvaluationContext context, String buildVersion,
+	                            String recordsStamp) {
+		StringBuilder key = new StringBuilder(getDefinitionKey(definition));
+
+		key.append("|").append(getFingerprint(context.getBaseCohort() == null ? null
+				: context.getBaseCohort().getMemberIds()));
+		key.append("|").append(context.getEvaluationDate() == null ? null : context.getEvaluationDate().getTime());
+		key.append("|").append(buildVersion);
+		key.append("|").append(recordsStamp);
+
+		return key.toString();
+	}
+
+	/**
+	 * describes a definition by its class and the values of its configuration, so two definitions share a description
+	 * only if they would be evaluated the same way
+	 *
+	 * @should differ for definitions of the same class configured differently
+	 */
+	public static String getDefinitionKey(PersonDataDefinition definition) {
+		StringBuilder key = new StringBuilder(definition.getClass().getName());
+
+		key.append("{");
+		for (Class<?> c = definition.getClass(); c != null && c != BaseDataDefinition.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers()))
+					continue;
+
+				field.setAccessible(true);
+				try {
+					key.append(field.getName()).append("=").append(field.get(definition)).append(";");
+				} catch (IllegalAccessException e) {
+					throw new IllegalStateException("Could not read " + field.getName(), e);
+				}
+			}
+		}
+		key.append("}");
+
+		return key.toString();
+	}
+
+	/**
+	 * sets how many values are kept in memory, 0 keeping none, and how many bytes of entries may be spilled, 0
+	 * spilling none
+	 */
+	public void setLimits(int maxValues, long maxSpillBytes) {
+		synchronized (this) {
+			this.maxValues = Math.max(0, maxValues);
+			this.maxSpillBytes = spillDirectory == null ? 0 : Math.max(0, maxSpillBytes);
+			trim();
+		}
+		writePending();
+	}
+
+	/**
+	 * finds the data kept for a key, from memory or else from the spill directory
+	 *
+	 * @return a copy of the data for the given definition and context, or null if none is kept
+	 * @should return a copy of the data put for the same key
+	 * @should read back entries spilled to disk
+	 * @should drop entries of an earlier build
+	 */
+	public EvaluatedPersonData get(String key, String buildVersion, PersonDataDefinition definition,
+	                               EvaluationContext context) {
+		try {
+			SpillFile file;
+			long readGeneration;
+
+			synchronized (this) {
+				changeBuild(buildVersion);
+
+				Map<Integer, Object> data = memory.get(key);
+				if (data != null) {
+					hits++;
+					return copy(data, definition, context);
+				}
+
+				file = spilled.remove(key);
+				if (file == null) {
+					misses++;
+					return null;
+				}
+
+				spilledBytes -= file.size;
+				readGeneration = generation;
+			}
+
+			Map<Integer, Object> data = unspill(file.file);
+
+			synchronized (this) {
+				if (data == null) {
+					misses++;
+					return null;
+				}
+
+				spillHits++;
+				if (readGeneration == generation && !memory.containsKey(key))
+					keep(key, data);
+			}
+
+			return copy(data, definition, context);
+		} finally {
+			writePending();
+		}
+	}
+
+	/**
+	 * keeps a copy of evaluated data under a key, if it fits
+	 */
+	public void put(String key, String buildVersion, EvaluatedPersonData data) {
+		Map<Integer, Object> copy = data == null ? null : new HashMap<Integer, Object>(data.getData());
+
+		synchronized (this) {
+			changeBuild(buildVersion);
+
+			if (copy != null && getWeight(copy) <= maxValues)
+				keep(key, copy);
+		}
+		writePending();
+	}
+
+	/**
+	 * drops everything kept
+	 */
+	public void clear() {
+		synchronized (this) {
+			dropAll();
+		}
+		writePending();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getSpillHits() {
+		return spillHits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the hit and miss counts and what is currently kept, for logging
+	 */
+	public synchronized String getStatistics() {
+		long lookups = hits + spillHits + misses;
+		return String.format("%d hits (%d from disk) and %d misses in %d lookups (%.1f%% hit rate), %d evictions;" +
+				" %d entries with %d values in memory, %d entries in %d bytes on disk",
+				hits + spillHits, spillHits, misses, lookups, lookups == 0 ? 0d : 100d * (hits + spillHits) / lookups,
+				evictions, memory.size(), memoryWeight - memory.size(), spilled.size(), spilledBytes);
+	}
+
+	private void changeBuild(String buildVersion) {
+		if (OpenmrsUtil.nullSafeEquals(this.buildVersion, buildVersion))
+			return;
+
+		if (this.buildVersion != null)
+			log.info("Derived tables were rebuilt, dropping cached person data");
+
+		dropAll();
+		this.buildVersion = buildVersion;
+	}
+
+	private void dropAll() {
+		memory.clear();
+		memoryWeight = 0;
+
+		for (SpillFile file : spilled.values()) {
+			pendingDeletes.add(file.file);
+		}
+		spilled.clear();
+		spilledBytes = 0;
+
+		pendingSpills.clear();
+		generation++;
+	}
+
+	private void keep(String key, Map<Integer, Object> data) {
+		Map<Integer, Object> replaced = memory.put(key, data);
+		if (replaced != null)
+			memoryWeight -= getWeight(replaced);
+		memoryWeight += getWeight(data);
+
+		SpillFile file = spilled.remove(key);
+		if (file != null) {
+			spilledBytes -= file.size;
+			pendingDeletes.add(file.file);
+		}
+
+		trim();
+	}
+
+	/**
+	 * lets go of the least recently used entries until memory is within its limit, queueing them to be spilled, and
+	 * of the least recently used spilled entries until the spill directory is within its limit
+	 */
+	private void trim() {
+		Iterator<Map.Entry<String, Map<Integer, Object>>> entries = memory.entrySet().iterator();
+		while (memoryWeight > maxValues && entries.hasNext()) {
+			Map.Entry<String, Map<Integer, Object>> eldest = entries.next();
+			entries.remove();
+			memoryWeight -= getWeight(eldest.getValue());
+			evictions++;
+
+			if (maxSpillBytes > 0)
+				pendingSpills.add(new AbstractMap.SimpleEntry<String, Map<Integer, Object>>(eldest));
+		}
+
+		Iterator<SpillFile> files = spilled.values().iterator();
+		while (spilledBytes > maxSpillBytes && files.hasNext()) {
+			SpillFile eldest = files.next();
+			files.remove();
+			spilledBytes -= eldest.size;
+			pendingDeletes.add(eldest.file);
+		}
+	}
+
+	/**
+	 * writes the entries let go of and deletes the files no longer needed, without holding the lock; an entry asked
+	 * for again while it is being written is simply evaluated again
+	 */
+	private void writePending() {
+		while (true) {
+			List<Map.Entry<String, Map<Integer, Object>>> spills;
+			List<File> deletes;
+			long writeGeneration;
+			long limit;
+
+			synchronized (this) {
+				if (pendingSpills.isEmpty() && pendingDeletes.isEmpty())
+					return;
+
+				spills = new ArrayList<Map.Entry<String, Map<Integer, Object>>>(pendingSpills);
+				pendingSpills.clear();
+				deletes = new ArrayList<File>(pendingDeletes);
+				pendingDeletes.clear();
+				writeGeneration = generation;
+				limit = maxSpillBytes;
+			}
+
+			for (File file : deletes) {
+				deleteSpillFile(file);
+			}
+
+			Map<String, SpillFile> written = new LinkedHashMap<String, SpillFile>();
+			for (Map.Entry<String, Map<Integer, Object>> entry : spills) {
+				SpillFile file = spill(entry.getKey(), entry.getValue(), limit);
+				if (file != null)
+					written.put(entry.getKey(), file);
+			}
+
+			synchronized (this) {
+				for (Map.Entry<String, SpillFile> entry : written.entrySet()) {
+					// while the file was written, the entry may have been kept again or everything dropped
+					if (writeGeneration != generation || memory.containsKey(entry.getKey())
+							|| spilled.containsKey(entry.getKey())) {
+						pendingDeletes.add(entry.getValue().file);
+					} else {
+						spilled.put(entry.getKey(), entry.getValue());
+						spilledBytes += entry.getValue().size;
+					}
+				}
+				trim();
+			}
+		}
+	}
+
+	/**
+	 * @return the file the data was written to, or null if it was not
+	 */
+	private SpillFile spill(String key, Map<Integer, Object> data, long limit) {
+		byte[] bytes;
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(buffer);
+			out.writeObject(data);
+			out.close();
+			bytes = buffer.toByteArray();
+		} catch (IOException e) {
+			log.debug("Could not serialize cached person data, not spilling it", e);
+			return null;
+		}
+
+		if (bytes.length > limit)
+			return null;
+
+		File file = getSpillFile(key);
+		OutputStream out = null;
+		boolean written = false;
+		try {
+			out = new FileOutputStream(file);
+			out.write(bytes);
+			written = true;
+		} catch (IOException e) {
+			log.warn("Could not spill cached person data to " + spillDirectory.getAbsolutePath(), e);
+		} finally {
+			closeQuietly(out);
+			if (!written)
+				deleteSpillFile(file);
+		}
+
+		return written ? new SpillFile(file, bytes.length) : null;
+	}
+
+	/**
+	 * reads a spilled entry back, deleting its file
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<Integer, Object> unspill(File file) {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			return (Map<Integer, Object>) new ObjectInputStream(in).readObject();
+		} catch (IOException e) {
+			log.warn("Could not read spilled person data", e);
+			return null;
+		} catch (ClassNotFoundException e) {
+			log.warn("Could not read spilled person data", e);
+			return null;
+		} finally {
+			closeQuietly(in);
+			deleteSpillFile(file);
+		}
+	}
+
+	/**
+	 * @return a new file for the key, named by a digest of the key and a sequence number
+	 */
+	private File getSpillFile(String key) {
+		MessageDigest digest = getDigest();
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			digest.update(new byte[]{(byte) (c >>> 8), (byte) c});
+		}
+		return new File(spillDirectory, toHex(digest.digest()) + "-" + spillSequence.incrementAndGet() + SPILL_SUFFIX);
+	}
+
+	private void deleteSpillFile(File file) {
+		if (file.exists() && !file.delete())
+			log.warn("Could not delete cache file " + file.getAbsolutePath());
+	}
+
+	private static EvaluatedPersonData copy(Map<Integer, Object> data, PersonDataDefinition definition,
+	                                        EvaluationContext context) {
+		EvaluatedPersonData copy = new EvaluatedPersonData(definition, context);
+		copy.setData(new HashMap<Integer, Object>(data));
+		return copy;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable == null)
+			return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			log.debug("Could not close cache file", e);
+		}
+	}
+
+	/**
+	 * @return a digest of the sorted member ids, or "everyone" for no cohort
+	 */
+	private static String getFingerprint(Set<Integer> memberIds) {
+		if (memberIds == null)
+			return "everyone";
+
+		Integer[] ids = memberIds.toArray(new Integer[memberIds.size()]);
+		Arrays.sort(ids);
+
+		MessageDigest digest = getDigest();
+		for (int id : ids) {
+			digest.update(new byte[]{(byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id});
+		}
+		return ids.length + ":" + toHex(digest.digest());
+	}
+
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (Exception e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+	/**
+	 * @return how much of the memory limit an entry takes, so even entries without values are bounded
+	 */
+	private static long getWeight(Map<Integer, Object> data) {
+		return data.size() + 1;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * a spilled entry's file and its size
+	 */
+	private static class SpillFile {
+
+		private final File file;
+
+		private final long size;
+
+		private SpillFile(File file, long size) {
+			this.file = file;
+			this.size = size;
+		}
+	}
+}
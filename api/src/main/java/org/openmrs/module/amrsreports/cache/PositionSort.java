@@ -0,0 +1,73 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.cache;
+
+/**
+ * Puts the positions of rows held in parallel primitive arrays in the order of their rows, with a merge sort over an
+ * int[] of positions, so sorting the rows does not box every position into an Integer.  The sort is stable.
+ */
+abstract class PositionSort {
+
+	/**
+	 * compares the rows at two positions
+	 */
+	protected abstract int compare(int a, int b);
+
+	/**
+	 * @return the positions 0 to size - 1, in the order of their rows
+	 */
+	public int[] sort(int size) {
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		return sort(order);
+	}
+
+	/**
+	 * @return the given positions in the order of their rows; the given array may be reused
+	 * @should order positions by their rows
+	 * @should keep positions of equal rows in their original order
+	 */
+	public int[] sort(int[] positions) {
+		int size = positions.length;
+		int[] order = positions;
+
+		// merge runs of doubling width, back and forth between the two arrays
+		int[] buffer = new int[size];
+		for (int width = 1; width < size; width *= 2) {
+			for (int from = 0; from < size; from += 2 * width) {
+				merge(order, buffer, from, Math.min(from + width, size), Math.min(from + 2 * width, size));
+			}
+
+			int[] merged = buffer;
+			buffer = order;
+			order = merged;
+		}
+
+		return order;
+	}
+
+	private void merge(int[] in, int[] out, int from, int middle, int to) {
+		int i = from;
+		int j = middle;
+		for (int k = from; k < to; k++) {
+			if (i < middle && (j >= to || compare(in[i], in[j]) <= 0))
+				out[k] = in[i++];
+			else
+				out[k] = in[j++];
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package org.openmrs.module.amrsreports.db;
+
+import org.openmrs.module.amrsreports.BuildCheckpoint;
+import org.openmrs.module.amrsreports.BuildHistory;
+
+import java.util.List;
+
+/**
+ * DAO for BuildHistory objects
+ */
+public interface BuildHistoryDAO {
+
+	public BuildHistory saveBuildHistory(BuildHistory buildHistory);
+
+	public List<String> getRecentBuildIds(Integer builds);
+
+	public List<BuildHistory> getBuildHistoryForBuilds(List<String> buildIds);
+
+	public BuildCheckpoint saveBuildCheckpoint(BuildCheckpoint buildCheckpoint);
+
+	public List<BuildCheckpoint> getBuildCheckpoints(String buildId);
+
+	public String getLastCheckpointedBuildId();
+}
@@ -18,6 +18,8 @@ import org.openmrs.Location;
 import org.openmrs.Obs;
 import org.openmrs.OpenmrsObject;
 import org.openmrs.api.db.DAOException;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
+import org.openmrs.module.amrsreports.cache.PatientDates;
 import org.openmrs.module.amrsreports.model.WHOStageAndDate;
 import org.openmrs.module.amrsreports.util.MohFetchRestriction;
 
@@ -56,4 +58,12 @@ public interface MohCoreDAO {
 	public Map<Integer, Date> getEnrollmentDateMap(Set<Integer> cohort);
 
 	public Map<Integer, WHOStageAndDate> getWHOStageAndDateMap(Set<Integer> cohort);
+
+	public ObsIndex getObsIndex(Set<Integer> cohort, Collection<Integer> conceptIds, Date onOrBefore);
+
+	public PatientDates getPatientDates(String sql, Set<Integer> cohort, Map<String, Object> parameters);
+
+	public List<Encounter> getCohortEncounters(String sql, Set<Integer> cohort, Map<String, Object> parameters);
+
+	public String getRecordsStamp(Set<Integer> cohort);
 }
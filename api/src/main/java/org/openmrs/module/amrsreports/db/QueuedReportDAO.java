@@ -14,6 +14,14 @@ public interface QueuedReportDAO {
 
 	public QueuedReport getNextQueuedReport(Date date);
 
+	public List<QueuedReport> getClaimableQueuedReports(Date date);
+
+	public List<QueuedReport> getLeasedQueuedReports(Date date);
+
+	public QueuedReport claimQueuedReport(Integer queuedReportId, Date date, String leaseOwner, Date leaseExpiry);
+
+	public int renewLeases(String leaseOwner, Date leaseExpiry);
+
 	public void purgeQueuedReport(QueuedReport queuedReport);
 
 	public List<QueuedReport> getAllQueuedReports();
@@ -21,4 +29,21 @@ public interface QueuedReportDAO {
 	public List<QueuedReport> getQueuedReportsWithStatus(String status);
 
 	public QueuedReport getQueuedReport(Integer reportId);
+
+	public List<QueuedReport> getCompletedQueuedReports(String contentKey);
+
+	public void updateProgress(Integer queuedReportId, Date dateStarted, Date dateCompleted, Integer patientCount,
+	                           String phase, Integer step, Integer steps, Date estimatedCompletion);
+
+	public List<QueuedReport> getRecentTimedQueuedReports(String reportName, Integer max);
+
+	public boolean cancelNewQueuedReport(Integer queuedReportId);
+
+	public boolean requestCancellation(Integer queuedReportId);
+
+	public List<Integer> getCancelRequestedQueuedReportIds(String leaseOwner);
+
+	public int cancelAbandonedQueuedReports(Date date);
+
+	public Long getDatabaseConnectionId();
 }
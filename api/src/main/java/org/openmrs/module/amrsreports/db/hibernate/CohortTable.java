@@ -0,0 +1,187 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License Version
+ * 1.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * Copyright (C) OpenMRS, LLC. All Rights Reserved.
+ */
+package org.openmrs.module.amrsreports.db.hibernate;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.openmrs.api.db.DAOException;
+
+import java.security.MessageDigest;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes a cohort into a temporary table on the session's connection, so native queries can join against it instead
+ * of carrying every member id in an IN list.  Queries name the cohort with {@link #TOKEN}, used as a table with a
+ * person_id column, for example:
+ * <pre>select o.person_id, o.obs_datetime from obs o join {cohort} cohort on cohort.person_id = o.person_id</pre>
+ * The token is replaced before the query reaches Hibernate.
+ * <p/>
+ * A second temporary table holds a key for the cohort in the first, so the same cohort is only written once per
+ * connection no matter how many columns query it.  Temporary tables belong to the connection, so they are checked
+ * and written in the same transaction as the queries that read them.  Where temporary tables cannot be created, the
+ * query is instead expanded once per bounded chunk of member ids, and callers run each chunk in turn; creating
+ * them is tried again once {@link #RETRY_INTERVAL} has passed.
+ */
+class CohortTable {
+
+	private static final Log log = LogFactory.getLog(CohortTable.class);
+
+	/**
+	 * stands for the cohort in native SQL
+	 */
+	static final String TOKEN = "{cohort}";
+
+	/**
+	 * the most member ids written into a single statement
+	 */
+	static final int CHUNK_SIZE = 1000;
+
+	private static final String MEMBER_TABLE = "amrsreports_cohort_member";
+
+	private static final String KEY_TABLE = "amrsreports_cohort_key";
+
+	/**
+	 * how long after failing to create the temporary tables queries go straight to chunks before trying again
+	 */
+	static final long RETRY_INTERVAL = 10 * 60 * 1000;
+
+	// when to next try creating the temporary tables, after a failure
+	static volatile long unavailableUntil = 0;
+
+	/**
+	 * expands a query naming the cohort with {@link #TOKEN} into the queries to run for it: one joining the temporary
+	 * table, or one per chunk of member ids if the table cannot be used.  A null cohort stands for everyone.
+	 *
+	 * @param session the session the queries will run in
+	 * @param sql     native SQL using {@link #TOKEN} as a table with a person_id column
+	 * @param cohort  the member ids, or null for everyone
+	 * @return the queries to run, none for an empty cohort
+	 * @should stand for everyone with a null cohort
+	 * @should return no queries for an empty cohort
+	 * @should join the temporary table and write each cohort only once
+	 * @should query in chunks until the retry interval passes when the temporary tables cannot be created
+	 */
+	static List<String> expand(Session session, String sql, Set<Integer> cohort) {
+		if (cohort == null)
+			return Collections.singletonList(sql.replace(TOKEN, "person"));
+
+		if (cohort.isEmpty())
+			return Collections.emptyList();
+
+		Integer[] ids = cohort.toArray(new Integer[cohort.size()]);
+		Arrays.sort(ids);
+
+		if (load(session, ids))
+			return Collections.singletonList(sql.replace(TOKEN, MEMBER_TABLE));
+
+		List<String> queries = new ArrayList<String>();
+		for (int start = 0; start < ids.length; start += CHUNK_SIZE) {
+			List<Integer> chunk = Arrays.asList(ids).subList(start, Math.min(start + CHUNK_SIZE, ids.length));
+			queries.add(sql.replace(TOKEN, "(select " + StringUtils.join(chunk, " as person_id union all select ") +
+					" as person_id)"));
+		}
+		return queries;
+	}
+
+	/**
+	 * makes sure the temporary table holds exactly the given ids, writing them only if it holds some other cohort.
+	 * This goes straight through the session's connection, as a native update through Hibernate would clear the whole
+	 * second level cache.
+	 *
+	 * @return false if temporary tables cannot be used on this database
+	 */
+	private static boolean load(Session session, Integer[] ids) {
+		if (System.currentTimeMillis() < unavailableUntil)
+			return false;
+
+		String key = getKey(ids);
+
+		Statement statement = null;
+		try {
+			statement = session.connection().createStatement();
+
+			try {
+				statement.executeUpdate("create temporary table if not exists " + MEMBER_TABLE +
+						" (person_id int not null primary key) engine=memory");
+				statement.executeUpdate("create temporary table if not exists " + KEY_TABLE +
+						" (cohort_key varchar(64) not null) engine=memory");
+			} catch (SQLException e) {
+				log.warn("could not create temporary tables, querying cohorts in chunks for a while instead", e);
+				unavailableUntil = System.currentTimeMillis() + RETRY_INTERVAL;
+				return false;
+			}
+
+			ResultSet rs = statement.executeQuery("select cohort_key from " + KEY_TABLE);
+			String current = rs.next() ? rs.getString(1) : null;
+			rs.close();
+
+			if (key.equals(current))
+				return true;
+
+			statement.executeUpdate("delete from " + KEY_TABLE);
+			statement.executeUpdate("delete from " + MEMBER_TABLE);
+
+			for (int start = 0; start < ids.length; start += CHUNK_SIZE) {
+				List<Integer> chunk = Arrays.asList(ids).subList(start, Math.min(start + CHUNK_SIZE, ids.length));
+				statement.executeUpdate("insert into " + MEMBER_TABLE + " (person_id) values (" +
+						StringUtils.join(chunk, "),(") + ")");
+			}
+
+			// written last, so a cohort only partly written is never taken for a complete one
+			statement.executeUpdate("insert into " + KEY_TABLE + " (cohort_key) values ('" + key + "')");
+
+			return true;
+		} catch (SQLException e) {
+			throw new DAOException("could not write the cohort to a temporary table", e);
+		} finally {
+			if (statement != null) {
+				try {
+					statement.close();
+				} catch (SQLException e) {
+					log.warn("could not close statement", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a key for a sorted list of ids, from its size and a digest of its members
+	 * @should tell apart cohorts of the same size and sum
+	 */
+	static String getKey(Integer[] ids) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (Exception e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+
+		for (int id : ids) {
+			digest.update(new byte[]{(byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id});
+		}
+
+		StringBuilder key = new StringBuilder().append(ids.length).append(":");
+		for (byte b : digest.digest()) {
+			key.append(String.format("%02x", b));
+		}
+		return key.toString();
+	}
+}
@@ -0,0 +1,70 @@
+package org.openmrs.module.amrsreports.db.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.openmrs.module.amrsreports.BuildCheckpoint;
+import org.openmrs.module.amrsreports.BuildHistory;
+import org.openmrs.module.amrsreports.db.BuildHistoryDAO;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hibernate implementation of the BuildHistoryDAO
+ */
+public class HibernateBuildHistoryDAO implements BuildHistoryDAO {
+
+	private SessionFactory sessionFactory;
+
+	public void setSessionFactory(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+
+	@Override
+	public BuildHistory saveBuildHistory(BuildHistory buildHistory) {
+		sessionFactory.getCurrentSession().saveOrUpdate(buildHistory);
+		return buildHistory;
+	}
+
+	@Override
+	public List<String> getRecentBuildIds(Integer builds) {
+		return sessionFactory.getCurrentSession()
+				.createQuery("select b.buildId from BuildHistory b group by b.buildId order by max(b.dateStarted) desc")
+				.setMaxResults(builds)
+				.list();
+	}
+
+	@Override
+	public List<BuildHistory> getBuildHistoryForBuilds(List<String> buildIds) {
+		if (buildIds == null || buildIds.isEmpty())
+			return new ArrayList<BuildHistory>();
+
+		return sessionFactory.getCurrentSession().createCriteria(BuildHistory.class)
+				.add(Restrictions.in("buildId", buildIds))
+				.addOrder(Order.asc("dateStarted"))
+				.list();
+	}
+
+	@Override
+	public BuildCheckpoint saveBuildCheckpoint(BuildCheckpoint buildCheckpoint) {
+		sessionFactory.getCurrentSession().saveOrUpdate(buildCheckpoint);
+		return buildCheckpoint;
+	}
+
+	@Override
+	public List<BuildCheckpoint> getBuildCheckpoints(String buildId) {
+		return sessionFactory.getCurrentSession().createCriteria(BuildCheckpoint.class)
+				.add(Restrictions.eq("buildId", buildId))
+				.addOrder(Order.asc("dateCompleted"))
+				.list();
+	}
+
+	@Override
+	public String getLastCheckpointedBuildId() {
+		return (String) sessionFactory.getCurrentSession()
+				.createQuery("select c.buildId from BuildCheckpoint c order by c.dateCompleted desc, c.id desc")
+				.setMaxResults(1)
+				.uniqueResult();
+	}
+}
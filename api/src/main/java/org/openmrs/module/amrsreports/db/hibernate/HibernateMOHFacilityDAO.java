@@ -1,6 +1,5 @@
 package org.openmrs.module.amrsreports.db.hibernate;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
@@ -117,18 +116,22 @@ public class HibernateMOHFacilityDAO implements MOHFacilityDAO {
 			return new Cohort();
 
 		String sql = "select p.person_id" +
-				" from person p left join patient_identifier pi" +
+				" from person p" +
+				"   join " + CohortTable.TOKEN + " cohort on cohort.person_id = p.person_id" +
+				"   left join patient_identifier pi" +
 				"   on pi.patient_id = p.person_id" +
 				"     and pi.identifier_type = " + pit.getPatientIdentifierTypeId() +
 				"     and pi.voided = 0" +
 				" where" +
-				"   p.person_id in (" + StringUtils.join(c.getMemberIds(), ",") +
-				")" +
-				"	and pi.uuid is null";
+				"	pi.uuid is null";
 
-		SQLQuery q = sessionFactory.getCurrentSession().createSQLQuery(sql);
+		List<Integer> missing = new ArrayList<Integer>();
+		for (String expanded : CohortTable.expand(sessionFactory.getCurrentSession(), sql, c.getMemberIds())) {
+			SQLQuery q = sessionFactory.getCurrentSession().createSQLQuery(expanded);
+			missing.addAll(q.list());
+		}
 
-		return new Cohort(q.list());
+		return new Cohort(missing);
 	}
 
 	@Override
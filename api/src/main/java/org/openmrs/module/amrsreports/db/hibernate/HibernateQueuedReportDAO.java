@@ -1,8 +1,11 @@
 package org.openmrs.module.amrsreports.db.hibernate;
 
 import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
 import org.openmrs.module.amrsreports.QueuedReport;
 import org.openmrs.module.amrsreports.db.QueuedReportDAO;
@@ -15,6 +18,45 @@ import java.util.List;
  */
 public class HibernateQueuedReportDAO implements QueuedReportDAO {
 
+	private static final String QUERY_CLAIM =
+			"update QueuedReport q" +
+					" set q.status = :running, q.leaseOwner = :owner, q.leaseExpiry = :expiry, q.version = q.version + 1" +
+					" where q.id = :id" +
+					"   and q.dateScheduled <= :date" +
+					"   and (q.status = :new" +
+					"     or (q.status = :running and q.cancelRequested = :notCancelled" +
+					"       and (q.leaseExpiry is null or q.leaseExpiry < :date)))";
+
+	private static final String QUERY_RENEW =
+			"update QueuedReport q" +
+					" set q.leaseExpiry = :expiry" +
+					" where q.leaseOwner = :owner and q.status = :running";
+
+	private static final String QUERY_CANCEL_NEW =
+			"update QueuedReport q" +
+					" set q.status = :cancelled, q.version = q.version + 1" +
+					" where q.id = :id and q.status = :new";
+
+	// leaves the version alone, so the server running the report can still save it
+	private static final String QUERY_REQUEST_CANCELLATION =
+			"update QueuedReport q" +
+					" set q.cancelRequested = :cancelRequested" +
+					" where q.id = :id and q.status = :running";
+
+	// reports whose server went away after cancellation was requested are not run again
+	private static final String QUERY_CANCEL_ABANDONED =
+			"update QueuedReport q" +
+					" set q.status = :cancelled, q.version = q.version + 1" +
+					" where q.cancelRequested = :cancelRequested and q.status = :running and q.leaseExpiry < :date";
+
+	// leaves the version alone, so progress can be written while the report itself is being processed
+	private static final String QUERY_PROGRESS =
+			"update QueuedReport q" +
+					" set q.dateStarted = :started, q.dateCompleted = :completed, q.patientCount = :patients," +
+					"   q.progressPhase = :phase, q.progressStep = :step, q.progressSteps = :steps," +
+					"   q.estimatedCompletion = :eta" +
+					" where q.id = :id";
+
 	private SessionFactory sessionFactory;
 
 	public void setSessionFactory(SessionFactory sessionFactory) {
@@ -39,6 +81,74 @@ public class HibernateQueuedReportDAO implements QueuedReportDAO {
 		return (QueuedReport) c.uniqueResult();
 	}
 
+	@Override
+	public List<QueuedReport> getClaimableQueuedReports(Date date) {
+		return sessionFactory.getCurrentSession().createCriteria(QueuedReport.class)
+				.add(Restrictions.le("dateScheduled", date))
+				.add(Restrictions.or(
+						Restrictions.eq("status", QueuedReport.STATUS_NEW),
+						Restrictions.and(
+								Restrictions.and(
+										Restrictions.eq("status", QueuedReport.STATUS_RUNNING),
+										Restrictions.eq("cancelRequested", false)),
+								Restrictions.or(Restrictions.isNull("leaseExpiry"), Restrictions.lt("leaseExpiry", date)))))
+				.addOrder(Order.asc("dateScheduled"))
+				.list();
+	}
+
+	@Override
+	public List<QueuedReport> getLeasedQueuedReports(Date date) {
+		return sessionFactory.getCurrentSession().createCriteria(QueuedReport.class)
+				.add(Restrictions.eq("status", QueuedReport.STATUS_RUNNING))
+				.add(Restrictions.ge("leaseExpiry", date))
+				.list();
+	}
+
+	/**
+	 * the update only matches the row if it is still claimable when the database gets to it, so the claim succeeds for
+	 * exactly one server or thread
+	 *
+	 * @should claim a report for only one owner
+	 * @should claim a running report whose lease has expired
+	 * @should not claim a running report whose lease has not expired
+	 * @should not claim a running report with a cancellation request
+	 */
+	@Override
+	public QueuedReport claimQueuedReport(Integer queuedReportId, Date date, String leaseOwner, Date leaseExpiry) {
+		Session session = sessionFactory.getCurrentSession();
+
+		int claimed = session.createQuery(QUERY_CLAIM)
+				.setString("running", QueuedReport.STATUS_RUNNING)
+				.setString("new", QueuedReport.STATUS_NEW)
+				.setBoolean("notCancelled", false)
+				.setString("owner", leaseOwner)
+				.setTimestamp("expiry", leaseExpiry)
+				.setTimestamp("date", date)
+				.setInteger("id", queuedReportId)
+				.executeUpdate();
+
+		if (claimed != 1)
+			return null;
+
+		// the update bypassed the session, so reload the report from the database
+		QueuedReport queuedReport = (QueuedReport) session.get(QueuedReport.class, queuedReportId);
+		session.refresh(queuedReport);
+		return queuedReport;
+	}
+
+	/**
+	 * @should renew only the leases of running reports held by the owner
+	 * @should not renew a lease another owner has claimed since the heartbeat was lost
+	 */
+	@Override
+	public int renewLeases(String leaseOwner, Date leaseExpiry) {
+		return sessionFactory.getCurrentSession().createQuery(QUERY_RENEW)
+				.setTimestamp("expiry", leaseExpiry)
+				.setString("owner", leaseOwner)
+				.setString("running", QueuedReport.STATUS_RUNNING)
+				.executeUpdate();
+	}
+
 	@Override
 	public void purgeQueuedReport(QueuedReport queuedReport) {
 		sessionFactory.getCurrentSession().delete(queuedReport);
@@ -63,4 +173,92 @@ public class HibernateQueuedReportDAO implements QueuedReportDAO {
 	public QueuedReport getQueuedReport(Integer reportId) {
 		return (QueuedReport) sessionFactory.getCurrentSession().get(QueuedReport.class, reportId);
 	}
+
+	@Override
+	public List<QueuedReport> getCompletedQueuedReports(String contentKey) {
+		return sessionFactory.getCurrentSession().createCriteria(QueuedReport.class)
+				.add(Restrictions.eq("status", QueuedReport.STATUS_COMPLETE))
+				.add(Restrictions.eq("contentKey", contentKey))
+				.addOrder(Order.desc("id"))
+				.list();
+	}
+
+	@Override
+	public void updateProgress(Integer queuedReportId, Date dateStarted, Date dateCompleted, Integer patientCount,
+	                           String phase, Integer step, Integer steps, Date estimatedCompletion) {
+		sessionFactory.getCurrentSession().createQuery(QUERY_PROGRESS)
+				.setTimestamp("started", dateStarted)
+				.setTimestamp("completed", dateCompleted)
+				.setParameter("patients", patientCount, Hibernate.INTEGER)
+				.setString("phase", phase)
+				.setParameter("step", step, Hibernate.INTEGER)
+				.setParameter("steps", steps, Hibernate.INTEGER)
+				.setTimestamp("eta", estimatedCompletion)
+				.setInteger("id", queuedReportId)
+				.executeUpdate();
+	}
+
+	@Override
+	public List<QueuedReport> getRecentTimedQueuedReports(String reportName, Integer max) {
+		return sessionFactory.getCurrentSession().createCriteria(QueuedReport.class)
+				.add(Restrictions.eq("status", QueuedReport.STATUS_COMPLETE))
+				.add(Restrictions.eq("reportName", reportName))
+				.add(Restrictions.isNotNull("dateStarted"))
+				.add(Restrictions.isNotNull("dateCompleted"))
+				.add(Restrictions.gt("patientCount", 0))
+				.addOrder(Order.desc("dateCompleted"))
+				.setMaxResults(max)
+				.list();
+	}
+
+	@Override
+	public boolean cancelNewQueuedReport(Integer queuedReportId) {
+		return sessionFactory.getCurrentSession().createQuery(QUERY_CANCEL_NEW)
+				.setString("cancelled", QueuedReport.STATUS_CANCELLED)
+				.setString("new", QueuedReport.STATUS_NEW)
+				.setInteger("id", queuedReportId)
+				.executeUpdate() == 1;
+	}
+
+	@Override
+	public boolean requestCancellation(Integer queuedReportId) {
+		return sessionFactory.getCurrentSession().createQuery(QUERY_REQUEST_CANCELLATION)
+				.setBoolean("cancelRequested", true)
+				.setString("running", QueuedReport.STATUS_RUNNING)
+				.setInteger("id", queuedReportId)
+				.executeUpdate() == 1;
+	}
+
+	@Override
+	public List<Integer> getCancelRequestedQueuedReportIds(String leaseOwner) {
+		return sessionFactory.getCurrentSession().createCriteria(QueuedReport.class)
+				.add(Restrictions.eq("status", QueuedReport.STATUS_RUNNING))
+				.add(Restrictions.eq("cancelRequested", true))
+				.add(Restrictions.eq("leaseOwner", leaseOwner))
+				.setProjection(Projections.id())
+				.list();
+	}
+
+	/**
+	 * @should cancel running reports with a cancellation request whose lease has expired
+	 * @should not cancel reports whose lease is still being renewed
+	 */
+	@Override
+	public int cancelAbandonedQueuedReports(Date date) {
+		return sessionFactory.getCurrentSession().createQuery(QUERY_CANCEL_ABANDONED)
+				.setString("cancelled", QueuedReport.STATUS_CANCELLED)
+				.setBoolean("cancelRequested", true)
+				.setString("running", QueuedReport.STATUS_RUNNING)
+				.setTimestamp("date", date)
+				.executeUpdate();
+	}
+
+	/**
+	 * @return the MySQL id of the connection the current session runs its queries on
+	 */
+	@Override
+	public Long getDatabaseConnectionId() {
+		Object id = sessionFactory.getCurrentSession().createSQLQuery("select connection_id()").uniqueResult();
+		return id == null ? null : ((Number) id).longValue();
+	}
 }
@@ -17,12 +17,17 @@ import org.apache.commons.lang.time.DateUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
+import org.hibernate.Query;
 import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.SessionFactoryImplementor;
 import org.openmrs.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.Encounter;
@@ -30,11 +35,13 @@ import org.openmrs.Location;
 import org.openmrs.Obs;
 import org.openmrs.OpenmrsObject;
 import org.openmrs.api.db.DAOException;
-import org.openmrs.module.amrsreports.HIVCareEnrollment;
 import org.openmrs.module.amrsreports.cache.MohCacheUtils;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
+import org.openmrs.module.amrsreports.cache.PatientDates;
 import org.openmrs.module.amrsreports.db.MohCoreDAO;
 import org.openmrs.module.amrsreports.model.WHOStageAndDate;
 import org.openmrs.module.amrsreports.rule.MohEvaluableNameConstants;
+import org.openmrs.module.amrsreports.util.CancellationToken;
 import org.openmrs.module.amrsreports.util.MohFetchOrdering;
 import org.openmrs.module.amrsreports.util.MohFetchRestriction;
 import org.openmrs.util.OpenmrsUtil;
@@ -53,6 +60,25 @@ import java.util.Set;
  */
 public class MohHibernateCoreDAO implements MohCoreDAO {
 
+	// rows read from a streamed query between checks for cancellation
+	private static final int CANCELLATION_ROWS = 10000;
+
+	// rows fetched at a time from a scroll on databases that cannot stream them
+	private static final int STREAMING_FETCH_SIZE = 1000;
+
+	// counts and latest changes of the obs, encounters and people of a cohort; obs are never edited, only voided
+	private static final String[] RECORDS_STAMP_QUERIES = {
+			"select count(*), max(o.date_created), max(o.date_voided)" +
+					" from obs o" +
+					"   join " + CohortTable.TOKEN + " cohort on cohort.person_id = o.person_id",
+			"select count(*), max(e.date_created), max(e.date_changed), max(e.date_voided)" +
+					" from encounter e" +
+					"   join " + CohortTable.TOKEN + " cohort on cohort.person_id = e.patient_id",
+			"select count(*), max(p.date_created), max(p.date_changed), max(p.date_voided)" +
+					" from person p" +
+					"   join " + CohortTable.TOKEN + " cohort on cohort.person_id = p.person_id"
+	};
+
 	private Log log = LogFactory.getLog(MohHibernateCoreDAO.class);
 	private SessionFactory sessionFactory;
 
@@ -342,14 +368,22 @@ public class MohHibernateCoreDAO implements MohCoreDAO {
 	@Override
 	public Map<Integer, Date> getEnrollmentDateMap(Set<Integer> cohort) {
 		Map<Integer, Date> ret = new LinkedHashMap<Integer, Date>();
-		if (cohort != null && cohort.size() > 0) {
-			Criteria crit = sessionFactory.getCurrentSession().createCriteria(HIVCareEnrollment.class)
-					.add(Restrictions.in("patient.personId", cohort))
-					.setProjection(Projections.projectionList()
-							.add(Projections.property("patient.personId"))
-							.add(Projections.property("enrollmentDate")));
-
-			Iterator<Object[]> it = crit.list().iterator();
+		if (cohort == null || cohort.isEmpty())
+			return ret;
+
+		String sql = "select e.patient_id, e.enrollment_date" +
+				" from amrsreports_hiv_care_enrollment e" +
+				"   join " + CohortTable.TOKEN + " cohort on cohort.person_id = e.patient_id";
+
+		Session session = sessionFactory.getCurrentSession();
+		for (String expanded : CohortTable.expand(session, sql, cohort)) {
+			CancellationToken.checkCurrent();
+
+			Query query = session.createSQLQuery(expanded)
+					.addScalar("patient_id", Hibernate.INTEGER)
+					.addScalar("enrollment_date", Hibernate.DATE);
+
+			Iterator<Object[]> it = query.list().iterator();
 			while (it.hasNext()) {
 				Object[] row = it.next();
 				ret.put((Integer) row[0], (Date) row[1]);
@@ -360,20 +394,183 @@ public class MohHibernateCoreDAO implements MohCoreDAO {
 
 	@Override
 	public Map<Integer, WHOStageAndDate> getWHOStageAndDateMap(Set<Integer> cohort) {
-		Criteria crit = sessionFactory.getCurrentSession().createCriteria(HIVCareEnrollment.class)
-				.add(Restrictions.in("patient.personId", cohort))
-				.setProjection(Projections.projectionList()
-						.add(Projections.property("patient.personId"))
-						.add(Projections.property("lastWHOStage"))
-						.add(Projections.property("lastWHOStageDate")));
+		String sql = "select e.patient_id, e.last_who_stage, e.last_who_stage_date" +
+				" from amrsreports_hiv_care_enrollment e" +
+				"   join " + CohortTable.TOKEN + " cohort on cohort.person_id = e.patient_id";
 
 		Map<Integer, WHOStageAndDate> ret = new LinkedHashMap<Integer, WHOStageAndDate>();
-		Iterator<Object[]> it = crit.list().iterator();
-		while (it.hasNext()) {
-			Object[] row = it.next();
-			ret.put((Integer) row[0], new WHOStageAndDate((String) row[1], (Date) row[2]));
+		Session session = sessionFactory.getCurrentSession();
+		for (String expanded : CohortTable.expand(session, sql, cohort)) {
+			CancellationToken.checkCurrent();
+
+			Query query = session.createSQLQuery(expanded)
+					.addScalar("patient_id", Hibernate.INTEGER)
+					.addScalar("last_who_stage", Hibernate.STRING)
+					.addScalar("last_who_stage_date", Hibernate.DATE);
+
+			Iterator<Object[]> it = query.list().iterator();
+			while (it.hasNext()) {
+				Object[] row = it.next();
+				ret.put((Integer) row[0], new WHOStageAndDate((String) row[1], (Date) row[2]));
+			}
 		}
 		return ret;
 	}
 
+	@Override
+	public ObsIndex getObsIndex(Set<Integer> cohort, Collection<Integer> conceptIds, Date onOrBefore) {
+		ObsIndex index = new ObsIndex();
+		if (conceptIds == null || conceptIds.isEmpty())
+			return index;
+
+		String sql = "select o.obs_id, o.person_id, o.concept_id, o.obs_datetime, o.value_coded," +
+				"   o.value_numeric, o.value_datetime, e.encounter_type" +
+				" from obs o" +
+				"   join " + CohortTable.TOKEN + " cohort on cohort.person_id = o.person_id" +
+				"   left join encounter e on e.encounter_id = o.encounter_id" +
+				" where o.voided = 0" +
+				"   and o.concept_id in (:conceptIds)" +
+				"   and o.obs_datetime <= :onOrBefore" +
+				" order by o.person_id, o.concept_id, o.obs_datetime, o.obs_id";
+
+		Session session = sessionFactory.getCurrentSession();
+		for (String expanded : CohortTable.expand(session, sql, cohort)) {
+			CancellationToken.checkCurrent();
+
+			Query query = session.createSQLQuery(expanded)
+					.addScalar("obs_id", Hibernate.INTEGER)
+					.addScalar("person_id", Hibernate.INTEGER)
+					.addScalar("concept_id", Hibernate.INTEGER)
+					.addScalar("obs_datetime", Hibernate.TIMESTAMP)
+					.addScalar("value_coded", Hibernate.INTEGER)
+					.addScalar("value_numeric", Hibernate.DOUBLE)
+					.addScalar("value_datetime", Hibernate.TIMESTAMP)
+					.addScalar("encounter_type", Hibernate.INTEGER)
+					.setParameterList("conceptIds", conceptIds)
+					.setTimestamp("onOrBefore", onOrBefore)
+					.setFetchSize(getStreamingFetchSize());
+
+			ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				int rows = 0;
+				while (results.next()) {
+					if (++rows % CANCELLATION_ROWS == 0)
+						CancellationToken.checkCurrent();
+
+					index.add(results.getInteger(0), results.getInteger(1), results.getInteger(2), results.getDate(3),
+							results.getInteger(4), results.getDouble(5), results.getDate(6), results.getInteger(7));
+				}
+			} finally {
+				results.close();
+			}
+		}
+
+		return index;
+	}
+
+	@Override
+	public PatientDates getPatientDates(String sql, Set<Integer> cohort, Map<String, Object> parameters) {
+		PatientDates dates = new PatientDates();
+
+		Session session = sessionFactory.getCurrentSession();
+		for (String expanded : CohortTable.expand(session, sql, cohort)) {
+			CancellationToken.checkCurrent();
+
+			Query query = session.createSQLQuery(expanded)
+					.setFetchSize(getStreamingFetchSize());
+			setParameters(query, parameters);
+
+			ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				int rows = 0;
+				while (results.next()) {
+					if (++rows % CANCELLATION_ROWS == 0)
+						CancellationToken.checkCurrent();
+
+					dates.add(((Number) results.get(0)).intValue(), (Date) results.get(1));
+				}
+			} finally {
+				results.close();
+			}
+		}
+
+		return dates;
+	}
+
+	@Override
+	public List<Encounter> getCohortEncounters(String sql, Set<Integer> cohort, Map<String, Object> parameters) {
+		List<Encounter> encounters = new ArrayList<Encounter>();
+
+		Session session = sessionFactory.getCurrentSession();
+		for (String expanded : CohortTable.expand(session, sql, cohort)) {
+			CancellationToken.checkCurrent();
+
+			Query query = session.createSQLQuery(expanded).addEntity("e", Encounter.class);
+			setParameters(query, parameters);
+			encounters.addAll(query.list());
+		}
+
+		return encounters;
+	}
+
+	@Override
+	public String getRecordsStamp(Set<Integer> cohort) {
+		StringBuilder stamp = new StringBuilder();
+
+		Session session = sessionFactory.getCurrentSession();
+		for (String sql : RECORDS_STAMP_QUERIES) {
+			long records = 0;
+			long[] latest = null;
+
+			for (String expanded : CohortTable.expand(session, sql, cohort)) {
+				CancellationToken.checkCurrent();
+
+				Object[] row = (Object[]) session.createSQLQuery(expanded).uniqueResult();
+				if (latest == null)
+					latest = new long[row.length - 1];
+
+				records += ((Number) row[0]).longValue();
+				for (int i = 1; i < row.length; i++) {
+					if (row[i] != null)
+						latest[i - 1] = Math.max(latest[i - 1], ((Date) row[i]).getTime());
+				}
+			}
+
+			stamp.append(records);
+			if (latest != null) {
+				for (long time : latest) {
+					stamp.append(",").append(time);
+				}
+			}
+			stamp.append(";");
+		}
+
+		return stamp.toString();
+	}
+
+	/**
+	 * @return the fetch size that lets MySQL stream the rows of a scroll instead of holding them all in the driver;
+	 *         other databases, such as the one the tests run on, reject it and are given an ordinary fetch size
+	 */
+	private int getStreamingFetchSize() {
+		if (((SessionFactoryImplementor) sessionFactory).getDialect() instanceof MySQLDialect)
+			return Integer.MIN_VALUE;
+		return STREAMING_FETCH_SIZE;
+	}
+
+	/**
+	 * binds named parameters to a query, binding collections as lists
+	 */
+	private void setParameters(Query query, Map<String, Object> parameters) {
+		if (parameters == null)
+			return;
+
+		for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+			if (parameter.getValue() instanceof Collection)
+				query.setParameterList(parameter.getKey(), (Collection) parameter.getValue());
+			else
+				query.setParameter(parameter.getKey(), parameter.getValue());
+		}
+	}
+
 }
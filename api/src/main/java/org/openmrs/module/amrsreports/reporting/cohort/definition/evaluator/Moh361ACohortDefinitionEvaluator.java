@@ -24,7 +24,6 @@ import java.util.List;
 @Handler(supports = {Moh361ACohortDefinition.class})
 public class Moh361ACohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 
-	private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
 	private final Log log = LogFactory.getLog(this.getClass());
 
 	@Override
@@ -35,7 +34,7 @@ public class Moh361ACohortDefinitionEvaluator implements CohortDefinitionEvaluat
 		if (definition == null)
 			return null;
 
-		String reportDate = sdf.format(context.getEvaluationDate());
+		String reportDate = new SimpleDateFormat("yyyy-MM-dd").format(context.getEvaluationDate());
 
 		String sql =
 				"select patient_id" +
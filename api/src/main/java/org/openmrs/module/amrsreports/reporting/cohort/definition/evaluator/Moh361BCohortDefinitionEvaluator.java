@@ -24,7 +24,6 @@ import java.util.List;
 @Handler(supports = {Moh361BCohortDefinition.class})
 public class Moh361BCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 
-    private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
     private final Log log = LogFactory.getLog(this.getClass());
 
     @Override
@@ -35,7 +34,7 @@ public class Moh361BCohortDefinitionEvaluator implements CohortDefinitionEvaluat
         if (definition == null)
             return null;
 
-        String reportDate = sdf.format(context.getEvaluationDate());
+        String reportDate = new SimpleDateFormat("yyyy-MM-dd").format(context.getEvaluationDate());
         List<Location> locationList = (List<Location>) context.getParameterValue("locationList");
 
 
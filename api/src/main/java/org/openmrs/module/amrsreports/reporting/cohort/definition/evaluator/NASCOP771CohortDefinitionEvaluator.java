@@ -21,8 +21,6 @@ import java.text.SimpleDateFormat;
 @Handler(supports = {NASCOP771CohortDefinition.class})
 public class NASCOP771CohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 
-	private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-
 	@Override
 	public EvaluatedCohort evaluate(CohortDefinition cohortDefinition, EvaluationContext context) throws EvaluationException {
 
@@ -31,7 +29,7 @@ public class NASCOP771CohortDefinitionEvaluator implements CohortDefinitionEvalu
 		if (definition == null)
 			return null;
 
-		String reportDate = sdf.format(context.getEvaluationDate());
+		String reportDate = new SimpleDateFormat("yyyy-MM-dd").format(context.getEvaluationDate());
 
 		String sql =
 				"select person_id" +
@@ -11,7 +11,8 @@ import java.util.Date;
  * determines ARV patient snapshots for patients
  */
 @Caching(strategy=ConfigurationPropertyCachingStrategy.class)
-public class DateARTStartedDataDefinition extends BaseDataDefinition implements PersonDataDefinition {
+public class DateARTStartedDataDefinition extends BaseDataDefinition
+		implements PersonDataDefinition, IndependentDataDefinition, DerivedTableDataDefinition {
 
 	@Override
 	public Class<?> getDataType() {
@@ -1,20 +1,39 @@
 package org.openmrs.module.amrsreports.reporting.data;
 
+import org.openmrs.module.amrsreports.cache.MohCacheUtils;
+import org.openmrs.module.amrsreports.rule.MohEvaluableNameConstants;
 import org.openmrs.module.amrsreports.snapshot.ARVPatientSnapshot;
 import org.openmrs.module.reporting.data.BaseDataDefinition;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
 import org.openmrs.module.reporting.definition.configuration.ConfigurationPropertyCachingStrategy;
 import org.openmrs.module.reporting.evaluation.caching.Caching;
 
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * determines ARV patient snapshots for patients
  */
 @Caching(strategy=ConfigurationPropertyCachingStrategy.class)
-public class EligibilityForARTDataDefinition extends BaseDataDefinition implements PersonDataDefinition {
+public class EligibilityForARTDataDefinition extends BaseDataDefinition
+		implements PersonDataDefinition, ObsIndexedDataDefinition, IndependentDataDefinition {
 
 	@Override
 	public Class<?> getDataType() {
 		return ARVPatientSnapshot.class;
 	}
 
-}
\ No newline at end of file
+	@Override
+	public Set<Integer> getIndexedConceptIds() {
+		Set<Integer> ids = new HashSet<Integer>();
+		for (String name : new String[]{
+				MohEvaluableNameConstants.CD4_BY_FACS,
+				MohEvaluableNameConstants.CD4_PERCENT,
+				MohEvaluableNameConstants.HIV_DNA_PCR,
+				MohEvaluableNameConstants.WHO_STAGE_PEDS,
+				MohEvaluableNameConstants.WHO_STAGE_ADULT}) {
+			ids.add(MohCacheUtils.getConcept(name).getConceptId());
+		}
+		return ids;
+	}
+}
@@ -11,7 +11,8 @@ import java.util.Date;
  * Enrollment Date column
  */
 @Caching(strategy=ConfigurationPropertyCachingStrategy.class)
-public class EnrollmentDateDataDefinition extends BaseDataDefinition implements PersonDataDefinition {
+public class EnrollmentDateDataDefinition extends BaseDataDefinition
+		implements PersonDataDefinition, IndependentDataDefinition, DerivedTableDataDefinition {
 
 	@Override
 	public Class<?> getDataType() {
@@ -0,0 +1,26 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.amrsreports.reporting.data;
+
+/**
+ * a data definition whose evaluator can run alongside the report's other columns: it keeps no state between calls,
+ * only reads, depends on nothing but the cohort and evaluation date, and returns values that can be read once the
+ * session it was evaluated in has closed.  It reads nothing but the cohort's obs, encounters and people and the
+ * derived tables, so its values can be kept between reports until any of those change.
+ *
+ * @see org.openmrs.module.amrsreports.util.ConcurrentColumns
+ * @see org.openmrs.module.amrsreports.cache.PersonDataCache
+ */
+public interface IndependentDataDefinition {
+}
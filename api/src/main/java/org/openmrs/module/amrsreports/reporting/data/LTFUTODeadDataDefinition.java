@@ -9,7 +9,8 @@ import org.openmrs.module.reporting.evaluation.caching.Caching;
  * LTFU / TO / Dead column
  */
 @Caching(strategy=ConfigurationPropertyCachingStrategy.class)
-public class LTFUTODeadDataDefinition extends BaseDataDefinition implements PersonDataDefinition {
+public class LTFUTODeadDataDefinition extends BaseDataDefinition
+		implements PersonDataDefinition, IndependentDataDefinition {
 
 	@Override
 	public Class<?> getDataType() {
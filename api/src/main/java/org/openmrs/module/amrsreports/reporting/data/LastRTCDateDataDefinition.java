@@ -6,15 +6,24 @@ import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
 import org.openmrs.module.reporting.definition.configuration.ConfigurationPropertyCachingStrategy;
 import org.openmrs.module.reporting.evaluation.caching.Caching;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * finds the last RTC date
  */
 @Caching(strategy=ConfigurationPropertyCachingStrategy.class)
-public class LastRTCDateDataDefinition extends BaseDataDefinition implements PersonDataDefinition {
+public class LastRTCDateDataDefinition extends BaseDataDefinition
+		implements PersonDataDefinition, ObsIndexedDataDefinition, IndependentDataDefinition {
 
 	@Override
 	public Class<?> getDataType() {
 		return Obs.class;
 	}
 
-}
\ No newline at end of file
+	@Override
+	public Set<Integer> getIndexedConceptIds() {
+		return new HashSet<Integer>(Arrays.asList(1502, 5096));
+	}
+}
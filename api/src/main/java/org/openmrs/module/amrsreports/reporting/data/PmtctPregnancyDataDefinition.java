@@ -18,13 +18,23 @@ import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
 import org.openmrs.module.reporting.definition.configuration.ConfigurationPropertyCachingStrategy;
 import org.openmrs.module.reporting.evaluation.caching.Caching;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  */
 @Caching(strategy=ConfigurationPropertyCachingStrategy.class)
-public class PmtctPregnancyDataDefinition extends BaseDataDefinition implements PersonDataDefinition {
+public class PmtctPregnancyDataDefinition extends BaseDataDefinition
+		implements PersonDataDefinition, ObsIndexedDataDefinition, IndependentDataDefinition {
 
 	@Override
 	public Class<?> getDataType() {
 		return String.class;
 	}
+
+	@Override
+	public Set<Integer> getIndexedConceptIds() {
+		return new HashSet<Integer>(Arrays.asList(5596, 6743));
+	}
 }
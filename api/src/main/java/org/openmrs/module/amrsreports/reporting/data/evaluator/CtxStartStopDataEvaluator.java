@@ -13,22 +13,16 @@
  */
 package org.openmrs.module.amrsreports.reporting.data.evaluator;
 
-import org.openmrs.Obs;
 import org.openmrs.annotation.Handler;
-import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
+import org.openmrs.module.amrsreports.cache.PatientDates;
 import org.openmrs.module.amrsreports.reporting.data.CtxStartStopDataDefinition;
-import org.openmrs.module.reporting.common.ListMap;
 import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
-import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
 import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -36,68 +30,48 @@ import java.util.Set;
 @Handler(supports = CtxStartStopDataDefinition.class, order = 50)
 public class CtxStartStopDataEvaluator extends DrugStartStopDataEvaluator {
 
+	/**
+	 * @see org.openmrs.module.reporting.data.person.evaluator.PersonDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 *
+	 * @should pair the start and stop dates of indexed obs
+	 * @should only use obs from 2001 up to the report date
+	 */
 	@Override
 	public EvaluatedPersonData evaluate(final PersonDataDefinition definition, final EvaluationContext context) throws EvaluationException {
-		EvaluatedPersonData data = new EvaluatedPersonData(definition, context);
+		CtxStartStopDataDefinition def = (CtxStartStopDataDefinition) definition;
+		EvaluatedPersonData data = new EvaluatedPersonData(def, context);
 
-		String hql = "from Obs" +
-				" where voided = false" +
-				"   and person.personId in (:patientIds)" +
-				"   and (" +
-				"     (concept.id = 1263 and valueCoded is not null) " +
-				"     or (concept.id in (1193, 1109, 1263) and valueCoded.id = 916) " +
-				"   )" +
-				"   and obsDatetime between '2001-01-01' and :reportDate" +
-				"   order by obsDatetime asc";
+		Date reportDate = context.getEvaluationDate();
+		Set<Integer> conceptIds = def.getIndexedConceptIds();
+		ObsIndex index = ObsIndex.getIndex(context, conceptIds);
 
-		Map<String, Object> m = new HashMap<String, Object>();
-		m.put("patientIds", context.getBaseCohort());
-		m.put("reportDate", context.getEvaluationDate());
+		PatientDates startDates = new PatientDates();
+		PatientDates stopDates = new PatientDates();
 
-		ListMap<Integer, Date> mappedStartDates = makeDatesMapFromSQL(hql, m);
+		for (Integer memberId : context.getBaseCohort().getMemberIds()) {
+			for (int obs : index.find(memberId, conceptIds, reportDate)) {
+				long obsDatetime = index.getObsDatetime(obs);
+				if (!isWithinReportPeriod(obsDatetime, reportDate))
+					continue;
 
-		hql = "from Obs" +
-				" where voided = false" +
-				"   and person.personId in (:patientIds)" +
-				"   and (" +
-				"     (concept.id in (1262, 1925) and valueCoded is not null) " +
-				"     or (concept.id = 1261 and valueCoded.id = 1260) " +
-				"   )" +
-				"   and obsDatetime between '2001-01-01' and :reportDate" +
-				"   order by obsDatetime asc";
+				int question = index.getConceptId(obs);
+				int answer = index.getValueCodedId(obs);
 
-		ListMap<Integer, Date> mappedStopDates = makeDatesMapFromSQL(hql, m);
+				if ((question == 1263 && answer != 0)
+						|| ((question == 1193 || question == 1109 || question == 1263) && answer == 916))
+					startDates.add(memberId, obsDatetime);
+
+				if (((question == 1262 || question == 1925) && answer != 0)
+						|| (question == 1261 && answer == 1260))
+					stopDates.add(memberId, obsDatetime);
+			}
+		}
 
 		for (Integer memberId : context.getBaseCohort().getMemberIds()) {
-			Set<Date> stopDates = safeFind(mappedStopDates, memberId);
-			Set<Date> startDates = safeFind(mappedStartDates, memberId);
-			String rangeInformation = buildRangeInformation(startDates, stopDates);
+			String rangeInformation = buildRangeInformation(startDates.getDates(memberId), stopDates.getDates(memberId));
 			data.addData(memberId, rangeInformation);
 		}
 
 		return data;
 	}
-
-	private Set<Date> safeFind(final ListMap<Integer, Date> map, final Integer key) {
-		Set<Date> dateSet = new LinkedHashSet<Date>();
-		if (map.containsKey(key))
-			dateSet.addAll(map.get(key));
-		return dateSet;
-	}
-
-	/**
-	 * replaces reportDate and personIds with data from private variables before generating a date map
-	 */
-	private ListMap<Integer, Date> makeDatesMapFromSQL(final String query, final Map<String, Object> substitutions) {
-		DataSetQueryService qs = Context.getService(DataSetQueryService.class);
-		List<Object> queryResult = qs.executeHqlQuery(query, substitutions);
-
-		ListMap<Integer, Date> dateListMap = new ListMap<Integer, Date>();
-		for (Object o : queryResult) {
-			Obs obs = (Obs) o;
-			dateListMap.putInList(obs.getPersonId(), obs.getObsDatetime());
-		}
-
-		return dateListMap;
-	}
 }
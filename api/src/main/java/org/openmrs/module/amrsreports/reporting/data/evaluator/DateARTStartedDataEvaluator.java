@@ -2,18 +2,18 @@ package org.openmrs.module.amrsreports.reporting.data.evaluator;
 
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.amrsreports.HIVCareEnrollment;
+import org.openmrs.module.amrsreports.cache.PatientDates;
 import org.openmrs.module.amrsreports.reporting.data.DateARTStartedDataDefinition;
+import org.openmrs.module.amrsreports.service.MohCoreService;
 import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
 import org.openmrs.module.reporting.data.person.evaluator.PersonDataEvaluator;
-import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Evaluator for ART Eligibility
@@ -31,25 +31,22 @@ public class DateARTStartedDataEvaluator implements PersonDataEvaluator {
 			return c;
 		}
 
-		DataSetQueryService qs = Context.getService(DataSetQueryService.class);
-
-		StringBuilder hql = new StringBuilder();
+		StringBuilder sql = new StringBuilder();
 		Map<String, Object> m = new HashMap<String, Object>();
 
-		hql.append("from HIVCareEnrollment ");
-		hql.append(" where");
-
-		hql.append(" patient.personId in (:personIds) ");
-		m.put("personIds", context.getBaseCohort());
+		// only the person id and date are needed, so select just those instead of loading enrollments
+		sql.append("select e.patient_id, e.first_arv_date from amrsreports_hiv_care_enrollment e");
+		sql.append("  join {cohort} cohort on cohort.person_id = e.patient_id");
+		sql.append(" where");
 
-		hql.append("and firstARVDate <= :onOrBefore ");
+		sql.append(" e.first_arv_date <= :onOrBefore");
 		m.put("onOrBefore", context.getEvaluationDate());
 
-		List<Object> queryResult = qs.executeHqlQuery(hql.toString(), m);
+		Set<Integer> cohort = context.getBaseCohort() == null ? null : context.getBaseCohort().getMemberIds();
+		PatientDates dates = Context.getService(MohCoreService.class).getPatientDates(sql.toString(), cohort, m);
 
-		for (Object o : queryResult) {
-			HIVCareEnrollment enrollment = (HIVCareEnrollment) o;
-			c.addData(enrollment.getPatient().getPersonId(), enrollment.getFirstARVDate());
+		for (int personId : dates.getPatientIds()) {
+			c.addData(personId, dates.getFirst(personId));
 		}
 
 		return c;
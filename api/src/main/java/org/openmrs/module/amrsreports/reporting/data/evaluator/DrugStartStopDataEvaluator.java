@@ -21,8 +21,11 @@ import org.openmrs.module.amrsreports.util.MOHReportUtil;
 import org.openmrs.module.reporting.data.person.evaluator.PersonDataEvaluator;
 
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.GregorianCalendar;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -30,6 +33,19 @@ import java.util.Set;
  */
 public abstract class DrugStartStopDataEvaluator implements PersonDataEvaluator {
 
+	/**
+	 * the earliest obs date these columns look at
+	 */
+	private static final Date EARLIEST_OBS_DATE = new GregorianCalendar(2001, Calendar.JANUARY, 1).getTime();
+
+	/**
+	 * @return whether an obs recorded at the given time, in milliseconds since the epoch, falls between the earliest
+	 *         date these columns look at and the report date
+	 */
+	protected boolean isWithinReportPeriod(final long obsDatetime, final Date reportDate) {
+		return obsDatetime >= EARLIEST_OBS_DATE.getTime() && obsDatetime <= reportDate.getTime();
+	}
+
 	private Date safeNext(final Iterator<Date> dateInterator) {
 		Date returnValue = null;
 		if (dateInterator.hasNext())
@@ -37,6 +53,21 @@ public abstract class DrugStartStopDataEvaluator implements PersonDataEvaluator
 		return returnValue;
 	}
 
+	/**
+	 * builds the ranges from dates in milliseconds since the epoch, oldest first
+	 */
+	protected String buildRangeInformation(final long[] startDates, final long[] stopDates) {
+		return buildRangeInformation(toDates(startDates), toDates(stopDates));
+	}
+
+	private Set<Date> toDates(final long[] dates) {
+		Set<Date> dateSet = new LinkedHashSet<Date>();
+		for (long date : dates) {
+			dateSet.add(new Date(date));
+		}
+		return dateSet;
+	}
+
 	protected String buildRangeInformation(final Set<Date> startDates, final Set<Date> stopDates) {
 		Iterator<Date> startDateIterator = startDates.iterator();
 		Iterator<Date> stopDateIterator = stopDates.iterator();
@@ -1,28 +1,22 @@
 package org.openmrs.module.amrsreports.reporting.data.evaluator;
 
-import org.openmrs.Concept;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.amrsreports.cache.MohCacheUtils;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
 import org.openmrs.module.amrsreports.reporting.data.EligibilityForARTDataDefinition;
-import org.openmrs.module.amrsreports.rule.MohEvaluableNameConstants;
 import org.openmrs.module.amrsreports.snapshot.ARVPatientSnapshot;
 import org.openmrs.module.amrsreports.util.MOHReportUtil;
-import org.openmrs.module.reporting.common.ListMap;
 import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
 import org.openmrs.module.reporting.data.person.evaluator.PersonDataEvaluator;
-import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 /**
  * Evaluator for ART Eligibility
@@ -42,18 +36,11 @@ public class EligibilityForARTDataEvaluator implements PersonDataEvaluator {
 	 * @should return Clinical and WHO Stage if over 12 and ADULT WHO Stage is 3 or 4
 	 * @should return CD4 and WHO Stage and CD4 value if over 12 and ADULT or PEDS WHO Stage is 1 or 2 and CD4 is under 350
 	 * @should return reason only when ART started before eligibility date
+	 * @should leave out people whose indexed obs are all after the evaluation date
 	 */
 	@Override
 	public EvaluatedPersonData evaluate(PersonDataDefinition definition, EvaluationContext context) throws EvaluationException {
 
-		List<Concept> questionConcepts = Arrays.asList(new Concept[]{
-				MohCacheUtils.getConcept(MohEvaluableNameConstants.CD4_BY_FACS),
-				MohCacheUtils.getConcept(MohEvaluableNameConstants.CD4_PERCENT),
-				MohCacheUtils.getConcept(MohEvaluableNameConstants.HIV_DNA_PCR),
-				MohCacheUtils.getConcept(MohEvaluableNameConstants.WHO_STAGE_PEDS),
-				MohCacheUtils.getConcept(MohEvaluableNameConstants.WHO_STAGE_ADULT)
-		});
-
 		EligibilityForARTDataDefinition def = (EligibilityForARTDataDefinition) definition;
 		EvaluatedPersonData c = new EvaluatedPersonData(def, context);
 
@@ -61,40 +48,18 @@ public class EligibilityForARTDataEvaluator implements PersonDataEvaluator {
 			return c;
 		}
 
-		DataSetQueryService qs = Context.getService(DataSetQueryService.class);
-
-		StringBuilder hql = new StringBuilder();
-		Map<String, Object> m = new HashMap<String, Object>();
-
-		hql.append("from Obs ");
-		hql.append("where voided = false ");
-
-		if (context.getBaseCohort() != null) {
-			hql.append("and personId in (:patientIds) ");
-			m.put("patientIds", context.getBaseCohort());
-		}
-
-		hql.append("and concept in (:questionList) ");
-		m.put("questionList", questionConcepts);
-
-		hql.append("and obsDatetime <= :onOrBefore ");
-		m.put("onOrBefore", context.getEvaluationDate());
-
-		hql.append("order by obsDatetime asc");
+		Set<Integer> conceptIds = def.getIndexedConceptIds();
+		ObsIndex index = ObsIndex.getIndex(context, conceptIds);
 
-		List<Object> queryResult = qs.executeHqlQuery(hql.toString(), m);
-
-		ListMap<Integer, Obs> obsForPatients = new ListMap<Integer, Obs>();
-		for (Object o : queryResult) {
-			Obs obs = (Obs)o;
-			obsForPatients.putInList(obs.getPersonId(), obs);
-		}
+		for (Integer pId : index.getPersonIds()) {
+			List<Obs> obs = index.getObs(pId, conceptIds, context.getEvaluationDate());
+			if (obs.isEmpty())
+				continue;
 
-		for (Integer pId : obsForPatients.keySet()) {
 			boolean done = false;
 			Patient p = Context.getPatientService().getPatient(pId);
 			ARVPatientSnapshot snapshot = new ARVPatientSnapshot();
-			Iterator<Obs> i = obsForPatients.get(pId).iterator();
+			Iterator<Obs> i = obs.iterator();
 			while (!done && i.hasNext()) {
 				Obs o = i.next();
 				if (snapshot.consume(o)) {
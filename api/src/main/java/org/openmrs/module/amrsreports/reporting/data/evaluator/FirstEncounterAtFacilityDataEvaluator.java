@@ -3,21 +3,24 @@ package org.openmrs.module.amrsreports.reporting.data.evaluator;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Encounter;
+import org.openmrs.Location;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.amrsreports.MOHFacility;
 import org.openmrs.module.amrsreports.reporting.data.FirstEncounterAtFacilityDataDefinition;
+import org.openmrs.module.amrsreports.service.MohCoreService;
 import org.openmrs.module.reporting.common.ListMap;
 import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
 import org.openmrs.module.reporting.data.person.evaluator.PersonDataEvaluator;
-import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Handler for last encounter at facility
@@ -46,26 +49,33 @@ public class FirstEncounterAtFacilityDataEvaluator implements PersonDataEvaluato
 			return c;
 		}
 
-		DataSetQueryService qs = Context.getService(DataSetQueryService.class);
+		List<Integer> locationIds = new ArrayList<Integer>();
+		for (Location location : facility.getLocations()) {
+			locationIds.add(location.getLocationId());
+		}
+
+		if (locationIds.isEmpty()) {
+			log.warn("Facility " + facility.getCode() + " has no locations; returning empty data.");
+			return c;
+		}
 
-		// use HQL to do our bidding
-		String hql = "from Encounter" +
-				" where voided=false" +
-				" and patientId in (:patientIds)" +
-				" and location in (:locationList)" +
-				" and encounterDatetime <= :onOrBefore" +
-				" order by encounterDatetime asc";
+		// use SQL joined against the cohort to do our bidding
+		String sql = "select {e.*} from encounter e" +
+				" join {cohort} cohort on cohort.person_id = e.patient_id" +
+				" where e.voided = 0" +
+				" and e.location_id in (:locationIds)" +
+				" and e.encounter_datetime <= :onOrBefore" +
+				" order by e.encounter_datetime asc";
 
 		Map<String, Object> m = new HashMap<String, Object>();
-		m.put("patientIds", context.getBaseCohort());
-		m.put("locationList", facility.getLocations());
+		m.put("locationIds", locationIds);
 		m.put("onOrBefore", context.getEvaluationDate());
 
-		List<Object> queryResult = qs.executeHqlQuery(hql.toString(), m);
+		Set<Integer> cohort = context.getBaseCohort() == null ? null : context.getBaseCohort().getMemberIds();
+		List<Encounter> queryResult = Context.getService(MohCoreService.class).getCohortEncounters(sql, cohort, m);
 
 		ListMap<Integer, Encounter> encForPatients = new ListMap<Integer, Encounter>();
-		for (Object o : queryResult) {
-			Encounter enc = (Encounter) o;
+		for (Encounter enc : queryResult) {
 			encForPatients.putInList(enc.getPatientId(), enc);
 		}
 
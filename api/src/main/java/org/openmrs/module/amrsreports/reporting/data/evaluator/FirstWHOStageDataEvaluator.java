@@ -2,25 +2,18 @@ package org.openmrs.module.amrsreports.reporting.data.evaluator;
 
 import org.openmrs.Obs;
 import org.openmrs.annotation.Handler;
-import org.openmrs.api.context.Context;
-import org.openmrs.module.amrsreports.model.WHOStageAndDate;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
 import org.openmrs.module.amrsreports.reporting.data.FirstWHOStageDataDefinition;
-import org.openmrs.module.amrsreports.service.MohCoreService;
 import org.openmrs.module.reporting.common.DateUtil;
-import org.openmrs.module.reporting.common.ListMap;
-import org.openmrs.module.reporting.common.TimeQualifier;
 import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
-import org.openmrs.module.reporting.data.person.definition.ObsForPersonDataDefinition;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
 import org.openmrs.module.reporting.data.person.evaluator.PersonDataEvaluator;
-import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
-import java.text.SimpleDateFormat;
-import java.util.HashMap;
+import java.util.Date;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 /**
  * Evaluator for WHO Stage and Date columns
@@ -28,8 +21,12 @@ import java.util.Map;
 @Handler(supports=FirstWHOStageDataDefinition.class, order=50)
 public class FirstWHOStageDataEvaluator implements PersonDataEvaluator {
 
-	private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-
+	/**
+	 * @see PersonDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 *
+	 * @should return the earliest WHO stage obs of either concept
+	 * @should leave out obs after the evaluation date
+	 */
 	@Override
 	public EvaluatedPersonData evaluate(PersonDataDefinition definition, EvaluationContext context) throws EvaluationException {
 		FirstWHOStageDataDefinition def = (FirstWHOStageDataDefinition) definition;
@@ -39,37 +36,14 @@ public class FirstWHOStageDataEvaluator implements PersonDataEvaluator {
 			return c;
 		}
 
-		DataSetQueryService qs = Context.getService(DataSetQueryService.class);
-
-		StringBuilder hql = new StringBuilder();
-		Map<String, Object> m = new HashMap<String, Object>();
-
-		hql.append("from 		Obs ");
-		hql.append("where 		voided = false ");
-
-		if (context.getBaseCohort() != null) {
-			hql.append("and 		personId in (:patientIds) ");
-			m.put("patientIds", context.getBaseCohort());
-		}
-
-		hql.append("and 		concept.conceptId in ( 1224, 5356 ) ");
-
-		hql.append("and		obsDatetime <= :onOrBefore ");
-		m.put("onOrBefore", DateUtil.getEndOfDayIfTimeExcluded(context.getEvaluationDate()));
-
-		hql.append("order by 	obsDatetime asc");
-
-		List<Object> queryResult = qs.executeHqlQuery(hql.toString(), m);
-
-		ListMap<Integer, Obs> obsForPatients = new ListMap<Integer, Obs>();
-		for (Object o : queryResult) {
-			Obs obs = (Obs)o;
-			obsForPatients.putInList(obs.getPersonId(), obs);
-		}
+		Set<Integer> conceptIds = def.getIndexedConceptIds();
+		ObsIndex index = ObsIndex.getIndex(context, conceptIds);
+		Date onOrBefore = DateUtil.getEndOfDayIfTimeExcluded(context.getEvaluationDate());
 
-		for (Integer pId : obsForPatients.keySet()) {
-			List<Obs> l = obsForPatients.get(pId);
-			c.addData(pId, l.get(0));
+		for (Integer pId : index.getPersonIds()) {
+			List<Obs> l = index.getObs(pId, conceptIds, onOrBefore);
+			if (!l.isEmpty())
+				c.addData(pId, l.get(0));
 		}
 
 		return c;
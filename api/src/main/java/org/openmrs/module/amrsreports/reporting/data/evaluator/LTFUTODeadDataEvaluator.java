@@ -1,9 +1,11 @@
 package org.openmrs.module.amrsreports.reporting.data.evaluator;
 
-import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.DateUtils;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.cache.PatientDates;
 import org.openmrs.module.amrsreports.reporting.data.LTFUTODeadDataDefinition;
+import org.openmrs.module.amrsreports.service.MohCoreService;
 import org.openmrs.module.amrsreports.util.MOHReportUtil;
 import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
@@ -11,12 +13,10 @@ import org.openmrs.module.reporting.data.person.evaluator.PersonDataEvaluator;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -26,26 +26,30 @@ import java.util.Set;
 @Handler(supports = LTFUTODeadDataDefinition.class, order = 50)
 public class LTFUTODeadDataEvaluator implements PersonDataEvaluator {
 
-	private String personIds = null;
-	private String reportDate = null;
-
+	/**
+	 * @see PersonDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 *
+	 * @should report the earliest death date from death encounters and person properties
+	 * @should report LTFU from the last encounter on or before the report date
+	 * @should leave out patients seen recently
+	 */
 	@Override
 	public EvaluatedPersonData evaluate(PersonDataDefinition definition, EvaluationContext context) throws EvaluationException {
 		EvaluatedPersonData ret = new EvaluatedPersonData(definition, context);
 
-		personIds = StringUtils.join(context.getBaseCohort().getMemberIds(), ",");
-		reportDate = new SimpleDateFormat("yyyy-MM-dd").format(context.getEvaluationDate());
+		Set<Integer> cohort = context.getBaseCohort() == null ? null : context.getBaseCohort().getMemberIds();
+		Date reportDate = DateUtils.truncate(context.getEvaluationDate(), Calendar.DATE);
 
 		// determine death status and date using multiple queries
 
 		String obsDeathSQL = "select person_id, min(obs_datetime)" +
 				" from (" +
-				"	select person_id, obs_datetime" +
+				"	select obs.person_id, obs.obs_datetime" +
 				"	from obs" +
+				"		join {cohort} cohort on cohort.person_id = obs.person_id" +
 				"	where" +
-				"		person_id in (:personIds)" +
-				"		and voided=0" +
-				"		and obs_datetime <= ':reportDate'" +
+				"		voided=0" +
+				"		and obs_datetime <= :reportDate" +
 				"		and (" +
 				"			concept_id in (1570, 1734, 1573)" +
 				"			or (concept_id=6206 and value_coded=159)" +
@@ -58,27 +62,27 @@ public class LTFUTODeadDataEvaluator implements PersonDataEvaluator {
 
 		String encDeathSQL = "select patient_id, min(encounter_datetime)" +
 				" from (" +
-				"	select patient_id, encounter_datetime" +
+				"	select encounter.patient_id, encounter.encounter_datetime" +
 				"	from encounter" +
+				"		join {cohort} cohort on cohort.person_id = encounter.patient_id" +
 				"	where" +
-				"		patient_id in (:personIds)" +
-				"		and voided=0" +
+				"		voided=0" +
 				"		and encounter_type=31" +
-				"		and encounter_datetime <= ':reportDate'" +
+				"		and encounter_datetime <= :reportDate" +
 				"	order by encounter_datetime asc" +
 				" ) ordered" +
 				" group by patient_id";
 
-		String propsDeathSQL = "select person_id, death_date" +
+		String propsDeathSQL = "select person.person_id, death_date" +
 				" from person" +
-				" where person_id in (:personIds)" +
-				" and death_date <= ':reportDate'" +
+				"	join {cohort} cohort on cohort.person_id = person.person_id" +
+				" where death_date <= :reportDate" +
 				" and dead = 1";
 
 		// gather multiple potential indicators for death
-		Map<Integer, Date> deathObs = makeDateMapFromSQL(obsDeathSQL);
-		Map<Integer, Date> deathEncs = makeDateMapFromSQL(encDeathSQL);
-		Map<Integer, Date> deathProps = makeDateMapFromSQL(propsDeathSQL);
+		Map<Integer, Date> deathObs = makeDateMapFromSQL(obsDeathSQL, cohort, reportDate);
+		Map<Integer, Date> deathEncs = makeDateMapFromSQL(encDeathSQL, cohort, reportDate);
+		Map<Integer, Date> deathProps = makeDateMapFromSQL(propsDeathSQL, cohort, reportDate);
 
 		// load up a combined set of ids for dead patients
 		Set<Integer> deadPeople = new HashSet<Integer>();
@@ -107,47 +111,47 @@ public class LTFUTODeadDataEvaluator implements PersonDataEvaluator {
 
 		String transferSQL = "select person_id, max(obs_datetime)" +
 				" from (" +
-				"	select person_id, obs_datetime" +
+				"	select obs.person_id, obs.obs_datetime" +
 				"	from obs" +
+				"		join {cohort} cohort on cohort.person_id = obs.person_id" +
 				"	where" +
-				"		person_id in (:personIds)" +
-				"		and voided=0" +
-				"		and obs_datetime <= ':reportDate'" +
+				"		voided=0" +
+				"		and obs_datetime <= :reportDate" +
 				"		and (concept_id=1285 and value_coded=1287)" +
 				"		order by obs_datetime desc" +
 				" ) ordered" +
 				" group by person_id";
 
-		Map<Integer, Date> transfers = makeDateMapFromSQL(transferSQL);
+		Map<Integer, Date> transfers = makeDateMapFromSQL(transferSQL, cohort, reportDate);
 
 		// get most recent encounter date
 
-		String lastEncounterSQL = "select patient_id, max(encounter_datetime)" +
+		String lastEncounterSQL = "select encounter.patient_id, max(encounter_datetime)" +
 				" from encounter" +
+				"	join {cohort} cohort on cohort.person_id = encounter.patient_id" +
 				" where" +
-				"	patient_id in (:personIds)" +
-				"	and voided=0" +
-				"   and encounter_datetime <= ':reportDate'" +
+				"	voided=0" +
+				"   and encounter_datetime <= :reportDate" +
 				"	and (" +
 				"		encounter_type in (1, 2, 3, 4, 13, 14, 15, 17, 18, 19, 20, 21, 22, 23, 26)" +
 				"		or form_id in (248, 249)" +
 				"	)" +
-				" group by patient_id";
+				" group by encounter.patient_id";
 
-		Map<Integer, Date> lastEncounters = makeDateMapFromSQL(lastEncounterSQL);
+		Map<Integer, Date> lastEncounters = makeDateMapFromSQL(lastEncounterSQL, cohort, reportDate);
 
 		// get most recent RTC dates
 
-		String rtcSQL = "select person_id, max(value_datetime)" +
+		String rtcSQL = "select obs.person_id, max(value_datetime)" +
 				" from obs" +
+				"	join {cohort} cohort on cohort.person_id = obs.person_id" +
 				" where" +
-				"	person_id in (:personIds)" +
-				"	and voided=0" +
-				"   and obs_datetime <= ':reportDate'" +
+				"	voided=0" +
+				"   and obs_datetime <= :reportDate" +
 				"	and concept_id in (1502, 5096)" +
-				" group by person_id";
+				" group by obs.person_id";
 
-		Map<Integer, Date> rtcDates = makeDateMapFromSQL(rtcSQL);
+		Map<Integer, Date> rtcDates = makeDateMapFromSQL(rtcSQL, cohort, reportDate);
 
 		// set a few repeatedly used variables
 		Calendar rtcOverdueDate = Calendar.getInstance();
@@ -192,22 +196,17 @@ public class LTFUTODeadDataEvaluator implements PersonDataEvaluator {
 	}
 
 	/**
-	 * replaces reportDate and personIds with data from private variables before generating a date map
+	 * runs SQL joining the cohort and bounded by the report date, generating a date map from its rows
 	 */
-	private Map<Integer, Date> makeDateMapFromSQL(String sql) {
-		List<List<Object>> data = Context.getAdministrationService().executeSQL(
-				sql.replaceAll(":reportDate", reportDate).replaceAll(":personIds", personIds),
-				false);
-		return makeDateMap(data);
-	}
+	private Map<Integer, Date> makeDateMapFromSQL(String sql, Set<Integer> cohort, Date reportDate) {
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("reportDate", reportDate);
+
+		PatientDates dates = Context.getService(MohCoreService.class).getPatientDates(sql, cohort, parameters);
 
-	/**
-	 * generates a map of integers to dates, assuming this is the kind of response expected from the SQL
-	 */
-	private Map<Integer, Date> makeDateMap(List<List<Object>> data) {
 		Map<Integer, Date> m = new HashMap<Integer, Date>();
-		for (List<Object> row : data) {
-			m.put((Integer) row.get(0), (Date) row.get(1));
+		for (int personId : dates.getPatientIds()) {
+			m.put(personId, dates.getFirst(personId));
 		}
 		return m;
 	}
@@ -4,11 +4,11 @@ import org.openmrs.Encounter;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.amrsreports.reporting.data.LastHIVEncounterDataDefinition;
+import org.openmrs.module.amrsreports.service.MohCoreService;
 import org.openmrs.module.reporting.common.ListMap;
 import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
 import org.openmrs.module.reporting.data.person.evaluator.PersonDataEvaluator;
-import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
@@ -16,6 +16,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Handler for last HIV encounter data
@@ -33,28 +34,25 @@ public class LastHIVEncounterDataEvaluator implements PersonDataEvaluator {
 			return c;
 		}
 
-		DataSetQueryService qs = Context.getService(DataSetQueryService.class);
-
-		// use HQL to do our bidding
-		String hql = "from Encounter" +
-				" where voided=false" +
-				" and patientId in (:patientIds)" +
-				" and encounterType.encounterTypeId in (:encounterTypeIds)" +
-				" and encounterDatetime <= :onOrBefore" +
-				" order by encounterDatetime desc";
+		// use SQL joined against the cohort to do our bidding
+		String sql = "select {e.*} from encounter e" +
+				" join {cohort} cohort on cohort.person_id = e.patient_id" +
+				" where e.voided = 0" +
+				" and e.encounter_type in (:encounterTypeIds)" +
+				" and e.encounter_datetime <= :onOrBefore" +
+				" order by e.encounter_datetime desc";
 
 		List<Integer> encounterTypeIds = Arrays.asList(1, 2, 3, 4, 13);
 
 		Map<String, Object> m = new HashMap<String, Object>();
-		m.put("patientIds", context.getBaseCohort());
 		m.put("encounterTypeIds", encounterTypeIds);
 		m.put("onOrBefore", context.getEvaluationDate());
 
-		List<Object> queryResult = qs.executeHqlQuery(hql.toString(), m);
+		Set<Integer> cohort = context.getBaseCohort() == null ? null : context.getBaseCohort().getMemberIds();
+		List<Encounter> queryResult = Context.getService(MohCoreService.class).getCohortEncounters(sql, cohort, m);
 
 		ListMap<Integer, Encounter> encForPatients = new ListMap<Integer, Encounter>();
-		for (Object o : queryResult) {
-			Encounter enc = (Encounter) o;
+		for (Encounter enc : queryResult) {
 			encForPatients.putInList(enc.getPatientId(), enc);
 		}
 
@@ -2,20 +2,17 @@ package org.openmrs.module.amrsreports.reporting.data.evaluator;
 
 import org.openmrs.Obs;
 import org.openmrs.annotation.Handler;
-import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
 import org.openmrs.module.amrsreports.reporting.data.LastRTCDateDataDefinition;
-import org.openmrs.module.reporting.common.ListMap;
 import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
 import org.openmrs.module.reporting.data.person.evaluator.PersonDataEvaluator;
-import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
-import java.text.SimpleDateFormat;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 /**
  * Evaluator for WHO Stage and Date columns
@@ -23,8 +20,15 @@ import java.util.Map;
 @Handler(supports = LastRTCDateDataDefinition.class, order = 50)
 public class LastRTCDateDataEvaluator implements PersonDataEvaluator {
 
-	private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+	private static final List<Integer> ENCOUNTER_TYPE_IDS =
+			Arrays.asList(1, 2, 3, 4, 13, 14, 15, 17, 18, 19, 20, 21, 22, 23, 26);
 
+	/**
+	 * @see PersonDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 *
+	 * @should return the latest obs from a listed encounter type
+	 * @should leave out people without obs from a listed encounter type
+	 */
 	@Override
 	public EvaluatedPersonData evaluate(PersonDataDefinition definition, EvaluationContext context) throws EvaluationException {
 		LastRTCDateDataDefinition def = (LastRTCDateDataDefinition) definition;
@@ -34,37 +38,20 @@ public class LastRTCDateDataEvaluator implements PersonDataEvaluator {
 			return c;
 		}
 
-		DataSetQueryService qs = Context.getService(DataSetQueryService.class);
+		Set<Integer> conceptIds = def.getIndexedConceptIds();
+		ObsIndex index = ObsIndex.getIndex(context, conceptIds);
 
-		StringBuilder hql = new StringBuilder();
-		Map<String, Object> m = new HashMap<String, Object>();
+		for (Integer pId : index.getPersonIds()) {
+			List<Obs> l = index.getObs(pId, conceptIds, context.getEvaluationDate());
 
-		hql.append("from Obs ");
-		hql.append("where voided = false ");
-
-		if (context.getBaseCohort() != null) {
-			hql.append("and personId in (:patientIds) ");
-			m.put("patientIds", context.getBaseCohort());
-		}
-
-		hql.append("and encounter.encounterType.id in (1, 2, 3, 4, 13, 14, 15, 17, 18, 19, 20, 21, 22, 23, 26)");
-		hql.append("and concept.id in (1502, 5096)  ");
-		hql.append("and obsDatetime <= :onOrBefore ");
-		m.put("onOrBefore", context.getEvaluationDate());
-
-		hql.append("order by obsDatetime desc");
-
-		List<Object> queryResult = qs.executeHqlQuery(hql.toString(), m);
-
-		ListMap<Integer, Obs> obsForPatients = new ListMap<Integer, Obs>();
-		for (Object o : queryResult) {
-			Obs obs = (Obs) o;
-			obsForPatients.putInList(obs.getPersonId(), obs);
-		}
-
-		for (Integer pId : obsForPatients.keySet()) {
-			List<Obs> l = obsForPatients.get(pId);
-			c.addData(pId, l.get(0));
+			// the index lists obs oldest first, so look for the latest from the end
+			for (int i = l.size() - 1; i >= 0; i--) {
+				Obs obs = l.get(i);
+				if (obs.getEncounter() != null && ENCOUNTER_TYPE_IDS.contains(obs.getEncounter().getEncounterType().getEncounterTypeId())) {
+					c.addData(pId, obs);
+					break;
+				}
+			}
 		}
 
 		return c;
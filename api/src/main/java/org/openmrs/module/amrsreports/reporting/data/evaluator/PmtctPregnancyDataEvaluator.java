@@ -13,24 +13,19 @@
  */
 package org.openmrs.module.amrsreports.reporting.data.evaluator;
 
-import org.openmrs.Obs;
 import org.openmrs.annotation.Handler;
-import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
 import org.openmrs.module.amrsreports.reporting.data.PmtctPregnancyDataDefinition;
 import org.openmrs.module.amrsreports.util.MOHReportUtil;
-import org.openmrs.module.reporting.common.ListMap;
 import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
-import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -38,26 +33,33 @@ import java.util.Set;
 @Handler(supports = PmtctPregnancyDataDefinition.class, order = 50)
 public class PmtctPregnancyDataEvaluator extends DrugStartStopDataEvaluator {
 
+	/**
+	 * @see org.openmrs.module.reporting.data.person.evaluator.PersonDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 *
+	 * @should list each expected delivery date once
+	 * @should leave out people without obs up to the report date
+	 */
 	@Override
 	public EvaluatedPersonData evaluate(final PersonDataDefinition definition, final EvaluationContext context) throws EvaluationException {
-		EvaluatedPersonData data = new EvaluatedPersonData(definition, context);
+		PmtctPregnancyDataDefinition def = (PmtctPregnancyDataDefinition) definition;
+		EvaluatedPersonData data = new EvaluatedPersonData(def, context);
 
-		String hql = "from Obs" +
-				" where voided = false" +
-				"   and person.personId in (:patientIds)" +
-				"   and concept.id in (5596, 6743)" +
-				"   and obsDatetime between '2001-01-01' and :reportDate" +
-				"   order by obsDatetime asc";
+		Date reportDate = context.getEvaluationDate();
+		Set<Integer> conceptIds = def.getIndexedConceptIds();
+		ObsIndex index = ObsIndex.getIndex(context, conceptIds);
 
-		Map<String, Object> m = new HashMap<String, Object>();
-		m.put("patientIds", context.getBaseCohort());
-		m.put("reportDate", context.getEvaluationDate());
+		for (Integer memberId : index.getPersonIds()) {
+			Set<Date> dates = new LinkedHashSet<Date>();
+			for (int obs : index.find(memberId, conceptIds, reportDate)) {
+				if (isWithinReportPeriod(index.getObsDatetime(obs), reportDate))
+					dates.add(index.getValueDatetime(obs));
+			}
 
-		ListMap<Integer, Date> dateMap = makeValueDatesMapFromSQL(hql, m);
+			if (dates.isEmpty())
+				continue;
 
-		for (Integer memberId : dateMap.keySet()) {
 			List<String> EDDs = new ArrayList<String>();
-			for (Date d : safeFind(dateMap, memberId)) {
+			for (Date d : dates) {
 				EDDs.add(String.format("%s | PMTCT", MOHReportUtil.formatdates(d)));
 			}
 			data.addData(memberId, MOHReportUtil.joinAsSingleCell(EDDs));
@@ -65,27 +67,4 @@ public class PmtctPregnancyDataEvaluator extends DrugStartStopDataEvaluator {
 
 		return data;
 	}
-
-	private Set<Date> safeFind(final ListMap<Integer, Date> map, final Integer key) {
-		Set<Date> dateSet = new LinkedHashSet<Date>();
-		if (map.containsKey(key))
-			dateSet.addAll(map.get(key));
-		return dateSet;
-	}
-
-	/**
-	 * replaces reportDate and personIds with data from private variables before generating a date map
-	 */
-	private ListMap<Integer, Date> makeValueDatesMapFromSQL(final String query, final Map<String, Object> substitutions) {
-		DataSetQueryService qs = Context.getService(DataSetQueryService.class);
-		List<Object> queryResult = qs.executeHqlQuery(query, substitutions);
-
-		ListMap<Integer, Date> dateListMap = new ListMap<Integer, Date>();
-		for (Object o : queryResult) {
-			Obs obs = (Obs) o;
-			dateListMap.putInList(obs.getPersonId(), obs.getValueDatetime());
-		}
-
-		return dateListMap;
-	}
 }
@@ -13,22 +13,16 @@
  */
 package org.openmrs.module.amrsreports.reporting.data.evaluator;
 
-import org.openmrs.Obs;
 import org.openmrs.annotation.Handler;
-import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
+import org.openmrs.module.amrsreports.cache.PatientDates;
 import org.openmrs.module.amrsreports.reporting.data.TbStartStopDataDefinition;
-import org.openmrs.module.reporting.common.ListMap;
 import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
-import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
 import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -36,64 +30,42 @@ import java.util.Set;
 @Handler(supports = TbStartStopDataDefinition.class, order = 50)
 public class TbStartStopDataEvaluator extends DrugStartStopDataEvaluator {
 
+	/**
+	 * @see org.openmrs.module.reporting.data.person.evaluator.PersonDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 *
+	 * @should pair the treatment start and stop date values of indexed obs
+	 * @should leave out obs after the report date
+	 */
 	@Override
 	public EvaluatedPersonData evaluate(final PersonDataDefinition definition, final EvaluationContext context) throws EvaluationException {
-		EvaluatedPersonData data = new EvaluatedPersonData(definition, context);
+		TbStartStopDataDefinition def = (TbStartStopDataDefinition) definition;
+		EvaluatedPersonData data = new EvaluatedPersonData(def, context);
 
-		String hql = "from Obs" +
-				" where voided = false" +
-				"   and person.personId in (:patientIds)" +
-				"   and concept.id = 1113" +
-				"   and valueDatetime is not null" +
-				"   and obsDatetime between '2001-01-01' and :reportDate" +
-				"   order by obsDatetime asc";
+		Date reportDate = context.getEvaluationDate();
+		Set<Integer> conceptIds = def.getIndexedConceptIds();
+		ObsIndex index = ObsIndex.getIndex(context, conceptIds);
 
-		Map<String, Object> m = new HashMap<String, Object>();
-		m.put("patientIds", context.getBaseCohort());
-		m.put("reportDate", context.getEvaluationDate());
+		PatientDates startDates = new PatientDates();
+		PatientDates stopDates = new PatientDates();
 
-		ListMap<Integer, Date> mappedStartDates = makeValueDatesMapFromSQL(hql, m);
-
-		hql = "from Obs" +
-				" where voided = false" +
-				"   and person.personId in (:patientIds)" +
-				"   and concept.id = 2041" +
-				"   and valueDatetime is not null" +
-				"   and obsDatetime between '2001-01-01' and :reportDate" +
-				"   order by obsDatetime asc";
+		for (Integer memberId : context.getBaseCohort().getMemberIds()) {
+			for (int obs : index.find(memberId, conceptIds, reportDate)) {
+				if (!isWithinReportPeriod(index.getObsDatetime(obs), reportDate))
+					continue;
 
-		ListMap<Integer, Date> mappedStopDates = makeValueDatesMapFromSQL(hql, m);
+				// the treatment dates are put in order of their own value when ranges are built
+				if (index.getConceptId(obs) == 1113)
+					startDates.add(memberId, index.getValueDatetime(obs));
+				else if (index.getConceptId(obs) == 2041)
+					stopDates.add(memberId, index.getValueDatetime(obs));
+			}
+		}
 
 		for (Integer memberId : context.getBaseCohort().getMemberIds()) {
-			Set<Date> stopDates = safeFind(mappedStopDates, memberId);
-			Set<Date> startDates = safeFind(mappedStartDates, memberId);
-			String rangeInformation = buildRangeInformation(startDates, stopDates);
+			String rangeInformation = buildRangeInformation(startDates.getDates(memberId), stopDates.getDates(memberId));
 			data.addData(memberId, rangeInformation);
 		}
 
 		return data;
 	}
-
-	private Set<Date> safeFind(final ListMap<Integer, Date> map, final Integer key) {
-		Set<Date> dateSet = new LinkedHashSet<Date>();
-		if (map.containsKey(key))
-			dateSet.addAll(map.get(key));
-		return dateSet;
-	}
-
-	/**
-	 * replaces reportDate and personIds with data from private variables before generating a date map
-	 */
-	private ListMap<Integer, Date> makeValueDatesMapFromSQL(final String query, final Map<String, Object> substitutions) {
-		DataSetQueryService qs = Context.getService(DataSetQueryService.class);
-		List<Object> queryResult = qs.executeHqlQuery(query, substitutions);
-
-		ListMap<Integer, Date> dateListMap = new ListMap<Integer, Date>();
-		for (Object o : queryResult) {
-			Obs obs = (Obs) o;
-			dateListMap.putInList(obs.getPersonId(), obs.getValueDatetime());
-		}
-
-		return dateListMap;
-	}
 }
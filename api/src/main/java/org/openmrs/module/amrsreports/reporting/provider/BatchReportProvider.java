@@ -0,0 +1,48 @@
+package org.openmrs.module.amrsreports.reporting.provider;
+
+import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A report provider whose report can be evaluated for several facilities at once: the columns that do not depend on
+ * the facility are evaluated a single time for everyone in any of the facilities' cohorts, and only the facility
+ * columns are evaluated per facility.
+ */
+public interface BatchReportProvider extends ReportProvider {
+
+	/**
+	 * @return the report with only the person id and the columns that do not depend on the facility
+	 */
+	public ReportDefinition getSharedReportDefinition();
+
+	/**
+	 * @return the report with only the person id and the columns that depend on the facility, in the order rows
+	 *         should appear in
+	 */
+	public ReportDefinition getFacilityReportDefinition();
+
+	/**
+	 * @return names of all columns of the full report, in order
+	 */
+	public List<String> getColumnNames();
+
+	/**
+	 * @return name of the column joining shared and facility rows
+	 */
+	public String getPersonIdColumn();
+
+	/**
+	 * @return ids of the question concepts the report's columns read from the shared obs index, so it can be loaded
+	 *         once for all of them
+	 */
+	public Set<Integer> getIndexedConceptIds();
+
+	/**
+	 * @return definitions of the report's columns that can be evaluated alongside each other, all of them among the
+	 *         columns that do not depend on the facility
+	 */
+	public List<PersonDataDefinition> getIndependentDefinitions();
+}
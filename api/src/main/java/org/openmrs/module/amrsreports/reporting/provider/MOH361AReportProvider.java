@@ -23,9 +23,11 @@ import org.openmrs.module.amrsreports.reporting.data.EnrollmentDateDataDefinitio
 import org.openmrs.module.amrsreports.reporting.data.FirstEncounterAtFacilityDataDefinition;
 import org.openmrs.module.amrsreports.reporting.data.FirstWHOStageDataDefinition;
 import org.openmrs.module.amrsreports.reporting.data.FluconazoleStartStopDataDefinition;
+import org.openmrs.module.amrsreports.reporting.data.IndependentDataDefinition;
 import org.openmrs.module.amrsreports.reporting.data.LTFUTODeadDataDefinition;
 import org.openmrs.module.amrsreports.reporting.data.LastHIVEncounterDataDefinition;
 import org.openmrs.module.amrsreports.reporting.data.LastRTCDateDataDefinition;
+import org.openmrs.module.amrsreports.reporting.data.ObsIndexedDataDefinition;
 import org.openmrs.module.amrsreports.reporting.data.PmtctPregnancyDataDefinition;
 import org.openmrs.module.amrsreports.reporting.data.SerialNumberDataDefinition;
 import org.openmrs.module.amrsreports.reporting.data.TbStartStopDataDefinition;
@@ -36,9 +38,11 @@ import org.openmrs.module.amrsreports.util.MOHReportUtil;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.common.SortCriteria;
 import org.openmrs.module.reporting.common.TimeQualifier;
+import org.openmrs.module.reporting.data.DataDefinition;
 import org.openmrs.module.reporting.data.MappedData;
 import org.openmrs.module.reporting.data.converter.BirthdateConverter;
 import org.openmrs.module.reporting.data.converter.BooleanConverter;
+import org.openmrs.module.reporting.data.converter.DataConverter;
 import org.openmrs.module.reporting.data.converter.DateConverter;
 import org.openmrs.module.reporting.data.converter.ObjectFormatter;
 import org.openmrs.module.reporting.data.patient.definition.PatientIdentifierDataDefinition;
@@ -47,6 +51,7 @@ import org.openmrs.module.reporting.data.person.definition.BirthdateDataDefiniti
 import org.openmrs.module.reporting.data.person.definition.GenderDataDefinition;
 import org.openmrs.module.reporting.data.person.definition.ObsForPersonDataDefinition;
 import org.openmrs.module.reporting.data.person.definition.PersonAttributeDataDefinition;
+import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
 import org.openmrs.module.reporting.data.person.definition.PersonIdDataDefinition;
 import org.openmrs.module.reporting.data.person.definition.PreferredNameDataDefinition;
 import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
@@ -60,15 +65,20 @@ import org.openmrs.util.OpenmrsClassLoader;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 /**
  * Provides mechanisms for rendering the MOH 361A Pre-ART Register
  */
-public class MOH361AReportProvider implements ReportProvider {
+public class MOH361AReportProvider implements BatchReportProvider {
+
+	private static final String COLUMN_PERSON_ID = "Person ID";
 
 	@Override
 	public String getName() {
@@ -77,6 +87,53 @@ public class MOH361AReportProvider implements ReportProvider {
 
 	@Override
 	public ReportDefinition getReportDefinition() {
+		return buildReportDefinition(true, true, new Columns());
+	}
+
+	@Override
+	public ReportDefinition getSharedReportDefinition() {
+		return buildReportDefinition(true, false, new Columns());
+	}
+
+	@Override
+	public ReportDefinition getFacilityReportDefinition() {
+		return buildReportDefinition(false, true, new Columns());
+	}
+
+	@Override
+	public List<String> getColumnNames() {
+		Columns columns = new Columns();
+		buildReportDefinition(false, false, columns);
+		return columns.names;
+	}
+
+	@Override
+	public Set<Integer> getIndexedConceptIds() {
+		Columns columns = new Columns();
+		buildReportDefinition(false, false, columns);
+		return columns.indexedConceptIds;
+	}
+
+	@Override
+	public List<PersonDataDefinition> getIndependentDefinitions() {
+		Columns columns = new Columns();
+		buildReportDefinition(false, false, columns);
+		return columns.independentDefinitions;
+	}
+
+	@Override
+	public String getPersonIdColumn() {
+		return COLUMN_PERSON_ID;
+	}
+
+	/**
+	 * builds the report with the columns that do not depend on the facility, the ones that do, or both; the person id
+	 * column is always included so the two halves can be joined
+	 *
+	 * @param columns filled with the names of all columns of the full report, in order, the concepts they read
+	 *                from the obs index and the definitions that can be evaluated alongside each other
+	 */
+	private ReportDefinition buildReportDefinition(boolean shared, boolean perFacility, Columns columns) {
 
 		String nullString = null;
 		ObjectFormatter nullStringConverter = new ObjectFormatter();
@@ -89,52 +146,54 @@ public class MOH361AReportProvider implements ReportProvider {
 		PatientDataSetDefinition dsd = new PatientDataSetDefinition();
 		dsd.setName("allPatients");
 
-		// set up parameters
-		Parameter facility = new Parameter();
-		facility.setName("facility");
-		facility.setType(MOHFacility.class);
+		if (perFacility) {
+			// set up parameters
+			Parameter facility = new Parameter();
+			facility.setName("facility");
+			facility.setType(MOHFacility.class);
 
-		// add to report and data set definition
-		report.addParameter(facility);
-		dsd.addParameter(facility);
+			// add to report and data set definition
+			report.addParameter(facility);
+			dsd.addParameter(facility);
 
-		// sort by serial number, then by date
-		dsd.addSortCriteria("Serial Number", SortCriteria.SortDirection.ASC);
-		dsd.addSortCriteria("First Encounter Date At Facility", SortCriteria.SortDirection.ASC);
+			// sort by serial number, then by date
+			dsd.addSortCriteria("Serial Number", SortCriteria.SortDirection.ASC);
+			dsd.addSortCriteria("First Encounter Date At Facility", SortCriteria.SortDirection.ASC);
+		}
 
 		// set up the columns ...
 
 		// patient id ... until we get this thing working proper
-		dsd.addColumn("Person ID", new PersonIdDataDefinition(), nullString);
+		addColumn(dsd, columns, true, COLUMN_PERSON_ID, new PersonIdDataDefinition(), nullString);
 
 		// a. serial number
-		dsd.addColumn("Serial Number", new SerialNumberDataDefinition(), "facility=${facility}");
+		addColumn(dsd, columns, perFacility, "Serial Number", new SerialNumberDataDefinition(), "facility=${facility}");
 
 		// b. date chronic HIV+ care started
 		EnrollmentDateDataDefinition enrollmentDate = new EnrollmentDateDataDefinition();
-		dsd.addColumn("Date Chronic HIV Care Started", enrollmentDate, nullString);
+		addColumn(dsd, columns, shared, "Date Chronic HIV Care Started", enrollmentDate, nullString);
 
 		// extra column to help understand reason for including in this cohort
-		dsd.addColumn("First Encounter Date At Facility", new FirstEncounterAtFacilityDataDefinition(),
+		addColumn(dsd, columns, perFacility, "First Encounter Date At Facility", new FirstEncounterAtFacilityDataDefinition(),
 				"facility=${facility}", new EncounterDatetimeConverter());
 
 		// c. Unique Patient Number
 		PatientIdentifierType pit = service.getCCCNumberIdentifierType();
 		PatientIdentifierDataDefinition cccColumn = new PatientIdentifierDataDefinition("CCC", pit);
-		dsd.addColumn("Unique Patient Number", cccColumn, nullString, new MultiplePatientIdentifierConverter());
+		addColumn(dsd, columns, shared, "Unique Patient Number", cccColumn, nullString, new MultiplePatientIdentifierConverter());
 
 		List<PatientIdentifierType> idTypes = Context.getPatientService().getAllPatientIdentifierTypes();
 		idTypes.remove(pit);
 		PatientIdentifierDataDefinition idColumn = new PatientIdentifierDataDefinition("Identifier");
 		idColumn.setTypes(idTypes);
 		idColumn.setIncludeFirstNonNullOnly(true);
-		dsd.addColumn("AMPATH Identifier", idColumn, nullString);
+		addColumn(dsd, columns, shared, "AMPATH Identifier", idColumn, nullString);
 
 		// d. Patient's Name
-		dsd.addColumn("Name", new PreferredNameDataDefinition(), nullString);
+		addColumn(dsd, columns, shared, "Name", new PreferredNameDataDefinition(), nullString);
 
 		// e1. Date of Birth
-		dsd.addColumn("Date of Birth", new BirthdateDataDefinition(), nullString,
+		addColumn(dsd, columns, shared, "Date of Birth", new BirthdateDataDefinition(), nullString,
 				new BirthdateConverter(MOHReportUtil.DATE_FORMAT));
 
 		// e2. Age at Enrollment
@@ -144,17 +203,17 @@ public class MOH361AReportProvider implements ReportProvider {
 		mappedDef.addConverter(new DateConverter());
 		AgeAtDateOfOtherDataDefinition ageAtEnrollment = new AgeAtDateOfOtherDataDefinition();
 		ageAtEnrollment.setEffectiveDateDefinition(mappedDef);
-		dsd.addColumn("Age at Enrollment", ageAtEnrollment, nullString, new DecimalAgeConverter(2));
+		addColumn(dsd, columns, shared, "Age at Enrollment", ageAtEnrollment, nullString, new DecimalAgeConverter(2));
 
 		// f. Sex
-		dsd.addColumn("Sex", new GenderDataDefinition(), nullString);
+		addColumn(dsd, columns, shared, "Sex", new GenderDataDefinition(), nullString);
 
 		// g. Entry point: From where?
 		PersonAttributeType pat = Context.getPersonService().getPersonAttributeTypeByName(MohEvaluableNameConstants.POINT_OF_HIV_TESTING);
-		dsd.addColumn("Entry Point", new PersonAttributeDataDefinition("entryPoint", pat), nullString, new EntryPointConverter());
+		addColumn(dsd, columns, shared, "Entry Point", new PersonAttributeDataDefinition("entryPoint", pat), nullString, new EntryPointConverter());
 
 		// h. Confirmed HIV+ Date
-		dsd.addColumn("Confirmed HIV Date", enrollmentDate, nullString);
+		addColumn(dsd, columns, shared, "Confirmed HIV Date", enrollmentDate, nullString);
 
 //		// i. PEP Start / Stop Date
 //		LogicDataDefinition columnI = new LogicDataDefinition();
@@ -167,48 +226,72 @@ public class MOH361AReportProvider implements ReportProvider {
 //		dsd.addColumn("Reasons for PEP Use", columnJ, nullString);
 
 		// k. CTX startdate and stopdate:
-		dsd.addColumn("CTX Start Stop Date", new CtxStartStopDataDefinition(), nullString);
+		addColumn(dsd, columns, shared, "CTX Start Stop Date", new CtxStartStopDataDefinition(), nullString);
 
 		// l. Fluconazole startdate and stopdate
-		dsd.addColumn("Fluconazole Start Stop Date", new FluconazoleStartStopDataDefinition(), nullString);
+		addColumn(dsd, columns, shared, "Fluconazole Start Stop Date", new FluconazoleStartStopDataDefinition(), nullString);
 
 		// m. TB treatment startdate and stopdate
-		dsd.addColumn("TB Treatment Start Stop Date", new TbStartStopDataDefinition(), nullString);
+		addColumn(dsd, columns, shared, "TB Treatment Start Stop Date", new TbStartStopDataDefinition(), nullString);
 
 		// n. Pregnancy Yes?, Due date, PMTCT refer
-		dsd.addColumn("Pregnancy EDD and Referral", new PmtctPregnancyDataDefinition(), nullString);
+		addColumn(dsd, columns, shared, "Pregnancy EDD and Referral", new PmtctPregnancyDataDefinition(), nullString);
 
 		// o. LTFU / TO / Dead and date when the event occurred
-		dsd.addColumn("LTFU TO DEAD", new LTFUTODeadDataDefinition(), nullString, nullStringConverter);
+		addColumn(dsd, columns, shared, "LTFU TO DEAD", new LTFUTODeadDataDefinition(), nullString, nullStringConverter);
 
 		// p. WHO clinical Stage and date
-		dsd.addColumn("WHO Clinical Stage", new FirstWHOStageDataDefinition(), nullString, new WHOStageAndDateConverter());
+		addColumn(dsd, columns, shared, "WHO Clinical Stage", new FirstWHOStageDataDefinition(), nullString, new WHOStageAndDateConverter());
 
 		// q. Date medically eligible for ART
 		EligibilityForARTDataDefinition eligibility = new EligibilityForARTDataDefinition();
-		dsd.addColumn("Date Medically Eligible for ART", eligibility, nullString, new ARVPatientSnapshotDateConverter());
+		addColumn(dsd, columns, shared, "Date Medically Eligible for ART", eligibility, nullString, new ARVPatientSnapshotDateConverter());
 
 		// r. Reason Medically Eligible for ART
-		dsd.addColumn("Reason Medically Eligible for ART", eligibility, nullString, new ARVPatientSnapshotReasonConverter());
+		addColumn(dsd, columns, shared, "Reason Medically Eligible for ART", eligibility, nullString, new ARVPatientSnapshotReasonConverter());
 
 		// s. Date ART started (Transfer to ART register)
-		dsd.addColumn("Date ART Started", new DateARTStartedDataDefinition(), nullString);
+		addColumn(dsd, columns, shared, "Date ART Started", new DateARTStartedDataDefinition(), nullString);
 
 		// additional columns for troubleshooting
 		LastHIVEncounterDataDefinition lastHIVEncounter = new LastHIVEncounterDataDefinition();
-		dsd.addColumn("Last HIV Encounter Date", lastHIVEncounter, nullString, new EncounterDatetimeConverter());
-		dsd.addColumn("Last HIV Encounter Location", lastHIVEncounter, nullString, new EncounterLocationConverter());
+		addColumn(dsd, columns, shared, "Last HIV Encounter Date", lastHIVEncounter, nullString, new EncounterDatetimeConverter());
+		addColumn(dsd, columns, shared, "Last HIV Encounter Location", lastHIVEncounter, nullString, new EncounterLocationConverter());
 
 		// informative column for the destination clinics
-		dsd.addColumn("Last Return to Clinic Date", new LastRTCDateDataDefinition(), nullString, new ObsValueDatetimeConverter());
+		addColumn(dsd, columns, shared, "Last Return to Clinic Date", new LastRTCDateDataDefinition(), nullString, new ObsValueDatetimeConverter());
 
 		Map<String, Object> mappings = new HashMap<String, Object>();
-		mappings.put("facility", "${facility}");
+		if (perFacility)
+			mappings.put("facility", "${facility}");
 		report.addDataSetDefinition(dsd, mappings);
 
 		return report;
 	}
 
+	private void addColumn(PatientDataSetDefinition dsd, Columns columns, boolean include, String name,
+	                       DataDefinition definition, String mappings, DataConverter... converters) {
+		columns.names.add(name);
+		if (definition instanceof ObsIndexedDataDefinition)
+			columns.indexedConceptIds.addAll(((ObsIndexedDataDefinition) definition).getIndexedConceptIds());
+		if (definition instanceof IndependentDataDefinition && definition instanceof PersonDataDefinition)
+			columns.independentDefinitions.add((PersonDataDefinition) definition);
+		if (include)
+			dsd.addColumn(name, definition, mappings, converters);
+	}
+
+	/**
+	 * what building the full report tells about its columns
+	 */
+	private static class Columns {
+
+		private final List<String> names = new ArrayList<String>();
+
+		private final Set<Integer> indexedConceptIds = new HashSet<Integer>();
+
+		private final List<PersonDataDefinition> independentDefinitions = new ArrayList<PersonDataDefinition>();
+	}
+
 	@Override
 	public CohortDefinition getCohortDefinition() {
 		return new Moh361ACohortDefinition();
@@ -0,0 +1,40 @@
+package org.openmrs.module.amrsreports.service;
+
+import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.amrsreports.BuildCheckpoint;
+import org.openmrs.module.amrsreports.BuildHistory;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+/**
+ * Service for recording and reviewing derived table builds
+ */
+public interface BuildHistoryService extends OpenmrsService {
+
+	@Transactional
+	public BuildHistory saveBuildHistory(BuildHistory buildHistory);
+
+	/**
+	 * @param builds number of most recent builds to include
+	 * @return all steps recorded for the most recent builds, ordered by start date
+	 */
+	@Transactional(readOnly = true)
+	public List<BuildHistory> getRecentBuildHistory(Integer builds);
+
+	@Transactional(readOnly = true)
+	public List<BuildHistory> getBuildHistoryForBuild(String buildId);
+
+	@Transactional
+	public BuildCheckpoint saveBuildCheckpoint(BuildCheckpoint buildCheckpoint);
+
+	@Transactional(readOnly = true)
+	public List<BuildCheckpoint> getBuildCheckpoints(String buildId);
+
+	/**
+	 * @param completedStep the checkpoint step that marks a build as finished
+	 * @return the id of the most recent build, if it has checkpoints but never reached the given step, or null
+	 */
+	@Transactional(readOnly = true)
+	public String getUnfinishedBuildId(String completedStep);
+}
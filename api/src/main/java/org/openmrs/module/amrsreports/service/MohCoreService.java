@@ -29,6 +29,8 @@ import org.openmrs.User;
 import org.openmrs.annotation.Authorized;
 import org.openmrs.api.APIException;
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
+import org.openmrs.module.amrsreports.cache.PatientDates;
 import org.openmrs.module.amrsreports.model.WHOStageAndDate;
 import org.openmrs.module.amrsreports.util.MohFetchRestriction;
 import org.openmrs.util.PrivilegeConstants;
@@ -157,6 +159,51 @@ public interface MohCoreService extends OpenmrsService {
 	@Transactional(readOnly=true)
 	public Map<Integer,WHOStageAndDate> getWHOStageAndDateMap(Set<Integer> cohort);
 
+	/**
+	 * loads the obs of the given concepts for a cohort into an index the report columns can share
+	 *
+	 * @param cohort the people to load obs for, or null for everyone
+	 * @param conceptIds the question concepts to load obs for
+	 * @param onOrBefore the latest obs date to load
+	 */
+	@Transactional(readOnly=true)
+	public ObsIndex getObsIndex(Set<Integer> cohort, Collection<Integer> conceptIds, Date onOrBefore);
+
+	/**
+	 * runs a native SQL query selecting a person id and a date, keeping only those two values of each row instead of
+	 * loading entities.  The query joins the cohort as the table {cohort}, which has a person_id column; the cohort is
+	 * written to a temporary table for it rather than listed in the query.
+	 *
+	 * @param sql a query of the form "select [person id], [date] from ... join {cohort} cohort on ..."
+	 * @param cohort the people to query, or null for everyone
+	 * @param parameters named parameters of the query; collections are bound as lists
+	 */
+	@Transactional(readOnly=true)
+	public PatientDates getPatientDates(String sql, Set<Integer> cohort, Map<String, Object> parameters);
+
+	/**
+	 * runs a native SQL query for the encounters of a cohort, aliased as e and joining the cohort as the table
+	 * {cohort} the same way as {@link #getPatientDates(String, Set, Map)}
+	 *
+	 * @param sql a query of the form "select {e.*} from encounter e join {cohort} cohort on ..."
+	 * @param cohort the people to query, or null for everyone
+	 * @param parameters named parameters of the query; collections are bound as lists
+	 */
+	@Transactional(readOnly=true)
+	public List<Encounter> getCohortEncounters(String sql, Set<Integer> cohort, Map<String, Object> parameters);
+
+	/**
+	 * stamps the obs, encounters and person records of a cohort with how many there are and when they were last
+	 * created, changed or voided, so data evaluated from them can be told apart from data evaluated before any of them
+	 * changed.  The stamp is only meant to be compared with another from this method.
+	 *
+	 * @param cohort the people to stamp the records of, or null for everyone
+	 * @should change when an obs of the cohort is added or voided
+	 * @should not change for records of people outside the cohort
+	 */
+	@Transactional(readOnly=true)
+	public String getRecordsStamp(Set<Integer> cohort);
+
 	@Transactional(readOnly=true)
 	public PatientIdentifierType getCCCNumberIdentifierType();
 }
\ No newline at end of file
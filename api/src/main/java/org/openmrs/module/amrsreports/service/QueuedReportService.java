@@ -1,10 +1,16 @@
 package org.openmrs.module.amrsreports.service;
 
 import org.openmrs.module.amrsreports.QueuedReport;
+import org.openmrs.module.amrsreports.util.ReportProgress;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.io.IOException;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -15,12 +21,95 @@ public interface QueuedReportService {
 	@Transactional(readOnly = true)
 	public QueuedReport getNextQueuedReport();
 
+	/**
+	 * atomically leases the first report in the queue order that is either new or running under an expired lease, so
+	 * that no other server or thread sharing the database can claim it until the lease runs out
+	 *
+	 * @param leaseOwner identifies the server claiming the report
+	 * @param leaseMinutes how long the lease lasts unless renewed
+	 * @return the claimed report, now marked as running, or null if there is nothing to claim
+	 */
+	@Transactional
+	public QueuedReport claimNextQueuedReport(String leaseOwner, int leaseMinutes);
+
+	/**
+	 * orders the reports that could be claimed at the given date by priority, aging and fair share between requesters
+	 *
+	 * @see org.openmrs.module.amrsreports.util.QueuedReportScheduler
+	 */
+	@Transactional(readOnly = true)
+	public List<QueuedReport> getQueueOrder(Date date);
+
+	/**
+	 * extends the leases on all running reports held by the given owner
+	 *
+	 * @return the number of leases renewed
+	 */
+	@Transactional
+	public int renewLeases(String leaseOwner, int leaseMinutes);
+
 	@Transactional
 	void processQueuedReport(QueuedReport queuedReport) throws EvaluationException, IOException;
 
+	/**
+	 * leases the other reports in the same batch as an already claimed report, for the same report and date
+	 *
+	 * @return the claimed report followed by any others in its batch that could be claimed
+	 */
+	@Transactional
+	public List<QueuedReport> claimQueuedReportBatch(QueuedReport queuedReport, String leaseOwner, int leaseMinutes);
+
+	/**
+	 * processes reports for several facilities together; when the report supports it, the columns that do not
+	 * depend on the facility are evaluated once for the patients of all facilities
+	 *
+	 * @see org.openmrs.module.amrsreports.reporting.provider.BatchReportProvider
+	 */
+	@Transactional
+	void processQueuedReportBatch(List<QueuedReport> batch) throws EvaluationException, IOException;
+
+	/**
+	 * evaluates a report definition for a block of a report's patients in a transaction and session of its own, so the
+	 * entities loaded for the block are let go as soon as it is evaluated, without detaching anything from the session
+	 * of the report being processed
+	 *
+	 * @param reportName the name of the report provider the definition belongs to
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW, readOnly = true)
+	public ReportData evaluateReportChunk(String reportName, ReportDefinition reportDefinition, EvaluationContext context)
+			throws EvaluationException;
+
 	@Transactional
 	public QueuedReport saveQueuedReport(QueuedReport queuedReport);
 
+	/**
+	 * writes a report's progress in its own transaction, so it can be seen while the report is still being processed
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	public void saveQueuedReportProgress(Integer queuedReportId, ReportProgress progress);
+
+	/**
+	 * @return the average time recent completed evaluations of the named report took per patient, or null if unknown
+	 */
+	@Transactional(readOnly = true)
+	public Long getHistoricalMillisPerPatient(String reportName);
+
+	/**
+	 * cancels a queued report: a new report is cancelled straight away, while a running report is asked to stop, and
+	 * stops at its next check, killing any queries it has in flight
+	 *
+	 * @return true if the report was cancelled or asked to stop
+	 */
+	@Transactional
+	public boolean cancelQueuedReport(QueuedReport queuedReport);
+
+	/**
+	 * stops running reports held by the given owner whose cancellation was requested on another server, and marks
+	 * reports cancelled if their server went away after cancellation was requested
+	 */
+	@Transactional
+	public void processCancellationRequests(String leaseOwner);
+
 	@Transactional
 	public void purgeQueuedReport(QueuedReport queuedReport);
 
@@ -0,0 +1,61 @@
+package org.openmrs.module.amrsreports.service.impl;
+
+import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.amrsreports.BuildCheckpoint;
+import org.openmrs.module.amrsreports.BuildHistory;
+import org.openmrs.module.amrsreports.db.BuildHistoryDAO;
+import org.openmrs.module.amrsreports.service.BuildHistoryService;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Implementation of {@link BuildHistoryService}
+ */
+public class BuildHistoryServiceImpl extends BaseOpenmrsService implements BuildHistoryService {
+
+	private BuildHistoryDAO dao;
+
+	public void setDao(BuildHistoryDAO dao) {
+		this.dao = dao;
+	}
+
+	@Override
+	public BuildHistory saveBuildHistory(BuildHistory buildHistory) {
+		return dao.saveBuildHistory(buildHistory);
+	}
+
+	@Override
+	public List<BuildHistory> getRecentBuildHistory(Integer builds) {
+		return dao.getBuildHistoryForBuilds(dao.getRecentBuildIds(builds));
+	}
+
+	@Override
+	public List<BuildHistory> getBuildHistoryForBuild(String buildId) {
+		return dao.getBuildHistoryForBuilds(Collections.singletonList(buildId));
+	}
+
+	@Override
+	public BuildCheckpoint saveBuildCheckpoint(BuildCheckpoint buildCheckpoint) {
+		return dao.saveBuildCheckpoint(buildCheckpoint);
+	}
+
+	@Override
+	public List<BuildCheckpoint> getBuildCheckpoints(String buildId) {
+		return dao.getBuildCheckpoints(buildId);
+	}
+
+	@Override
+	public String getUnfinishedBuildId(String completedStep) {
+		String buildId = dao.getLastCheckpointedBuildId();
+		if (buildId == null)
+			return null;
+
+		for (BuildCheckpoint checkpoint : dao.getBuildCheckpoints(buildId)) {
+			if (completedStep.equals(checkpoint.getStep()))
+				return null;
+		}
+
+		return buildId;
+	}
+}
@@ -26,6 +26,8 @@ import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.amrsreports.AmrsReportsConstants;
 import org.openmrs.module.amrsreports.UserFacility;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
+import org.openmrs.module.amrsreports.cache.PatientDates;
 import org.openmrs.module.amrsreports.db.MohCoreDAO;
 import org.openmrs.module.amrsreports.model.WHOStageAndDate;
 import org.openmrs.module.amrsreports.service.MohCoreService;
@@ -123,6 +125,26 @@ public class MohCoreServiceImpl extends BaseOpenmrsService implements MohCoreSer
 		return mohCoreDAO.getWHOStageAndDateMap(cohort);
 	}
 
+	@Override
+	public ObsIndex getObsIndex(Set<Integer> cohort, Collection<Integer> conceptIds, Date onOrBefore) {
+		return mohCoreDAO.getObsIndex(cohort, conceptIds, onOrBefore);
+	}
+
+	@Override
+	public PatientDates getPatientDates(String sql, Set<Integer> cohort, Map<String, Object> parameters) {
+		return mohCoreDAO.getPatientDates(sql, cohort, parameters);
+	}
+
+	@Override
+	public List<Encounter> getCohortEncounters(String sql, Set<Integer> cohort, Map<String, Object> parameters) {
+		return mohCoreDAO.getCohortEncounters(sql, cohort, parameters);
+	}
+
+	@Override
+	public String getRecordsStamp(Set<Integer> cohort) {
+		return mohCoreDAO.getRecordsStamp(cohort);
+	}
+
 	@Override
 	public PatientIdentifierType getCCCNumberIdentifierType() {
 		String typeId = Context.getAdministrationService().getGlobalProperty(AmrsReportsConstants.GP_CCC_NUMBER_IDENTIFIER_TYPE);
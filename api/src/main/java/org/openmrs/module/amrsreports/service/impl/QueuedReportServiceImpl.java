@@ -1,6 +1,9 @@
 package org.openmrs.module.amrsreports.service.impl;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.DateUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Cohort;
@@ -8,14 +11,35 @@ import org.openmrs.Location;
 import org.openmrs.api.APIException;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.Module;
+import org.openmrs.module.ModuleFactory;
+import org.openmrs.module.amrsreports.AmrsReportsConstants;
 import org.openmrs.module.amrsreports.QueuedReport;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
+import org.openmrs.module.amrsreports.cache.PersonDataCache;
 import org.openmrs.module.amrsreports.db.QueuedReportDAO;
+import org.openmrs.module.amrsreports.reporting.provider.BatchReportProvider;
 import org.openmrs.module.amrsreports.reporting.provider.ReportProvider;
 import org.openmrs.module.amrsreports.service.QueuedReportService;
 import org.openmrs.module.amrsreports.service.ReportProviderRegistrar;
+import org.openmrs.module.amrsreports.util.CancellationToken;
+import org.openmrs.module.amrsreports.util.ConcurrentColumns;
 import org.openmrs.module.amrsreports.util.MOHReportUtil;
+import org.openmrs.module.amrsreports.util.OperationCancelledException;
+import org.openmrs.module.amrsreports.util.QueuedReportScheduler;
+import org.openmrs.module.amrsreports.util.ReportEvaluationLimiter;
+import org.openmrs.module.amrsreports.util.ReportProgress;
+import org.openmrs.module.amrsreports.util.ReportRowSink;
+import org.openmrs.module.amrsreports.util.SpreadsheetTemplate;
+import org.openmrs.module.amrsreports.util.StreamingReportWriter;
+import org.openmrs.module.amrsreports.util.TableBuilderUtil;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.SimpleDataSet;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 import org.openmrs.module.reporting.report.ReportData;
@@ -33,14 +57,29 @@ import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
 
 /**
  * Implementation of {@link QueuedReportService}
  */
 public class QueuedReportServiceImpl implements QueuedReportService {
 
+	private static final int DEFAULT_AGING_MINUTES = 60;
+
+	private static final String MODULE_ID = "amrsreports";
+
+	// number of recent reports whose timings are used to estimate completion
+	private static final int HISTORICAL_REPORTS = 10;
+
 	private QueuedReportDAO dao;
 	private final Log log = LogFactory.getLog(this.getClass());
 
@@ -53,15 +92,45 @@ public class QueuedReportServiceImpl implements QueuedReportService {
 		return dao.getNextQueuedReport(new Date());
 	}
 
+	@Override
+	public QueuedReport claimNextQueuedReport(String leaseOwner, int leaseMinutes) {
+		Date now = new Date();
+		Date leaseExpiry = DateUtils.addMinutes(now, leaseMinutes);
+
+		// try the reports in the order they should be served; another server may claim some of them first
+		for (QueuedReport candidate : getQueueOrder(now)) {
+			QueuedReport claimed = dao.claimQueuedReport(candidate.getId(), now, leaseOwner, leaseExpiry);
+			if (claimed != null)
+				return claimed;
+		}
+
+		return null;
+	}
+
+	@Override
+	public List<QueuedReport> getQueueOrder(Date date) {
+		QueuedReportScheduler scheduler = new QueuedReportScheduler(
+				TableBuilderUtil.getIntegerGlobalProperty(AmrsReportsConstants.GP_QUEUE_AGING_MINUTES, DEFAULT_AGING_MINUTES),
+				Context.getAdministrationService().getGlobalProperty(AmrsReportsConstants.GP_QUEUE_FAIR_SHARE_BY));
+
+		return scheduler.order(dao.getClaimableQueuedReports(date), dao.getLeasedQueuedReports(date), date);
+	}
+
+	@Override
+	public int renewLeases(String leaseOwner, int leaseMinutes) {
+		return dao.renewLeases(leaseOwner, DateUtils.addMinutes(new Date(), leaseMinutes));
+	}
+
 	@Override
 	public void processQueuedReport(QueuedReport queuedReport) throws EvaluationException, IOException {
 
 		// validate
-		if (queuedReport.getReportName() == null)
-			throw new APIException("The queued report must reference a report provider by name.");
+		validate(queuedReport);
 
-		if (queuedReport.getFacility() == null)
-			throw new APIException("The queued report must reference a facility.");
+		// the same report may already have been run against the same tables
+		String contentKey = getContentKey(queuedReport);
+		if (reuseCompletedReport(queuedReport, contentKey))
+			return;
 
 		// find the report provider
 		ReportProvider reportProvider = ReportProviderRegistrar.getInstance().getReportProviderByName(queuedReport.getReportName());
@@ -69,6 +138,570 @@ public class QueuedReportServiceImpl implements QueuedReportService {
 		CohortDefinition cohortDefinition = reportProvider.getCohortDefinition();
 
 		// try rendering the report
+		EvaluationContext evaluationContext = createEvaluationContext(queuedReport);
+
+		// get the time the report was started (not finished)
+		Date startTime = Calendar.getInstance().getTime();
+
+		List<String> columns = null;
+		if (reportProvider instanceof BatchReportProvider)
+			columns = ((BatchReportProvider) reportProvider).getColumnNames();
+
+		List<QueuedReport> reports = Collections.singletonList(queuedReport);
+		CancellationToken token = startCancellation(reports);
+		ReportProgress progress = startProgress(reports, columns, startTime);
+		ReportOutput output = null;
+		try {
+			output = new ReportOutput(queuedReport, contentKey, reportProvider, startTime, evaluationContext);
+
+			// wait for a turn to evaluate, so parallel workers do not overload the database
+			Semaphore permit = acquireEvaluationPermit(queuedReport);
+
+			// only set if the report is evaluated at once; reports evaluated in blocks pass their rows to the output
+			ReportData reportData = null;
+			try {
+				startObsIndexScope(reportProvider);
+
+				// get the cohort
+				token.check();
+				progress.startPhase(ReportProgress.PHASE_COHORT);
+				CohortDefinitionService cohortDefinitionService = Context.getService(CohortDefinitionService.class);
+				Cohort cohort = cohortDefinitionService.evaluate(cohortDefinition, evaluationContext);
+				evaluationContext.setBaseCohort(cohort);
+				progress.addPatients(cohort.size());
+
+				token.check();
+				int chunkSize = getChunkSize();
+				if (chunkSize > 0 && cohort.size() > chunkSize) {
+					evaluateInChunks(reportProvider, queuedReport, evaluationContext, chunkSize, progress, token,
+							output.getSink());
+				} else {
+					progress.startColumns();
+					reportData = evaluateReport(reportProvider, reportDefinition, evaluationContext);
+				}
+
+				// reports without a list of columns only learn the columns are done here
+				progress.finishColumns();
+			} finally {
+				ObsIndex.endScope();
+				PersonDataCache.endScope();
+				permit.release();
+			}
+
+			output.write(reportData, progress);
+
+			progress.complete();
+		} catch (RuntimeException e) {
+			rethrowIfCancelled(token, e);
+			throw e;
+		} catch (EvaluationException e) {
+			rethrowIfCancelled(token, e);
+			throw e;
+		} catch (IOException e) {
+			rethrowIfCancelled(token, e);
+			throw e;
+		} finally {
+			if (output != null)
+				output.discard();
+			ReportProgress.setCurrent(null);
+			finishCancellation(reports);
+		}
+
+		Context.getService(QueuedReportService.class).saveQueuedReport(queuedReport);
+	}
+
+	@Override
+	public List<QueuedReport> claimQueuedReportBatch(QueuedReport queuedReport, String leaseOwner, int leaseMinutes) {
+		List<QueuedReport> batch = new ArrayList<QueuedReport>();
+		batch.add(queuedReport);
+
+		if (queuedReport.getBatchId() == null)
+			return batch;
+
+		Date now = new Date();
+		Date leaseExpiry = DateUtils.addMinutes(now, leaseMinutes);
+
+		for (QueuedReport candidate : dao.getClaimableQueuedReports(now)) {
+			if (queuedReport.getBatchId().equals(candidate.getBatchId())
+					&& OpenmrsUtil.nullSafeEquals(queuedReport.getReportName(), candidate.getReportName())
+					&& OpenmrsUtil.nullSafeEquals(queuedReport.getEvaluationDate(), candidate.getEvaluationDate())) {
+
+				QueuedReport claimed = dao.claimQueuedReport(candidate.getId(), now, leaseOwner, leaseExpiry);
+				if (claimed != null)
+					batch.add(claimed);
+			}
+		}
+
+		return batch;
+	}
+
+	@Override
+	public void processQueuedReportBatch(List<QueuedReport> batch) throws EvaluationException, IOException {
+		if (batch == null || batch.isEmpty())
+			return;
+
+		QueuedReport first = batch.get(0);
+		for (QueuedReport queuedReport : batch) {
+			validate(queuedReport);
+			if (!queuedReport.getReportName().equals(first.getReportName())
+					|| !OpenmrsUtil.nullSafeEquals(queuedReport.getEvaluationDate(), first.getEvaluationDate()))
+				throw new APIException("All reports in a batch must be the same report as of the same date.");
+		}
+
+		// only evaluate the facilities whose reports have not already been run against the same tables
+		List<QueuedReport> remaining = new ArrayList<QueuedReport>();
+		Map<QueuedReport, String> contentKeys = new HashMap<QueuedReport, String>();
+		for (QueuedReport queuedReport : batch) {
+			String contentKey = getContentKey(queuedReport);
+			if (!reuseCompletedReport(queuedReport, contentKey)) {
+				contentKeys.put(queuedReport, contentKey);
+				remaining.add(queuedReport);
+			}
+		}
+
+		if (remaining.isEmpty())
+			return;
+
+		batch = remaining;
+		first = batch.get(0);
+
+		ReportProvider reportProvider = ReportProviderRegistrar.getInstance().getReportProviderByName(first.getReportName());
+
+		// reports that cannot share their evaluation are simply run one by one
+		if (batch.size() == 1 || !(reportProvider instanceof BatchReportProvider)) {
+			for (QueuedReport queuedReport : batch) {
+				processQueuedReport(queuedReport);
+			}
+			return;
+		}
+
+		BatchReportProvider batchProvider = (BatchReportProvider) reportProvider;
+		Date startTime = Calendar.getInstance().getTime();
+
+		Map<QueuedReport, ReportOutput> outputs = new LinkedHashMap<QueuedReport, ReportOutput>();
+
+		// only filled if the facilities are evaluated at once; otherwise their rows are passed to their outputs
+		Map<QueuedReport, ReportData> results = new HashMap<QueuedReport, ReportData>();
+
+		CancellationToken token = startCancellation(batch);
+		ReportProgress progress = startProgress(batch, null, startTime);
+		try {
+			Semaphore permit = acquireEvaluationPermit(first);
+			try {
+				startObsIndexScope(batchProvider);
+
+				CohortDefinitionService cohortDefinitionService = Context.getService(CohortDefinitionService.class);
+				ReportDefinitionService reportDefinitionService = Context.getService(ReportDefinitionService.class);
+
+				// evaluate each facility's cohort, and everyone in any of them
+				progress.startPhase(ReportProgress.PHASE_COHORT);
+				Map<QueuedReport, EvaluationContext> contexts = new LinkedHashMap<QueuedReport, EvaluationContext>();
+				Cohort everyone = new Cohort();
+
+				for (QueuedReport queuedReport : batch) {
+					token.check();
+					EvaluationContext context = createEvaluationContext(queuedReport);
+					Cohort cohort = cohortDefinitionService.evaluate(batchProvider.getCohortDefinition(), context);
+					context.setBaseCohort(cohort);
+					contexts.put(queuedReport, context);
+					everyone = Cohort.union(everyone, cohort);
+
+					outputs.put(queuedReport, new ReportOutput(queuedReport, contentKeys.get(queuedReport),
+							reportProvider, startTime, context));
+				}
+				progress.addPatients(everyone.size());
+
+				// the facility columns, which decide the row order, are evaluated for each facility
+				ReportDefinition facilityDefinition = batchProvider.getFacilityReportDefinition();
+				Map<QueuedReport, ReportData> facilityData = new LinkedHashMap<QueuedReport, ReportData>();
+
+				for (QueuedReport queuedReport : batch) {
+					token.check();
+					facilityData.put(queuedReport, reportDefinitionService.evaluate(facilityDefinition,
+							contexts.get(queuedReport)));
+				}
+
+				long started = System.currentTimeMillis();
+				int chunkSize = getChunkSize();
+
+				if (chunkSize > 0 && everyone.size() > chunkSize) {
+					// too many patients to evaluate at once, so each facility's rows are evaluated in blocks
+					for (QueuedReport queuedReport : batch) {
+						joinSharedColumnsInChunks(batchProvider, first.getReportName(),
+								getOnlyDataSet(facilityData.get(queuedReport)), first.getEvaluationDate(), chunkSize,
+								progress, token, outputs.get(queuedReport).getSink());
+					}
+				} else {
+					// the columns that do not depend on the facility are evaluated only once
+					DataSet shared = evaluateSharedColumns(batchProvider, first.getEvaluationDate(), everyone,
+							progress, token);
+
+					// then each facility's rows are joined with the shared columns
+					for (QueuedReport queuedReport : batch) {
+						EvaluationContext context = contexts.get(queuedReport);
+						results.put(queuedReport, joinDataSets(batchProvider, facilityData.get(queuedReport), shared,
+								context));
+					}
+				}
+
+				log.info(String.format("Evaluated shared columns of %s for %d patients in %d facilities in %d ms",
+						first.getReportName(), everyone.size(), batch.size(), System.currentTimeMillis() - started));
+
+				progress.finishColumns();
+			} finally {
+				ObsIndex.endScope();
+				PersonDataCache.endScope();
+				permit.release();
+			}
+
+			for (Map.Entry<QueuedReport, ReportOutput> output : outputs.entrySet()) {
+				output.getValue().write(results.get(output.getKey()), progress);
+			}
+
+			progress.complete();
+		} catch (RuntimeException e) {
+			rethrowIfCancelled(token, e);
+			throw e;
+		} catch (EvaluationException e) {
+			rethrowIfCancelled(token, e);
+			throw e;
+		} catch (IOException e) {
+			rethrowIfCancelled(token, e);
+			throw e;
+		} finally {
+			for (ReportOutput output : outputs.values()) {
+				output.discard();
+			}
+			ReportProgress.setCurrent(null);
+			finishCancellation(batch);
+		}
+
+		for (QueuedReport queuedReport : batch) {
+			Context.getService(QueuedReportService.class).saveQueuedReport(queuedReport);
+		}
+	}
+
+	/**
+	 * lets the report's obs-based columns read their obs from one index per cohort while it is evaluated on this
+	 * thread, instead of each column querying obs on its own, and reads the column cache's settings and records stamps
+	 * once for all of its columns
+	 */
+	private void startObsIndexScope(ReportProvider reportProvider) {
+		if (reportProvider instanceof BatchReportProvider)
+			ObsIndex.startScope(((BatchReportProvider) reportProvider).getIndexedConceptIds());
+		PersonDataCache.startScope();
+	}
+
+	/**
+	 * evaluates a report for the context's base cohort in blocks of patients, handing each block's rows to the sink
+	 * before the next block is evaluated.  Each block is evaluated in a session of its own, so only one block's
+	 * entities are held at a time.  Reports split into shared and facility columns first evaluate their facility
+	 * columns, which decide the row order, for the whole cohort -- only those few values are held for every patient --
+	 * and take the blocks in that order; other reports are evaluated whole for each block, in order of patient id.
+	 */
+	private void evaluateInChunks(ReportProvider reportProvider, QueuedReport queuedReport, EvaluationContext context,
+	                              int chunkSize, ReportProgress progress, CancellationToken token, ReportRowSink sink)
+			throws EvaluationException, IOException {
+
+		if (reportProvider instanceof BatchReportProvider) {
+			BatchReportProvider batchProvider = (BatchReportProvider) reportProvider;
+			ReportData facilityData = Context.getService(ReportDefinitionService.class).evaluate(
+					batchProvider.getFacilityReportDefinition(), context);
+			joinSharedColumnsInChunks(batchProvider, queuedReport.getReportName(), getOnlyDataSet(facilityData),
+					queuedReport.getEvaluationDate(), chunkSize, progress, token, sink);
+			return;
+		}
+
+		ReportDefinition reportDefinition = reportProvider.getReportDefinition();
+		QueuedReportService service = Context.getService(QueuedReportService.class);
+
+		for (Cohort chunk : splitCohort(context.getBaseCohort(), chunkSize)) {
+			token.check();
+			EvaluationContext chunkContext = createEvaluationContext(queuedReport);
+			chunkContext.setBaseCohort(chunk);
+
+			progress.startColumns();
+			sink.addRows(getOnlyDataSet(service.evaluateReportChunk(queuedReport.getReportName(), reportDefinition,
+					chunkContext)));
+		}
+	}
+
+	/**
+	 * evaluates the shared columns for a facility's rows a block at a time, in the order of the facility's rows, and
+	 * hands each block of joined rows to the sink
+	 */
+	private void joinSharedColumnsInChunks(BatchReportProvider provider, String reportName, DataSet facility,
+	                                       Date evaluationDate, int chunkSize, ReportProgress progress,
+	                                       CancellationToken token, ReportRowSink sink)
+			throws EvaluationException, IOException {
+
+		QueuedReportService service = Context.getService(QueuedReportService.class);
+		List<DataSetRow> block = new ArrayList<DataSetRow>();
+		Iterator<DataSetRow> rows = facility.iterator();
+
+		// a facility without rows still passes on one empty block, which starts its files
+		do {
+			while (block.size() < chunkSize && rows.hasNext()) {
+				block.add(rows.next());
+			}
+
+			token.check();
+			Cohort chunk = new Cohort();
+			for (DataSetRow row : block) {
+				chunk.addMember((Integer) row.getColumnValue(provider.getPersonIdColumn()));
+			}
+
+			EvaluationContext chunkContext = new EvaluationContext();
+			chunkContext.setEvaluationDate(evaluationDate);
+			chunkContext.setBaseCohort(chunk);
+
+			progress.startColumns();
+			DataSet shared = getOnlyDataSet(service.evaluateReportChunk(reportName,
+					provider.getSharedReportDefinition(), chunkContext));
+			sink.addRows(joinRows(provider, facility, block, shared, chunkContext));
+
+			block.clear();
+		} while (rows.hasNext());
+	}
+
+	/**
+	 * evaluates the columns that do not depend on the facility for everyone in the cohort
+	 */
+	private DataSet evaluateSharedColumns(BatchReportProvider batchProvider, Date evaluationDate, Cohort cohort,
+	                                      ReportProgress progress, CancellationToken token)
+			throws EvaluationException {
+
+		EvaluationContext sharedContext = new EvaluationContext();
+		sharedContext.setEvaluationDate(evaluationDate);
+		sharedContext.setBaseCohort(cohort);
+
+		token.check();
+		progress.startColumns();
+		return getOnlyDataSet(evaluateReport(batchProvider, batchProvider.getSharedReportDefinition(), sharedContext));
+	}
+
+	/**
+	 * the block's queries run on this transaction's own connection, so that connection is registered with the
+	 * report's cancellation token while the block is evaluated
+	 */
+	@Override
+	public ReportData evaluateReportChunk(String reportName, ReportDefinition reportDefinition, EvaluationContext context)
+			throws EvaluationException {
+
+		ReportProvider reportProvider = ReportProviderRegistrar.getInstance().getReportProviderByName(reportName);
+
+		CancellationToken token = CancellationToken.getCurrent();
+		Long connectionId = null;
+		if (token != null) {
+			try {
+				connectionId = dao.getDatabaseConnectionId();
+				token.addConnectionId(connectionId);
+			} catch (Exception e) {
+				// cancelling still stops the report between blocks
+				log.debug("Could not find the database connection for " + reportName, e);
+			}
+		}
+
+		try {
+			return evaluateReport(reportProvider, reportDefinition, context);
+		} finally {
+			if (token != null)
+				token.removeConnectionId(connectionId);
+		}
+	}
+
+	/**
+	 * evaluates a report definition, first evaluating the report's independent columns alongside each other if more
+	 * than one column thread is configured
+	 */
+	private ReportData evaluateReport(ReportProvider reportProvider, ReportDefinition reportDefinition,
+	                                  EvaluationContext context) throws EvaluationException {
+
+		int threads = getColumnThreads();
+		if (threads > 1 && reportProvider instanceof BatchReportProvider) {
+			List<PersonDataDefinition> independent = ((BatchReportProvider) reportProvider).getIndependentDefinitions();
+			ConcurrentColumns.setCurrent(ConcurrentColumns.evaluate(independent, context, threads));
+		}
+
+		ReportData reportData;
+		try {
+			reportData = Context.getService(ReportDefinitionService.class).evaluate(reportDefinition, context);
+		} finally {
+			ConcurrentColumns.setCurrent(null);
+		}
+
+		if (TableBuilderUtil.getIntegerGlobalProperty(AmrsReportsConstants.GP_REPORT_CACHE_SIZE, 0) > 0)
+			log.info("Person data cache after evaluating " + reportDefinition.getName() + ": "
+					+ PersonDataCache.getInstance().getStatistics());
+
+		return reportData;
+	}
+
+	/**
+	 * splits a cohort into blocks of at most the given size, in order of patient id
+	 */
+	private List<Cohort> splitCohort(Cohort cohort, int chunkSize) {
+		List<Integer> memberIds = new ArrayList<Integer>(cohort.getMemberIds());
+		Collections.sort(memberIds);
+
+		List<Cohort> chunks = new ArrayList<Cohort>();
+		for (int from = 0; from < memberIds.size(); from += chunkSize) {
+			chunks.add(new Cohort(memberIds.subList(from, Math.min(from + chunkSize, memberIds.size()))));
+		}
+		return chunks;
+	}
+
+	private boolean isStreamingOutput() {
+		return "true".equalsIgnoreCase(TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_REPORT_STREAMING_OUTPUT));
+	}
+
+	private int getChunkSize() {
+		return TableBuilderUtil.getIntegerGlobalProperty(AmrsReportsConstants.GP_REPORT_CHUNK_SIZE, 0);
+	}
+
+	private int getColumnThreads() {
+		return TableBuilderUtil.getIntegerGlobalProperty(AmrsReportsConstants.GP_REPORT_COLUMN_THREADS, 1);
+	}
+
+	/**
+	 * builds a facility's report data from its facility columns, adding the shared columns for each of its rows
+	 */
+	private ReportData joinDataSets(BatchReportProvider provider, ReportData facilityData, DataSet shared,
+	                                EvaluationContext context) {
+
+		String dataSetName = facilityData.getDataSets().keySet().iterator().next();
+		DataSet facility = facilityData.getDataSets().get(dataSetName);
+
+		ReportData reportData = new ReportData();
+		reportData.setDefinition(provider.getReportDefinition());
+		reportData.setContext(context);
+		reportData.getDataSets().put(dataSetName, joinRows(provider, facility, facility, shared, context));
+		return reportData;
+	}
+
+	/**
+	 * joins facility rows with the shared columns evaluated for the same people, keeping the facility rows' order,
+	 * which is the report's sort order
+	 */
+	private SimpleDataSet joinRows(BatchReportProvider provider, DataSet facility, Iterable<DataSetRow> facilityRows,
+	                               DataSet shared, EvaluationContext context) {
+
+		// look up columns and shared rows by name and person id
+		Map<String, DataSetColumn> columns = new HashMap<String, DataSetColumn>();
+		for (DataSetColumn column : shared.getMetaData().getColumns()) {
+			columns.put(column.getName(), column);
+		}
+
+		Set<String> facilityColumns = new HashSet<String>();
+		for (DataSetColumn column : facility.getMetaData().getColumns()) {
+			columns.put(column.getName(), column);
+			facilityColumns.add(column.getName());
+		}
+
+		Map<Object, DataSetRow> sharedRows = new HashMap<Object, DataSetRow>();
+		for (DataSetRow row : shared) {
+			sharedRows.put(row.getColumnValue(provider.getPersonIdColumn()), row);
+		}
+
+		SimpleDataSet joined = new SimpleDataSet(facility.getDefinition(), context);
+		for (String name : provider.getColumnNames()) {
+			joined.getMetaData().addColumn(columns.get(name));
+		}
+
+		for (DataSetRow facilityRow : facilityRows) {
+			DataSetRow sharedRow = sharedRows.get(facilityRow.getColumnValue(provider.getPersonIdColumn()));
+
+			DataSetRow row = new DataSetRow();
+			for (String name : provider.getColumnNames()) {
+				if (facilityColumns.contains(name))
+					row.addColumnValue(columns.get(name), facilityRow.getColumnValue(name));
+				else
+					row.addColumnValue(columns.get(name), sharedRow == null ? null : sharedRow.getColumnValue(name));
+			}
+			joined.addRow(row);
+		}
+
+		return joined;
+	}
+
+	private DataSet getOnlyDataSet(ReportData reportData) {
+		return reportData.getDataSets().values().iterator().next();
+	}
+
+	/**
+	 * builds the key identifying the contents of a report's output: the same report for the same facility and date,
+	 * evaluated on the same build of the derived tables by the same module version and rendered the same way, always
+	 * has the same contents
+	 *
+	 * @return the key, or null if the versions are not known and the output cannot be reused
+	 */
+	private String getContentKey(QueuedReport queuedReport) {
+		String buildVersion = TableBuilderUtil.getTablesBuildVersion();
+		Module module = ModuleFactory.getModuleById(MODULE_ID);
+
+		if (buildVersion == null || module == null || queuedReport.getEvaluationDate() == null)
+			return null;
+
+		return StringUtils.join(new Object[]{
+				queuedReport.getReportName(),
+				queuedReport.getFacility().getFacilityId(),
+				new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(queuedReport.getEvaluationDate()),
+				buildVersion,
+				module.getVersion(),
+				isStreamingOutput() ? "streaming" : "template"
+		}, "|");
+	}
+
+	/**
+	 * completes the queued report with the output files of an earlier report with the same content key, if those
+	 * files still exist
+	 *
+	 * @return true if the queued report was completed this way
+	 */
+	private boolean reuseCompletedReport(QueuedReport queuedReport, String contentKey) {
+		if (contentKey == null)
+			return false;
+
+		File loaddir = getReportDirectory();
+
+		for (QueuedReport completed : dao.getCompletedQueuedReports(contentKey)) {
+			if (completed.getId().equals(queuedReport.getId())
+					|| completed.getCsvFilename() == null || completed.getXlsFilename() == null)
+				continue;
+
+			if (!new File(loaddir, completed.getCsvFilename()).exists()
+					|| !new File(loaddir, completed.getXlsFilename()).exists())
+				continue;
+
+			log.info("Reusing the output of queued report " + completed.getId() + " for queued report "
+					+ queuedReport.getId() + " (" + contentKey + ")");
+
+			queuedReport.setContentKey(contentKey);
+			queuedReport.setCsvFilename(completed.getCsvFilename());
+			queuedReport.setXlsFilename(completed.getXlsFilename());
+			queuedReport.setStatus(QueuedReport.STATUS_COMPLETE);
+			Context.getService(QueuedReportService.class).saveQueuedReport(queuedReport);
+			return true;
+		}
+
+		return false;
+	}
+
+	private File getReportDirectory() {
+		AdministrationService as = Context.getAdministrationService();
+		String folderName = as.getGlobalProperty("amrsreports.file_dir");
+		return OpenmrsUtil.getDirectoryInApplicationDataDirectory(folderName);
+	}
+
+	private void validate(QueuedReport queuedReport) {
+		if (queuedReport.getReportName() == null)
+			throw new APIException("The queued report must reference a report provider by name.");
+
+		if (queuedReport.getFacility() == null)
+			throw new APIException("The queued report must reference a facility.");
+	}
+
+	private EvaluationContext createEvaluationContext(QueuedReport queuedReport) {
 		EvaluationContext evaluationContext = new EvaluationContext();
 
 		// set up evaluation context values
@@ -78,68 +711,88 @@ public class QueuedReportServiceImpl implements QueuedReportService {
 		evaluationContext.addParameterValue("facility", queuedReport.getFacility());
 		evaluationContext.setEvaluationDate(queuedReport.getEvaluationDate());
 
-		// get the cohort
-		CohortDefinitionService cohortDefinitionService = Context.getService(CohortDefinitionService.class);
-		Cohort cohort = cohortDefinitionService.evaluate(cohortDefinition, evaluationContext);
-		evaluationContext.setBaseCohort(cohort);
+		return evaluationContext;
+	}
 
-		// get the time the report was started (not finished)
-		Date startTime = Calendar.getInstance().getTime();
-		String formattedStartTime = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(startTime);
-		String formattedEvaluationDate = new SimpleDateFormat("yyyy-MM-dd").format(queuedReport.getEvaluationDate());
-		ReportData reportData = Context.getService(ReportDefinitionService.class)
-		        .evaluate(reportDefinition, evaluationContext);
+	private Semaphore acquireEvaluationPermit(QueuedReport queuedReport) {
+		try {
+			return ReportEvaluationLimiter.acquire();
+		} catch (InterruptedException e) {
+			throw new APIException("Interrupted while waiting to evaluate " + queuedReport.getReportName(), e);
+		}
+	}
 
-		// find the directory to put the file in
-		AdministrationService as = Context.getAdministrationService();
-		String folderName = as.getGlobalProperty("amrsreports.file_dir");
+	/**
+	 * starts tracking the progress of the given reports on this thread, saving it as it changes.  Progress is saved in
+	 * its own transactions, so the reports themselves must not be changed in this session until it is complete.
+	 */
+	private ReportProgress startProgress(List<QueuedReport> reports, List<String> columns, Date started) {
+		final List<Integer> ids = new ArrayList<Integer>();
+		for (QueuedReport queuedReport : reports) {
+			ids.add(queuedReport.getId());
+		}
 
-		// create a new file
-		String code = queuedReport.getFacility().getCode();
-
-		String csvFilename = ""
-				+ queuedReport.getReportName().replaceAll(" ", "-")
-				+ "_"
-				+ code
-				+ "_"
-				+ queuedReport.getFacility().getName().replaceAll(" ", "-")
-				+ "_as-of_"
-				+ formattedEvaluationDate
-				+ "_run-on_"
-				+ formattedStartTime
-				+ ".csv";
-
-		File loaddir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(folderName);
-		File amrsreport = new File(loaddir, csvFilename);
-		BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(amrsreport));
-
-		// renderCSVFromReportData the CSV
-		MOHReportUtil.renderCSVFromReportData(reportData, outputStream);
-		outputStream.close();
-
-		String xlsFilename = FilenameUtils.getBaseName(csvFilename) + ".xls";
-		File xlsFile = new File(loaddir, xlsFilename);
-		OutputStream stream = new BufferedOutputStream(new FileOutputStream(xlsFile));
-
-		// get the report design
-		final ReportDesign design = reportProvider.getReportDesign();
-
-		// build an Excel template renderer with the report design
-		ExcelTemplateRenderer renderer = new ExcelTemplateRenderer() {
-			public ReportDesign getDesign(String argument) {
-				return design;
-			}
-		};
-
-		// render the Excel template
-		renderer.render(reportData, queuedReport.getReportName(), stream);
-		stream.close();
-
-		// finish off by setting stuff on the queued report
-		queuedReport.setCsvFilename(csvFilename);
-		queuedReport.setXlsFilename(xlsFilename);
-		queuedReport.setStatus(QueuedReport.STATUS_COMPLETE);
-		Context.getService(QueuedReportService.class).saveQueuedReport(queuedReport);
+		ReportProgress progress = new ReportProgress(columns,
+				getHistoricalMillisPerPatient(reports.get(0).getReportName()), started);
+
+		progress.setListener(new ReportProgress.Listener() {
+			public void progressed(ReportProgress progress) {
+				for (Integer id : ids) {
+					try {
+						Context.getService(QueuedReportService.class).saveQueuedReportProgress(id, progress);
+					} catch (Exception e) {
+						// progress is only informative; never let it fail the report
+						log.warn("Could not save progress of queued report " + id, e);
+					}
+				}
+			}
+		});
+
+		ReportProgress.setCurrent(progress);
+		return progress;
+	}
+
+	/**
+	 * creates the token that lets the given reports be cancelled while they run on this thread, and registers the
+	 * database connection this session uses so queries still running on it can be killed
+	 */
+	private CancellationToken startCancellation(List<QueuedReport> reports) {
+		CancellationToken token = new CancellationToken("queued report " + reports.get(0).getId());
+		for (QueuedReport queuedReport : reports) {
+			CancellationToken.register(getCancellationKey(queuedReport.getId()), token);
+		}
+
+		try {
+			token.addConnectionId(dao.getDatabaseConnectionId());
+		} catch (Exception e) {
+			// cancelling still stops the report between columns
+			log.debug("Could not find the database connection for " + reports.get(0).getReportName(), e);
+		}
+
+		CancellationToken.setCurrent(token);
+		return token;
+	}
+
+	private void finishCancellation(List<QueuedReport> reports) {
+		for (QueuedReport queuedReport : reports) {
+			CancellationToken.unregister(getCancellationKey(queuedReport.getId()));
+		}
+		CancellationToken.setCurrent(null);
+	}
+
+	private String getCancellationKey(Integer queuedReportId) {
+		return "queuedReport:" + queuedReportId;
+	}
+
+	/**
+	 * a failure caused by cancelling the report, such as a killed query, is reported as the cancellation
+	 */
+	private void rethrowIfCancelled(CancellationToken token, Exception e) {
+		if (e instanceof OperationCancelledException)
+			throw (OperationCancelledException) e;
+
+		if (token.isCancelled())
+			throw new OperationCancelledException("Queued report was cancelled", e);
 	}
 
 	@Override
@@ -150,9 +803,72 @@ public class QueuedReportServiceImpl implements QueuedReportService {
 		if (queuedReport.getStatus() == null)
 			queuedReport.setStatus(QueuedReport.STATUS_NEW);
 
+		if (queuedReport.getPriority() == null)
+			queuedReport.setPriority(QueuedReport.PRIORITY_NORMAL);
+
+		// only running reports hold a lease
+		if (!QueuedReport.STATUS_RUNNING.equals(queuedReport.getStatus())) {
+			queuedReport.setLeaseOwner(null);
+			queuedReport.setLeaseExpiry(null);
+		}
+
 		return dao.saveQueuedReport(queuedReport);
 	}
 
+	@Override
+	public void saveQueuedReportProgress(Integer queuedReportId, ReportProgress progress) {
+		Date now = new Date();
+		dao.updateProgress(queuedReportId, progress.getStarted(), progress.isComplete() ? now : null,
+				progress.getPatients(), progress.getPhase(), progress.getStep(), progress.getSteps(),
+				progress.getEstimatedCompletion(now));
+	}
+
+	@Override
+	public boolean cancelQueuedReport(QueuedReport queuedReport) {
+		if (queuedReport == null || queuedReport.getId() == null)
+			return false;
+
+		// reports that have not started are simply never run
+		if (dao.cancelNewQueuedReport(queuedReport.getId())) {
+			Context.evictFromSession(queuedReport);
+			return true;
+		}
+
+		// running reports are stopped by whichever server runs them
+		if (dao.requestCancellation(queuedReport.getId())) {
+			CancellationToken.cancel(getCancellationKey(queuedReport.getId()));
+			Context.evictFromSession(queuedReport);
+			return true;
+		}
+
+		return false;
+	}
+
+	@Override
+	public void processCancellationRequests(String leaseOwner) {
+		for (Integer id : dao.getCancelRequestedQueuedReportIds(leaseOwner)) {
+			CancellationToken.cancel(getCancellationKey(id));
+		}
+
+		// reports whose server stopped before it could cancel them will never finish
+		int abandoned = dao.cancelAbandonedQueuedReports(new Date());
+		if (abandoned > 0)
+			log.info("Cancelled " + abandoned + " abandoned queued reports");
+	}
+
+	@Override
+	public Long getHistoricalMillisPerPatient(String reportName) {
+		long millis = 0;
+		long patients = 0;
+
+		for (QueuedReport queuedReport : dao.getRecentTimedQueuedReports(reportName, HISTORICAL_REPORTS)) {
+			millis += queuedReport.getDateCompleted().getTime() - queuedReport.getDateStarted().getTime();
+			patients += queuedReport.getPatientCount();
+		}
+
+		return patients == 0 ? null : millis / patients;
+	}
+
 	@Override
 	public void purgeQueuedReport(QueuedReport queuedReport) {
 		dao.purgeQueuedReport(queuedReport);
@@ -172,4 +888,188 @@ public class QueuedReportServiceImpl implements QueuedReportService {
 	public QueuedReport getQueuedReport(Integer reportId) {
 		return dao.getQueuedReport(reportId);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * the CSV and Excel files of a queued report.  With streaming output, both files are written as the report's rows
+	 * arrive, laid out like the report's template, so a report evaluated in blocks never holds all of its rows; a
+	 * report evaluated at once still holds its whole report data until it is written.  Otherwise the rows are
+	 * collected and the Excel file is rendered from the template, which holds the whole workbook in memory.
+	 */
+	private class ReportOutput {
+
+		private final QueuedReport queuedReport;
+
+		private final String contentKey;
+
+		private final ReportProvider reportProvider;
+
+		private final File csvFile;
+
+		private final File xlsFile;
+
+		// the rows of a report evaluated in blocks, kept for the template renderer
+		private final CollectedRows rows;
+
+		private final StreamingReportWriter writer;
+
+		private boolean written = false;
+
+		public ReportOutput(QueuedReport queuedReport, String contentKey, ReportProvider reportProvider, Date startTime,
+		                    EvaluationContext context) throws IOException {
+
+			this.queuedReport = queuedReport;
+			this.contentKey = contentKey;
+			this.reportProvider = reportProvider;
+
+			String formattedStartTime = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(startTime);
+			String formattedEvaluationDate = new SimpleDateFormat("yyyy-MM-dd").format(queuedReport.getEvaluationDate());
+
+			// create a new file
+			String code = queuedReport.getFacility().getCode();
+
+			String csvFilename = ""
+					+ queuedReport.getReportName().replaceAll(" ", "-")
+					+ "_"
+					+ code
+					+ "_"
+					+ queuedReport.getFacility().getName().replaceAll(" ", "-")
+					+ "_as-of_"
+					+ formattedEvaluationDate
+					+ "_run-on_"
+					+ formattedStartTime
+					+ ".csv";
+
+			// streamed workbooks are XML spreadsheets, which Excel only opens without a warning as .xml files
+			boolean streaming = isStreamingOutput();
+			String xlsFilename = FilenameUtils.getBaseName(csvFilename) + (streaming ? ".xml" : ".xls");
+
+			// find the directory to put the files in
+			File loaddir = getReportDirectory();
+			this.csvFile = new File(loaddir, csvFilename);
+			this.xlsFile = new File(loaddir, xlsFilename);
+
+			if (streaming) {
+				this.rows = null;
+				this.writer = new StreamingReportWriter(new BufferedOutputStream(new FileOutputStream(csvFile)),
+						new BufferedOutputStream(new FileOutputStream(xlsFile)), queuedReport.getReportName(),
+						SpreadsheetTemplate.read(reportProvider.getReportDesign()));
+			} else {
+				this.rows = new CollectedRows(context);
+				this.writer = null;
+			}
+		}
+
+		/**
+		 * @return where a report evaluated in blocks passes its rows
+		 */
+		public ReportRowSink getSink() {
+			return writer != null ? writer : rows;
+		}
+
+		/**
+		 * finishes both files and marks the queued report complete; the caller saves it
+		 *
+		 * @param reportData the report, if it was evaluated at once rather than passed to the sink
+		 */
+		public void write(ReportData reportData, ReportProgress progress) throws IOException {
+			CancellationToken.checkCurrent();
+			progress.startPhase(ReportProgress.PHASE_CSV);
+
+			if (writer != null) {
+				if (reportData != null)
+					writer.addRows(getOnlyDataSet(reportData));
+				writer.finish();
+				writer.close();
+
+			} else {
+				if (reportData == null)
+					reportData = rows.getReportData(reportProvider.getReportDefinition());
+
+				// renderCSVFromReportData the CSV
+				OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(csvFile));
+				MOHReportUtil.renderCSVFromReportData(reportData, outputStream);
+				outputStream.close();
+
+				// get the report design; the Excel renderer cannot be stopped part way, so check before starting it
+				CancellationToken.checkCurrent();
+				progress.startPhase(ReportProgress.PHASE_XLS);
+				final ReportDesign design = reportProvider.getReportDesign();
+
+				// build an Excel template renderer with the report design
+				ExcelTemplateRenderer renderer = new ExcelTemplateRenderer() {
+					public ReportDesign getDesign(String argument) {
+						return design;
+					}
+				};
+
+				// render the Excel template
+				OutputStream stream = new BufferedOutputStream(new FileOutputStream(xlsFile));
+				renderer.render(reportData, queuedReport.getReportName(), stream);
+				stream.close();
+			}
+
+			// finish off by setting stuff on the queued report
+			queuedReport.setCsvFilename(csvFile.getName());
+			queuedReport.setXlsFilename(xlsFile.getName());
+			queuedReport.setContentKey(contentKey);
+			queuedReport.setStatus(QueuedReport.STATUS_COMPLETE);
+			written = true;
+		}
+
+		/**
+		 * removes the files of a report that was not written, such as a failed or cancelled one
+		 */
+		public void discard() {
+			if (written)
+				return;
+
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					log.debug("Could not close the files of " + queuedReport.getReportName(), e);
+				}
+			}
+
+			FileUtils.deleteQuietly(csvFile);
+			FileUtils.deleteQuietly(xlsFile);
+		}
+	}
+
+	/**
+	 * keeps the rows of a report evaluated in blocks, so it can be rendered like a report evaluated at once; the
+	 * entities loaded to evaluate each block are let go, but every row is held until the report is rendered
+	 */
+	private static class CollectedRows implements ReportRowSink {
+
+		private final EvaluationContext context;
+
+		private SimpleDataSet rows;
+
+		public CollectedRows(EvaluationContext context) {
+			this.context = context;
+		}
+
+		public void addRows(DataSet block) {
+			if (rows == null) {
+				rows = new SimpleDataSet(block.getDefinition(), context);
+				for (DataSetColumn column : block.getMetaData().getColumns()) {
+					rows.getMetaData().addColumn(column);
+				}
+			}
+
+			for (DataSetRow row : block) {
+				rows.addRow(row);
+			}
+		}
+
+		public ReportData getReportData(ReportDefinition reportDefinition) {
+			ReportData reportData = new ReportData();
+			reportData.setDefinition(reportDefinition);
+			reportData.setContext(context);
+			if (rows != null)
+				reportData.getDataSets().put(rows.getDefinition().getName(), rows);
+			return reportData;
+		}
+	}
+}
@@ -3,14 +3,38 @@ package org.openmrs.module.amrsreports.task;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
 /**
- * Common task locking mechanism to ensure only one task relying on the lock can run at a given time
+ * Common task locking mechanism shared by all AMRS Reports tasks.  Tasks that only read the derived tables, such as
+ * report generation, take shared holds and may run together; tasks that rebuild the tables take an exclusive hold and
+ * run alone.  Requests are granted in the order they were made, except that a waiting exclusive request keeps new
+ * shared requests from jumping ahead of it, so builders are not starved by a steady stream of reports.
  */
 public class AMRSReportsCommonTaskLock {
 
+	/**
+	 * the ways a lock can be held
+	 */
+	public enum Mode {
+		SHARED, EXCLUSIVE
+	}
+
 	static private AMRSReportsCommonTaskLock instance = null;
-	static private Boolean locked;
-	static private Class lastLockingClass;
+
+	private final List<Hold> holders = new ArrayList<Hold>();
+	private final LinkedList<Hold> waiters = new LinkedList<Hold>();
+
+	private Class lastLockingClass;
+
+	private long grantedShared = 0;
+	private long grantedExclusive = 0;
+	private long timeouts = 0;
+	private long totalWaitMillis = 0;
+	private long maxWaitMillis = 0;
 
 	private Log log = LogFactory.getLog(this.getClass());
 
@@ -18,69 +42,115 @@ public class AMRSReportsCommonTaskLock {
 	 * initializes as unlocked
 	 */
 	public AMRSReportsCommonTaskLock() {
-		this.locked = false;
 		this.lastLockingClass = null;
 	}
 
 	/**
 	 * gets the static instance of this class
 	 */
-	public static AMRSReportsCommonTaskLock getInstance() {
+	public static synchronized AMRSReportsCommonTaskLock getInstance() {
 		if (instance == null)
 			instance = new AMRSReportsCommonTaskLock();
 		return instance;
 	}
 
 	/**
-	 * informs the caller if a lock exists
+	 * informs the caller if a lock exists, in either mode
 	 */
-	public Boolean isLocked() {
-		return locked;
+	public synchronized Boolean isLocked() {
+		return !holders.isEmpty();
 	}
 
 	/**
-	 * attempts to request a lock
+	 * attempts to request an exclusive lock without waiting
 	 *
 	 * @should return true if a lock is obtained
 	 * @should return false if already locked
 	 */
 	public Boolean getLock(Class lockingClass) {
+		return getLock(lockingClass, Mode.EXCLUSIVE, 0);
+	}
+
+	/**
+	 * requests a lock in the given mode, waiting up to the given time for it
+	 *
+	 * @param timeoutMillis how long to wait for the lock, or 0 to give up immediately if it is not available
+	 * @return true if the lock was obtained
+	 * @should allow several shared holds at once
+	 * @should not grant an exclusive hold while shared holds exist
+	 * @should not grant new shared holds while an exclusive request is waiting
+	 * @should give up after the timeout
+	 */
+	public synchronized Boolean getLock(Class lockingClass, Mode mode, long timeoutMillis) {
 		if (lockingClass == null) {
 			log.warn("Could not grant lock to a null class");
 			return false;
 		}
 
-		if (this.locked) {
-			if (this.lastLockingClass != null)
-				log.warn("Lock requested by " + lockingClass.getSimpleName() + ", but held by " + this.lastLockingClass.getSimpleName());
+		Hold request = new Hold(lockingClass, mode);
+		waiters.addLast(request);
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		try {
+			while (!canGrant(request)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					timeouts++;
+					logRefusal(request);
+					return false;
+				}
+
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					log.warn("Interrupted while " + lockingClass.getSimpleName() + " waited for a " + mode + " lock");
+					return false;
+				}
+			}
+
+			long waited = System.currentTimeMillis() - request.getSince().getTime();
+			totalWaitMillis += waited;
+			maxWaitMillis = Math.max(maxWaitMillis, waited);
+			if (mode == Mode.SHARED)
+				grantedShared++;
 			else
-				log.warn("Lock requested by " + lockingClass.getSimpleName() + ", but held by unknown class");
-			return false;
-		}
+				grantedExclusive++;
 
-		this.lastLockingClass = lockingClass;
-		this.locked = true;
+			request.setSince(new Date());
+			holders.add(request);
+			this.lastLockingClass = lockingClass;
 
-		log.info("Lock granted to " + lockingClass.getSimpleName());
+			log.info(mode + " lock granted to " + lockingClass.getSimpleName() + " after waiting " + waited + " ms");
 
-		return true;
+			return true;
+
+		} finally {
+			// whether granted or not, this request no longer waits; others may now be able to proceed
+			waiters.remove(request);
+			notifyAll();
+		}
 	}
 
 	/**
-	 * releases the lock
+	 * releases one hold of the lock taken by the given class, in whichever mode it was taken
 	 *
+	 * @return true if a hold was released
 	 * @should release a lock if the lockingClass matches
 	 */
-	public Boolean releaseLock(Class lockingClass) {
-		if (this.lastLockingClass == lockingClass) {
-			log.info("Releasing lock held by " + lockingClass.getSimpleName());
-			this.locked = false;
-		} else if (this.lastLockingClass != null)
-			log.warn("Lock release requested by " + lockingClass.getSimpleName() + ", but held by " + this.lastLockingClass.getSimpleName());
-		else
-			log.warn("Lock release requested by " + lockingClass.getSimpleName() + ", but held by unknown class");
+	public synchronized Boolean releaseLock(Class lockingClass) {
+		for (Hold hold : holders) {
+			if (hold.getLockingClass() == lockingClass) {
+				holders.remove(hold);
+				log.info("Releasing " + hold.getMode() + " lock held by " + lockingClass.getSimpleName());
+				notifyAll();
+				return true;
+			}
+		}
 
-		return !this.locked;
+		log.warn("Lock release requested by " + lockingClass.getSimpleName() + ", but held by " + describeHolders());
+		return false;
 	}
 
 	/**
@@ -88,8 +158,136 @@ public class AMRSReportsCommonTaskLock {
 	 *
 	 * @return last locking class
 	 */
-	public Class getLastLockingClass() {
+	public synchronized Class getLastLockingClass() {
 		return this.lastLockingClass;
 	}
 
+	/**
+	 * @return the current holds, oldest first
+	 */
+	public synchronized List<Hold> getHolders() {
+		return new ArrayList<Hold>(holders);
+	}
+
+	/**
+	 * @return the requests waiting for the lock, in the order they were made
+	 */
+	public synchronized List<Hold> getWaiters() {
+		return new ArrayList<Hold>(waiters);
+	}
+
+	public synchronized int getQueueDepth() {
+		return waiters.size();
+	}
+
+	public synchronized long getGrantedShared() {
+		return grantedShared;
+	}
+
+	public synchronized long getGrantedExclusive() {
+		return grantedExclusive;
+	}
+
+	public synchronized long getTimeouts() {
+		return timeouts;
+	}
+
+	public synchronized long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	/**
+	 * @return the average time granted requests waited for the lock
+	 */
+	public synchronized long getAverageWaitMillis() {
+		long granted = grantedShared + grantedExclusive;
+		return granted == 0 ? 0 : totalWaitMillis / granted;
+	}
+
+	/**
+	 * an exclusive request needs no holders and must be first in line; a shared request needs no exclusive holder and
+	 * no exclusive request waiting ahead of it
+	 */
+	private boolean canGrant(Hold request) {
+		if (request.getMode() == Mode.EXCLUSIVE)
+			return holders.isEmpty() && waiters.getFirst() == request;
+
+		for (Hold hold : holders) {
+			if (hold.getMode() == Mode.EXCLUSIVE)
+				return false;
+		}
+
+		for (Hold waiter : waiters) {
+			if (waiter == request)
+				return true;
+			if (waiter.getMode() == Mode.EXCLUSIVE)
+				return false;
+		}
+
+		return true;
+	}
+
+	private void logRefusal(Hold request) {
+		log.warn(request.getMode() + " lock requested by " + request.getLockingClass().getSimpleName()
+				+ ", but held by " + describeHolders());
+	}
+
+	private String describeHolders() {
+		if (holders.isEmpty())
+			return "nobody";
+
+		List<String> names = new ArrayList<String>();
+		for (Hold hold : holders) {
+			names.add(hold.getLockingClass().getSimpleName() + " (" + hold.getMode() + ")");
+		}
+		return names.toString();
+	}
+
+	/**
+	 * a hold on the lock, or a request waiting for one
+	 */
+	public static class Hold {
+
+		private final Class lockingClass;
+		private final Mode mode;
+		private final String threadName;
+		private Date since;
+
+		private Hold(Class lockingClass, Mode mode) {
+			this.lockingClass = lockingClass;
+			this.mode = mode;
+			this.threadName = Thread.currentThread().getName();
+			this.since = new Date();
+		}
+
+		public Class getLockingClass() {
+			return lockingClass;
+		}
+
+		public Mode getMode() {
+			return mode;
+		}
+
+		public String getThreadName() {
+			return threadName;
+		}
+
+		/**
+		 * @return when the hold was granted, or for a waiting request, when it was made
+		 */
+		public Date getSince() {
+			return since;
+		}
+
+		private void setSince(Date since) {
+			this.since = since;
+		}
+
+		/**
+		 * @return seconds since the hold was granted or the request was made
+		 */
+		public long getElapsedSeconds() {
+			return (System.currentTimeMillis() - since.getTime()) / 1000;
+		}
+	}
 }
@@ -4,40 +4,82 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.AmrsReportsConstants;
+import org.openmrs.module.amrsreports.util.CancellationToken;
+import org.openmrs.module.amrsreports.util.OperationCancelledException;
+import org.openmrs.module.amrsreports.util.TableBuilderUtil;
 import org.openmrs.scheduler.tasks.AbstractTask;
 
 /**
- * Abstract task for AMRS Reports tasks where we want only one to run at a time
+ * Abstract task for AMRS Reports tasks, coordinated through the common task lock
  */
 public abstract class AMRSReportsTask extends AbstractTask {
 
+	private static final int DEFAULT_LOCK_WAIT_SECONDS = 60;
+
 	private Log log = LogFactory.getLog(this.getClass());
 
+	// lets the running execution be cancelled when the task is shut down
+	private volatile CancellationToken token = null;
+
 	/**
 	 * common execute method, framing the actual execution code by checking for a lock and opening a session
 	 */
 	public void execute() {
 
-		if (AMRSReportsCommonTaskLock.getInstance().isLocked()) {
-			return;
-		}
+		long timeout = TableBuilderUtil.getIntegerGlobalProperty(
+				AmrsReportsConstants.GP_TASK_LOCK_WAIT_SECONDS, DEFAULT_LOCK_WAIT_SECONDS) * 1000L;
 
-		if (!AMRSReportsCommonTaskLock.getInstance().getLock(this.getClass())) {
+		if (!AMRSReportsCommonTaskLock.getInstance().getLock(this.getClass(), getLockMode(), timeout)) {
 			return;
 		}
 
+		token = new CancellationToken(this.getClass().getSimpleName());
+		CancellationToken.setCurrent(token);
+
 		try {
 			this.doExecute();
+		} catch (OperationCancelledException e) {
+			log.info("AMRS reports task was cancelled");
+			throw e;
 		} catch (Exception e) {
+			// failures caused by cancelling, such as killed queries, are reported as the cancellation
+			if (token.isCancelled()) {
+				log.info("AMRS reports task was cancelled");
+				throw new OperationCancelledException("AMRS reports task was cancelled", e);
+			}
+
 			log.error("Error running AMRS reports task", e);
 			throw new APIException("Error running AMRS reports task", e);
 		} finally {
+			CancellationToken.setCurrent(null);
+			token = null;
+
 			if (!AMRSReportsCommonTaskLock.getInstance().releaseLock(this.getClass()))
 				log.error("Could not release lock.");
 
 		}
 	}
 
+	/**
+	 * cancels the running execution, which stops at its next step and kills the queries it has in flight
+	 */
+	@Override
+	public void shutdown() {
+		CancellationToken running = token;
+		if (running != null)
+			running.cancel();
+
+		super.shutdown();
+	}
+
+	/**
+	 * tasks that rebuild derived tables need the lock to themselves; tasks that only read them may share it
+	 */
+	protected AMRSReportsCommonTaskLock.Mode getLockMode() {
+		return AMRSReportsCommonTaskLock.Mode.EXCLUSIVE;
+	}
+
 	/**
 	 * the actual execution method
 	 */
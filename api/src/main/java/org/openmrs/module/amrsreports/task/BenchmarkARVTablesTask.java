@@ -0,0 +1,18 @@
+package org.openmrs.module.amrsreports.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.amrsreports.builder.ARVTableBuilder;
+
+/**
+ * Builds the ARV tables with both the per-drug queries and the single-pass pivot, logging timings and differences
+ */
+public class BenchmarkARVTablesTask extends AMRSReportsTask {
+
+	private static final Log log = LogFactory.getLog(BenchmarkARVTablesTask.class);
+
+	@Override
+	public void doExecute() {
+		log.info(ARVTableBuilder.getInstance().benchmark());
+	}
+}
@@ -0,0 +1,18 @@
+package org.openmrs.module.amrsreports.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.amrsreports.builder.PregnancyTableBuilder;
+
+/**
+ * Builds the pregnancy table with both the per-column statements and the single pass, logging timings and differences
+ */
+public class BenchmarkPregnancyTableTask extends AMRSReportsTask {
+
+	private static final Log log = LogFactory.getLog(BenchmarkPregnancyTableTask.class);
+
+	@Override
+	public void doExecute() {
+		log.info(PregnancyTableBuilder.getInstance().benchmark());
+	}
+}
@@ -0,0 +1,19 @@
+package org.openmrs.module.amrsreports.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.amrsreports.builder.HIVCareEnrollmentBuilder;
+
+/**
+ * Builds a copy of the enrollment table with the streaming engine and compares it to the current one, logging any
+ * differences
+ */
+public class CompareEnrollmentEnginesTask extends AMRSReportsTask {
+
+	private static final Log log = LogFactory.getLog(CompareEnrollmentEnginesTask.class);
+
+	@Override
+	public void doExecute() {
+		log.info(HIVCareEnrollmentBuilder.getInstance().compareEngines());
+	}
+}
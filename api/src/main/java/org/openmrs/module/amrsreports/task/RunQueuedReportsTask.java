@@ -21,6 +21,14 @@ public class RunQueuedReportsTask extends AMRSReportsTask {
 		}
 	}
 
+	/**
+	 * reports only read the derived tables, so they can run alongside each other
+	 */
+	@Override
+	protected AMRSReportsCommonTaskLock.Mode getLockMode() {
+		return AMRSReportsCommonTaskLock.Mode.SHARED;
+	}
+
 	/**
 	 * Process the next queued item
 	 */
@@ -2,9 +2,13 @@ package org.openmrs.module.amrsreports.task;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.amrsreports.AmrsReportsConstants;
 import org.openmrs.module.amrsreports.builder.ARVTableBuilder;
+import org.openmrs.module.amrsreports.builder.BuildGraph;
+import org.openmrs.module.amrsreports.builder.ContextBuildGraph;
 import org.openmrs.module.amrsreports.builder.HIVCareEnrollmentBuilder;
 import org.openmrs.module.amrsreports.builder.PregnancyTableBuilder;
+import org.openmrs.module.amrsreports.util.TableBuilderUtil;
 
 /**
  * Updates HIV Care HIVCareEnrollment table with latest enrollment information
@@ -15,13 +19,39 @@ public class UpdateHIVCareEnrollmentTask extends AMRSReportsTask {
 
 	@Override
 	public void doExecute() {
-		// build the ARV Tables
-		ARVTableBuilder.getInstance().execute();
+		// pick up an interrupted build where it left off, otherwise start a new one
+		String unfinished = null;
+		if (!"false".equalsIgnoreCase(TableBuilderUtil.getGlobalProperty(AmrsReportsConstants.GP_BUILDER_RESUME)))
+			unfinished = TableBuilderUtil.getUnfinishedBuildId();
 
-		// build the pregnancy table
-		PregnancyTableBuilder.getInstance().execute();
+		if (unfinished != null) {
+			log.info("Resuming unfinished build " + unfinished);
+			TableBuilderUtil.resumeBuild(unfinished);
+		} else {
+			// record every step of this build in the build history
+			TableBuilderUtil.startBuild();
+		}
 
-		// build the enrollment table
-		HIVCareEnrollmentBuilder.getInstance().execute();
+		try {
+			BuildGraph graph = new ContextBuildGraph();
+
+			// the ARV and pregnancy tables are independent; the enrollment table reads the ARV tables
+			String arvStep = ARVTableBuilder.getInstance().addSteps(graph);
+			PregnancyTableBuilder.getInstance().addSteps(graph);
+			HIVCareEnrollmentBuilder.getInstance().addSteps(graph, arvStep);
+
+			// skip the steps an earlier attempt at this build already finished
+			for (String step : TableBuilderUtil.getCheckpointedSteps()) {
+				graph.markComplete(step);
+			}
+
+			graph.execute(TableBuilderUtil.getIntegerGlobalProperty(AmrsReportsConstants.GP_BUILDER_STEP_THREADS, 1));
+
+			TableBuilderUtil.completeBuild();
+
+			log.info(graph.describeCriticalPath());
+		} finally {
+			TableBuilderUtil.finishBuild();
+		}
 	}
 }
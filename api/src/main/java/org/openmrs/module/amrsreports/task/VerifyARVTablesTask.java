@@ -0,0 +1,18 @@
+package org.openmrs.module.amrsreports.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.amrsreports.builder.ARVTableBuilder;
+
+/**
+ * Rebuilds a fresh copy of the ARV tables and compares it to the current ones, logging any differences
+ */
+public class VerifyARVTablesTask extends AMRSReportsTask {
+
+	private static final Log log = LogFactory.getLog(VerifyARVTablesTask.class);
+
+	@Override
+	public void doExecute() {
+		log.info(ARVTableBuilder.getInstance().verify());
+	}
+}
@@ -0,0 +1,250 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets a running report or table build be cancelled from another thread.  The work checks the token between chunks
+ * and stops with an OperationCancelledException once it is cancelled; cancelling also stops the statements the work
+ * has in flight, so the database stops working on them straight away:
+ * <ul>
+ * <li>JDBC statements registered with the token are cancelled</li>
+ * <li>queries on MySQL connections registered with the token are killed</li>
+ * <li>queries tagged with the token are killed on whichever connection runs them</li>
+ * </ul>
+ * The token for the work on a thread is kept as that thread's current token.  Tokens can also be registered under a
+ * key, such as a queued report id, so they can be cancelled by that key.
+ */
+public class CancellationToken {
+
+	private static final Log log = LogFactory.getLog(CancellationToken.class);
+
+	private static final ThreadLocal<CancellationToken> current = new ThreadLocal<CancellationToken>();
+
+	private static final Map<String, CancellationToken> registry = new ConcurrentHashMap<String, CancellationToken>();
+
+	private static final String QUERY_TAGGED =
+			"select id from information_schema.processlist" +
+					" where info like '%:tag%'" +
+					"   and id <> connection_id()";
+
+	private final String name;
+
+	private final String tag;
+
+	private volatile boolean cancelled = false;
+
+	private final Set<Statement> statements = Collections.synchronizedSet(new HashSet<Statement>());
+
+	private final Set<Long> connectionIds = Collections.synchronizedSet(new HashSet<Long>());
+
+	/**
+	 * @param name describes the work, for logging
+	 */
+	public CancellationToken(String name) {
+		this.name = name;
+		this.tag = "/* amrsreports:" + UUID.randomUUID().toString() + " */";
+	}
+
+	/**
+	 * @return the token for the work on this thread, or null
+	 */
+	public static CancellationToken getCurrent() {
+		return current.get();
+	}
+
+	public static void setCurrent(CancellationToken token) {
+		if (token == null)
+			current.remove();
+		else
+			current.set(token);
+	}
+
+	/**
+	 * stops the work on this thread if its token has been cancelled
+	 */
+	public static void checkCurrent() {
+		CancellationToken token = current.get();
+		if (token != null)
+			token.check();
+	}
+
+	public static void register(String key, CancellationToken token) {
+		registry.put(key, token);
+	}
+
+	public static void unregister(String key) {
+		registry.remove(key);
+	}
+
+	/**
+	 * cancels the token registered under the given key
+	 *
+	 * @return true if there was such a token
+	 * @should cancel the token registered under the key
+	 * @should return false for unknown keys
+	 */
+	public static boolean cancel(String key) {
+		CancellationToken token = registry.get(key);
+		if (token == null)
+			return false;
+
+		token.cancel();
+		return true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @should throw once cancelled
+	 */
+	public void check() {
+		if (cancelled)
+			throw new OperationCancelledException(name + " was cancelled");
+	}
+
+	/**
+	 * cancels the work, stopping any statements it has in flight; cancelling again has no further effect
+	 *
+	 * @should cancel registered statements
+	 */
+	public void cancel() {
+		if (cancelled)
+			return;
+
+		cancelled = true;
+		log.info("Cancelling " + name);
+
+		List<Statement> inFlight;
+		synchronized (statements) {
+			inFlight = new ArrayList<Statement>(statements);
+		}
+
+		for (Statement statement : inFlight) {
+			try {
+				statement.cancel();
+			} catch (SQLException e) {
+				log.warn("Could not cancel a statement of " + name, e);
+			}
+		}
+
+		killQueries();
+	}
+
+	/**
+	 * registers a JDBC statement to be cancelled along with the work; the statement's creator unregisters it when done
+	 */
+	public void addStatement(Statement statement) {
+		statements.add(statement);
+		if (cancelled) {
+			try {
+				statement.cancel();
+			} catch (SQLException e) {
+				log.warn("Could not cancel a statement of " + name, e);
+			}
+		}
+	}
+
+	public void removeStatement(Statement statement) {
+		statements.remove(statement);
+	}
+
+	/**
+	 * registers a MySQL connection whose queries are killed along with the work
+	 */
+	public void addConnectionId(Long connectionId) {
+		if (connectionId != null)
+			connectionIds.add(connectionId);
+	}
+
+	public void removeConnectionId(Long connectionId) {
+		connectionIds.remove(connectionId);
+	}
+
+	/**
+	 * marks a query with this token, so it can be found and killed on whatever connection runs it.  The mark is a
+	 * trailing comment, so the query still starts with its own keyword.
+	 *
+	 * @should append a comment naming the token to the query
+	 */
+	public String tag(String query) {
+		return query + " " + tag;
+	}
+
+	/**
+	 * kills the queries running on registered connections or tagged with this token, from a separate connection
+	 */
+	protected void killQueries() {
+		Set<Long> targets;
+		synchronized (connectionIds) {
+			targets = new HashSet<Long>(connectionIds);
+		}
+
+		Connection connection = null;
+		Statement statement = null;
+
+		try {
+			connection = TableBuilderUtil.getConnection();
+			statement = connection.createStatement();
+
+			ResultSet rs = statement.executeQuery(QUERY_TAGGED.replace(":tag", tag));
+			while (rs.next()) {
+				targets.add(rs.getLong(1));
+			}
+			rs.close();
+
+			for (Long id : targets) {
+				try {
+					statement.execute("KILL QUERY " + id);
+				} catch (SQLException e) {
+					// the query may have finished in the meantime
+					log.debug("Could not kill query on connection " + id, e);
+				}
+			}
+
+			if (!targets.isEmpty())
+				log.info("Killed queries on " + targets.size() + " connections for " + name);
+
+		} catch (SQLException e) {
+			log.warn("Could not kill the queries of " + name, e);
+		} finally {
+			try {
+				if (statement != null)
+					statement.close();
+				if (connection != null)
+					TableBuilderUtil.closeConnection(connection);
+			} catch (SQLException e) {
+				log.warn("Could not close connection", e);
+			}
+		}
+	}
+}
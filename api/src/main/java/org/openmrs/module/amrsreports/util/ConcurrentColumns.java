@@ -0,0 +1,301 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Cohort;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
+import org.openmrs.module.amrsreports.cache.PersonDataCache;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
+import org.openmrs.module.reporting.data.person.service.PersonDataService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates a report's independent columns at the same time on a bounded pool of threads, before the reporting
+ * module's data set evaluator asks for its columns one after another.  The results are kept as the evaluating
+ * thread's current columns, and {@link ConcurrentColumnsAdvice} hands each one out when the data set evaluator asks
+ * for a definition of the same class and configuration, for the same cohort and date, instead of evaluating it again.
+ * <p/>
+ * The threads come from one pool shared by every report, kept between blocks and reports and sized to the most
+ * recently requested number of threads; idle threads stop after a while.  Each definition is evaluated on its own
+ * thread with its own session, which is cleared and closed without being flushed, so nothing a column loads is written
+ * back.  The threads run as the evaluating thread's user and share its obs index scope, so the columns reading obs
+ * wait for one index instead of each loading their own.  They also share its cancellation token, which the queries
+ * they run check as they go, and the evaluating thread checks it while waiting for them, interrupting the columns
+ * still running once it is cancelled.  Each thread advances the evaluating thread's report progress as it finishes a
+ * column.  Only definitions marked as IndependentDataDefinition should be given, as their
+ * results depend only on the cohort and date and can be read once their session has closed.
+ *
+ * @see org.openmrs.module.amrsreports.reporting.data.IndependentDataDefinition
+ */
+public class ConcurrentColumns {
+
+	private static final Log log = LogFactory.getLog(ConcurrentColumns.class);
+
+	private static final ThreadLocal<ConcurrentColumns> current = new ThreadLocal<ConcurrentColumns>();
+
+	// how often the evaluating thread checks for cancellation while waiting for the columns
+	private static final long CHECK_MILLIS = 1000;
+
+	// how long an idle thread is kept in the pool
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private static ThreadPoolExecutor pool;
+
+	private final Date evaluationDate;
+
+	private final Set<Integer> memberIds;
+
+	// results by the class and configuration of the definition they were evaluated for
+	private final Map<String, EvaluatedPersonData> results = new HashMap<String, EvaluatedPersonData>();
+
+	ConcurrentColumns(EvaluationContext context) {
+		this.evaluationDate = context.getEvaluationDate();
+		this.memberIds = context.getBaseCohort() == null ? null
+				: new HashSet<Integer>(context.getBaseCohort().getMemberIds());
+	}
+
+	public static ConcurrentColumns getCurrent() {
+		return current.get();
+	}
+
+	public static void setCurrent(ConcurrentColumns columns) {
+		if (columns == null)
+			current.remove();
+		else
+			current.set(columns);
+	}
+
+	/**
+	 * evaluates the definitions for the context's cohort and date on up to the given number of threads, one
+	 * evaluation for each class and configuration of definition
+	 *
+	 * @return the results, to be set as the evaluating thread's current columns
+	 * @should evaluate each distinct definition once
+	 * @should open and clear a user context of its own for each column
+	 * @should rethrow the error of a column that fails
+	 * @should stop the running columns once cancelled
+	 */
+	public static ConcurrentColumns evaluate(Collection<? extends PersonDataDefinition> definitions,
+	                                         EvaluationContext context, int threads) {
+
+		ConcurrentColumns columns = new ConcurrentColumns(context);
+
+		Map<String, PersonDataDefinition> distinct = new LinkedHashMap<String, PersonDataDefinition>();
+		for (PersonDataDefinition definition : definitions) {
+			String key = PersonDataCache.getDefinitionKey(definition);
+			if (!distinct.containsKey(key))
+				distinct.put(key, definition);
+		}
+
+		if (distinct.isEmpty())
+			return columns;
+
+		final CancellationToken token = CancellationToken.getCurrent();
+		final ObsIndex.Scope scope = ObsIndex.getCurrentScope();
+		final PersonDataCache.Scope cacheScope = PersonDataCache.getCurrentScope();
+		final ReportProgress progress = ReportProgress.getCurrent();
+		final Date evaluationDate = columns.evaluationDate;
+		final Set<Integer> memberIds = columns.memberIds;
+
+		ExecutorService pool = getPool(threads);
+		Map<String, Future<EvaluatedPersonData>> futures = new LinkedHashMap<String, Future<EvaluatedPersonData>>();
+
+		long started = System.currentTimeMillis();
+
+		for (Map.Entry<String, PersonDataDefinition> entry : distinct.entrySet()) {
+			final PersonDataDefinition definition = entry.getValue();
+			futures.put(entry.getKey(), pool.submit(new Callable<EvaluatedPersonData>() {
+				public EvaluatedPersonData call() throws Exception {
+					WorkerSession.open();
+					CancellationToken.setCurrent(token);
+					ObsIndex.setCurrentScope(scope);
+					PersonDataCache.setCurrentScope(cacheScope);
+					try {
+						CancellationToken.checkCurrent();
+
+						EvaluationContext columnContext = new EvaluationContext();
+						columnContext.setEvaluationDate(evaluationDate);
+						if (memberIds != null)
+							columnContext.setBaseCohort(new Cohort(memberIds));
+
+						EvaluatedPersonData data = Context.getService(PersonDataService.class).evaluate(definition,
+								columnContext);
+
+						if (progress != null)
+							progress.finishColumnAhead();
+
+						return data;
+					} finally {
+						PersonDataCache.setCurrentScope(null);
+						ObsIndex.setCurrentScope(null);
+						CancellationToken.setCurrent(null);
+						Context.clearSession();
+						WorkerSession.close();
+					}
+				}
+			}));
+		}
+
+		boolean finished = false;
+		try {
+			for (Map.Entry<String, Future<EvaluatedPersonData>> future : futures.entrySet()) {
+				columns.results.put(future.getKey(), waitFor(future.getValue(), token));
+			}
+			finished = true;
+		} catch (InterruptedException e) {
+			throw new APIException("Interrupted while evaluating columns", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new APIException("Could not evaluate column", e.getCause());
+		} finally {
+			// the columns still running are of no use once one has failed or the report is cancelled
+			if (!finished) {
+				for (Future<EvaluatedPersonData> future : futures.values()) {
+					future.cancel(true);
+				}
+			}
+		}
+
+		log.info(String.format("Evaluated %d columns for %d patients on %d threads in %d ms", futures.size(),
+				memberIds == null ? 0 : memberIds.size(), Math.min(threads, distinct.size()),
+				System.currentTimeMillis() - started));
+
+		return columns;
+	}
+
+	/**
+	 * stops the threads of the shared pool, interrupting the columns they are evaluating
+	 */
+	public static synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+	}
+
+	/**
+	 * @return the shared pool, sized to the given number of threads
+	 */
+	private static synchronized ExecutorService getPool(int threads) {
+		threads = Math.max(1, threads);
+
+		if (pool == null) {
+			pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ColumnThreadFactory());
+			pool.allowCoreThreadTimeOut(true);
+		} else if (threads > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(threads);
+			pool.setCorePoolSize(threads);
+		} else if (threads < pool.getMaximumPoolSize()) {
+			pool.setCorePoolSize(threads);
+			pool.setMaximumPoolSize(threads);
+		}
+
+		return pool;
+	}
+
+	/**
+	 * waits for a column, checking the token for cancellation while it does
+	 */
+	private static EvaluatedPersonData waitFor(Future<EvaluatedPersonData> future, CancellationToken token)
+			throws InterruptedException, ExecutionException {
+		while (true) {
+			try {
+				return future.get(CHECK_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				if (token != null)
+					token.check();
+			}
+		}
+	}
+
+	/**
+	 * finds the result evaluated for a definition of the same class and configuration, if it was evaluated for the
+	 * context's cohort and date
+	 *
+	 * @param definition a person data definition, or a mapping of one
+	 * @return the result, or null if there is none to reuse
+	 * @should return the result for a definition of the same kind
+	 * @should return null for a definition configured differently
+	 * @should return null for another cohort or date
+	 */
+	public EvaluatedPersonData getResult(Object definition, EvaluationContext context) {
+		if (definition instanceof Mapped)
+			definition = ((Mapped) definition).getParameterizable();
+
+		if (!(definition instanceof PersonDataDefinition) || context == null)
+			return null;
+
+		if (!OpenmrsUtil.nullSafeEquals(evaluationDate, context.getEvaluationDate()))
+			return null;
+
+		EvaluatedPersonData data = results.get(PersonDataCache.getDefinitionKey((PersonDataDefinition) definition));
+		if (data == null)
+			return null;
+
+		Cohort cohort = context.getBaseCohort();
+		if (cohort == null ? memberIds != null : !cohort.getMemberIds().equals(memberIds))
+			return null;
+
+		return data;
+	}
+
+	/**
+	 * keeps a result as if it had been evaluated here
+	 */
+	void addResult(PersonDataDefinition definition, EvaluatedPersonData data) {
+		results.put(PersonDataCache.getDefinitionKey(definition), data);
+	}
+
+	/**
+	 * names the pool's threads and lets the server stop without waiting for them
+	 */
+	private static class ColumnThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "amrsreports-column-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
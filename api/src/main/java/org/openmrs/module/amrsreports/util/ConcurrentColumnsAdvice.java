@@ -0,0 +1,41 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.amrsreports.util;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+
+/**
+ * Advises the reporting module's PersonDataService so a column already evaluated alongside the others of a report
+ * is handed back instead of being evaluated again.  Evaluations on threads without concurrent columns, or of columns
+ * that were not among them, pass straight through.
+ */
+public class ConcurrentColumnsAdvice implements MethodInterceptor {
+
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		ConcurrentColumns columns = ConcurrentColumns.getCurrent();
+
+		if (columns == null || !"evaluate".equals(invocation.getMethod().getName()))
+			return invocation.proceed();
+
+		Object[] arguments = invocation.getArguments();
+		if (arguments.length != 2 || !(arguments[1] instanceof EvaluationContext))
+			return invocation.proceed();
+
+		EvaluatedPersonData data = columns.getResult(arguments[0], (EvaluationContext) arguments[1]);
+		return data != null ? data : invocation.proceed();
+	}
+}
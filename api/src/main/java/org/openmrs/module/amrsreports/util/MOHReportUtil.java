@@ -51,6 +51,9 @@ public class MOHReportUtil {
 	private static final Log log = LogFactory.getLog(MOHReportUtil.class);
 	public static final String DATE_FORMAT = "dd/MM/yyyy";
 
+	// rows written to CSV between checks for cancellation
+	private static final int CSV_CANCELLATION_ROWS = 1000;
+
 	public static String joinAsSingleCell(Collection<String> entries) {
 		return StringUtils.join(entries, AmrsReportsConstants.INTER_CELL_SEPARATOR);
 	}
@@ -95,30 +98,42 @@ public class MOHReportUtil {
 		}
 		w.writeNext(outRow);
 
-		// data rows
+		// data rows; a cancelled report stops between chunks of rows
+		int rows = 0;
 		for (DataSetRow row : dataset) {
-			i = 0;
-			for (DataSetColumn column : columns) {
-				Object colValue = row.getColumnValue(column);
-				if (colValue != null) {
-					if (colValue instanceof Cohort) {
-						outRow[i] = Integer.toString(((Cohort) colValue).size());
-					} else if (colValue instanceof IndicatorResult) {
-						outRow[i] = ((IndicatorResult) colValue).getValue().toString();
-					} else {
-						outRow[i] = colValue.toString();
-					}
-				} else {
-					outRow[i] = "";
-				}
-				i++;
-			}
-			w.writeNext(outRow);
+			if (++rows % CSV_CANCELLATION_ROWS == 0)
+				CancellationToken.checkCurrent();
+
+			w.writeNext(formatRow(row, columns, outRow));
 		}
 
 		w.flush();
 	}
 
+	/**
+	 * fills the output row with the text of each column's value
+	 */
+	static String[] formatRow(DataSetRow row, List<DataSetColumn> columns, String[] outRow) {
+		int i = 0;
+		for (DataSetColumn column : columns) {
+			outRow[i++] = formatValue(row.getColumnValue(column));
+		}
+		return outRow;
+	}
+
+	/**
+	 * the text of a column value as it is written to report files
+	 */
+	static String formatValue(Object colValue) {
+		if (colValue == null)
+			return "";
+		if (colValue instanceof Cohort)
+			return Integer.toString(((Cohort) colValue).size());
+		if (colValue instanceof IndicatorResult)
+			return ((IndicatorResult) colValue).getValue().toString();
+		return colValue.toString();
+	}
+
 	/**
 	 * renders a map containing column headers and records, defaulting to empty array lists, from an input stream
 	 */
@@ -0,0 +1,31 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.util;
+
+import org.openmrs.api.APIException;
+
+/**
+ * Thrown when a report evaluation or table build stops because it was cancelled
+ */
+public class OperationCancelledException extends APIException {
+
+	public OperationCancelledException(String message) {
+		super(message);
+	}
+
+	public OperationCancelledException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
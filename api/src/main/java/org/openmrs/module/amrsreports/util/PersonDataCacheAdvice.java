@@ -0,0 +1,83 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.util;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.amrsreports.cache.PersonDataCache;
+import org.openmrs.module.amrsreports.reporting.data.DerivedTableDataDefinition;
+import org.openmrs.module.amrsreports.reporting.data.IndependentDataDefinition;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+
+/**
+ * Advises the reporting module's PersonDataService so columns already evaluated for the same cohort and date are taken
+ * from the {@link PersonDataCache}, and those evaluated here are kept in it.  Columns read from the derived tables
+ * alone are kept until the tables are rebuilt; independent columns, which read obs, encounters or people of the cohort
+ * too, are also keyed by a stamp of those records, queried once per cohort of the report.  Nothing is cached while
+ * the cache size is 0 or the tables have never been built.
+ */
+public class PersonDataCacheAdvice implements MethodInterceptor {
+
+	private static final Log log = LogFactory.getLog(PersonDataCacheAdvice.class);
+
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		if (!"evaluate".equals(invocation.getMethod().getName()))
+			return invocation.proceed();
+
+		Object[] arguments = invocation.getArguments();
+		if (arguments.length != 2 || !(arguments[1] instanceof EvaluationContext))
+			return invocation.proceed();
+
+		Object definition = arguments[0];
+		if (definition instanceof Mapped)
+			definition = ((Mapped) definition).getParameterizable();
+
+		boolean derivedTablesOnly = definition instanceof DerivedTableDataDefinition;
+		if (!(derivedTablesOnly || definition instanceof IndependentDataDefinition)
+				|| !(definition instanceof PersonDataDefinition))
+			return invocation.proceed();
+
+		PersonDataCache.Scope scope = PersonDataCache.getScope();
+		if (!scope.isEnabled())
+			return invocation.proceed();
+
+		PersonDataCache cache = PersonDataCache.getInstance();
+		cache.setLimits(scope.getMaxValues(), scope.getMaxSpillBytes());
+
+		PersonDataDefinition personDataDefinition = (PersonDataDefinition) definition;
+		EvaluationContext context = (EvaluationContext) arguments[1];
+		String buildVersion = scope.getBuildVersion();
+		String key = PersonDataCache.getKey(personDataDefinition, context, buildVersion,
+				derivedTablesOnly ? null : scope.getRecordsStamp(context));
+
+		EvaluatedPersonData data = cache.get(key, buildVersion, personDataDefinition, context);
+		if (data != null) {
+			if (log.isDebugEnabled())
+				log.debug("Took " + definition.getClass().getSimpleName() + " from the cache: " + cache.getStatistics());
+			return data;
+		}
+
+		Object result = invocation.proceed();
+		if (result instanceof EvaluatedPersonData)
+			cache.put(key, buildVersion, (EvaluatedPersonData) result);
+
+		return result;
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.util;
+
+import org.openmrs.module.amrsreports.QueuedReport;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides the order in which waiting reports are served.  Requesters -- users or facilities -- take turns: a report's
+ * turn is how many reports from the same requester are already running or come before it in that requester's own
+ * queue, so someone queueing every facility cannot hold everyone else up.  Within a turn, and within each requester's
+ * own queue, higher priority reports go first; a report's priority goes up a level for every period it has waited, so
+ * low priority reports eventually run.  Remaining ties go to the earliest scheduled report, then the lowest id, so the
+ * order is always the same for the same queue.
+ */
+public class QueuedReportScheduler {
+
+	public static final String SHARE_BY_USER = "user";
+	public static final String SHARE_BY_FACILITY = "facility";
+
+	private final int agingMinutes;
+
+	private final String shareBy;
+
+	/**
+	 * @param agingMinutes minutes a report waits before its priority goes up a level, or 0 to disable aging
+	 * @param shareBy whether requests take turns per user or per facility
+	 */
+	public QueuedReportScheduler(int agingMinutes, String shareBy) {
+		this.agingMinutes = agingMinutes;
+		this.shareBy = SHARE_BY_FACILITY.equals(shareBy) ? SHARE_BY_FACILITY : SHARE_BY_USER;
+	}
+
+	/**
+	 * orders waiting reports, first to be served first
+	 *
+	 * @param waiting reports ready to be claimed
+	 * @param running reports currently being processed, which count against their requester's turn
+	 * @param now the time to measure waiting from
+	 * @should let different requesters take turns
+	 * @should serve higher priority reports first within a turn
+	 * @should count running reports against their requester
+	 * @should raise the priority of reports that have waited long enough
+	 * @should break ties by date scheduled then id
+	 */
+	public List<QueuedReport> order(List<QueuedReport> waiting, List<QueuedReport> running, final Date now) {
+		final Comparator<QueuedReport> byPriority = new Comparator<QueuedReport>() {
+			public int compare(QueuedReport a, QueuedReport b) {
+				int priority = getEffectivePriority(b, now) - getEffectivePriority(a, now);
+				if (priority != 0)
+					return priority;
+
+				return compareByAge(a, b);
+			}
+		};
+
+		List<QueuedReport> ordered = new ArrayList<QueuedReport>(waiting);
+		Collections.sort(ordered, byPriority);
+
+		// how many reports each requester already has running
+		Map<String, Integer> served = new HashMap<String, Integer>();
+		if (running != null) {
+			for (QueuedReport r : running) {
+				increment(served, getShareKey(r));
+			}
+		}
+
+		// each report's turn among its requester's reports, in priority order
+		final Map<QueuedReport, Integer> turns = new IdentityHashMap<QueuedReport, Integer>();
+		for (QueuedReport r : ordered) {
+			String key = getShareKey(r);
+			turns.put(r, served.containsKey(key) ? served.get(key) : 0);
+			increment(served, key);
+		}
+
+		Collections.sort(ordered, new Comparator<QueuedReport>() {
+			public int compare(QueuedReport a, QueuedReport b) {
+				int turn = turns.get(a) - turns.get(b);
+				if (turn != 0)
+					return turn;
+
+				return byPriority.compare(a, b);
+			}
+		});
+
+		return ordered;
+	}
+
+	/**
+	 * @return the report's priority plus one level for every aging period it has waited since it was scheduled
+	 */
+	public int getEffectivePriority(QueuedReport report, Date now) {
+		int priority = report.getPriority() == null ? QueuedReport.PRIORITY_NORMAL : report.getPriority();
+
+		if (agingMinutes > 0 && report.getDateScheduled() != null && now != null) {
+			long waited = now.getTime() - report.getDateScheduled().getTime();
+			if (waited > 0)
+				priority += (int) (waited / (agingMinutes * 60000L));
+		}
+
+		return priority;
+	}
+
+	private String getShareKey(QueuedReport report) {
+		if (SHARE_BY_FACILITY.equals(shareBy))
+			return report.getFacility() == null ? "" : String.valueOf(report.getFacility().getFacilityId());
+
+		return report.getRequestedBy() == null ? "" : String.valueOf(report.getRequestedBy().getUserId());
+	}
+
+	private int compareByAge(QueuedReport a, QueuedReport b) {
+		int scheduled = OpenmrsUtil.compareWithNullAsEarliest(a.getDateScheduled(), b.getDateScheduled());
+		if (scheduled != 0)
+			return scheduled;
+
+		if (a.getId() == null || b.getId() == null)
+			return a.getId() == null ? (b.getId() == null ? 0 : -1) : 1;
+
+		return a.getId().compareTo(b.getId());
+	}
+
+	private void increment(Map<String, Integer> counts, String key) {
+		counts.put(key, counts.containsKey(key) ? counts.get(key) + 1 : 1);
+	}
+}
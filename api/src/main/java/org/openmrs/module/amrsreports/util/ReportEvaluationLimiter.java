@@ -0,0 +1,57 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.util;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits how many reports are evaluated against the database at the same time, however many workers are processing
+ * the report queue
+ */
+public class ReportEvaluationLimiter {
+
+	private static volatile Semaphore permits = new Semaphore(1, true);
+
+	private static volatile int maxEvaluations = 1;
+
+	/**
+	 * changes the number of evaluations allowed at once; evaluations already running finish under the old limit
+	 *
+	 * @should ignore values less than one
+	 */
+	public static synchronized void setMaxEvaluations(int max) {
+		if (max < 1 || max == maxEvaluations)
+			return;
+
+		maxEvaluations = max;
+		permits = new Semaphore(max, true);
+	}
+
+	public static int getMaxEvaluations() {
+		return maxEvaluations;
+	}
+
+	/**
+	 * waits for a turn to evaluate a report
+	 *
+	 * @return the permit, to be released when the evaluation is done
+	 * @should not allow more than the maximum number of evaluations at once
+	 */
+	public static Semaphore acquire() throws InterruptedException {
+		Semaphore current = permits;
+		current.acquire();
+		return current;
+	}
+}
@@ -0,0 +1,284 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.util;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tracks how far along the evaluation of a report is: the phase it is in, out of the cohort, each column, the sort and
+ * the output files, and the number of patients in it.  The progress of the report being evaluated on a thread is kept
+ * as that thread's current progress, so that column evaluations deep inside the reporting module can advance it.
+ * Columns evaluated ahead of the report on other threads are handed the progress and advance it as they finish, so
+ * its state is guarded by the progress itself and the listener is told of changes outside that lock.
+ */
+public class ReportProgress {
+
+	public static final String PHASE_COHORT = "cohort";
+	public static final String PHASE_COLUMNS = "columns";
+	public static final String PHASE_SORT = "sort";
+	public static final String PHASE_CSV = "CSV";
+	public static final String PHASE_XLS = "XLS";
+
+	private static final ThreadLocal<ReportProgress> current = new ThreadLocal<ReportProgress>();
+
+	/**
+	 * notified whenever the progress changes
+	 */
+	public interface Listener {
+		public void progressed(ReportProgress progress);
+	}
+
+	private final List<String> phases = new ArrayList<String>();
+
+	private final List<String> columns = new ArrayList<String>();
+
+	private final Long historicalMillisPerPatient;
+
+	private final Date started;
+
+	private Listener listener;
+
+	private int step = 0;
+
+	private String phase;
+
+	private int patients = 0;
+
+	private boolean complete = false;
+
+	private boolean evaluatingColumns = false;
+
+	private int nextColumn = 0;
+
+	private int depth = 0;
+
+	/**
+	 * @param columns names of the columns, in the order they are evaluated, or null to treat them as a single phase
+	 * @param historicalMillisPerPatient how long similar reports took per patient, or null if not known
+	 * @param started when the evaluation started
+	 */
+	public ReportProgress(List<String> columns, Long historicalMillisPerPatient, Date started) {
+		this.historicalMillisPerPatient = historicalMillisPerPatient;
+		this.started = started;
+
+		phases.add(PHASE_COHORT);
+		if (columns == null || columns.isEmpty()) {
+			phases.add(PHASE_COLUMNS);
+		} else {
+			this.columns.addAll(columns);
+			phases.addAll(columns);
+		}
+		phases.add(PHASE_SORT);
+		phases.add(PHASE_CSV);
+		phases.add(PHASE_XLS);
+	}
+
+	/**
+	 * @return the progress of the report being evaluated on this thread, or null
+	 */
+	public static ReportProgress getCurrent() {
+		return current.get();
+	}
+
+	public static void setCurrent(ReportProgress progress) {
+		if (progress == null)
+			current.remove();
+		else
+			current.set(progress);
+	}
+
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * moves on to the named phase; phases not known in advance are reported without advancing the step
+	 *
+	 * @should advance to the named phase
+	 * @should not move backwards
+	 */
+	public void startPhase(String phase) {
+		synchronized (this) {
+			int index = phases.indexOf(phase);
+			if (index + 1 > step)
+				step = index + 1;
+
+			this.phase = phase;
+		}
+		notifyListener();
+	}
+
+	/**
+	 * starts the column phase; each outermost data evaluation from now on is taken to be the next column
+	 */
+	public void startColumns() {
+		synchronized (this) {
+			evaluatingColumns = true;
+			nextColumn = 0;
+		}
+		startPhase(columns.isEmpty() ? PHASE_COLUMNS : columns.get(0));
+	}
+
+	/**
+	 * called from another thread as it finishes evaluating a column ahead of the report; the report's own thread later
+	 * reuses the result without taking any time, so the step advances now, up to the last column
+	 *
+	 * @should advance one column for each column finished ahead
+	 * @should not advance past the last column
+	 */
+	public void finishColumnAhead() {
+		synchronized (this) {
+			// the sort phase's index is the step number of the last column
+			if (step < phases.indexOf(PHASE_SORT))
+				step++;
+
+			phase = PHASE_COLUMNS;
+		}
+		notifyListener();
+	}
+
+	/**
+	 * called as a data definition starts evaluating, so the next column can be reported
+	 *
+	 * @should advance through the columns
+	 * @should ignore nested evaluations
+	 */
+	public void startEvaluation() {
+		String column = null;
+
+		synchronized (this) {
+			depth++;
+			if (depth > 1 || !evaluatingColumns || columns.isEmpty())
+				return;
+
+			if (nextColumn < columns.size())
+				column = columns.get(nextColumn);
+
+			nextColumn++;
+		}
+
+		if (column != null)
+			startPhase(column);
+	}
+
+	/**
+	 * called as a data definition finishes evaluating; after the last column the data set is sorted
+	 */
+	public void finishEvaluation() {
+		synchronized (this) {
+			depth--;
+			if (depth != 0 || !evaluatingColumns || columns.isEmpty() || nextColumn < columns.size())
+				return;
+		}
+		finishColumns();
+	}
+
+	/**
+	 * ends the column phase and starts sorting the data set, whether or not the columns were known in advance
+	 *
+	 * @should start sorting without a list of columns
+	 */
+	public void finishColumns() {
+		synchronized (this) {
+			evaluatingColumns = false;
+			if (PHASE_SORT.equals(phase))
+				return;
+		}
+		startPhase(PHASE_SORT);
+	}
+
+	public void addPatients(int count) {
+		synchronized (this) {
+			patients += count;
+		}
+		notifyListener();
+	}
+
+	public void complete() {
+		synchronized (this) {
+			step = phases.size();
+			phase = null;
+			complete = true;
+		}
+		notifyListener();
+	}
+
+	/**
+	 * estimates when the report will complete: from how long similar reports took for as many patients, or, once that
+	 * has passed or if there is no history, from the share of phases done so far
+	 *
+	 * @return the estimate, or null if there is nothing to base it on yet
+	 * @should estimate from history
+	 * @should extrapolate from the phases done when history is exceeded or missing
+	 * @should return null without history or progress
+	 */
+	public synchronized Date getEstimatedCompletion(Date now) {
+		if (complete)
+			return null;
+
+		long elapsed = now.getTime() - started.getTime();
+
+		if (historicalMillisPerPatient != null && patients > 0) {
+			long expected = historicalMillisPerPatient * patients;
+			if (expected > elapsed)
+				return new Date(started.getTime() + expected);
+		}
+
+		// phases before the current one are done
+		int done = step - 1;
+		if (done <= 0)
+			return null;
+
+		return new Date(started.getTime() + elapsed * phases.size() / done);
+	}
+
+	public synchronized String getPhase() {
+		return phase;
+	}
+
+	/**
+	 * @return the number of the current phase, starting at 1
+	 */
+	public synchronized int getStep() {
+		return step;
+	}
+
+	public int getSteps() {
+		return phases.size();
+	}
+
+	public synchronized int getPatients() {
+		return patients;
+	}
+
+	public Date getStarted() {
+		return started;
+	}
+
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+
+	private void notifyListener() {
+		Listener listener;
+		synchronized (this) {
+			listener = this.listener;
+		}
+		if (listener != null)
+			listener.progressed(this);
+	}
+}
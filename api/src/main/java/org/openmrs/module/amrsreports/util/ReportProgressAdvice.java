@@ -0,0 +1,42 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.util;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * Advises the reporting module's PatientDataService so each column evaluated for a queued report advances that
+ * report's progress, and a cancelled report stops before its next column.  Evaluations on threads without a report
+ * in progress pass straight through.
+ */
+public class ReportProgressAdvice implements MethodInterceptor {
+
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		ReportProgress progress = ReportProgress.getCurrent();
+
+		if (progress == null || !"evaluate".equals(invocation.getMethod().getName()))
+			return invocation.proceed();
+
+		CancellationToken.checkCurrent();
+
+		progress.startEvaluation();
+		try {
+			return invocation.proceed();
+		} finally {
+			progress.finishEvaluation();
+		}
+	}
+}
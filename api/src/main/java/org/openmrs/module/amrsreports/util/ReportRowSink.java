@@ -0,0 +1,31 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.util;
+
+import org.openmrs.module.reporting.dataset.DataSet;
+
+import java.io.IOException;
+
+/**
+ * Takes the rows of a report as they are evaluated, a block at a time and in report order, so a report evaluated in
+ * blocks of patients can pass each block on before the next is evaluated.
+ */
+public interface ReportRowSink {
+
+	/**
+	 * takes the next block of rows; every block has the same columns
+	 */
+	public void addRows(DataSet rows) throws IOException;
+}
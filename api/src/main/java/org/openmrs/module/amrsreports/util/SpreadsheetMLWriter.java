@@ -0,0 +1,185 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Writes an Excel workbook in the XML Spreadsheet 2003 format one row at a time, straight to the underlying writer, so
+ * memory use does not grow with the number of rows.  Every cell is written as text.  Excel only opens these workbooks
+ * without a warning when they are saved with the .xml extension.
+ */
+public class SpreadsheetMLWriter {
+
+	private static final int MAX_SHEET_NAME_LENGTH = 31;
+
+	private final Writer out;
+
+	private final DecimalFormat widthFormat = new DecimalFormat("0.##", new DecimalFormatSymbols(Locale.US));
+
+	private boolean inWorksheet = false;
+
+	public SpreadsheetMLWriter(Writer out) throws IOException {
+		this.out = out;
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.write("<?mso-application progid=\"Excel.Sheet\"?>\n");
+		out.write("<Workbook xmlns=\"urn:schemas-microsoft-com:office:spreadsheet\"");
+		out.write(" xmlns:ss=\"urn:schemas-microsoft-com:office:spreadsheet\">\n");
+		out.write("<Styles><Style ss:ID=\"header\"><Alignment ss:Vertical=\"Top\" ss:WrapText=\"1\"/>");
+		out.write("<Font ss:Bold=\"1\"/></Style></Styles>\n");
+	}
+
+	/**
+	 * starts a new worksheet, ending the one before it
+	 *
+	 * @should replace characters Excel does not allow in sheet names
+	 */
+	public void startWorksheet(String name) throws IOException {
+		startWorksheet(name, null, null);
+	}
+
+	/**
+	 * starts a new worksheet with the given column widths, in points, and hidden columns; either may be null, and a
+	 * width of 0 leaves the column at its default width
+	 *
+	 * @should write a width for each column and hide hidden columns
+	 */
+	public void startWorksheet(String name, double[] columnWidths, boolean[] hiddenColumns) throws IOException {
+		endWorksheet();
+
+		String sheetName = name == null ? "" : name.replaceAll("[:\\\\/?*\\[\\]]", "-");
+		if (sheetName.length() > MAX_SHEET_NAME_LENGTH)
+			sheetName = sheetName.substring(0, MAX_SHEET_NAME_LENGTH);
+
+		out.write("<Worksheet ss:Name=\"" + escape(sheetName) + "\">\n<Table>\n");
+		inWorksheet = true;
+
+		int columns = Math.max(columnWidths == null ? 0 : columnWidths.length,
+				hiddenColumns == null ? 0 : hiddenColumns.length);
+		for (int i = 0; i < columns; i++) {
+			out.write("<Column ss:Index=\"" + (i + 1) + "\"");
+			if (columnWidths != null && i < columnWidths.length && columnWidths[i] > 0)
+				out.write(" ss:AutoFitWidth=\"0\" ss:Width=\"" + widthFormat.format(columnWidths[i]) + "\"");
+			if (hiddenColumns != null && i < hiddenColumns.length && hiddenColumns[i])
+				out.write(" ss:Hidden=\"1\"");
+			out.write("/>\n");
+		}
+	}
+
+	public void writeHeader(String[] cells) throws IOException {
+		writeRow(cells, null, null, " ss:StyleID=\"header\"");
+	}
+
+	/**
+	 * writes a header row whose cells may span the cells to their right and the rows below; a cell covered by another
+	 * cell's span is null, and is left out.  The spans may be null if no cell in the row spans others.
+	 *
+	 * @should leave out covered cells and index the cell after them
+	 */
+	public void writeHeader(String[] cells, int[] mergeAcross, int[] mergeDown) throws IOException {
+		writeRow(cells, mergeAcross == null ? new int[cells.length] : mergeAcross,
+				mergeDown == null ? new int[cells.length] : mergeDown, " ss:StyleID=\"header\"");
+	}
+
+	/**
+	 * @should escape markup and drop characters XML cannot hold
+	 */
+	public void writeRow(String[] cells) throws IOException {
+		writeRow(cells, null, null, "");
+	}
+
+	/**
+	 * ends the workbook; the caller closes the underlying writer
+	 *
+	 * @should end the open worksheet and the workbook
+	 */
+	public void finish() throws IOException {
+		endWorksheet();
+		out.write("</Workbook>\n");
+		out.flush();
+	}
+
+	private void writeRow(String[] cells, int[] mergeAcross, int[] mergeDown, String style) throws IOException {
+		if (!inWorksheet)
+			startWorksheet("Sheet1");
+
+		out.write("<Row>");
+
+		// a cell written after left out cells has to say which column it is in; cells are only left out of laid out rows
+		boolean skipped = false;
+		for (int i = 0; i < cells.length; i++) {
+			if (cells[i] == null && mergeAcross != null) {
+				skipped = true;
+				continue;
+			}
+
+			out.write("<Cell");
+			if (skipped)
+				out.write(" ss:Index=\"" + (i + 1) + "\"");
+			out.write(style);
+			if (mergeAcross != null && mergeAcross[i] > 0)
+				out.write(" ss:MergeAcross=\"" + mergeAcross[i] + "\"");
+			if (mergeDown != null && mergeDown[i] > 0)
+				out.write(" ss:MergeDown=\"" + mergeDown[i] + "\"");
+			out.write("><Data ss:Type=\"String\">");
+			out.write(escape(cells[i]));
+			out.write("</Data></Cell>");
+			skipped = false;
+		}
+		out.write("</Row>\n");
+	}
+
+	private void endWorksheet() throws IOException {
+		if (inWorksheet)
+			out.write("</Table>\n</Worksheet>\n");
+		inWorksheet = false;
+	}
+
+	private static String escape(String value) {
+		if (value == null)
+			return "";
+
+		StringBuilder sb = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '&':
+					sb.append("&amp;");
+					break;
+				case '<':
+					sb.append("&lt;");
+					break;
+				case '>':
+					sb.append("&gt;");
+					break;
+				case '"':
+					sb.append("&quot;");
+					break;
+				case '\n':
+					sb.append("&#10;");
+					break;
+				default:
+					// other control characters are not allowed in XML at all
+					if (c >= 0x20 || c == '\t' || c == '\r')
+						sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
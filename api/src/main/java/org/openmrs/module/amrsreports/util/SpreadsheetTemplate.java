@@ -0,0 +1,252 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.util;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.report.ReportDesign;
+import org.openmrs.module.reporting.report.ReportDesignResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The layout of the first sheet of an Excel template design, read so a report can be streamed into a workbook laid
+ * out like the one the template renderer makes: the rows above and below the repeating row, their merged cells, the
+ * column widths and hidden columns, and the repeating row's cell expressions, which are filled in once for each row of
+ * the report.  Only designs with a single repeating row are laid out, and cell styles other than bold header rows are
+ * not kept.
+ */
+public class SpreadsheetTemplate {
+
+	private static final Log log = LogFactory.getLog(SpreadsheetTemplate.class);
+
+	// #column# or #column|format#, as in the template renderer
+	private static final Pattern EXPRESSION = Pattern.compile("#([^#|]+)(\\|([^#]*))?#");
+
+	private static final Pattern REPEATING_ROW = Pattern.compile("row:(\\d+)(-\\d+)?");
+
+	// Excel column widths are in 256ths of a character, and a character of the default font is about 5.25 points wide
+	private static final double POINTS_PER_WIDTH_UNIT = 5.25 / 256;
+
+	private final String sheetName;
+
+	private final String[][] cells;
+
+	private final int[][] mergeAcross;
+
+	private final int[][] mergeDown;
+
+	private final int repeatingRow;
+
+	private final double[] columnWidths;
+
+	private final boolean[] hiddenColumns;
+
+	/**
+	 * @param cells the text of each cell, by row and column; cells covered by a merged cell are null
+	 * @param mergeAcross the number of cells to the right each cell is merged with
+	 * @param mergeDown the number of rows below each cell is merged with
+	 * @param repeatingRow the index of the row repeated for each row of the report
+	 */
+	public SpreadsheetTemplate(String sheetName, String[][] cells, int[][] mergeAcross, int[][] mergeDown,
+	                           int repeatingRow, double[] columnWidths, boolean[] hiddenColumns) {
+		this.sheetName = sheetName;
+		this.cells = cells;
+		this.mergeAcross = mergeAcross;
+		this.mergeDown = mergeDown;
+		this.repeatingRow = repeatingRow;
+		this.columnWidths = columnWidths;
+		this.hiddenColumns = hiddenColumns;
+	}
+
+	/**
+	 * reads the layout of an Excel template design
+	 *
+	 * @return the layout, or null if the design has no template or does not repeat a single row
+	 */
+	public static SpreadsheetTemplate read(ReportDesign design) throws IOException {
+		if (design == null || design.getProperties() == null)
+			return null;
+
+		Matcher section = REPEATING_ROW.matcher(StringUtils.defaultString(
+				design.getProperties().getProperty("repeatingSections")));
+		if (!section.find() || section.group(2) != null) {
+			log.warn("The design " + design.getName() + " does not repeat a single row, so it cannot be streamed");
+			return null;
+		}
+
+		ReportDesignResource resource = null;
+		for (ReportDesignResource candidate : design.getResources()) {
+			if (candidate.getContents() != null) {
+				resource = candidate;
+				break;
+			}
+		}
+
+		if (resource == null)
+			return null;
+
+		HSSFWorkbook workbook = new HSSFWorkbook(new ByteArrayInputStream(resource.getContents()));
+		HSSFSheet sheet = workbook.getSheetAt(0);
+
+		// the repeating section is numbered from 1
+		int repeatingRow = Integer.parseInt(section.group(1)) - 1;
+		int rows = Math.max(sheet.getLastRowNum(), repeatingRow) + 1;
+
+		int columns = 0;
+		for (int r = 0; r < rows; r++) {
+			HSSFRow row = sheet.getRow(r);
+			if (row != null)
+				columns = Math.max(columns, row.getLastCellNum());
+		}
+		for (int i = 0; i < sheet.getNumMergedRegions(); i++) {
+			columns = Math.max(columns, sheet.getMergedRegion(i).getLastColumn() + 1);
+		}
+
+		String[][] cells = new String[rows][columns];
+		int[][] mergeAcross = new int[rows][columns];
+		int[][] mergeDown = new int[rows][columns];
+
+		for (int r = 0; r < rows; r++) {
+			HSSFRow row = sheet.getRow(r);
+			for (int c = 0; c < columns; c++) {
+				cells[r][c] = getText(row == null ? null : row.getCell(c));
+			}
+		}
+
+		for (int i = 0; i < sheet.getNumMergedRegions(); i++) {
+			CellRangeAddress region = sheet.getMergedRegion(i);
+
+			// the repeating row is written one cell per column
+			if (region.getFirstRow() <= repeatingRow && region.getLastRow() >= repeatingRow)
+				continue;
+
+			for (int r = region.getFirstRow(); r <= region.getLastRow() && r < rows; r++) {
+				for (int c = region.getFirstColumn(); c <= region.getLastColumn(); c++) {
+					cells[r][c] = null;
+				}
+			}
+
+			cells[region.getFirstRow()][region.getFirstColumn()] = getText(
+					sheet.getRow(region.getFirstRow()) == null ? null
+							: sheet.getRow(region.getFirstRow()).getCell(region.getFirstColumn()));
+			mergeAcross[region.getFirstRow()][region.getFirstColumn()] = region.getLastColumn() - region.getFirstColumn();
+			mergeDown[region.getFirstRow()][region.getFirstColumn()] = region.getLastRow() - region.getFirstRow();
+		}
+
+		double[] columnWidths = new double[columns];
+		boolean[] hiddenColumns = new boolean[columns];
+		for (int c = 0; c < columns; c++) {
+			columnWidths[c] = sheet.getColumnWidth(c) * POINTS_PER_WIDTH_UNIT;
+			hiddenColumns[c] = sheet.isColumnHidden(c);
+		}
+
+		return new SpreadsheetTemplate(workbook.getSheetName(0), cells, mergeAcross, mergeDown, repeatingRow,
+				columnWidths, hiddenColumns);
+	}
+
+	public String getSheetName() {
+		return sheetName;
+	}
+
+	public double[] getColumnWidths() {
+		return columnWidths;
+	}
+
+	public boolean[] getHiddenColumns() {
+		return hiddenColumns;
+	}
+
+	/**
+	 * writes the rows above the repeating row
+	 */
+	public void writeRowsAbove(SpreadsheetMLWriter writer) throws IOException {
+		for (int r = 0; r < repeatingRow; r++) {
+			writer.writeHeader(cells[r], mergeAcross[r], mergeDown[r]);
+		}
+	}
+
+	/**
+	 * writes the rows below the repeating row
+	 */
+	public void writeRowsBelow(SpreadsheetMLWriter writer) throws IOException {
+		for (int r = repeatingRow + 1; r < cells.length; r++) {
+			writer.writeHeader(cells[r], mergeAcross[r], mergeDown[r]);
+		}
+	}
+
+	/**
+	 * fills in the repeating row for a row of the report, replacing each expression with the value of the column it
+	 * names, formatted with its date format if it has one
+	 *
+	 * @should fill in column values and format dates
+	 * @should leave cells without expressions as they are
+	 */
+	public String[] formatRow(DataSetRow row) {
+		String[] template = cells[repeatingRow];
+		String[] outRow = new String[template.length];
+
+		for (int c = 0; c < template.length; c++) {
+			if (template[c] == null) {
+				outRow[c] = "";
+				continue;
+			}
+
+			Matcher expression = EXPRESSION.matcher(template[c]);
+			StringBuffer sb = new StringBuffer();
+			while (expression.find()) {
+				Object value = row.getColumnValue(expression.group(1));
+				expression.appendReplacement(sb, Matcher.quoteReplacement(format(value, expression.group(3))));
+			}
+			expression.appendTail(sb);
+			outRow[c] = sb.toString();
+		}
+
+		return outRow;
+	}
+
+	private static String format(Object value, String format) {
+		if (value instanceof Date && StringUtils.isNotBlank(format))
+			return new SimpleDateFormat(format).format((Date) value);
+		return MOHReportUtil.formatValue(value);
+	}
+
+	private static String getText(HSSFCell cell) {
+		if (cell == null)
+			return "";
+
+		if (cell.getCellType() == HSSFCell.CELL_TYPE_STRING)
+			return cell.getRichStringCellValue().getString();
+
+		if (cell.getCellType() == HSSFCell.CELL_TYPE_NUMERIC) {
+			double value = cell.getNumericCellValue();
+			return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+		}
+
+		return "";
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.amrsreports.util;
+
+import au.com.bytecode.opencsv.CSVWriter;
+import org.openmrs.module.amrsreports.AmrsReportsConstants;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes a report to a CSV file and an Excel workbook as its blocks of rows arrive, so neither file is held in memory
+ * and each block can be let go once it is written.  With a template, the workbook is laid out like the register: the
+ * template's rows above and below its repeating row, and one filled in repeating row for each row of the report.
+ * Without one, the workbook has a header row of column labels and every column, like the CSV file.
+ */
+public class StreamingReportWriter implements ReportRowSink {
+
+	// rows written between checks for cancellation
+	private static final int CANCELLATION_ROWS = 1000;
+
+	private final CSVWriter csv;
+
+	private final Writer xlsOut;
+
+	private final SpreadsheetMLWriter xls;
+
+	private final String sheetName;
+
+	private final SpreadsheetTemplate template;
+
+	private List<DataSetColumn> columns;
+
+	private String[] outRow;
+
+	private boolean started = false;
+
+	private int rows = 0;
+
+	/**
+	 * @param template the layout of the workbook, or null for a plain workbook
+	 */
+	public StreamingReportWriter(OutputStream csvOut, OutputStream xlsOut, String sheetName,
+	                             SpreadsheetTemplate template) throws IOException {
+		this.csv = new CSVWriter(new OutputStreamWriter(csvOut, "UTF-8"), AmrsReportsConstants.DEFAULT_CSV_DELIMITER);
+		this.xlsOut = new BufferedWriter(new OutputStreamWriter(xlsOut, "UTF-8"));
+		this.xls = new SpreadsheetMLWriter(this.xlsOut);
+		this.sheetName = sheetName;
+		this.template = template;
+	}
+
+	/**
+	 * writes a block of rows to both files, starting them with the first block
+	 *
+	 * @should write the header once and the rows of every block
+	 * @should lay out the workbook like the template
+	 */
+	public void addRows(DataSet block) throws IOException {
+		if (columns == null) {
+			columns = block.getMetaData().getColumns();
+			outRow = new String[columns.size()];
+
+			int i = 0;
+			for (DataSetColumn column : columns) {
+				outRow[i++] = column.getLabel();
+			}
+			csv.writeNext(outRow);
+			startWorkbook(outRow);
+		}
+
+		// a cancelled report stops between chunks of rows
+		for (DataSetRow row : block) {
+			if (++rows % CANCELLATION_ROWS == 0)
+				CancellationToken.checkCurrent();
+
+			csv.writeNext(MOHReportUtil.formatRow(row, columns, outRow));
+			xls.writeRow(template == null ? outRow : template.formatRow(row));
+		}
+	}
+
+	/**
+	 * ends both files; the caller then closes them
+	 */
+	public void finish() throws IOException {
+		startWorkbook(null);
+		if (template != null)
+			template.writeRowsBelow(xls);
+
+		csv.flush();
+		xls.finish();
+	}
+
+	/**
+	 * closes both files and the streams under them
+	 */
+	public void close() throws IOException {
+		try {
+			csv.close();
+		} finally {
+			xlsOut.close();
+		}
+	}
+
+	private void startWorkbook(String[] labels) throws IOException {
+		if (started)
+			return;
+		started = true;
+
+		if (template == null) {
+			xls.startWorksheet(sheetName);
+			if (labels != null)
+				xls.writeHeader(labels);
+		} else {
+			xls.startWorksheet(template.getSheetName(), template.getColumnWidths(), template.getHiddenColumns());
+			template.writeRowsAbove(xls);
+		}
+	}
+}
@@ -14,12 +14,505 @@
 
 package org.openmrs.module.amrsreports.util;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.APIException;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.AmrsReportsConstants;
+import org.openmrs.module.amrsreports.BuildCheckpoint;
+import org.openmrs.module.amrsreports.BuildHistory;
+import org.openmrs.module.amrsreports.service.BuildHistoryService;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 public class TableBuilderUtil {
 
+	private static final Log log = LogFactory.getLog(TableBuilderUtil.class);
+
+	/**
+	 * identifies the build in progress, so every step it runs can be recorded against it
+	 */
+	private static volatile String currentBuildId = null;
+
+	private static volatile Date currentBuildStarted = null;
+
+	/**
+	 * checkpoints of the build in progress, by step; later checkpoints for a step replace earlier ones
+	 */
+	private static final Map<String, String> checkpoints = Collections.synchronizedMap(new HashMap<String, String>());
+
+	public static final String CHECKPOINT_BUILD_STARTED = "build started";
+
+	public static final String CHECKPOINT_BUILD_COMPLETE = "build complete";
+
+	public static final String STAGING_SUFFIX = "_staging";
+
+	private static final String RETIRED_SUFFIX = "_retired";
+
+	private static final String QUERY_ROWS_READ = "show session status like 'Handler_read%'";
+
+	private static final String QUERY_FOREIGN_KEYS =
+			"select constraint_name" +
+					" from information_schema.table_constraints" +
+					" where table_schema = database()" +
+					"   and table_name = ':table'" +
+					"   and constraint_type = 'FOREIGN KEY'";
+
+	private static final String QUERY_TABLE_EXISTS =
+			"select count(*)" +
+					" from information_schema.tables" +
+					" where table_schema = database()" +
+					"   and table_name = ':table'";
+
 	public static void runUpdateSQL(String query) {
-		Context.getAdministrationService().executeSQL(query, false);
+		Context.getAdministrationService().executeSQL(prepareQuery(query), false);
+	}
+
+	/**
+	 * runs a build step and, if a build is in progress, records its timing and the number of rows it affected
+	 *
+	 * @return the number of rows affected, if reported by the database
+	 */
+	public static Integer runUpdateSQL(String builder, String step, String query) {
+		Date started = new Date();
+		List<List<Object>> results = Context.getAdministrationService().executeSQL(prepareQuery(query), false);
+		Integer rows = getRowsAffected(results);
+		recordStep(builder, step, started, new Date(), rows);
+		return rows;
+	}
+
+	/**
+	 * runs build steps in order in a single transaction on a borrowed connection, so readers of the tables they change
+	 * see either none of the changes or all of them; nothing is committed if a step fails or the work is cancelled.
+	 * Each step is recorded like those run with runUpdateSQL.  The steps must not contain DDL, which MySQL commits
+	 * implicitly.
+	 *
+	 * @param steps the queries to run, keyed by step name
+	 */
+	public static void runUpdateSQLInTransaction(String builder, Map<String, String> steps) {
+		CancellationToken token = CancellationToken.getCurrent();
+
+		Connection connection = null;
+		Statement statement = null;
+		boolean autoCommit = true;
+
+		try {
+			connection = getConnection();
+			autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+
+			statement = connection.createStatement();
+			if (token != null)
+				token.addStatement(statement);
+
+			for (Map.Entry<String, String> step : steps.entrySet()) {
+				Date started = new Date();
+				int rows = statement.executeUpdate(prepareQuery(step.getValue()));
+				recordStep(builder, step.getKey(), started, new Date(), rows);
+			}
+
+			connection.commit();
+
+		} catch (SQLException e) {
+			if (token != null && token.isCancelled())
+				throw new OperationCancelledException(builder + " build was cancelled", e);
+			throw new APIException("Could not run " + builder + " build steps", e);
+		} finally {
+			if (token != null)
+				token.removeStatement(statement);
+			close(statement);
+			close(connection, autoCommit);
+		}
+	}
+
+	/**
+	 * stops before running the query if the work on this thread has been cancelled, and otherwise tags the query so
+	 * cancelling can kill it part way
+	 */
+	private static String prepareQuery(String query) {
+		CancellationToken token = CancellationToken.getCurrent();
+		if (token == null)
+			return query;
+
+		token.check();
+		return token.tag(query);
+	}
+
+	/**
+	 * starts a new build; steps run until finishBuild() is called are recorded against it
+	 *
+	 * @return the new build id
+	 */
+	public static String startBuild() {
+		checkpoints.clear();
+		currentBuildId = UUID.randomUUID().toString();
+		currentBuildStarted = new Date();
+		saveCheckpoint(CHECKPOINT_BUILD_STARTED, null);
+		return currentBuildId;
+	}
+
+	/**
+	 * continues an unfinished build, restoring its checkpoints and start date
+	 */
+	public static void resumeBuild(String buildId) {
+		checkpoints.clear();
+		currentBuildId = buildId;
+		currentBuildStarted = null;
+
+		for (BuildCheckpoint checkpoint : Context.getService(BuildHistoryService.class).getBuildCheckpoints(buildId)) {
+			checkpoints.put(checkpoint.getStep(), checkpoint.getValue());
+			if (CHECKPOINT_BUILD_STARTED.equals(checkpoint.getStep()))
+				currentBuildStarted = checkpoint.getDateCompleted();
+		}
+
+		if (currentBuildStarted == null)
+			currentBuildStarted = new Date();
+	}
+
+	/**
+	 * marks the current build as complete, so it will not be resumed, and stamps the published tables with its id
+	 */
+	public static void completeBuild() {
+		saveCheckpoint(CHECKPOINT_BUILD_COMPLETE, null);
+		if (currentBuildId != null)
+			saveGlobalProperty(AmrsReportsConstants.GP_TABLES_BUILD_VERSION, currentBuildId);
+	}
+
+	/**
+	 * @return the id of the build that produced the current derived tables, or null if they were never built
+	 */
+	public static String getTablesBuildVersion() {
+		return getGlobalProperty(AmrsReportsConstants.GP_TABLES_BUILD_VERSION);
+	}
+
+	/**
+	 * ends the current build
+	 */
+	public static void finishBuild() {
+		currentBuildId = null;
+		currentBuildStarted = null;
+		checkpoints.clear();
+	}
+
+	public static String getCurrentBuildId() {
+		return currentBuildId;
+	}
+
+	/**
+	 * @return when the current build was first started, or now if no build is in progress
+	 */
+	public static Date getBuildStartDate() {
+		Date started = currentBuildStarted;
+		return started == null ? new Date() : started;
+	}
+
+	/**
+	 * @return the id of the most recent build if it did not complete, or null
+	 */
+	public static String getUnfinishedBuildId() {
+		return Context.getService(BuildHistoryService.class).getUnfinishedBuildId(CHECKPOINT_BUILD_COMPLETE);
+	}
+
+	/**
+	 * records that a step of the current build has completed, with an optional value needed later in the build.  The
+	 * checkpoint is kept durably if a build is in progress.
+	 */
+	public static void saveCheckpoint(String step, String value) {
+		checkpoints.put(step, value);
+
+		String buildId = currentBuildId;
+		if (buildId == null)
+			return;
+
+		BuildCheckpoint checkpoint = new BuildCheckpoint();
+		checkpoint.setBuildId(buildId);
+		checkpoint.setStep(step);
+		checkpoint.setValue(value);
+		checkpoint.setDateCompleted(new Date());
+
+		try {
+			Context.getService(BuildHistoryService.class).saveBuildCheckpoint(checkpoint);
+		} catch (Exception e) {
+			// without the checkpoint a resumed build simply runs the step again
+			log.warn("Could not save checkpoint for build step " + step, e);
+		}
+	}
+
+	public static boolean isCheckpointed(String step) {
+		return checkpoints.containsKey(step);
+	}
+
+	public static String getCheckpointValue(String step) {
+		return checkpoints.get(step);
+	}
+
+	/**
+	 * @return the steps checkpointed so far in the current build
+	 */
+	public static Set<String> getCheckpointedSteps() {
+		synchronized (checkpoints) {
+			return new HashSet<String>(checkpoints.keySet());
+		}
+	}
+
+	/**
+	 * records a step of the current build in the build history; does nothing if no build is in progress
+	 */
+	public static void recordStep(String builder, String step, Date started, Date finished, Integer rows) {
+		String buildId = currentBuildId;
+		if (buildId == null)
+			return;
+
+		BuildHistory history = new BuildHistory();
+		history.setBuildId(buildId);
+		history.setBuilder(builder);
+		history.setStep(step);
+		history.setDateStarted(started);
+		history.setDateFinished(finished);
+		history.setRowsAffected(rows);
+
+		try {
+			Context.getService(BuildHistoryService.class).saveBuildHistory(history);
+		} catch (Exception e) {
+			// history is informational; never fail a build over it
+			log.warn("Could not record build step " + step, e);
+		}
+	}
+
+	/**
+	 * pulls the update count out of the results of executeSQL for a data manipulation statement
+	 */
+	private static Integer getRowsAffected(List<List<Object>> results) {
+		if (results == null || results.isEmpty() || results.get(0) == null || results.get(0).isEmpty())
+			return null;
+
+		Object value = results.get(0).get(0);
+		if (value instanceof Number)
+			return ((Number) value).intValue();
+
+		return null;
+	}
+
+	/**
+	 * @return the rows read by the server on this session's connection so far, summed from its Handler_read counters
+	 */
+	public static long getRowsRead() {
+		long rows = 0;
+		for (List<Object> row : Context.getAdministrationService().executeSQL(QUERY_ROWS_READ, true)) {
+			if (row.size() > 1 && row.get(1) != null)
+				rows += Long.valueOf(row.get(1).toString());
+		}
+		return rows;
+	}
+
+	/**
+	 * runs a query and returns the first column of the first row, or null if no rows are found
+	 */
+	public static Object getSingleValue(String query) {
+		List<List<Object>> results = Context.getAdministrationService().executeSQL(query, true);
+		if (results == null || results.isEmpty() || results.get(0).isEmpty())
+			return null;
+		return results.get(0).get(0);
+	}
+
+	/**
+	 * returns the value of a global property, or null if it is not set
+	 */
+	public static String getGlobalProperty(String property) {
+		String value = Context.getAdministrationService().getGlobalProperty(property);
+		return StringUtils.isBlank(value) ? null : value.trim();
+	}
+
+	/**
+	 * returns the integer value of a global property, or the default if it is not set or not a number
+	 */
+	public static int getIntegerGlobalProperty(String property, int defaultValue) {
+		String value = getGlobalProperty(property);
+		if (value == null)
+			return defaultValue;
+
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			log.warn("Invalid value for " + property + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * saves a value to a global property, creating the property if it does not exist
+	 */
+	public static void saveGlobalProperty(String property, String value) {
+		AdministrationService as = Context.getAdministrationService();
+		GlobalProperty gp = as.getGlobalPropertyObject(property);
+		if (gp == null)
+			gp = new GlobalProperty(property);
+		gp.setPropertyValue(value);
+		as.saveGlobalProperty(gp);
+	}
+
+	/**
+	 * determines whether a table exists in the current database
+	 */
+	public static boolean tableExists(String table) {
+		Object count = getSingleValue(QUERY_TABLE_EXISTS.replaceAll(":table", table));
+		return count != null && Integer.valueOf(count.toString()) > 0;
+	}
+
+	/**
+	 * replaces each of the given tables with its staging copy in a single RENAME TABLE statement, so readers see
+	 * either all of the previous tables or all of the new ones, then drops the previous tables.  Tables without a
+	 * staging copy are skipped, so a resumed build can safely publish again.
+	 *
+	 * @param tables names of the published tables; each should have a matching table named with STAGING_SUFFIX
+	 */
+	public static void publishStagingTables(String... tables) {
+		List<String> renames = new ArrayList<String>();
+		List<String> retired = new ArrayList<String>();
+
+		for (String table : tables) {
+			// already published by an earlier attempt at this build
+			if (!tableExists(table + STAGING_SUFFIX)) {
+				log.info("No staging table to publish for " + table);
+				continue;
+			}
+
+			if (tableExists(table)) {
+				renames.add(String.format("`%s` TO `%s`", table, table + RETIRED_SUFFIX));
+				retired.add(table + RETIRED_SUFFIX);
+			}
+			renames.add(String.format("`%s` TO `%s`", table + STAGING_SUFFIX, table));
+		}
+
+		// clean up after any earlier swap that did not finish
+		for (String table : retired) {
+			runUpdateSQL(String.format("DROP TABLE IF EXISTS `%s`", table));
+		}
+
+		if (!renames.isEmpty())
+			runUpdateSQL("RENAME TABLE " + StringUtils.join(renames, ", "));
+
+		for (String table : retired) {
+			runUpdateSQL(String.format("DROP TABLE IF EXISTS `%s`", table));
+		}
+	}
+
+	/**
+	 * gives a table's staging copy the table's foreign keys, just before it is published.  CREATE TABLE ... LIKE copies
+	 * no foreign keys, and their names are unique in the schema, so any the published table still has are dropped from
+	 * it first; that does not change what readers of the published table see, and the staging copy replaces it next.
+	 * Foreign keys the staging copy already has, from an earlier attempt at the same build, are left alone.
+	 *
+	 * @param table       name of the published table
+	 * @param foreignKeys each as its constraint name, column, referenced table and referenced column
+	 */
+	public static void addStagingForeignKeys(String table, String[]... foreignKeys) {
+		String staging = table + STAGING_SUFFIX;
+		if (!tableExists(staging))
+			return;
+
+		Set<String> published = getForeignKeyNames(table);
+		Set<String> staged = getForeignKeyNames(staging);
+
+		List<String> drops = new ArrayList<String>();
+		List<String> adds = new ArrayList<String>();
+		for (String[] foreignKey : foreignKeys) {
+			if (published.contains(foreignKey[0]))
+				drops.add(String.format("DROP FOREIGN KEY `%s`", foreignKey[0]));
+			if (!staged.contains(foreignKey[0]))
+				adds.add(String.format("ADD CONSTRAINT `%s` FOREIGN KEY (`%s`) REFERENCES `%s` (`%s`)",
+						foreignKey[0], foreignKey[1], foreignKey[2], foreignKey[3]));
+		}
+
+		if (!drops.isEmpty())
+			runUpdateSQL(String.format("ALTER TABLE `%s` %s", table, StringUtils.join(drops, ", ")));
+
+		if (!adds.isEmpty())
+			runUpdateSQL(String.format("ALTER TABLE `%s` %s", staging, StringUtils.join(adds, ", ")));
+	}
+
+	/**
+	 * @return the names of a table's foreign keys
+	 */
+	private static Set<String> getForeignKeyNames(String table) {
+		Set<String> names = new HashSet<String>();
+		for (List<Object> row : Context.getAdministrationService().executeSQL(
+				QUERY_FOREIGN_KEYS.replaceAll(":table", table), true)) {
+			if (!row.isEmpty() && row.get(0) != null)
+				names.add(row.get(0).toString());
+		}
+		return names;
+	}
+
+	/**
+	 * borrows a JDBC connection, separate from the Hibernate session, for work that needs to stream results or batch
+	 * writes.  It comes from the connection provider OpenMRS's session factory is configured with, so it is pooled and
+	 * set up like the session's own; the caller is responsible for giving it back with closeConnection()
+	 */
+	public static Connection getConnection() throws SQLException {
+		return getConnectionProvider().getConnection();
+	}
+
+	/**
+	 * gives back a connection borrowed with getConnection()
+	 */
+	public static void closeConnection(Connection connection) throws SQLException {
+		getConnectionProvider().closeConnection(connection);
+	}
+
+	private static void close(Statement statement) {
+		if (statement == null)
+			return;
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			log.warn("Could not close statement", e);
+		}
+	}
+
+	/**
+	 * rolls back anything left uncommitted and gives the connection back to the pool as it was borrowed
+	 */
+	private static void close(Connection connection, boolean autoCommit) {
+		if (connection == null)
+			return;
+		try {
+			if (!connection.getAutoCommit())
+				connection.rollback();
+			if (connection.getAutoCommit() != autoCommit)
+				connection.setAutoCommit(autoCommit);
+		} catch (SQLException e) {
+			log.warn("Could not reset connection", e);
+		}
+		try {
+			closeConnection(connection);
+		} catch (SQLException e) {
+			log.warn("Could not close connection", e);
+		}
+	}
+
+	private static ConnectionProvider getConnectionProvider() {
+		List<SessionFactory> factories = Context.getRegisteredComponents(SessionFactory.class);
+		if (factories.isEmpty())
+			throw new APIException("Could not find the Hibernate session factory");
+		return ((SessionFactoryImplementor) factories.get(0)).getConnectionProvider();
 	}
 
 }
@@ -122,6 +122,11 @@ public class TaskRunnerThread extends Thread {
 				if (taskStatus != Status.STOPPED)
 					taskStatus = Status.COMPLETED;
 
+			} catch (OperationCancelledException cancelled) {
+				// the task was stopped on purpose, so do not try it again
+				log.info("Task was cancelled", cancelled);
+				taskStatus = Status.STOPPED;
+
 			} catch (APIException api) {
 				// log this as a debug, because we want to swallow minor errors
 				log.debug("Unable to run task", api);
@@ -0,0 +1,47 @@
+package org.openmrs.module.amrsreports.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.util.PrivilegeConstants;
+
+/**
+ * Opens and closes the sessions of threads working on behalf of another one. A {@link
+ * org.openmrs.api.context.UserContext} is not safe to share between threads, so each worker gets one of its own,
+ * authenticated as the scheduler user the way scheduled tasks are.
+ */
+public class WorkerSession {
+
+	private static final Log log = LogFactory.getLog(WorkerSession.class);
+
+	/**
+	 * opens a session for the current thread with its own authenticated user context
+	 */
+	public static void open() {
+		// opening the session installs a new user context for this thread
+		Context.openSession();
+
+		try {
+			AdministrationService adminService = Context.getAdministrationService();
+			Context.authenticate(adminService.getGlobalProperty("scheduler.username"),
+					adminService.getGlobalProperty("scheduler.password"));
+		} catch (ContextAuthenticationException e) {
+			log.error("Could not authenticate worker thread as the scheduler user", e);
+		}
+
+		Context.addProxyPrivilege(PrivilegeConstants.SQL_LEVEL_ACCESS);
+	}
+
+	/**
+	 * drops the current thread's user context and closes its session
+	 */
+	public static void close() {
+		try {
+			Context.clearUserContext();
+		} finally {
+			Context.closeSession();
+		}
+	}
+}
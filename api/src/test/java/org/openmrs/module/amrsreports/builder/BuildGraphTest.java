@@ -0,0 +1,211 @@
+package org.openmrs.module.amrsreports.builder;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.api.APIException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test class for BuildGraph
+ */
+public class BuildGraphTest {
+
+	/**
+	 * @verifies run steps after their dependencies
+	 * @see BuildGraph#execute(int)
+	 */
+	@Test
+	public void execute_shouldRunStepsAfterTheirDependencies() throws Exception {
+		for (int threads : new int[]{1, 4}) {
+			List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+			BuildGraph graph = new BuildGraph();
+			graph.addStep("c", record(ran, "c"), "a", "b");
+			graph.addStep("a", record(ran, "a"));
+			graph.addStep("b", record(ran, "b"), "a");
+			graph.addStep("d", record(ran, "d"), "c");
+			graph.execute(threads);
+
+			Assert.assertEquals(Arrays.asList("a", "b", "c", "d"), ran);
+		}
+	}
+
+	/**
+	 * @verifies run independent steps concurrently
+	 * @see BuildGraph#execute(int)
+	 */
+	@Test
+	public void execute_shouldRunIndependentStepsConcurrently() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(2);
+		final List<Boolean> met = Collections.synchronizedList(new ArrayList<Boolean>());
+
+		Runnable meet = new Runnable() {
+			public void run() {
+				latch.countDown();
+				try {
+					met.add(latch.await(5, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					met.add(false);
+				}
+			}
+		};
+
+		BuildGraph graph = new BuildGraph();
+		graph.addStep("a", meet);
+		graph.addStep("b", meet);
+		graph.execute(2);
+
+		Assert.assertEquals(Arrays.asList(true, true), met);
+	}
+
+	/**
+	 * @verifies not run dependents of a failed step
+	 * @see BuildGraph#execute(int)
+	 */
+	@Test
+	public void execute_shouldNotRunDependentsOfAFailedStep() throws Exception {
+		List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+		BuildGraph graph = new BuildGraph();
+		graph.addStep("a", new Runnable() {
+			public void run() {
+				throw new RuntimeException("failed");
+			}
+		});
+		graph.addStep("b", record(ran, "b"), "a");
+
+		try {
+			graph.execute(2);
+			Assert.fail("the failure should have been rethrown");
+		} catch (APIException e) {
+			Assert.assertTrue(ran.isEmpty());
+		}
+	}
+
+	/**
+	 * @verifies fail on circular dependencies
+	 * @see BuildGraph#execute(int)
+	 */
+	@Test(expected = APIException.class)
+	public void execute_shouldFailOnCircularDependencies() throws Exception {
+		BuildGraph graph = new BuildGraph();
+		graph.addStep("a", record(new ArrayList<String>(), "a"), "b");
+		graph.addStep("b", record(new ArrayList<String>(), "b"), "a");
+		graph.execute(1);
+	}
+
+	/**
+	 * @verifies fail on unknown dependencies
+	 * @see BuildGraph#execute(int)
+	 */
+	@Test(expected = APIException.class)
+	public void execute_shouldFailOnUnknownDependencies() throws Exception {
+		BuildGraph graph = new BuildGraph();
+		graph.addStep("a", record(new ArrayList<String>(), "a"), "missing");
+		graph.execute(1);
+	}
+
+	/**
+	 * @verifies skip steps marked complete
+	 * @see BuildGraph#execute(int)
+	 */
+	@Test
+	public void execute_shouldSkipStepsMarkedComplete() throws Exception {
+		for (int threads : new int[]{1, 4}) {
+			List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+			BuildGraph graph = new BuildGraph();
+			graph.addStep("a", record(ran, "a"));
+			graph.addStep("b", record(ran, "b"), "a");
+			graph.addStep("c", record(ran, "c"), "b");
+			graph.markComplete("a");
+			graph.markComplete("b");
+			graph.execute(threads);
+
+			Assert.assertEquals(Arrays.asList("c"), ran);
+		}
+	}
+
+	/**
+	 * @verifies not run steps exclusive on the same resource concurrently
+	 * @see BuildGraph#execute(int)
+	 */
+	@Test
+	public void execute_shouldNotRunStepsExclusiveOnTheSameResourceConcurrently() throws Exception {
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger mostActive = new AtomicInteger();
+
+		Runnable update = new Runnable() {
+			public void run() {
+				int now = active.incrementAndGet();
+				if (now > mostActive.get())
+					mostActive.set(now);
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				active.decrementAndGet();
+			}
+		};
+
+		List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+		BuildGraph graph = new BuildGraph();
+		graph.addStep("insert", update);
+		graph.addStep("a", update, "insert");
+		graph.addStep("b", update, "insert");
+		graph.addStep("c", update, "insert");
+		graph.addStep("other", record(ran, "other"));
+		for (String step : new String[]{"insert", "a", "b", "c"}) {
+			graph.setExclusive(step, "table");
+		}
+		graph.execute(4);
+
+		Assert.assertEquals(1, mostActive.get());
+		Assert.assertEquals(Arrays.asList("other"), ran);
+	}
+
+	/**
+	 * @verifies find the longest chain of dependent steps
+	 * @see BuildGraph#getCriticalPath()
+	 */
+	@Test
+	public void getCriticalPath_shouldFindTheLongestChainOfDependentSteps() throws Exception {
+		BuildGraph graph = new BuildGraph();
+		graph.addStep("start", pause(0));
+		graph.addStep("short", pause(0), "start");
+		graph.addStep("long", pause(200), "start");
+		graph.addStep("end", pause(0), "short", "long");
+		graph.execute(2);
+
+		Assert.assertEquals(Arrays.asList("start", "long", "end"), graph.getCriticalPath());
+	}
+
+	private Runnable record(final List<String> ran, final String step) {
+		return new Runnable() {
+			public void run() {
+				ran.add(step);
+			}
+		};
+	}
+
+	private Runnable pause(final long millis) {
+		return new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(millis);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,170 @@
+package org.openmrs.module.amrsreports.builder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Test class for HIVCareEnrollmentState
+ */
+public class HIVCareEnrollmentStateTest {
+
+	private static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+
+	/**
+	 * @verifies set the first HIV encounter from the earliest HIV encounter
+	 * @see HIVCareEnrollmentState#consumeEncounter(Integer, Integer, java.util.Date, Integer)
+	 */
+	@Test
+	public void consumeEncounter_shouldSetTheFirstHIVEncounterFromTheEarliestHIVEncounter() throws Exception {
+		HIVCareEnrollmentState state = new HIVCareEnrollmentState(1);
+		state.consumeEncounter(20, 2, date("2010-05-01"), 100);
+		state.consumeEncounter(10, 1, date("2010-01-01"), 200);
+		state.consumeEncounter(5, 10, date("2009-01-01"), 300);
+
+		Assert.assertEquals(Integer.valueOf(10), state.getFirstHIVEncounterId());
+		Assert.assertEquals(date("2010-01-01"), state.getFirstHIVEncounterDate());
+		Assert.assertEquals(Integer.valueOf(200), state.getFirstHIVEncounterLocationId());
+	}
+
+	/**
+	 * @verifies set the last HIV encounter from the latest encounter of any tracked type
+	 * @see HIVCareEnrollmentState#consumeEncounter(Integer, Integer, java.util.Date, Integer)
+	 */
+	@Test
+	public void consumeEncounter_shouldSetTheLastHIVEncounterFromTheLatestEncounterOfAnyTrackedType() throws Exception {
+		HIVCareEnrollmentState state = new HIVCareEnrollmentState(1);
+		state.consumeEncounter(10, 1, date("2010-01-01"), 200);
+		state.consumeEncounter(11, 21, date("2011-01-01"), 300);
+
+		Assert.assertEquals(date("2011-01-01"), state.getLastHIVEncounterDate());
+		Assert.assertEquals(Integer.valueOf(300), state.getLastHIVEncounterLocationId());
+	}
+
+	/**
+	 * @verifies track first and last positive observations
+	 * @see HIVCareEnrollmentState#consumeObs(Integer, Integer, java.util.Date, Integer, Integer)
+	 */
+	@Test
+	public void consumeObs_shouldTrackFirstAndLastPositiveObservations() throws Exception {
+		HIVCareEnrollmentState state = new HIVCareEnrollmentState(1);
+		state.consumeObs(1040, 703, date("2010-06-01"), 100, null);
+		state.consumeObs(6042, 1169, date("2010-02-01"), 200, null);
+		state.consumeObs(1030, 664, date("2010-01-01"), 300, null);
+
+		Assert.assertEquals(date("2010-02-01"), state.getFirstPositiveObsDate());
+		Assert.assertEquals(Integer.valueOf(200), state.getFirstPositiveObsLocationId());
+		Assert.assertEquals(date("2010-06-01"), state.getLastPositiveObsDate());
+		Assert.assertEquals(date("2010-01-01"), state.getLastNegativeObsDate());
+	}
+
+	/**
+	 * @verifies track the latest WHO stage
+	 * @see HIVCareEnrollmentState#consumeObs(Integer, Integer, java.util.Date, Integer, Integer)
+	 */
+	@Test
+	public void consumeObs_shouldTrackTheLatestWHOStage() throws Exception {
+		HIVCareEnrollmentState state = new HIVCareEnrollmentState(1);
+		state.consumeObs(5356, 1206, date("2011-01-01"), null, null);
+		state.consumeObs(1224, 1221, date("2010-01-01"), null, null);
+
+		Assert.assertEquals("A3", state.getLastWHOStage());
+		Assert.assertEquals(date("2011-01-01"), state.getLastWHOStageDate());
+	}
+
+	/**
+	 * @verifies require a valid person with an HIV encounter who is not a test patient
+	 * @see HIVCareEnrollmentState#isEnrolled()
+	 */
+	@Test
+	public void isEnrolled_shouldRequireAValidPersonWithAnHIVEncounterWhoIsNotATestPatient() throws Exception {
+		HIVCareEnrollmentState state = new HIVCareEnrollmentState(1);
+		state.consumeEncounter(10, 1, date("2010-01-01"), 200);
+		Assert.assertFalse(state.isEnrolled());
+
+		state.consumePerson(date("1980-01-01"));
+		Assert.assertTrue(state.isEnrolled());
+
+		state.consumeFakeFlag();
+		Assert.assertFalse(state.isEnrolled());
+	}
+
+	/**
+	 * @verifies enroll patients two and over at their first encounter
+	 * @see HIVCareEnrollmentState#computeEnrollment()
+	 */
+	@Test
+	public void computeEnrollment_shouldEnrollPatientsTwoAndOverAtTheirFirstEncounter() throws Exception {
+		HIVCareEnrollmentState state = new HIVCareEnrollmentState(1);
+		state.consumePerson(date("2000-01-01"));
+		state.consumeEncounter(10, 3, date("2010-01-01"), 200);
+		state.computeEnrollment();
+
+		Assert.assertEquals(HIVCareEnrollmentState.REASON_FIRST_ENCOUNTER, state.getEnrollmentReason());
+		Assert.assertEquals(date("2010-01-01"), state.getEnrollmentDate());
+		Assert.assertEquals(Integer.valueOf(200), state.getEnrollmentLocationId());
+		Assert.assertEquals(10.0014, state.getEnrollmentAge(), 0.00001);
+	}
+
+	/**
+	 * @verifies enroll children with only adult encounters at their first encounter
+	 * @see HIVCareEnrollmentState#computeEnrollment()
+	 */
+	@Test
+	public void computeEnrollment_shouldEnrollChildrenWithOnlyAdultEncountersAtTheirFirstEncounter() throws Exception {
+		HIVCareEnrollmentState state = new HIVCareEnrollmentState(1);
+		state.consumePerson(date("2009-06-01"));
+		state.consumeEncounter(10, 1, date("2010-01-01"), 200);
+		state.computeEnrollment();
+
+		Assert.assertEquals(HIVCareEnrollmentState.REASON_ADULT_ENCOUNTERS, state.getEnrollmentReason());
+		Assert.assertEquals(date("2010-01-01"), state.getEnrollmentDate());
+	}
+
+	/**
+	 * @verifies enroll from the first positive observation if not already enrolled
+	 * @see HIVCareEnrollmentState#computeEnrollment()
+	 */
+	@Test
+	public void computeEnrollment_shouldEnrollFromTheFirstPositiveObservationIfNotAlreadyEnrolled() throws Exception {
+		HIVCareEnrollmentState state = new HIVCareEnrollmentState(1);
+		state.consumePerson(date("2009-06-01"));
+		state.consumeEncounter(10, 4, date("2010-01-01"), 200);
+		state.consumeObs(1030, 703, date("2010-03-01"), 300, 10);
+		state.computeEnrollment();
+
+		Assert.assertEquals(HIVCareEnrollmentState.REASON_POSITIVE_OBS, state.getEnrollmentReason());
+		Assert.assertEquals(date("2010-03-01"), state.getEnrollmentDate());
+		Assert.assertEquals(Integer.valueOf(300), state.getEnrollmentLocationId());
+	}
+
+	/**
+	 * @verifies enroll from ARVs if earlier than the first positive observation and staged
+	 * @see HIVCareEnrollmentState#computeEnrollment()
+	 */
+	@Test
+	public void computeEnrollment_shouldEnrollFromARVsIfEarlierThanTheFirstPositiveObservationAndStaged() throws Exception {
+		HIVCareEnrollmentState state = new HIVCareEnrollmentState(1);
+		state.consumePerson(date("2009-06-01"));
+		state.consumeEncounter(10, 4, date("2010-01-01"), 200);
+		state.consumeObs(1030, 703, date("2010-03-01"), 300, 10);
+		state.consumeARV(date("2010-02-01"), 400);
+		state.computeEnrollment();
+
+		// no WHO stage yet, so the positive observation stands
+		Assert.assertEquals(HIVCareEnrollmentState.REASON_POSITIVE_OBS, state.getEnrollmentReason());
+
+		state.consumeObs(5356, 1221, date("2010-02-01"), 400, null);
+		state.computeEnrollment();
+
+		Assert.assertEquals(HIVCareEnrollmentState.REASON_ARVS, state.getEnrollmentReason());
+		Assert.assertEquals(date("2010-02-01"), state.getEnrollmentDate());
+		Assert.assertEquals(Integer.valueOf(400), state.getEnrollmentLocationId());
+	}
+
+	private Date date(String date) throws Exception {
+		return sdf.parse(date);
+	}
+}
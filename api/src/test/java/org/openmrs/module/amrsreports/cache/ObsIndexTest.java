@@ -0,0 +1,95 @@
+package org.openmrs.module.amrsreports.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Obs;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Test class for ObsIndex
+ */
+public class ObsIndexTest {
+
+	/**
+	 * @verifies return the obs of all given concepts oldest first
+	 * @see ObsIndex#getObs(Integer, java.util.Collection, java.util.Date)
+	 */
+	@Test
+	public void getObs_shouldReturnTheObsOfAllGivenConceptsOldestFirst() throws Exception {
+		ObsIndex index = new ObsIndex();
+		index.add(3, 7, 5356, new Date(3000), 1206, null, null, 2);
+		index.add(1, 7, 1224, new Date(2000), null, 12.5d, null, null);
+		index.add(2, 7, 5356, new Date(1000), null, null, new Date(9000), null);
+		index.add(4, 8, 1224, new Date(500), null, null, null, null);
+		index.add(5, 7, 1502, new Date(1500), null, null, null, null);
+
+		List<Obs> obs = index.getObs(7, Arrays.asList(1224, 5356), null);
+
+		Assert.assertEquals(3, obs.size());
+		Assert.assertEquals(Integer.valueOf(2), obs.get(0).getObsId());
+		Assert.assertEquals(new Date(9000), obs.get(0).getValueDatetime());
+		Assert.assertEquals(Integer.valueOf(1), obs.get(1).getObsId());
+		Assert.assertEquals(Double.valueOf(12.5d), obs.get(1).getValueNumeric());
+		Assert.assertNull(obs.get(1).getValueCoded());
+		Assert.assertEquals(Integer.valueOf(3), obs.get(2).getObsId());
+		Assert.assertEquals(Integer.valueOf(5356), obs.get(2).getConcept().getConceptId());
+		Assert.assertEquals(Integer.valueOf(1206), obs.get(2).getValueCoded().getConceptId());
+		Assert.assertEquals(Integer.valueOf(2), obs.get(2).getEncounter().getEncounterType().getEncounterTypeId());
+	}
+
+	/**
+	 * @verifies leave out obs after the given date
+	 * @see ObsIndex#getObs(Integer, java.util.Collection, java.util.Date)
+	 */
+	@Test
+	public void getObs_shouldLeaveOutObsAfterTheGivenDate() throws Exception {
+		ObsIndex index = new ObsIndex();
+		index.add(1, 7, 1224, new Date(1000), null, null, null, null);
+		index.add(2, 7, 1224, new Date(2000), null, null, null, null);
+		index.add(3, 7, 1224, new Date(3000), null, null, null, null);
+
+		List<Obs> obs = index.getObs(7, Arrays.asList(1224), new Date(2000));
+
+		Assert.assertEquals(2, obs.size());
+		Assert.assertEquals(Integer.valueOf(1), obs.get(0).getObsId());
+		Assert.assertEquals(Integer.valueOf(2), obs.get(1).getObsId());
+	}
+
+	/**
+	 * @verifies return an empty list for unknown people
+	 * @see ObsIndex#getObs(Integer, java.util.Collection, java.util.Date)
+	 */
+	@Test
+	public void getObs_shouldReturnAnEmptyListForUnknownPeople() throws Exception {
+		ObsIndex index = new ObsIndex();
+		index.add(1, 7, 1224, new Date(1000), null, null, null, null);
+
+		Assert.assertTrue(index.getObs(8, Arrays.asList(1224), null).isEmpty());
+		Assert.assertTrue(new ObsIndex().getObs(7, Arrays.asList(1224), null).isEmpty());
+	}
+
+	/**
+	 * @verifies find the obs of all given concepts oldest first
+	 * @see ObsIndex#find(Integer, java.util.Collection, java.util.Date)
+	 */
+	@Test
+	public void find_shouldFindTheObsOfAllGivenConceptsOldestFirst() throws Exception {
+		ObsIndex index = new ObsIndex();
+		index.add(1, 7, 1277, new Date(3000), 1260, null, null, null);
+		index.add(2, 7, 1278, new Date(1000), 747, null, null, null);
+		index.add(3, 7, 1278, new Date(4000), null, null, new Date(9000), null);
+
+		int[] found = index.find(7, Arrays.asList(1277, 1278), new Date(3000));
+
+		Assert.assertEquals(2, found.length);
+		Assert.assertEquals(1278, index.getConceptId(found[0]));
+		Assert.assertEquals(747, index.getValueCodedId(found[0]));
+		Assert.assertEquals(1000L, index.getObsDatetime(found[0]));
+		Assert.assertEquals(1277, index.getConceptId(found[1]));
+		Assert.assertEquals(1260, index.getValueCodedId(found[1]));
+		Assert.assertNull(index.getValueDatetime(found[1]));
+	}
+}
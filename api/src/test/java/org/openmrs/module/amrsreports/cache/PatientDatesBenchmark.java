@@ -0,0 +1,270 @@
+package org.openmrs.module.amrsreports.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.service.MohCoreService;
+import org.openmrs.module.reporting.common.ListMap;
+import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Compares the memory used to gather dates per patient the way the columns used to, loading Obs entities with a
+ * "from Obs" HQL query into a ListMap of dates, with the shipped {@link MohCoreService#getPatientDates} scroll into
+ * {@link PatientDates}.  Both run against obs seeded into the test database, and each is measured by the bytes
+ * allocated on the running thread and the time spent in garbage collection.  A first pass of each path is discarded
+ * and the measured rounds alternate which path goes first.
+ * <p/>
+ * Not run with the tests; run it on its own, optionally setting the number of patients and obs:
+ * <pre>mvn test -Dtest=PatientDatesBenchmark -Dbenchmark.patients=2000 -Dbenchmark.rows=50000</pre>
+ */
+public class PatientDatesBenchmark extends BaseModuleContextSensitiveTest {
+
+	private static final Log log = LogFactory.getLog(PatientDatesBenchmark.class);
+
+	private static final int FIRST_PERSON_ID = 100000;
+
+	// weight, from the standard test dataset
+	private static final int CONCEPT_ID = 5089;
+
+	private static final int ROUNDS = 3;
+
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	private static final String INSERT_PERSON =
+			"insert into person (person_id, gender, dead, creator, date_created, voided, uuid)" +
+					" values (?, 'F', 0, 1, ?, 0, ?)";
+
+	private static final String INSERT_OBS =
+			"insert into obs (person_id, concept_id, obs_datetime, location_id, creator, date_created, voided, uuid)" +
+					" values (?, " + CONCEPT_ID + ", ?, 1, 1, ?, 0, ?)";
+
+	private static final String QUERY_ENTITIES =
+			"from Obs o where o.voided = false and o.concept.conceptId = :conceptId and o.person.personId in (:cohort)";
+
+	private static final String QUERY_SCALARS =
+			"select o.person_id, o.obs_datetime from obs o" +
+					"  join {cohort} cohort on cohort.person_id = o.person_id" +
+					" where o.voided = 0 and o.concept_id = :conceptId";
+
+	@Test
+	public void benchmark() throws Exception {
+		int patients = Integer.getInteger("benchmark.patients", 2000);
+		int rows = Integer.getInteger("benchmark.rows", 50000);
+
+		final Set<Integer> cohort = seed(patients, rows);
+
+		// warm up
+		gatherFromEntities(cohort);
+		gatherFromScalars(cohort);
+
+		Measurement entities = new Measurement();
+		Measurement scalars = new Measurement();
+		for (int round = 0; round < ROUNDS; round++) {
+			boolean entitiesFirst = round % 2 == 0;
+			for (boolean entityPath : new boolean[]{entitiesFirst, !entitiesFirst}) {
+				if (entityPath)
+					entities.add(measure(new Gather() {
+						public int run() {
+							return gatherFromEntities(cohort);
+						}
+					}));
+				else
+					scalars.add(measure(new Gather() {
+						public int run() {
+							return gatherFromScalars(cohort);
+						}
+					}));
+			}
+		}
+
+		// both paths must gather the same dates for the comparison to mean anything
+		Assert.assertEquals(rows * ROUNDS, entities.dates);
+		Assert.assertEquals(entities.dates, scalars.dates);
+
+		log.info(String.format("%,d obs for %,d patients, averaged over %d rounds after a warm-up", rows, patients,
+				ROUNDS));
+		log.info("from Obs into ListMap:           " + entities);
+		log.info("getPatientDates into PatientDates: " + scalars);
+		if (scalars.allocated > 0)
+			log.info(String.format("allocated %.1fx less", (double) entities.allocated / scalars.allocated));
+	}
+
+	/**
+	 * the old path: every row becomes an Obs entity in the session, and the dates are gathered from the list of them
+	 *
+	 * @return the number of dates gathered
+	 */
+	private int gatherFromEntities(Set<Integer> cohort) {
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("conceptId", CONCEPT_ID);
+		parameters.put("cohort", cohort);
+
+		List<Object> results = Context.getService(DataSetQueryService.class).executeHqlQuery(QUERY_ENTITIES, parameters);
+
+		ListMap<Integer, Date> dates = new ListMap<Integer, Date>();
+		for (Object o : results) {
+			Obs obs = (Obs) o;
+			dates.putInList(obs.getPerson().getPersonId(), obs.getObsDatetime());
+		}
+
+		int count = 0;
+		for (List<Date> patientDates : dates.values()) {
+			count += patientDates.size();
+		}
+		return count;
+	}
+
+	/**
+	 * the shipped path: a forward-only scroll over two scalar columns into primitive arrays
+	 *
+	 * @return the number of dates gathered
+	 */
+	private int gatherFromScalars(Set<Integer> cohort) {
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("conceptId", CONCEPT_ID);
+
+		PatientDates dates = Context.getService(MohCoreService.class).getPatientDates(QUERY_SCALARS, cohort, parameters);
+
+		int count = 0;
+		for (int personId : dates.getPatientIds()) {
+			count += dates.getDates(personId).length;
+		}
+		return count;
+	}
+
+	/**
+	 * inserts the given number of people, and obs spread evenly among them
+	 *
+	 * @return the ids of the people
+	 */
+	private Set<Integer> seed(int patients, int rows) throws Exception {
+		Connection connection = getConnection();
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+
+		Set<Integer> cohort = new HashSet<Integer>();
+
+		PreparedStatement person = connection.prepareStatement(INSERT_PERSON);
+		for (int i = 0; i < patients; i++) {
+			person.setInt(1, FIRST_PERSON_ID + i);
+			person.setTimestamp(2, now);
+			person.setString(3, UUID.randomUUID().toString());
+			person.addBatch();
+			cohort.add(FIRST_PERSON_ID + i);
+		}
+		person.executeBatch();
+		person.close();
+
+		PreparedStatement obs = connection.prepareStatement(INSERT_OBS);
+		for (int i = 0; i < rows; i++) {
+			obs.setInt(1, FIRST_PERSON_ID + i % patients);
+			obs.setTimestamp(2, new Timestamp(i * DAY));
+			obs.setTimestamp(3, now);
+			obs.setString(4, UUID.randomUUID().toString());
+			obs.addBatch();
+			if (i % 1000 == 999)
+				obs.executeBatch();
+		}
+		obs.executeBatch();
+		obs.close();
+
+		return cohort;
+	}
+
+	/**
+	 * runs one gathering on this thread, measuring the bytes it allocates and the garbage collection during it; the
+	 * session is cleared afterwards so no round keeps the entities of another
+	 */
+	private Measurement measure(Gather gather) {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		long allocated = getAllocatedBytes(threads);
+		long gcMillis = getCollectionTime();
+		long started = System.currentTimeMillis();
+
+		int dates = gather.run();
+
+		Measurement measurement = new Measurement();
+		measurement.millis = System.currentTimeMillis() - started;
+		measurement.gcMillis = getCollectionTime() - gcMillis;
+		measurement.allocated = allocated < 0 ? -1 : getAllocatedBytes(threads) - allocated;
+		measurement.dates = dates;
+
+		Context.flushSession();
+		Context.clearSession();
+
+		return measurement;
+	}
+
+	/**
+	 * @return the bytes allocated on this thread so far, or -1 if the JVM does not count them
+	 */
+	private long getAllocatedBytes(ThreadMXBean threads) {
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+
+		com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+		if (!counting.isThreadAllocatedMemorySupported() || !counting.isThreadAllocatedMemoryEnabled())
+			return -1;
+
+		return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private long getCollectionTime() {
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, collector.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private interface Gather {
+
+		int run();
+	}
+
+	private static class Measurement {
+
+		private int rounds;
+
+		private long millis;
+
+		private long gcMillis;
+
+		private long allocated;
+
+		private int dates;
+
+		void add(Measurement round) {
+			rounds++;
+			millis += round.millis;
+			gcMillis += round.gcMillis;
+			allocated = allocated < 0 || round.allocated < 0 ? -1 : allocated + round.allocated;
+			dates += round.dates;
+		}
+
+		@Override
+		public String toString() {
+			int n = Math.max(1, rounds);
+			return String.format("%,d ms, %,d ms in GC, %s allocated", millis / n, gcMillis / n,
+					allocated < 0 ? "unknown bytes" : String.format("%,d bytes", allocated / n));
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package org.openmrs.module.amrsreports.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Test class for PatientDates
+ */
+public class PatientDatesTest {
+
+	/**
+	 * @verifies return each patient once in order
+	 * @see PatientDates#getPatientIds()
+	 */
+	@Test
+	public void getPatientIds_shouldReturnEachPatientOnceInOrder() throws Exception {
+		PatientDates dates = new PatientDates();
+		dates.add(9, new Date(1000));
+		dates.add(4, new Date(3000));
+		dates.add(9, new Date(2000));
+		dates.add(4, (Date) null);
+		dates.add(6, (Date) null);
+
+		Assert.assertTrue(Arrays.equals(new int[]{4, 9}, dates.getPatientIds()));
+	}
+
+	/**
+	 * @verifies return the dates oldest first without repeats
+	 * @see PatientDates#getDates(int)
+	 */
+	@Test
+	public void getDates_shouldReturnTheDatesOldestFirstWithoutRepeats() throws Exception {
+		PatientDates dates = new PatientDates();
+		dates.add(4, 3000L);
+		dates.add(9, 5000L);
+		dates.add(4, 1000L);
+		dates.add(4, 3000L);
+		dates.add(4, 2000L);
+
+		Assert.assertTrue(Arrays.equals(new long[]{1000L, 2000L, 3000L}, dates.getDates(4)));
+		Assert.assertTrue(Arrays.equals(new long[]{5000L}, dates.getDates(9)));
+	}
+
+	/**
+	 * @verifies return an empty array for unknown patients
+	 * @see PatientDates#getDates(int)
+	 */
+	@Test
+	public void getDates_shouldReturnAnEmptyArrayForUnknownPatients() throws Exception {
+		PatientDates dates = new PatientDates();
+		Assert.assertEquals(0, dates.getDates(4).length);
+
+		dates.add(4, 1000L);
+		Assert.assertEquals(0, dates.getDates(5).length);
+	}
+
+	/**
+	 * @verifies return the earliest date for the patient
+	 * @see PatientDates#getFirst(int)
+	 */
+	@Test
+	public void getFirst_shouldReturnTheEarliestDateForThePatient() throws Exception {
+		PatientDates dates = new PatientDates();
+		dates.add(4, new Date(3000));
+		dates.add(4, new Date(1000));
+
+		Assert.assertEquals(new Date(1000), dates.getFirst(4));
+		Assert.assertEquals(new Date(3000), dates.getLast(4));
+		Assert.assertNull(dates.getFirst(5));
+	}
+}
@@ -0,0 +1,189 @@
+package org.openmrs.module.amrsreports.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.module.amrsreports.reporting.data.EnrollmentDateDataDefinition;
+import org.openmrs.module.amrsreports.reporting.data.LastRTCDateDataDefinition;
+import org.openmrs.module.reporting.data.BaseDataDefinition;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Test class for PersonDataCache
+ */
+public class PersonDataCacheTest {
+
+	/**
+	 * @verifies differ for another cohort, date or build
+	 * @see PersonDataCache#getKey(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext, String, String)
+	 */
+	@Test
+	public void getKey_shouldDifferForAnotherCohortDateOrBuild() throws Exception {
+		EnrollmentDateDataDefinition definition = new EnrollmentDateDataDefinition();
+		String key = PersonDataCache.getKey(definition, getContext(new Date(1000), 1, 2, 3), "a", null);
+
+		Assert.assertFalse(key.equals(PersonDataCache.getKey(definition, getContext(new Date(1000), 1, 2), "a", null)));
+		Assert.assertFalse(key.equals(PersonDataCache.getKey(definition, getContext(new Date(2000), 1, 2, 3), "a", null)));
+		Assert.assertFalse(key.equals(PersonDataCache.getKey(definition, getContext(new Date(1000), 1, 2, 3), "b", null)));
+	}
+
+	/**
+	 * @verifies not depend on the order of the cohort
+	 * @see PersonDataCache#getKey(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext, String, String)
+	 */
+	@Test
+	public void getKey_shouldNotDependOnTheOrderOfTheCohort() throws Exception {
+		EnrollmentDateDataDefinition definition = new EnrollmentDateDataDefinition();
+
+		Assert.assertEquals(PersonDataCache.getKey(definition, getContext(new Date(1000), 3, 1, 2), "a", null),
+				PersonDataCache.getKey(new EnrollmentDateDataDefinition(), getContext(new Date(1000), 1, 2, 3), "a", null));
+	}
+
+	/**
+	 * @verifies differ once the records of the cohort change
+	 * @see PersonDataCache#getKey(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext, String, String)
+	 */
+	@Test
+	public void getKey_shouldDifferOnceTheRecordsOfTheCohortChange() throws Exception {
+		LastRTCDateDataDefinition definition = new LastRTCDateDataDefinition();
+		EvaluationContext context = getContext(new Date(1000), 1, 2, 3);
+		String key = PersonDataCache.getKey(definition, context, "a", "10,1000;");
+
+		Assert.assertEquals(key, PersonDataCache.getKey(definition, context, "a", "10,1000;"));
+		Assert.assertFalse(key.equals(PersonDataCache.getKey(definition, context, "a", "11,2000;")));
+		Assert.assertFalse(key.equals(PersonDataCache.getKey(definition, context, "a", null)));
+	}
+
+	/**
+	 * @verifies differ for definitions of the same class configured differently
+	 * @see PersonDataCache#getDefinitionKey(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition)
+	 */
+	@Test
+	public void getDefinitionKey_shouldDifferForDefinitionsOfTheSameClassConfiguredDifferently() throws Exception {
+		String key = PersonDataCache.getDefinitionKey(new ConfiguredDataDefinition("a"));
+
+		Assert.assertEquals(key, PersonDataCache.getDefinitionKey(new ConfiguredDataDefinition("a")));
+		Assert.assertFalse(key.equals(PersonDataCache.getDefinitionKey(new ConfiguredDataDefinition("b"))));
+		Assert.assertFalse(PersonDataCache.getDefinitionKey(new EnrollmentDateDataDefinition()).equals(
+				PersonDataCache.getDefinitionKey(new LastRTCDateDataDefinition())));
+	}
+
+	/**
+	 * @verifies return a copy of the data put for the same key
+	 * @see PersonDataCache#get(String, String, org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void get_shouldReturnACopyOfTheDataPutForTheSameKey() throws Exception {
+		PersonDataCache cache = new PersonDataCache(null);
+		cache.setLimits(100, 0);
+
+		EnrollmentDateDataDefinition definition = new EnrollmentDateDataDefinition();
+		EvaluationContext context = getContext(new Date(1000), 1, 2);
+		cache.put("key", "a", getData(definition, context, 1, 2));
+
+		Assert.assertNull(cache.get("other", "a", definition, context));
+
+		EvaluatedPersonData data = cache.get("key", "a", definition, context);
+		Assert.assertEquals(new Date(1), data.getData().get(1));
+		Assert.assertEquals(new Date(2), data.getData().get(2));
+		Assert.assertSame(context, data.getContext());
+
+		data.getData().clear();
+		Assert.assertEquals(2, cache.get("key", "a", definition, context).getData().size());
+
+		Assert.assertEquals(2, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+	}
+
+	/**
+	 * @verifies read back entries spilled to disk
+	 * @see PersonDataCache#get(String, String, org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void get_shouldReadBackEntriesSpilledToDisk() throws Exception {
+		File directory = File.createTempFile("amrsreports", "cache");
+		Assert.assertTrue(directory.delete() && directory.mkdir());
+
+		try {
+			PersonDataCache cache = new PersonDataCache(directory);
+			cache.setLimits(4, 1024 * 1024);
+
+			EnrollmentDateDataDefinition definition = new EnrollmentDateDataDefinition();
+			EvaluationContext context = getContext(new Date(1000), 1, 2);
+			cache.put("first", "a", getData(definition, context, 1, 2));
+			cache.put("second", "a", getData(definition, context, 3, 4));
+
+			Assert.assertEquals(1, cache.getEvictions());
+			Assert.assertEquals(1, directory.listFiles().length);
+
+			EvaluatedPersonData data = cache.get("first", "a", definition, context);
+			Assert.assertEquals(new Date(2), data.getData().get(2));
+			Assert.assertEquals(1, cache.getSpillHits());
+
+			// reading the first entry back let go of the second
+			Assert.assertEquals(new Date(4), cache.get("second", "a", definition, context).getData().get(4));
+			Assert.assertEquals(2, cache.getSpillHits());
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	/**
+	 * @verifies drop entries of an earlier build
+	 * @see PersonDataCache#get(String, String, org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void get_shouldDropEntriesOfAnEarlierBuild() throws Exception {
+		PersonDataCache cache = new PersonDataCache(null);
+		cache.setLimits(100, 0);
+
+		EnrollmentDateDataDefinition definition = new EnrollmentDateDataDefinition();
+		EvaluationContext context = getContext(new Date(1000), 1);
+		cache.put("key", "a", getData(definition, context, 1));
+
+		Assert.assertNull(cache.get("key", "b", definition, context));
+		Assert.assertNull(cache.get("key", "a", definition, context));
+	}
+
+	private EvaluationContext getContext(Date evaluationDate, Integer... memberIds) {
+		EvaluationContext context = new EvaluationContext();
+		context.setEvaluationDate(evaluationDate);
+		context.setBaseCohort(new Cohort(Arrays.asList(memberIds)));
+		return context;
+	}
+
+	private EvaluatedPersonData getData(EnrollmentDateDataDefinition definition, EvaluationContext context,
+	                                    Integer... personIds) {
+		EvaluatedPersonData data = new EvaluatedPersonData(definition, context);
+		for (Integer personId : personIds) {
+			data.addData(personId, new Date(personId));
+		}
+		return data;
+	}
+
+	/**
+	 * a definition with a configuration, so definitions of the same class can be told apart
+	 */
+	private static class ConfiguredDataDefinition extends BaseDataDefinition implements PersonDataDefinition {
+
+		private String value;
+
+		public ConfiguredDataDefinition(String value) {
+			this.value = value;
+		}
+
+		@Override
+		public Class<?> getDataType() {
+			return String.class;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package org.openmrs.module.amrsreports.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test class for PositionSort
+ */
+public class PositionSortTest {
+
+	private PositionSort by(final int[] rows) {
+		return new PositionSort() {
+			protected int compare(int a, int b) {
+				return rows[a] < rows[b] ? -1 : (rows[a] == rows[b] ? 0 : 1);
+			}
+		};
+	}
+
+	/**
+	 * @verifies order positions by their rows
+	 * @see PositionSort#sort(int[])
+	 */
+	@Test
+	public void sort_shouldOrderPositionsByTheirRows() throws Exception {
+		int[] rows = new int[]{50, 30, 90, 10, 70, 20, 80, 60, 0, 40, 100};
+
+		Assert.assertArrayEquals(new int[]{8, 3, 5, 1, 9, 0, 7, 4, 6, 2, 10}, by(rows).sort(rows.length));
+		Assert.assertArrayEquals(new int[]{3, 1, 0}, by(rows).sort(new int[]{0, 1, 3}));
+		Assert.assertArrayEquals(new int[0], by(rows).sort(0));
+	}
+
+	/**
+	 * @verifies keep positions of equal rows in their original order
+	 * @see PositionSort#sort(int[])
+	 */
+	@Test
+	public void sort_shouldKeepPositionsOfEqualRowsInTheirOriginalOrder() throws Exception {
+		int[] rows = new int[]{2, 1, 2, 1, 2};
+
+		Assert.assertArrayEquals(new int[]{1, 3, 0, 2, 4}, by(rows).sort(rows.length));
+		Assert.assertArrayEquals(new int[]{3, 1, 4, 2, 0}, by(rows).sort(new int[]{4, 3, 2, 1, 0}));
+	}
+}
@@ -0,0 +1,142 @@
+package org.openmrs.module.amrsreports.db.hibernate;
+
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Test class for CohortTable
+ */
+public class CohortTableTest {
+
+	private static final String SQL = "select o.person_id from obs o join {cohort} cohort on cohort.person_id = o.person_id";
+
+	private Session session;
+
+	private Statement statement;
+
+	@Before
+	public void setUp() throws Exception {
+		CohortTable.unavailableUntil = 0;
+
+		statement = Mockito.mock(Statement.class);
+		Connection connection = Mockito.mock(Connection.class);
+		Mockito.when(connection.createStatement()).thenReturn(statement);
+
+		session = Mockito.mock(Session.class);
+		Mockito.when(session.connection()).thenReturn(connection);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		CohortTable.unavailableUntil = 0;
+	}
+
+	/**
+	 * @verifies stand for everyone with a null cohort
+	 * @see CohortTable#expand(org.hibernate.Session, String, java.util.Set)
+	 */
+	@Test
+	public void expand_shouldStandForEveryoneWithANullCohort() throws Exception {
+		List<String> queries = CohortTable.expand(session, SQL, null);
+
+		Assert.assertEquals(1, queries.size());
+		Assert.assertEquals("select o.person_id from obs o join person cohort on cohort.person_id = o.person_id",
+				queries.get(0));
+		Mockito.verifyZeroInteractions(session);
+	}
+
+	/**
+	 * @verifies return no queries for an empty cohort
+	 * @see CohortTable#expand(org.hibernate.Session, String, java.util.Set)
+	 */
+	@Test
+	public void expand_shouldReturnNoQueriesForAnEmptyCohort() throws Exception {
+		Assert.assertTrue(CohortTable.expand(session, SQL, new HashSet<Integer>()).isEmpty());
+		Mockito.verifyZeroInteractions(session);
+	}
+
+	/**
+	 * @verifies join the temporary table and write each cohort only once
+	 * @see CohortTable#expand(org.hibernate.Session, String, java.util.Set)
+	 */
+	@Test
+	public void expand_shouldJoinTheTemporaryTableAndWriteEachCohortOnlyOnce() throws Exception {
+		String key = CohortTable.getKey(new Integer[]{2, 5, 7});
+
+		// the key table is empty the first time and holds the cohort's key the second
+		ResultSet empty = Mockito.mock(ResultSet.class);
+		ResultSet written = Mockito.mock(ResultSet.class);
+		Mockito.when(written.next()).thenReturn(true);
+		Mockito.when(written.getString(1)).thenReturn(key);
+		Mockito.when(statement.executeQuery("select cohort_key from amrsreports_cohort_key")).thenReturn(empty, written);
+
+		Set<Integer> cohort = new HashSet<Integer>(Arrays.asList(7, 2, 5));
+
+		List<String> queries = CohortTable.expand(session, SQL, cohort);
+		Assert.assertEquals(1, queries.size());
+		Assert.assertEquals("select o.person_id from obs o join amrsreports_cohort_member cohort on cohort.person_id = o.person_id",
+				queries.get(0));
+
+		Assert.assertEquals(1, CohortTable.expand(session, SQL, cohort).size());
+
+		Mockito.verify(statement, Mockito.times(1)).executeUpdate("insert into amrsreports_cohort_member (person_id) values (2),(5),(7)");
+		Mockito.verify(statement, Mockito.times(1)).executeUpdate("insert into amrsreports_cohort_key (cohort_key) values ('" + key + "')");
+	}
+
+	/**
+	 * @verifies query in chunks until the retry interval passes when the temporary tables cannot be created
+	 * @see CohortTable#expand(org.hibernate.Session, String, java.util.Set)
+	 */
+	@Test
+	public void expand_shouldQueryInChunksUntilTheRetryIntervalPassesWhenTheTemporaryTablesCannotBeCreated() throws Exception {
+		Mockito.when(statement.executeUpdate(Mockito.startsWith("create"))).thenThrow(new SQLException("not supported"));
+
+		Set<Integer> cohort = new HashSet<Integer>();
+		for (int i = 1; i <= CohortTable.CHUNK_SIZE * 2 + 1; i++) {
+			cohort.add(i);
+		}
+
+		List<String> queries = CohortTable.expand(session, SQL, cohort);
+		Assert.assertEquals(3, queries.size());
+		Assert.assertTrue(queries.get(0).contains("(select 1 as person_id union all select 2 as person_id"));
+		Assert.assertTrue(queries.get(2).contains("(select " + (CohortTable.CHUNK_SIZE * 2 + 1) + " as person_id)"));
+
+		// within the retry interval the temporary tables are not tried again
+		Assert.assertEquals(3, CohortTable.expand(session, SQL, cohort).size());
+		Mockito.verify(session, Mockito.times(1)).connection();
+
+		// once it has passed they are
+		CohortTable.unavailableUntil = System.currentTimeMillis() - 1;
+		Assert.assertEquals(3, CohortTable.expand(session, SQL, cohort).size());
+		Mockito.verify(session, Mockito.times(2)).connection();
+	}
+
+	/**
+	 * @verifies tell apart cohorts of the same size and sum
+	 * @see CohortTable#getKey(Integer[])
+	 */
+	@Test
+	public void getKey_shouldTellApartCohortsOfTheSameSizeAndSum() throws Exception {
+		String key = CohortTable.getKey(new Integer[]{1, 4});
+
+		Assert.assertFalse(key.equals(CohortTable.getKey(new Integer[]{2, 3})));
+		Assert.assertEquals(key, CohortTable.getKey(new Integer[]{1, 4}));
+		Assert.assertTrue(key.startsWith("2:"));
+
+		// it must fit the key table's column
+		Assert.assertTrue(key.length() <= 64);
+	}
+}
@@ -0,0 +1,149 @@
+package org.openmrs.module.amrsreports.db.hibernate;
+
+import org.apache.commons.lang.time.DateUtils;
+import org.hibernate.SessionFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.amrsreports.QueuedReport;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Date;
+
+/**
+ * Test class for HibernateQueuedReportDAO
+ */
+public class HibernateQueuedReportDAOTest extends BaseModuleContextSensitiveTest {
+
+	private static final String QUEUED_REPORTS_DATASET = "org/openmrs/module/amrsreports/include/queuedReports.xml";
+
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	private HibernateQueuedReportDAO dao;
+
+	private Date now;
+
+	private Date leaseExpiry;
+
+	@Before
+	public void setUp() throws Exception {
+		executeDataSet(QUEUED_REPORTS_DATASET);
+
+		dao = new HibernateQueuedReportDAO();
+		dao.setSessionFactory(sessionFactory);
+
+		now = new Date();
+		leaseExpiry = DateUtils.addMinutes(now, 10);
+	}
+
+	/**
+	 * @verifies claim a report for only one owner
+	 * @see HibernateQueuedReportDAO#claimQueuedReport(Integer, java.util.Date, String, java.util.Date)
+	 */
+	@Test
+	public void claimQueuedReport_shouldClaimAReportForOnlyOneOwner() throws Exception {
+		QueuedReport claimed = dao.claimQueuedReport(1, now, "first", leaseExpiry);
+		Assert.assertNotNull(claimed);
+		Assert.assertEquals(QueuedReport.STATUS_RUNNING, claimed.getStatus());
+		Assert.assertEquals("first", claimed.getLeaseOwner());
+
+		Assert.assertNull(dao.claimQueuedReport(1, now, "second", leaseExpiry));
+		Assert.assertEquals("first", reload(1).getLeaseOwner());
+	}
+
+	/**
+	 * @verifies claim a running report whose lease has expired
+	 * @see HibernateQueuedReportDAO#claimQueuedReport(Integer, java.util.Date, String, java.util.Date)
+	 */
+	@Test
+	public void claimQueuedReport_shouldClaimARunningReportWhoseLeaseHasExpired() throws Exception {
+		QueuedReport claimed = dao.claimQueuedReport(2, now, "second", leaseExpiry);
+		Assert.assertNotNull(claimed);
+		Assert.assertEquals("second", claimed.getLeaseOwner());
+		Assert.assertEquals(Integer.valueOf(2), claimed.getVersion());
+	}
+
+	/**
+	 * @verifies not claim a running report whose lease has not expired
+	 * @see HibernateQueuedReportDAO#claimQueuedReport(Integer, java.util.Date, String, java.util.Date)
+	 */
+	@Test
+	public void claimQueuedReport_shouldNotClaimARunningReportWhoseLeaseHasNotExpired() throws Exception {
+		Assert.assertNull(dao.claimQueuedReport(4, now, "second", leaseExpiry));
+		Assert.assertEquals("alive", reload(4).getLeaseOwner());
+	}
+
+	/**
+	 * @verifies not claim a running report with a cancellation request
+	 * @see HibernateQueuedReportDAO#claimQueuedReport(Integer, java.util.Date, String, java.util.Date)
+	 */
+	@Test
+	public void claimQueuedReport_shouldNotClaimARunningReportWithACancellationRequest() throws Exception {
+		Assert.assertNull(dao.claimQueuedReport(3, now, "second", leaseExpiry));
+	}
+
+	/**
+	 * @verifies renew only the leases of running reports held by the owner
+	 * @see HibernateQueuedReportDAO#renewLeases(String, java.util.Date)
+	 */
+	@Test
+	public void renewLeases_shouldRenewOnlyTheLeasesOfRunningReportsHeldByTheOwner() throws Exception {
+		Assert.assertEquals(1, dao.renewLeases("alive", leaseExpiry));
+
+		QueuedReport renewed = reload(4);
+		Assert.assertEquals(leaseExpiry.getTime() / 1000, renewed.getLeaseExpiry().getTime() / 1000);
+		Assert.assertEquals("stopped", reload(2).getLeaseOwner());
+		Assert.assertTrue(reload(2).getLeaseExpiry().before(now));
+	}
+
+	/**
+	 * @verifies not renew a lease another owner has claimed since the heartbeat was lost
+	 * @see HibernateQueuedReportDAO#renewLeases(String, java.util.Date)
+	 */
+	@Test
+	public void renewLeases_shouldNotRenewALeaseAnotherOwnerHasClaimedSinceTheHeartbeatWasLost() throws Exception {
+		Assert.assertNotNull(dao.claimQueuedReport(2, now, "second", leaseExpiry));
+
+		// the first owner comes back, and only still holds the report it was asked to cancel
+		Assert.assertEquals(1, dao.renewLeases("stopped", DateUtils.addMinutes(now, 20)));
+
+		QueuedReport claimed = reload(2);
+		Assert.assertEquals("second", claimed.getLeaseOwner());
+		Assert.assertEquals(leaseExpiry.getTime() / 1000, claimed.getLeaseExpiry().getTime() / 1000);
+	}
+
+	/**
+	 * @verifies cancel running reports with a cancellation request whose lease has expired
+	 * @see HibernateQueuedReportDAO#cancelAbandonedQueuedReports(java.util.Date)
+	 */
+	@Test
+	public void cancelAbandonedQueuedReports_shouldCancelRunningReportsWithACancellationRequestWhoseLeaseHasExpired()
+			throws Exception {
+		Assert.assertEquals(1, dao.cancelAbandonedQueuedReports(now));
+
+		Assert.assertEquals(QueuedReport.STATUS_CANCELLED, reload(3).getStatus());
+		Assert.assertEquals(QueuedReport.STATUS_RUNNING, reload(2).getStatus());
+		Assert.assertEquals(QueuedReport.STATUS_RUNNING, reload(4).getStatus());
+	}
+
+	/**
+	 * @verifies not cancel reports whose lease is still being renewed
+	 * @see HibernateQueuedReportDAO#cancelAbandonedQueuedReports(java.util.Date)
+	 */
+	@Test
+	public void cancelAbandonedQueuedReports_shouldNotCancelReportsWhoseLeaseIsStillBeingRenewed() throws Exception {
+		Assert.assertTrue(dao.requestCancellation(4));
+		Assert.assertEquals(1, dao.cancelAbandonedQueuedReports(now));
+		Assert.assertEquals(QueuedReport.STATUS_RUNNING, reload(4).getStatus());
+	}
+
+	/**
+	 * the lease queries update the database directly, so the report is read again instead of from the session
+	 */
+	private QueuedReport reload(Integer id) {
+		sessionFactory.getCurrentSession().clear();
+		return dao.getQueuedReport(id);
+	}
+}
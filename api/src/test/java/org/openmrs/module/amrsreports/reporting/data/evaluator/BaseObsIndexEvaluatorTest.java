@@ -0,0 +1,74 @@
+package org.openmrs.module.amrsreports.reporting.data.evaluator;
+
+import org.junit.Before;
+import org.mockito.Mockito;
+import org.openmrs.Cohort;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
+import org.openmrs.module.amrsreports.service.MohCoreService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.powermock.api.mockito.PowerMockito;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Base class for unit tests of evaluators that read their obs from the {@link ObsIndex}; the index is filled out by
+ * each test and handed to the evaluator by a mocked {@link MohCoreService}.  Subclasses run with the PowerMock runner,
+ * preparing {@link Context}.
+ */
+public abstract class BaseObsIndexEvaluatorTest {
+
+	protected static final int PATIENT_ID = 5;
+
+	protected static final int OTHER_PATIENT_ID = 6;
+
+	protected ObsIndex index;
+
+	protected EvaluationContext evaluationContext;
+
+	@Before
+	public void setupObsIndex() throws Exception {
+
+		// the columns read the cohort's obs from this index
+		index = new ObsIndex();
+
+		MohCoreService mohCoreService = Mockito.mock(MohCoreService.class);
+		Mockito.when(mohCoreService.getObsIndex(Mockito.anySet(), Mockito.anyCollection(), Mockito.any(Date.class)))
+				.thenReturn(index);
+
+		PowerMockito.mockStatic(Context.class);
+		Mockito.when(Context.getService(MohCoreService.class)).thenReturn(mohCoreService);
+
+		evaluationContext = new EvaluationContext();
+		evaluationContext.setEvaluationDate(makeDate("2013-01-01"));
+		evaluationContext.setBaseCohort(new Cohort(Arrays.asList(PATIENT_ID, OTHER_PATIENT_ID)));
+	}
+
+	protected Date makeDate(String date) throws Exception {
+		return new SimpleDateFormat("yyyy-MM-dd").parse(date);
+	}
+
+	/**
+	 * adds an obs with a coded answer to the index
+	 */
+	protected void addObs(int obsId, int personId, int conceptId, String date, int answer) throws Exception {
+		index.add(obsId, personId, conceptId, makeDate(date), answer, null, null, null);
+	}
+
+	/**
+	 * adds an obs with a date value to the index
+	 */
+	protected void addObs(int obsId, int personId, int conceptId, String date, String value) throws Exception {
+		addObs(obsId, personId, conceptId, date, value, null);
+	}
+
+	/**
+	 * adds an obs with a date value from an encounter of the given type to the index
+	 */
+	protected void addObs(int obsId, int personId, int conceptId, String date, String value, Integer encounterTypeId)
+			throws Exception {
+		index.add(obsId, personId, conceptId, makeDate(date), null, null, makeDate(value), encounterTypeId);
+	}
+}
@@ -0,0 +1,63 @@
+package org.openmrs.module.amrsreports.reporting.data.evaluator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.reporting.data.CtxStartStopDataDefinition;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Unit tests for {@link CtxStartStopDataEvaluator}
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class CtxStartStopDataEvaluatorTest extends BaseObsIndexEvaluatorTest {
+
+	private CtxStartStopDataEvaluator evaluator;
+
+	private CtxStartStopDataDefinition definition;
+
+	@Before
+	public void setup() throws Exception {
+		definition = new CtxStartStopDataDefinition();
+		evaluator = new CtxStartStopDataEvaluator();
+	}
+
+	/**
+	 * @verifies pair the start and stop dates of indexed obs
+	 * @see CtxStartStopDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldPairTheStartAndStopDatesOfIndexedObs() throws Exception {
+		addObs(1, PATIENT_ID, 1263, "2012-01-10", 916);
+		addObs(2, PATIENT_ID, 1261, "2012-06-01", 1260);
+		addObs(3, 9, 1263, "2012-02-02", 916);
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+
+		Assert.assertEquals("10/01/2012 - 01/06/2012", results.getData().get(PATIENT_ID));
+		Assert.assertEquals("", results.getData().get(OTHER_PATIENT_ID));
+		Assert.assertFalse(results.getData().containsKey(9));
+	}
+
+	/**
+	 * @verifies only use obs from 2001 up to the report date
+	 * @see CtxStartStopDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldOnlyUseObsFrom2001UpToTheReportDate() throws Exception {
+		addObs(1, PATIENT_ID, 1193, "2000-05-05", 916);
+		addObs(2, PATIENT_ID, 1109, "2012-03-03", 916);
+		addObs(3, PATIENT_ID, 1262, "2013-02-01", 1107);
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+
+		Assert.assertEquals("03/03/2012 - ", results.getData().get(PATIENT_ID));
+	}
+}
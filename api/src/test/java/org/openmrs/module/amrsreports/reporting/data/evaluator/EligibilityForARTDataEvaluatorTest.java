@@ -5,6 +5,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.openmrs.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.Obs;
@@ -14,6 +16,7 @@ import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
 import org.openmrs.logic.LogicContext;
 import org.openmrs.logic.result.Result;
+import org.openmrs.module.amrsreports.cache.ObsIndex;
 import org.openmrs.module.amrsreports.reporting.data.EligibilityForARTDataDefinition;
 import org.openmrs.module.amrsreports.rule.MohEvaluableNameConstants;
 import org.openmrs.module.amrsreports.service.MohCoreService;
@@ -22,7 +25,6 @@ import org.openmrs.module.amrsreports.util.MOHReportUtil;
 import org.openmrs.module.amrsreports.util.MohFetchRestriction;
 import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
-import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.context.PersonEvaluationContext;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
@@ -74,7 +76,7 @@ public class EligibilityForARTDataEvaluatorTest {
 	private Patient patient;
 	private ConceptService conceptService;
 	private PatientService patientService;
-	private DataSetQueryService dataSetQueryService;
+	private MohCoreService mohCoreService;
 	private List<Object> currentObs;
 	private Date evaluationDate;
 	private PersonEvaluationContext evaluationContext;
@@ -105,15 +107,28 @@ public class EligibilityForARTDataEvaluatorTest {
 		patientService = Mockito.mock(PatientService.class);
 		Mockito.when(patientService.getPatient(PATIENT_ID)).thenReturn(patient);
 
-		// build the data set query service
-		dataSetQueryService = Mockito.mock(DataSetQueryService.class);
-		Mockito.when(dataSetQueryService.executeHqlQuery(Mockito.anyString(), Mockito.anyMap())).thenReturn(currentObs);
+		// build the core service, indexing the current obs
+		mohCoreService = Mockito.mock(MohCoreService.class);
+		Mockito.when(mohCoreService.getObsIndex(Mockito.anySet(), Mockito.anyCollection(), Mockito.any(Date.class)))
+				.thenAnswer(new Answer<ObsIndex>() {
+					public ObsIndex answer(InvocationOnMock invocation) throws Throwable {
+						ObsIndex index = new ObsIndex();
+						for (Object o : currentObs) {
+							Obs obs = (Obs) o;
+							index.add(obs.getObsId(), obs.getPerson().getPersonId(), obs.getConcept().getConceptId(),
+									obs.getObsDatetime(),
+									obs.getValueCoded() == null ? null : obs.getValueCoded().getConceptId(),
+									obs.getValueNumeric(), obs.getValueDatetime(), null);
+						}
+						return index;
+					}
+				});
 
 		// set up Context
 		PowerMockito.mockStatic(Context.class);
 		Mockito.when(Context.getConceptService()).thenReturn(conceptService);
 		Mockito.when(Context.getPatientService()).thenReturn(patientService);
-		Mockito.when(Context.getService(DataSetQueryService.class)).thenReturn(dataSetQueryService);
+		Mockito.when(Context.getService(MohCoreService.class)).thenReturn(mohCoreService);
 
 		// set evaluation date
 		evaluationDate = makeDate("2013-01-01");
@@ -478,4 +493,21 @@ public class EligibilityForARTDataEvaluatorTest {
 		assertThat((String) actual.get("reason"), is(ARVPatientSnapshot.REASON_CLINICAL_CD4));
 		assertThat((List<String>) actual.get("extras"), is(extras));
 	}
+
+	/**
+	 * @verifies leave out people whose indexed obs are all after the evaluation date
+	 * @see EligibilityForARTDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldLeaveOutPeopleWhoseIndexedObsAreAllAfterTheEvaluationDate() throws Exception {
+		patient.setBirthdate(makeDate("16 Oct 2012"));
+
+		evaluationContext.setEvaluationDate(makeDate("1 Nov 2012"));
+		addObs(MohEvaluableNameConstants.WHO_STAGE_PEDS, MohEvaluableNameConstants.WHO_STAGE_4_PEDS, "16 Nov 2012");
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+
+		Assert.assertFalse(results.getData().containsKey(PATIENT_ID));
+	}
 }
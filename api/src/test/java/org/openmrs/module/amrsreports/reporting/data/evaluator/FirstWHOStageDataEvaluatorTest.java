@@ -0,0 +1,68 @@
+package org.openmrs.module.amrsreports.reporting.data.evaluator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.reporting.data.FirstWHOStageDataDefinition;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Unit tests for {@link FirstWHOStageDataEvaluator}
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class FirstWHOStageDataEvaluatorTest extends BaseObsIndexEvaluatorTest {
+
+	private FirstWHOStageDataEvaluator evaluator;
+
+	private FirstWHOStageDataDefinition definition;
+
+	@Before
+	public void setup() throws Exception {
+		definition = new FirstWHOStageDataDefinition();
+		evaluator = new FirstWHOStageDataEvaluator();
+	}
+
+	/**
+	 * @verifies return the earliest WHO stage obs of either concept
+	 * @see FirstWHOStageDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldReturnTheEarliestWHOStageObsOfEitherConcept() throws Exception {
+		addObs(1, PATIENT_ID, 5356, "2012-02-01", 1204);
+		addObs(2, PATIENT_ID, 1224, "2011-05-01", 1205);
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+		Obs actual = (Obs) results.getData().get(PATIENT_ID);
+
+		// the index's detached concepts equal the real ones by id
+		Assert.assertEquals(Integer.valueOf(2), actual.getObsId());
+		Assert.assertEquals(new Concept(1224), actual.getConcept());
+		Assert.assertEquals(new Concept(1205), actual.getValueCoded());
+		Assert.assertEquals(makeDate("2011-05-01"), actual.getObsDatetime());
+	}
+
+	/**
+	 * @verifies leave out obs after the evaluation date
+	 * @see FirstWHOStageDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldLeaveOutObsAfterTheEvaluationDate() throws Exception {
+		addObs(1, PATIENT_ID, 5356, "2013-01-05", 1204);
+		addObs(2, PATIENT_ID, 1224, "2012-12-31", 1205);
+		addObs(3, OTHER_PATIENT_ID, 5356, "2013-01-02", 1206);
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+
+		Assert.assertEquals(Integer.valueOf(2), ((Obs) results.getData().get(PATIENT_ID)).getObsId());
+		Assert.assertFalse(results.getData().containsKey(OTHER_PATIENT_ID));
+	}
+}
@@ -0,0 +1,61 @@
+package org.openmrs.module.amrsreports.reporting.data.evaluator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.reporting.data.FluconazoleStartStopDataDefinition;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Unit tests for {@link FluconazoleStartStopDataEvaluator}
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class FluconazoleStartStopDataEvaluatorTest extends BaseObsIndexEvaluatorTest {
+
+	private FluconazoleStartStopDataEvaluator evaluator;
+
+	private FluconazoleStartStopDataDefinition definition;
+
+	@Before
+	public void setup() throws Exception {
+		definition = new FluconazoleStartStopDataDefinition();
+		evaluator = new FluconazoleStartStopDataEvaluator();
+	}
+
+	/**
+	 * @verifies pair the start and stop dates of indexed obs
+	 * @see FluconazoleStartStopDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldPairTheStartAndStopDatesOfIndexedObs() throws Exception {
+		addObs(1, PATIENT_ID, 1277, "2012-02-02", 1256);
+		addObs(2, PATIENT_ID, 1277, "2012-05-05", 1260);
+		addObs(3, OTHER_PATIENT_ID, 1277, "2012-05-05", 1107);
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+
+		Assert.assertEquals("02/02/2012 - 05/05/2012", results.getData().get(PATIENT_ID));
+		Assert.assertEquals("", results.getData().get(OTHER_PATIENT_ID));
+	}
+
+	/**
+	 * @verifies keep starts before 2001 but not stops
+	 * @see FluconazoleStartStopDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldKeepStartsBefore2001ButNotStops() throws Exception {
+		addObs(1, PATIENT_ID, 1278, "2000-01-01", 747);
+		addObs(2, PATIENT_ID, 1277, "2000-06-01", 1260);
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+
+		Assert.assertEquals("01/01/2000 - ", results.getData().get(PATIENT_ID));
+	}
+}
@@ -0,0 +1,67 @@
+package org.openmrs.module.amrsreports.reporting.data.evaluator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.module.amrsreports.reporting.data.LTFUTODeadDataDefinition;
+import org.openmrs.module.amrsreports.util.MOHReportUtil;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link LTFUTODeadDataEvaluator}, running its queries against the database
+ */
+public class LTFUTODeadDataEvaluatorTest extends BaseModuleContextSensitiveTest {
+
+	private static final String LTFU_TO_DEAD_DATASET = "org/openmrs/module/amrsreports/include/ltfuToDead.xml";
+
+	private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+
+	private EvaluatedPersonData data;
+
+	@Before
+	public void setUp() throws Exception {
+		executeDataSet(LTFU_TO_DEAD_DATASET);
+
+		EvaluationContext context = new EvaluationContext();
+		context.setBaseCohort(new Cohort(Arrays.asList(1001, 1002, 1003)));
+		context.setEvaluationDate(sdf.parse("2012-04-01"));
+
+		data = new LTFUTODeadDataEvaluator().evaluate(new LTFUTODeadDataDefinition(), context);
+	}
+
+	/**
+	 * @verifies report the earliest death date from death encounters and person properties
+	 * @see LTFUTODeadDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldReportTheEarliestDeathDateFromDeathEncountersAndPersonProperties() throws Exception {
+		Assert.assertEquals(MOHReportUtil.joinAsSingleCell("Dead", MOHReportUtil.formatdates(sdf.parse("2012-02-15"))),
+				data.getData().get(1001));
+	}
+
+	/**
+	 * @verifies report LTFU from the last encounter on or before the report date
+	 * @see LTFUTODeadDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldReportLTFUFromTheLastEncounterOnOrBeforeTheReportDate() throws Exception {
+		// expected back 21 days after the encounter on 2011-06-01, and lost 93 days after that
+		Assert.assertEquals(MOHReportUtil.joinAsSingleCell("LTFU", MOHReportUtil.formatdates(sdf.parse("2011-09-23"))),
+				data.getData().get(1002));
+	}
+
+	/**
+	 * @verifies leave out patients seen recently
+	 * @see LTFUTODeadDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldLeaveOutPatientsSeenRecently() throws Exception {
+		Assert.assertFalse(data.getData().containsKey(1003));
+	}
+}
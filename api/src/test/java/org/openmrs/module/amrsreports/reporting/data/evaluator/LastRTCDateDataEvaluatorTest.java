@@ -0,0 +1,65 @@
+package org.openmrs.module.amrsreports.reporting.data.evaluator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.reporting.data.LastRTCDateDataDefinition;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Unit tests for {@link LastRTCDateDataEvaluator}
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class LastRTCDateDataEvaluatorTest extends BaseObsIndexEvaluatorTest {
+
+	private LastRTCDateDataEvaluator evaluator;
+
+	private LastRTCDateDataDefinition definition;
+
+	@Before
+	public void setup() throws Exception {
+		definition = new LastRTCDateDataDefinition();
+		evaluator = new LastRTCDateDataEvaluator();
+	}
+
+	/**
+	 * @verifies return the latest obs from a listed encounter type
+	 * @see LastRTCDateDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldReturnTheLatestObsFromAListedEncounterType() throws Exception {
+		addObs(1, PATIENT_ID, 5096, "2011-10-01", "2011-11-01", 2);
+		addObs(2, PATIENT_ID, 5096, "2012-01-01", "2012-02-01", 1);
+		addObs(3, PATIENT_ID, 1502, "2012-06-01", "2012-07-01", 5);
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+		Obs actual = (Obs) results.getData().get(PATIENT_ID);
+
+		Assert.assertEquals(Integer.valueOf(2), actual.getObsId());
+		Assert.assertEquals(makeDate("2012-02-01"), actual.getValueDatetime());
+	}
+
+	/**
+	 * @verifies leave out people without obs from a listed encounter type
+	 * @see LastRTCDateDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldLeaveOutPeopleWithoutObsFromAListedEncounterType() throws Exception {
+		addObs(1, PATIENT_ID, 1502, "2012-06-01", "2012-07-01", 13);
+		addObs(2, OTHER_PATIENT_ID, 1502, "2012-06-01", "2012-07-01", 5);
+		addObs(3, OTHER_PATIENT_ID, 5096, "2012-08-01", "2012-09-01", null);
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+
+		Assert.assertTrue(results.getData().containsKey(PATIENT_ID));
+		Assert.assertFalse(results.getData().containsKey(OTHER_PATIENT_ID));
+	}
+}
@@ -0,0 +1,61 @@
+package org.openmrs.module.amrsreports.reporting.data.evaluator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.reporting.data.PmtctPregnancyDataDefinition;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Unit tests for {@link PmtctPregnancyDataEvaluator}
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class PmtctPregnancyDataEvaluatorTest extends BaseObsIndexEvaluatorTest {
+
+	private PmtctPregnancyDataEvaluator evaluator;
+
+	private PmtctPregnancyDataDefinition definition;
+
+	@Before
+	public void setup() throws Exception {
+		definition = new PmtctPregnancyDataDefinition();
+		evaluator = new PmtctPregnancyDataEvaluator();
+	}
+
+	/**
+	 * @verifies list each expected delivery date once
+	 * @see PmtctPregnancyDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldListEachExpectedDeliveryDateOnce() throws Exception {
+		addObs(1, PATIENT_ID, 5596, "2012-07-01", "2013-03-01");
+		addObs(2, PATIENT_ID, 6743, "2012-08-01", "2013-03-01");
+		addObs(3, PATIENT_ID, 5596, "2010-02-01", "2010-09-01");
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+
+		Assert.assertEquals("01/09/2010 | PMTCT\n01/03/2013 | PMTCT", results.getData().get(PATIENT_ID));
+	}
+
+	/**
+	 * @verifies leave out people without obs up to the report date
+	 * @see PmtctPregnancyDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldLeaveOutPeopleWithoutObsUpToTheReportDate() throws Exception {
+		addObs(1, PATIENT_ID, 5596, "2012-07-01", "2013-03-01");
+		addObs(2, OTHER_PATIENT_ID, 5596, "2013-02-01", "2013-09-01");
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+
+		Assert.assertTrue(results.getData().containsKey(PATIENT_ID));
+		Assert.assertFalse(results.getData().containsKey(OTHER_PATIENT_ID));
+	}
+}
@@ -0,0 +1,60 @@
+package org.openmrs.module.amrsreports.reporting.data.evaluator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.reporting.data.TbStartStopDataDefinition;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Unit tests for {@link TbStartStopDataEvaluator}
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class TbStartStopDataEvaluatorTest extends BaseObsIndexEvaluatorTest {
+
+	private TbStartStopDataEvaluator evaluator;
+
+	private TbStartStopDataDefinition definition;
+
+	@Before
+	public void setup() throws Exception {
+		definition = new TbStartStopDataDefinition();
+		evaluator = new TbStartStopDataEvaluator();
+	}
+
+	/**
+	 * @verifies pair the treatment start and stop date values of indexed obs
+	 * @see TbStartStopDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldPairTheTreatmentStartAndStopDateValuesOfIndexedObs() throws Exception {
+		addObs(1, PATIENT_ID, 1113, "2012-01-20", "2012-01-15");
+		addObs(2, PATIENT_ID, 2041, "2012-07-20", "2012-07-15");
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+
+		Assert.assertEquals("15/01/2012 - 15/07/2012", results.getData().get(PATIENT_ID));
+		Assert.assertEquals("", results.getData().get(OTHER_PATIENT_ID));
+	}
+
+	/**
+	 * @verifies leave out obs after the report date
+	 * @see TbStartStopDataEvaluator#evaluate(org.openmrs.module.reporting.data.person.definition.PersonDataDefinition,
+	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldLeaveOutObsAfterTheReportDate() throws Exception {
+		addObs(1, PATIENT_ID, 1113, "2012-01-20", "2012-01-15");
+		addObs(2, PATIENT_ID, 2041, "2013-03-01", "2012-12-28");
+
+		EvaluatedPersonData results = evaluator.evaluate(definition, evaluationContext);
+
+		Assert.assertEquals("15/01/2012 - ", results.getData().get(PATIENT_ID));
+	}
+}
@@ -1,8 +1,15 @@
 package org.openmrs.module.amrsreports.service;
 
+import org.junit.Assert;
 import org.junit.Test;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+
 /**
  * Test file for MohCoreService methods
  */
@@ -13,6 +20,52 @@ public class MohCoreServiceTest extends BaseModuleContextSensitiveTest {
 		// pass
 	}
 
+	/**
+	 * @verifies change when an obs of the cohort is added or voided
+	 * @see MohCoreService#getRecordsStamp(java.util.Set)
+	 */
+	@Test
+	public void getRecordsStamp_shouldChangeWhenAnObsOfTheCohortIsAddedOrVoided() throws Exception {
+		MohCoreService service = Context.getService(MohCoreService.class);
+		Set<Integer> cohort = Collections.singleton(7);
+
+		String before = service.getRecordsStamp(cohort);
+		Assert.assertEquals(before, service.getRecordsStamp(cohort));
+
+		Obs obs = saveWeight(7);
+		String added = service.getRecordsStamp(cohort);
+		Assert.assertFalse(before.equals(added));
+
+		Context.getObsService().voidObs(obs, "testing");
+		Context.flushSession();
+		Assert.assertFalse(added.equals(service.getRecordsStamp(cohort)));
+	}
+
+	/**
+	 * @verifies not change for records of people outside the cohort
+	 * @see MohCoreService#getRecordsStamp(java.util.Set)
+	 */
+	@Test
+	public void getRecordsStamp_shouldNotChangeForRecordsOfPeopleOutsideTheCohort() throws Exception {
+		MohCoreService service = Context.getService(MohCoreService.class);
+		Set<Integer> cohort = Collections.singleton(7);
+
+		String before = service.getRecordsStamp(cohort);
+		saveWeight(2);
+		Assert.assertEquals(before, service.getRecordsStamp(cohort));
+	}
+
+	private Obs saveWeight(Integer personId) {
+		Obs obs = new Obs(Context.getPersonService().getPerson(personId), Context.getConceptService().getConcept(5089),
+				new Date(), Context.getLocationService().getLocation(1));
+		obs.setValueNumeric(50d);
+		Context.getObsService().saveObs(obs, null);
+
+		// the stamp is read with native SQL, which does not flush the session
+		Context.flushSession();
+		return obs;
+	}
+
 //	/**
 //	 * @see org.openmrs.module.amrsreports.service.MohCoreService#getUserLocation(Integer)
 //	 * @Verifies(value = "should get a UserFacility by its Id", method =
@@ -2,6 +2,10 @@ package org.openmrs.module.amrsreports.task;
 
 import org.junit.Test;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
 
@@ -86,4 +90,85 @@ public class AMRSReportsCommonTaskLockTest {
 		assertThat(actual, is(Boolean.FALSE));
 	}
 
+	/**
+	 * @verifies allow several shared holds at once
+	 * @see AMRSReportsCommonTaskLock#getLock(Class, AMRSReportsCommonTaskLock.Mode, long)
+	 */
+	@Test
+	public void getLock_shouldAllowSeveralSharedHoldsAtOnce() throws Exception {
+		AMRSReportsCommonTaskLock lock = new AMRSReportsCommonTaskLock();
+
+		assertThat(lock.getLock(this.getClass(), AMRSReportsCommonTaskLock.Mode.SHARED, 0), is(Boolean.TRUE));
+		assertThat(lock.getLock(String.class, AMRSReportsCommonTaskLock.Mode.SHARED, 0), is(Boolean.TRUE));
+		assertThat(lock.getHolders().size(), is(2));
+
+		// releasing one shared hold leaves the other in place
+		assertThat(lock.releaseLock(String.class), is(Boolean.TRUE));
+		assertThat(lock.isLocked(), is(Boolean.TRUE));
+	}
+
+	/**
+	 * @verifies not grant an exclusive hold while shared holds exist
+	 * @see AMRSReportsCommonTaskLock#getLock(Class, AMRSReportsCommonTaskLock.Mode, long)
+	 */
+	@Test
+	public void getLock_shouldNotGrantAnExclusiveHoldWhileSharedHoldsExist() throws Exception {
+		AMRSReportsCommonTaskLock lock = new AMRSReportsCommonTaskLock();
+
+		assertThat(lock.getLock(this.getClass(), AMRSReportsCommonTaskLock.Mode.SHARED, 0), is(Boolean.TRUE));
+		assertThat(lock.getLock(String.class), is(Boolean.FALSE));
+
+		lock.releaseLock(this.getClass());
+		assertThat(lock.getLock(String.class), is(Boolean.TRUE));
+	}
+
+	/**
+	 * @verifies not grant new shared holds while an exclusive request is waiting
+	 * @see AMRSReportsCommonTaskLock#getLock(Class, AMRSReportsCommonTaskLock.Mode, long)
+	 */
+	@Test
+	public void getLock_shouldNotGrantNewSharedHoldsWhileAnExclusiveRequestIsWaiting() throws Exception {
+		final AMRSReportsCommonTaskLock lock = new AMRSReportsCommonTaskLock();
+		assertThat(lock.getLock(this.getClass(), AMRSReportsCommonTaskLock.Mode.SHARED, 0), is(Boolean.TRUE));
+
+		final AtomicBoolean granted = new AtomicBoolean(false);
+		final CountDownLatch done = new CountDownLatch(1);
+
+		Thread builder = new Thread(new Runnable() {
+			public void run() {
+				granted.set(lock.getLock(String.class, AMRSReportsCommonTaskLock.Mode.EXCLUSIVE, 5000));
+				done.countDown();
+			}
+		});
+		builder.start();
+
+		// wait for the exclusive request to queue up
+		for (int i = 0; i < 100 && lock.getQueueDepth() == 0; i++)
+			Thread.sleep(10);
+		assertThat(lock.getQueueDepth(), is(1));
+
+		// a new shared request may not jump ahead of the waiting exclusive one
+		assertThat(lock.getLock(Integer.class, AMRSReportsCommonTaskLock.Mode.SHARED, 0), is(Boolean.FALSE));
+
+		lock.releaseLock(this.getClass());
+		assertThat(done.await(5, TimeUnit.SECONDS), is(Boolean.TRUE));
+		assertThat(granted.get(), is(Boolean.TRUE));
+	}
+
+	/**
+	 * @verifies give up after the timeout
+	 * @see AMRSReportsCommonTaskLock#getLock(Class, AMRSReportsCommonTaskLock.Mode, long)
+	 */
+	@Test
+	public void getLock_shouldGiveUpAfterTheTimeout() throws Exception {
+		AMRSReportsCommonTaskLock lock = new AMRSReportsCommonTaskLock();
+		assertThat(lock.getLock(this.getClass()), is(Boolean.TRUE));
+
+		long started = System.currentTimeMillis();
+		assertThat(lock.getLock(String.class, AMRSReportsCommonTaskLock.Mode.SHARED, 100), is(Boolean.FALSE));
+		assertThat(System.currentTimeMillis() - started >= 100, is(Boolean.TRUE));
+
+		assertThat(lock.getTimeouts(), is(1L));
+		assertThat(lock.getQueueDepth(), is(0));
+	}
 }
@@ -0,0 +1,127 @@
+package org.openmrs.module.amrsreports.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test class for CancellationToken
+ */
+public class CancellationTokenTest {
+
+	/**
+	 * @verifies throw once cancelled
+	 * @see CancellationToken#check()
+	 */
+	@Test
+	public void check_shouldThrowOnceCancelled() throws Exception {
+		CancellationToken token = new TestToken();
+		token.check();
+
+		token.cancel();
+		Assert.assertTrue(token.isCancelled());
+
+		try {
+			token.check();
+			Assert.fail("a cancelled token should stop the work");
+		} catch (OperationCancelledException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * @verifies cancel registered statements
+	 * @see CancellationToken#cancel()
+	 */
+	@Test
+	public void cancel_shouldCancelRegisteredStatements() throws Exception {
+		final List<String> calls = new ArrayList<String>();
+
+		CancellationToken token = new TestToken();
+		token.addStatement(statement("first", calls));
+		Statement removed = statement("removed", calls);
+		token.addStatement(removed);
+		token.removeStatement(removed);
+
+		token.cancel();
+		Assert.assertEquals(1, calls.size());
+		Assert.assertEquals("first", calls.get(0));
+
+		// statements started after cancelling are cancelled straight away
+		token.addStatement(statement("late", calls));
+		Assert.assertEquals(2, calls.size());
+	}
+
+	/**
+	 * @verifies cancel the token registered under the key
+	 * @see CancellationToken#cancel(String)
+	 */
+	@Test
+	public void cancel_shouldCancelTheTokenRegisteredUnderTheKey() throws Exception {
+		CancellationToken token = new TestToken();
+		CancellationToken.register("test:1", token);
+		try {
+			Assert.assertTrue(CancellationToken.cancel("test:1"));
+			Assert.assertTrue(token.isCancelled());
+		} finally {
+			CancellationToken.unregister("test:1");
+		}
+	}
+
+	/**
+	 * @verifies return false for unknown keys
+	 * @see CancellationToken#cancel(String)
+	 */
+	@Test
+	public void cancel_shouldReturnFalseForUnknownKeys() throws Exception {
+		Assert.assertFalse(CancellationToken.cancel("test:unknown"));
+	}
+
+	/**
+	 * @verifies append a comment naming the token to the query
+	 * @see CancellationToken#tag(String)
+	 */
+	@Test
+	public void tag_shouldAppendACommentNamingTheTokenToTheQuery() throws Exception {
+		String tagged = new TestToken().tag("select 1");
+		Assert.assertTrue(tagged.startsWith("select 1 /* amrsreports:"));
+		Assert.assertTrue(tagged.endsWith(" */"));
+		Assert.assertFalse(tagged.equals(new TestToken().tag("select 1")));
+	}
+
+	private Statement statement(final String name, final List<String> calls) {
+		return (Statement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Statement.class},
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if ("cancel".equals(method.getName()))
+							calls.add(name);
+						if ("hashCode".equals(method.getName()))
+							return System.identityHashCode(proxy);
+						if ("equals".equals(method.getName()))
+							return proxy == args[0];
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * a token that does not reach for the database
+	 */
+	private class TestToken extends CancellationToken {
+
+		public TestToken() {
+			super("test");
+		}
+
+		@Override
+		protected void killQueries() {
+			// pass
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package org.openmrs.module.amrsreports.util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openmrs.Cohort;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.amrsreports.reporting.data.EnrollmentDateDataDefinition;
+import org.openmrs.module.amrsreports.reporting.data.LastRTCDateDataDefinition;
+import org.openmrs.module.reporting.data.BaseDataDefinition;
+import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
+import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
+import org.openmrs.module.reporting.data.person.service.PersonDataService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class for ConcurrentColumns
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class ConcurrentColumnsTest {
+
+	private PersonDataService personDataService;
+
+	// the definitions evaluated, in the order their evaluations started
+	private final List<PersonDataDefinition> evaluated = Collections.synchronizedList(new ArrayList<PersonDataDefinition>());
+
+	@Before
+	public void setUp() throws Exception {
+		personDataService = Mockito.mock(PersonDataService.class);
+
+		PowerMockito.mockStatic(Context.class);
+		Mockito.when(Context.getService(PersonDataService.class)).thenReturn(personDataService);
+		Mockito.when(Context.getAdministrationService()).thenReturn(Mockito.mock(AdministrationService.class));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		CancellationToken.setCurrent(null);
+		ConcurrentColumns.shutdown();
+	}
+
+	/**
+	 * @verifies return the result for a definition of the same kind
+	 * @see ConcurrentColumns#getResult(Object, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void getResult_shouldReturnTheResultForADefinitionOfTheSameKind() throws Exception {
+		EvaluationContext context = getContext(new Date(1000), 1, 2, 3);
+		EvaluatedPersonData data = new EvaluatedPersonData();
+
+		ConcurrentColumns columns = new ConcurrentColumns(context);
+		columns.addResult(new EnrollmentDateDataDefinition(), data);
+
+		EnrollmentDateDataDefinition other = new EnrollmentDateDataDefinition();
+		Assert.assertSame(data, columns.getResult(other, getContext(new Date(1000), 3, 2, 1)));
+		Assert.assertSame(data, columns.getResult(new Mapped<EnrollmentDateDataDefinition>(other, null), context));
+		Assert.assertNull(columns.getResult(new LastRTCDateDataDefinition(), context));
+	}
+
+	/**
+	 * @verifies return null for a definition configured differently
+	 * @see ConcurrentColumns#getResult(Object, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void getResult_shouldReturnNullForADefinitionConfiguredDifferently() throws Exception {
+		EvaluationContext context = getContext(new Date(1000), 1, 2, 3);
+		EvaluatedPersonData data = new EvaluatedPersonData();
+
+		ConcurrentColumns columns = new ConcurrentColumns(context);
+		columns.addResult(new ConfiguredDataDefinition("a"), data);
+
+		Assert.assertSame(data, columns.getResult(new ConfiguredDataDefinition("a"), context));
+		Assert.assertNull(columns.getResult(new ConfiguredDataDefinition("b"), context));
+	}
+
+	/**
+	 * @verifies return null for another cohort or date
+	 * @see ConcurrentColumns#getResult(Object, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void getResult_shouldReturnNullForAnotherCohortOrDate() throws Exception {
+		ConcurrentColumns columns = new ConcurrentColumns(getContext(new Date(1000), 1, 2, 3));
+		columns.addResult(new EnrollmentDateDataDefinition(), new EvaluatedPersonData());
+
+		EnrollmentDateDataDefinition definition = new EnrollmentDateDataDefinition();
+		Assert.assertNull(columns.getResult(definition, getContext(new Date(1000), 1, 2)));
+		Assert.assertNull(columns.getResult(definition, getContext(new Date(2000), 1, 2, 3)));
+		Assert.assertNull(columns.getResult(definition, new EvaluationContext()));
+	}
+
+	/**
+	 * @verifies evaluate each distinct definition once
+	 * @see ConcurrentColumns#evaluate(java.util.Collection, org.openmrs.module.reporting.evaluation.EvaluationContext, int)
+	 */
+	@Test
+	public void evaluate_shouldEvaluateEachDistinctDefinitionOnce() throws Exception {
+		stubEvaluate(new Answer<EvaluatedPersonData>() {
+			public EvaluatedPersonData answer(InvocationOnMock invocation) throws Throwable {
+				return evaluate(invocation);
+			}
+		});
+
+		EvaluationContext context = getContext(new Date(1000), 1, 2, 3);
+		List<PersonDataDefinition> definitions = Arrays.<PersonDataDefinition>asList(
+				new EnrollmentDateDataDefinition(), new EnrollmentDateDataDefinition(), new LastRTCDateDataDefinition(),
+				new ConfiguredDataDefinition("a"), new ConfiguredDataDefinition("b"));
+
+		ConcurrentColumns columns = ConcurrentColumns.evaluate(definitions, context, 3);
+
+		Assert.assertEquals(4, evaluated.size());
+		for (PersonDataDefinition definition : definitions) {
+			EvaluatedPersonData data = columns.getResult(definition, context);
+			Assert.assertNotNull(data);
+			Assert.assertSame(definition.getClass(), data.getDefinition().getClass());
+		}
+		Assert.assertNotSame(columns.getResult(new ConfiguredDataDefinition("a"), context),
+				columns.getResult(new ConfiguredDataDefinition("b"), context));
+	}
+
+	/**
+	 * @verifies open and clear a user context of its own for each column
+	 * @see ConcurrentColumns#evaluate(java.util.Collection, org.openmrs.module.reporting.evaluation.EvaluationContext, int)
+	 */
+	@Test
+	public void evaluate_shouldOpenAndClearAUserContextOfItsOwnForEachColumn() throws Exception {
+		stubEvaluate(new Answer<EvaluatedPersonData>() {
+			public EvaluatedPersonData answer(InvocationOnMock invocation) throws Throwable {
+				return evaluate(invocation);
+			}
+		});
+
+		ConcurrentColumns.evaluate(Arrays.<PersonDataDefinition>asList(new EnrollmentDateDataDefinition(),
+				new LastRTCDateDataDefinition()), getContext(new Date(1000), 1, 2, 3), 2);
+
+		PowerMockito.verifyStatic(Mockito.times(2));
+		Context.openSession();
+		PowerMockito.verifyStatic(Mockito.times(2));
+		Context.clearUserContext();
+		PowerMockito.verifyStatic(Mockito.never());
+		Context.setUserContext(Mockito.any(UserContext.class));
+	}
+
+	/**
+	 * @verifies rethrow the error of a column that fails
+	 * @see ConcurrentColumns#evaluate(java.util.Collection, org.openmrs.module.reporting.evaluation.EvaluationContext, int)
+	 */
+	@Test
+	public void evaluate_shouldRethrowTheErrorOfAColumnThatFails() throws Exception {
+		stubEvaluate(new Answer<EvaluatedPersonData>() {
+			public EvaluatedPersonData answer(InvocationOnMock invocation) throws Throwable {
+				if (invocation.getArguments()[0] instanceof LastRTCDateDataDefinition)
+					throw new IllegalStateException("broken column");
+				return evaluate(invocation);
+			}
+		});
+
+		List<PersonDataDefinition> definitions = Arrays.<PersonDataDefinition>asList(
+				new EnrollmentDateDataDefinition(), new LastRTCDateDataDefinition());
+
+		try {
+			ConcurrentColumns.evaluate(definitions, getContext(new Date(1000), 1, 2, 3), 2);
+			Assert.fail("the column's error should have been rethrown");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("broken column", e.getMessage());
+		}
+	}
+
+	/**
+	 * @verifies stop the running columns once cancelled
+	 * @see ConcurrentColumns#evaluate(java.util.Collection, org.openmrs.module.reporting.evaluation.EvaluationContext, int)
+	 */
+	@Test
+	public void evaluate_shouldStopTheRunningColumnsOnceCancelled() throws Exception {
+		final CancellationToken token = new CancellationToken("test report") {
+			@Override
+			protected void killQueries() {
+				// there is no database to kill queries on
+			}
+		};
+		CancellationToken.setCurrent(token);
+
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		stubEvaluate(new Answer<EvaluatedPersonData>() {
+			public EvaluatedPersonData answer(InvocationOnMock invocation) throws Throwable {
+				// the report is cancelled while this column is still running
+				token.cancel();
+				try {
+					Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+					throw e;
+				}
+				return evaluate(invocation);
+			}
+		});
+
+		long started = System.currentTimeMillis();
+		try {
+			ConcurrentColumns.evaluate(Arrays.asList(new EnrollmentDateDataDefinition()),
+					getContext(new Date(1000), 1, 2, 3), 2);
+			Assert.fail("the evaluation should have been cancelled");
+		} catch (OperationCancelledException e) {
+			// expected
+		}
+
+		Assert.assertTrue(System.currentTimeMillis() - started < TimeUnit.SECONDS.toMillis(30));
+		Assert.assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+	}
+
+	private void stubEvaluate(Answer<EvaluatedPersonData> answer) throws Exception {
+		Mockito.when(personDataService.evaluate(Mockito.any(PersonDataDefinition.class),
+				Mockito.any(EvaluationContext.class))).thenAnswer(answer);
+	}
+
+	private EvaluatedPersonData evaluate(InvocationOnMock invocation) {
+		PersonDataDefinition definition = (PersonDataDefinition) invocation.getArguments()[0];
+		evaluated.add(definition);
+		return new EvaluatedPersonData(definition, (EvaluationContext) invocation.getArguments()[1]);
+	}
+
+	private EvaluationContext getContext(Date evaluationDate, Integer... memberIds) {
+		EvaluationContext context = new EvaluationContext();
+		context.setEvaluationDate(evaluationDate);
+		context.setBaseCohort(new Cohort(Arrays.asList(memberIds)));
+		return context;
+	}
+
+	/**
+	 * a definition with a configuration, so definitions of the same class can be told apart
+	 */
+	private static class ConfiguredDataDefinition extends BaseDataDefinition implements PersonDataDefinition {
+
+		private String value;
+
+		public ConfiguredDataDefinition(String value) {
+			this.value = value;
+		}
+
+		@Override
+		public Class<?> getDataType() {
+			return String.class;
+		}
+	}
+}
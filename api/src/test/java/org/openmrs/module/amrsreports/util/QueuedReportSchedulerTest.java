@@ -0,0 +1,129 @@
+package org.openmrs.module.amrsreports.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.User;
+import org.openmrs.module.amrsreports.QueuedReport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Test class for QueuedReportScheduler
+ */
+public class QueuedReportSchedulerTest {
+
+	private static final long MINUTE = 60000L;
+
+	private final Date now = new Date(1000 * 60 * MINUTE);
+
+	/**
+	 * @verifies let different requesters take turns
+	 * @see QueuedReportScheduler#order(java.util.List, java.util.List, java.util.Date)
+	 */
+	@Test
+	public void order_shouldLetDifferentRequestersTakeTurns() throws Exception {
+		User alice = new User(1);
+		User bob = new User(2);
+
+		QueuedReport a1 = report(1, alice, QueuedReport.PRIORITY_NORMAL, 30);
+		QueuedReport a2 = report(2, alice, QueuedReport.PRIORITY_NORMAL, 29);
+		QueuedReport a3 = report(3, alice, QueuedReport.PRIORITY_NORMAL, 28);
+		QueuedReport b1 = report(4, bob, QueuedReport.PRIORITY_NORMAL, 5);
+
+		List<QueuedReport> ordered = new QueuedReportScheduler(0, QueuedReportScheduler.SHARE_BY_USER)
+				.order(Arrays.asList(a1, a2, a3, b1), null, now);
+
+		Assert.assertEquals(Arrays.asList(a1, b1, a2, a3), ordered);
+	}
+
+	/**
+	 * @verifies serve higher priority reports first within a turn
+	 * @see QueuedReportScheduler#order(java.util.List, java.util.List, java.util.Date)
+	 */
+	@Test
+	public void order_shouldServeHigherPriorityReportsFirstWithinATurn() throws Exception {
+		User alice = new User(1);
+		User bob = new User(2);
+
+		QueuedReport bulk = report(1, alice, QueuedReport.PRIORITY_LOW, 30);
+		QueuedReport normal = report(2, alice, QueuedReport.PRIORITY_NORMAL, 20);
+		QueuedReport immediate = report(3, bob, QueuedReport.PRIORITY_HIGH, 0);
+
+		List<QueuedReport> ordered = new QueuedReportScheduler(0, QueuedReportScheduler.SHARE_BY_USER)
+				.order(Arrays.asList(bulk, normal, immediate), null, now);
+
+		Assert.assertEquals(Arrays.asList(immediate, normal, bulk), ordered);
+	}
+
+	/**
+	 * @verifies count running reports against their requester
+	 * @see QueuedReportScheduler#order(java.util.List, java.util.List, java.util.Date)
+	 */
+	@Test
+	public void order_shouldCountRunningReportsAgainstTheirRequester() throws Exception {
+		User alice = new User(1);
+		User bob = new User(2);
+
+		QueuedReport running = report(1, alice, QueuedReport.PRIORITY_NORMAL, 40);
+		QueuedReport a2 = report(2, alice, QueuedReport.PRIORITY_NORMAL, 30);
+		QueuedReport b1 = report(3, bob, QueuedReport.PRIORITY_NORMAL, 10);
+
+		List<QueuedReport> ordered = new QueuedReportScheduler(0, QueuedReportScheduler.SHARE_BY_USER)
+				.order(Arrays.asList(a2, b1), Collections.singletonList(running), now);
+
+		Assert.assertEquals(Arrays.asList(b1, a2), ordered);
+	}
+
+	/**
+	 * @verifies raise the priority of reports that have waited long enough
+	 * @see QueuedReportScheduler#order(java.util.List, java.util.List, java.util.Date)
+	 */
+	@Test
+	public void order_shouldRaiseThePriorityOfReportsThatHaveWaitedLongEnough() throws Exception {
+		User alice = new User(1);
+
+		QueuedReport bulk = report(1, alice, QueuedReport.PRIORITY_LOW, 150);
+		QueuedReport normal = report(2, alice, QueuedReport.PRIORITY_NORMAL, 10);
+
+		QueuedReportScheduler scheduler = new QueuedReportScheduler(60, QueuedReportScheduler.SHARE_BY_USER);
+		Assert.assertEquals(QueuedReport.PRIORITY_HIGH, scheduler.getEffectivePriority(bulk, now));
+		Assert.assertEquals(Arrays.asList(bulk, normal), scheduler.order(Arrays.asList(normal, bulk), null, now));
+
+		// without aging the bulk report stays behind
+		Assert.assertEquals(Arrays.asList(normal, bulk),
+				new QueuedReportScheduler(0, QueuedReportScheduler.SHARE_BY_USER).order(Arrays.asList(bulk, normal), null, now));
+	}
+
+	/**
+	 * @verifies break ties by date scheduled then id
+	 * @see QueuedReportScheduler#order(java.util.List, java.util.List, java.util.Date)
+	 */
+	@Test
+	public void order_shouldBreakTiesByDateScheduledThenId() throws Exception {
+		QueuedReport first = report(3, null, QueuedReport.PRIORITY_NORMAL, 20);
+		QueuedReport second = report(1, null, QueuedReport.PRIORITY_NORMAL, 10);
+		QueuedReport third = report(2, null, QueuedReport.PRIORITY_NORMAL, 10);
+
+		List<QueuedReport> waiting = new ArrayList<QueuedReport>(Arrays.asList(third, second, first));
+		QueuedReportScheduler scheduler = new QueuedReportScheduler(0, QueuedReportScheduler.SHARE_BY_FACILITY);
+
+		// facilities are not set, so all reports share one turn sequence ordered by age
+		Assert.assertEquals(Arrays.asList(first, second, third), scheduler.order(waiting, null, now));
+
+		Collections.reverse(waiting);
+		Assert.assertEquals(Arrays.asList(first, second, third), scheduler.order(waiting, null, now));
+	}
+
+	private QueuedReport report(Integer id, User requestedBy, int priority, int minutesAgo) {
+		QueuedReport r = new QueuedReport();
+		r.setId(id);
+		r.setRequestedBy(requestedBy);
+		r.setPriority(priority);
+		r.setDateScheduled(new Date(now.getTime() - minutesAgo * MINUTE));
+		return r;
+	}
+}
@@ -0,0 +1,57 @@
+package org.openmrs.module.amrsreports.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class for ReportEvaluationLimiter
+ */
+public class ReportEvaluationLimiterTest {
+
+	/**
+	 * @verifies ignore values less than one
+	 * @see ReportEvaluationLimiter#setMaxEvaluations(int)
+	 */
+	@Test
+	public void setMaxEvaluations_shouldIgnoreValuesLessThanOne() throws Exception {
+		ReportEvaluationLimiter.setMaxEvaluations(3);
+		ReportEvaluationLimiter.setMaxEvaluations(0);
+		Assert.assertEquals(3, ReportEvaluationLimiter.getMaxEvaluations());
+	}
+
+	/**
+	 * @verifies not allow more than the maximum number of evaluations at once
+	 * @see ReportEvaluationLimiter#acquire()
+	 */
+	@Test
+	public void acquire_shouldNotAllowMoreThanTheMaximumNumberOfEvaluationsAtOnce() throws Exception {
+		ReportEvaluationLimiter.setMaxEvaluations(2);
+
+		Semaphore first = ReportEvaluationLimiter.acquire();
+		Semaphore second = ReportEvaluationLimiter.acquire();
+
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread waiting = new Thread(new Runnable() {
+			public void run() {
+				try {
+					ReportEvaluationLimiter.acquire().release();
+					acquired.countDown();
+				} catch (InterruptedException e) {
+					// pass
+				}
+			}
+		});
+		waiting.start();
+
+		Assert.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+		first.release();
+		Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+
+		second.release();
+	}
+}
@@ -0,0 +1,185 @@
+package org.openmrs.module.amrsreports.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Test class for ReportProgress
+ */
+public class ReportProgressTest {
+
+	private static final Date STARTED = new Date(0);
+
+	/**
+	 * @verifies advance to the named phase
+	 * @see ReportProgress#startPhase(String)
+	 */
+	@Test
+	public void startPhase_shouldAdvanceToTheNamedPhase() throws Exception {
+		ReportProgress progress = new ReportProgress(null, null, STARTED);
+		Assert.assertEquals(5, progress.getSteps());
+
+		progress.startPhase(ReportProgress.PHASE_CSV);
+		Assert.assertEquals(ReportProgress.PHASE_CSV, progress.getPhase());
+		Assert.assertEquals(4, progress.getStep());
+	}
+
+	/**
+	 * @verifies not move backwards
+	 * @see ReportProgress#startPhase(String)
+	 */
+	@Test
+	public void startPhase_shouldNotMoveBackwards() throws Exception {
+		ReportProgress progress = new ReportProgress(null, null, STARTED);
+		progress.startPhase(ReportProgress.PHASE_XLS);
+		progress.startPhase(ReportProgress.PHASE_COHORT);
+
+		Assert.assertEquals(ReportProgress.PHASE_COHORT, progress.getPhase());
+		Assert.assertEquals(5, progress.getStep());
+	}
+
+	/**
+	 * @verifies advance through the columns
+	 * @see ReportProgress#startEvaluation()
+	 */
+	@Test
+	public void startEvaluation_shouldAdvanceThroughTheColumns() throws Exception {
+		ReportProgress progress = new ReportProgress(Arrays.asList("Name", "Sex"), null, STARTED);
+		progress.startColumns();
+
+		progress.startEvaluation();
+		Assert.assertEquals("Name", progress.getPhase());
+		Assert.assertEquals(2, progress.getStep());
+		progress.finishEvaluation();
+
+		progress.startEvaluation();
+		Assert.assertEquals("Sex", progress.getPhase());
+		progress.finishEvaluation();
+
+		Assert.assertEquals(ReportProgress.PHASE_SORT, progress.getPhase());
+		Assert.assertEquals(4, progress.getStep());
+	}
+
+	/**
+	 * @verifies start sorting without a list of columns
+	 * @see ReportProgress#finishColumns()
+	 */
+	@Test
+	public void finishColumns_shouldStartSortingWithoutAListOfColumns() throws Exception {
+		ReportProgress progress = new ReportProgress(null, null, STARTED);
+		progress.startColumns();
+
+		progress.startEvaluation();
+		progress.finishEvaluation();
+		Assert.assertEquals(ReportProgress.PHASE_COLUMNS, progress.getPhase());
+
+		progress.finishColumns();
+		Assert.assertEquals(ReportProgress.PHASE_SORT, progress.getPhase());
+		Assert.assertEquals(3, progress.getStep());
+	}
+
+	/**
+	 * @verifies advance one column for each column finished ahead
+	 * @see ReportProgress#finishColumnAhead()
+	 */
+	@Test
+	public void finishColumnAhead_shouldAdvanceOneColumnForEachColumnFinishedAhead() throws Exception {
+		ReportProgress progress = new ReportProgress(Arrays.asList("Name", "Sex", "Age"), null, STARTED);
+		progress.startPhase(ReportProgress.PHASE_COHORT);
+
+		progress.finishColumnAhead();
+		Assert.assertEquals(ReportProgress.PHASE_COLUMNS, progress.getPhase());
+		Assert.assertEquals(2, progress.getStep());
+
+		progress.finishColumnAhead();
+		Assert.assertEquals(3, progress.getStep());
+	}
+
+	/**
+	 * @verifies not advance past the last column
+	 * @see ReportProgress#finishColumnAhead()
+	 */
+	@Test
+	public void finishColumnAhead_shouldNotAdvancePastTheLastColumn() throws Exception {
+		ReportProgress progress = new ReportProgress(Arrays.asList("Name", "Sex"), null, STARTED);
+		progress.startPhase(ReportProgress.PHASE_COHORT);
+
+		for (int i = 0; i < 5; i++) {
+			progress.finishColumnAhead();
+		}
+
+		Assert.assertEquals(3, progress.getStep());
+	}
+
+	/**
+	 * @verifies ignore nested evaluations
+	 * @see ReportProgress#startEvaluation()
+	 */
+	@Test
+	public void startEvaluation_shouldIgnoreNestedEvaluations() throws Exception {
+		ReportProgress progress = new ReportProgress(Arrays.asList("Age", "Sex"), null, STARTED);
+
+		// evaluations before the columns start are not columns
+		progress.startEvaluation();
+		progress.finishEvaluation();
+
+		progress.startColumns();
+		progress.startEvaluation();
+		progress.startEvaluation();
+		progress.finishEvaluation();
+		Assert.assertEquals("Age", progress.getPhase());
+		progress.finishEvaluation();
+
+		progress.startEvaluation();
+		Assert.assertEquals("Sex", progress.getPhase());
+	}
+
+	/**
+	 * @verifies estimate from history
+	 * @see ReportProgress#getEstimatedCompletion(Date)
+	 */
+	@Test
+	public void getEstimatedCompletion_shouldEstimateFromHistory() throws Exception {
+		ReportProgress progress = new ReportProgress(null, 10L, STARTED);
+		progress.startPhase(ReportProgress.PHASE_COHORT);
+		progress.addPatients(100);
+
+		Assert.assertEquals(new Date(1000), progress.getEstimatedCompletion(new Date(200)));
+	}
+
+	/**
+	 * @verifies extrapolate from the phases done when history is exceeded or missing
+	 * @see ReportProgress#getEstimatedCompletion(Date)
+	 */
+	@Test
+	public void getEstimatedCompletion_shouldExtrapolateFromThePhasesDoneWhenHistoryIsExceededOrMissing() throws Exception {
+		ReportProgress progress = new ReportProgress(null, 10L, STARTED);
+		progress.addPatients(100);
+		progress.startPhase(ReportProgress.PHASE_CSV);
+
+		// three of five phases took 3 seconds, well past the 1 second history suggests
+		Assert.assertEquals(new Date(5000), progress.getEstimatedCompletion(new Date(3000)));
+
+		ReportProgress withoutHistory = new ReportProgress(null, null, STARTED);
+		withoutHistory.startPhase(ReportProgress.PHASE_CSV);
+		Assert.assertEquals(new Date(5000), withoutHistory.getEstimatedCompletion(new Date(3000)));
+	}
+
+	/**
+	 * @verifies return null without history or progress
+	 * @see ReportProgress#getEstimatedCompletion(Date)
+	 */
+	@Test
+	public void getEstimatedCompletion_shouldReturnNullWithoutHistoryOrProgress() throws Exception {
+		ReportProgress progress = new ReportProgress(null, null, STARTED);
+		progress.startPhase(ReportProgress.PHASE_COHORT);
+
+		Assert.assertNull(progress.getEstimatedCompletion(new Date(3000)));
+
+		progress.complete();
+		Assert.assertNull(progress.getEstimatedCompletion(new Date(3000)));
+	}
+}
@@ -0,0 +1,99 @@
+package org.openmrs.module.amrsreports.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+/**
+ * Test class for SpreadsheetMLWriter
+ */
+public class SpreadsheetMLWriterTest {
+
+	/**
+	 * @verifies replace characters Excel does not allow in sheet names
+	 * @see SpreadsheetMLWriter#startWorksheet(String)
+	 */
+	@Test
+	public void startWorksheet_shouldReplaceCharactersExcelDoesNotAllowInSheetNames() throws Exception {
+		StringWriter out = new StringWriter();
+		SpreadsheetMLWriter writer = new SpreadsheetMLWriter(out);
+		writer.startWorksheet("MOH 361A: Pre-ART [2013/06] register for the facility");
+		writer.finish();
+
+		Assert.assertTrue(out.toString().contains("<Worksheet ss:Name=\"MOH 361A- Pre-ART -2013-06- reg\">"));
+	}
+
+	/**
+	 * @verifies write a width for each column and hide hidden columns
+	 * @see SpreadsheetMLWriter#startWorksheet(String, double[], boolean[])
+	 */
+	@Test
+	public void startWorksheet_shouldWriteAWidthForEachColumnAndHideHiddenColumns() throws Exception {
+		StringWriter out = new StringWriter();
+		SpreadsheetMLWriter writer = new SpreadsheetMLWriter(out);
+		writer.startWorksheet("Register", new double[]{0, 115.75}, new boolean[]{true, false});
+		writer.finish();
+
+		String xml = out.toString();
+		Assert.assertTrue(xml.contains("<Table>\n<Column ss:Index=\"1\" ss:Hidden=\"1\"/>\n"
+				+ "<Column ss:Index=\"2\" ss:AutoFitWidth=\"0\" ss:Width=\"115.75\"/>\n</Table>"));
+	}
+
+	/**
+	 * @verifies leave out covered cells and index the cell after them
+	 * @see SpreadsheetMLWriter#writeHeader(String[], int[], int[])
+	 */
+	@Test
+	public void writeHeader_shouldLeaveOutCoveredCellsAndIndexTheCellAfterThem() throws Exception {
+		StringWriter out = new StringWriter();
+		SpreadsheetMLWriter writer = new SpreadsheetMLWriter(out);
+		writer.writeHeader(new String[]{"Register", null, null, "Year"}, new int[]{2, 0, 0, 0},
+				new int[]{0, 0, 0, 1});
+		writer.writeHeader(new String[]{"a", "b", "c", null}, null, null);
+		writer.finish();
+
+		String xml = out.toString();
+		Assert.assertTrue(xml.contains("<Row><Cell ss:StyleID=\"header\" ss:MergeAcross=\"2\">"
+				+ "<Data ss:Type=\"String\">Register</Data></Cell>"
+				+ "<Cell ss:Index=\"4\" ss:StyleID=\"header\" ss:MergeDown=\"1\">"
+				+ "<Data ss:Type=\"String\">Year</Data></Cell></Row>"));
+		Assert.assertTrue(xml.contains("<Data ss:Type=\"String\">c</Data></Cell></Row>"));
+	}
+
+	/**
+	 * @verifies escape markup and drop characters XML cannot hold
+	 * @see SpreadsheetMLWriter#writeRow(String[])
+	 */
+	@Test
+	public void writeRow_shouldEscapeMarkupAndDropCharactersXMLCannotHold() throws Exception {
+		StringWriter out = new StringWriter();
+		SpreadsheetMLWriter writer = new SpreadsheetMLWriter(out);
+		writer.writeRow(new String[]{"<b>Tom & \"Jerry\"</b>", "line\none\u0007", null});
+		writer.finish();
+
+		String xml = out.toString();
+		Assert.assertTrue(xml.contains(
+				"<Data ss:Type=\"String\">&lt;b&gt;Tom &amp; &quot;Jerry&quot;&lt;/b&gt;</Data>"));
+		Assert.assertTrue(xml.contains("<Data ss:Type=\"String\">line&#10;one</Data>"));
+		Assert.assertTrue(xml.contains("<Data ss:Type=\"String\"></Data>"));
+	}
+
+	/**
+	 * @verifies end the open worksheet and the workbook
+	 * @see SpreadsheetMLWriter#finish()
+	 */
+	@Test
+	public void finish_shouldEndTheOpenWorksheetAndTheWorkbook() throws Exception {
+		StringWriter out = new StringWriter();
+		SpreadsheetMLWriter writer = new SpreadsheetMLWriter(out);
+		writer.writeHeader(new String[]{"Name"});
+		writer.writeRow(new String[]{"Jane"});
+		writer.finish();
+
+		String xml = out.toString();
+		Assert.assertTrue(xml.contains("<Worksheet ss:Name=\"Sheet1\">"));
+		Assert.assertTrue(xml.contains("<Cell ss:StyleID=\"header\"><Data ss:Type=\"String\">Name</Data></Cell>"));
+		Assert.assertTrue(xml.endsWith("</Row>\n</Table>\n</Worksheet>\n</Workbook>\n"));
+	}
+}
@@ -0,0 +1,49 @@
+package org.openmrs.module.amrsreports.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+/**
+ * Test class for SpreadsheetTemplate
+ */
+public class SpreadsheetTemplateTest {
+
+	private SpreadsheetTemplate getTemplate(String... repeatingCells) {
+		String[][] cells = new String[][]{new String[repeatingCells.length], repeatingCells};
+		return new SpreadsheetTemplate("Register", cells, new int[2][repeatingCells.length],
+				new int[2][repeatingCells.length], 1, null, null);
+	}
+
+	/**
+	 * @verifies fill in column values and format dates
+	 * @see SpreadsheetTemplate#formatRow(DataSetRow)
+	 */
+	@Test
+	public void formatRow_shouldFillInColumnValuesAndFormatDates() throws Exception {
+		DataSetRow row = new DataSetRow();
+		row.addColumnValue(new DataSetColumn("Serial Number", "Serial Number", Integer.class), 12);
+		row.addColumnValue(new DataSetColumn("Enrollment Date", "Enrollment Date", Date.class),
+				new GregorianCalendar(2013, 5, 4).getTime());
+
+		String[] formatted = getTemplate("#Serial Number#", "#Enrollment Date|dd/MM/yyyy#",
+				"#Serial Number# of #Missing#").formatRow(row);
+
+		Assert.assertArrayEquals(new String[]{"12", "04/06/2013", "12 of "}, formatted);
+	}
+
+	/**
+	 * @verifies leave cells without expressions as they are
+	 * @see SpreadsheetTemplate#formatRow(DataSetRow)
+	 */
+	@Test
+	public void formatRow_shouldLeaveCellsWithoutExpressionsAsTheyAre() throws Exception {
+		String[] formatted = getTemplate("", "Pre-ART", "$5").formatRow(new DataSetRow());
+
+		Assert.assertArrayEquals(new String[]{"", "Pre-ART", "$5"}, formatted);
+	}
+}
@@ -0,0 +1,92 @@
+package org.openmrs.module.amrsreports.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.SimpleDataSet;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Test class for StreamingReportWriter
+ */
+public class StreamingReportWriterTest {
+
+	private static final DataSetColumn ID = new DataSetColumn("id", "Person Id", Integer.class);
+
+	private static final DataSetColumn NAME = new DataSetColumn("name", "Name", String.class);
+
+	private SimpleDataSet getBlock(Object... idsAndNames) {
+		SimpleDataSet block = new SimpleDataSet(null, new EvaluationContext());
+		block.getMetaData().addColumn(ID);
+		block.getMetaData().addColumn(NAME);
+		for (int i = 0; i < idsAndNames.length; i += 2) {
+			DataSetRow row = new DataSetRow();
+			row.addColumnValue(ID, idsAndNames[i]);
+			row.addColumnValue(NAME, idsAndNames[i + 1]);
+			block.addRow(row);
+		}
+		return block;
+	}
+
+	/**
+	 * @verifies write the header once and the rows of every block
+	 * @see StreamingReportWriter#addRows(org.openmrs.module.reporting.dataset.DataSet)
+	 */
+	@Test
+	public void addRows_shouldWriteTheHeaderOnceAndTheRowsOfEveryBlock() throws Exception {
+		ByteArrayOutputStream csv = new ByteArrayOutputStream();
+		ByteArrayOutputStream xls = new ByteArrayOutputStream();
+
+		StreamingReportWriter writer = new StreamingReportWriter(csv, xls, "Register", null);
+		writer.addRows(getBlock(1, "Jane", 2, "John"));
+		writer.addRows(getBlock(3, null));
+		writer.finish();
+		writer.close();
+
+		String[] lines = csv.toString("UTF-8").trim().split("\n");
+		Assert.assertEquals(4, lines.length);
+		Assert.assertTrue(lines[0].contains("Person Id"));
+		Assert.assertTrue(lines[3].contains("3"));
+
+		String workbook = xls.toString("UTF-8");
+		Assert.assertEquals(1, workbook.split("ss:StyleID=\"header\"><Data ss:Type=\"String\">Name<").length - 1);
+		Assert.assertTrue(workbook.contains("<Row><Cell><Data ss:Type=\"String\">3</Data></Cell>"
+				+ "<Cell><Data ss:Type=\"String\"></Data></Cell></Row>"));
+	}
+
+	/**
+	 * @verifies lay out the workbook like the template
+	 * @see StreamingReportWriter#addRows(org.openmrs.module.reporting.dataset.DataSet)
+	 */
+	@Test
+	public void addRows_shouldLayOutTheWorkbookLikeTheTemplate() throws Exception {
+		String[][] cells = new String[][]{
+				{"Register", null},
+				{"#name#", "#id#"},
+				{"End", ""}
+		};
+		SpreadsheetTemplate template = new SpreadsheetTemplate("MOH 361A", cells, new int[][]{{1, 0}, {0, 0}, {0, 0}},
+				new int[3][2], 1, new double[]{30, 60}, new boolean[]{false, true});
+
+		ByteArrayOutputStream csv = new ByteArrayOutputStream();
+		ByteArrayOutputStream xls = new ByteArrayOutputStream();
+
+		StreamingReportWriter writer = new StreamingReportWriter(csv, xls, "Register", template);
+		writer.addRows(getBlock(1, "Jane"));
+		writer.addRows(getBlock(2, "John"));
+		writer.finish();
+		writer.close();
+
+		String workbook = xls.toString("UTF-8");
+		Assert.assertTrue(workbook.contains("<Worksheet ss:Name=\"MOH 361A\">"));
+		Assert.assertTrue(workbook.contains("<Column ss:Index=\"2\" ss:AutoFitWidth=\"0\" ss:Width=\"60\" ss:Hidden=\"1\"/>"));
+		Assert.assertTrue(workbook.indexOf("ss:MergeAcross=\"1\"><Data ss:Type=\"String\">Register<")
+				< workbook.indexOf(">Jane<"));
+		Assert.assertTrue(workbook.contains("<Row><Cell><Data ss:Type=\"String\">John</Data></Cell>"
+				+ "<Cell><Data ss:Type=\"String\">2</Data></Cell></Row>"));
+		Assert.assertTrue(workbook.indexOf(">John<") < workbook.indexOf(">End<"));
+	}
+}
@@ -19,6 +19,7 @@ import org.openmrs.module.Activator;
 import org.openmrs.module.amrsreports.reporting.provider.MOH361AReportProvider;
 import org.openmrs.module.amrsreports.reporting.provider.MOH361BReportProvider;
 import org.openmrs.module.amrsreports.service.ReportProviderRegistrar;
+import org.openmrs.module.amrsreports.util.ConcurrentColumns;
 import org.openmrs.module.amrsreports.util.TaskRunnerThread;
 
 /**
@@ -50,6 +51,12 @@ public class AmrsReportModuleActivator implements Activator {
 		} catch (Throwable throwable) {
 			log.warn("problem destroying Task Runner Thread instance", throwable);
 		}
+
+		try {
+			ConcurrentColumns.shutdown();
+		} catch (Throwable throwable) {
+			log.warn("problem stopping the column threads", throwable);
+		}
 	}
 	
 }
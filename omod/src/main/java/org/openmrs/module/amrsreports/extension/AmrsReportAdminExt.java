@@ -60,6 +60,11 @@ public class AmrsReportAdminExt extends AdministrationSectionExt {
 			map.put("module/amrsreports/cccNumbers.list", "Manage CCC Numbers");
 		}
 
+		if (Context.hasPrivilege(ReportingConstants.PRIV_VIEW_REPORTS)) {
+			map.put("module/amrsreports/buildHistory.form", "View Build History");
+			map.put("module/amrsreports/taskLocks.form", "View Task Locks");
+		}
+
 		map.put("module/amrsreports/settings.form", "Settings");
 
 		return map;
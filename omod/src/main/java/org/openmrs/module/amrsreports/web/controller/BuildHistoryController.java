@@ -0,0 +1,69 @@
+package org.openmrs.module.amrsreports.web.controller;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.amrsreports.BuildHistory;
+import org.openmrs.module.amrsreports.service.BuildHistoryService;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shows step durations for recent derived table builds
+ */
+@Controller
+@RequestMapping("module/amrsreports/buildHistory.form")
+public class BuildHistoryController {
+
+	private static final int DEFAULT_BUILDS = 20;
+
+	@RequestMapping(method = RequestMethod.GET)
+	public String viewBuildHistory(ModelMap map,
+	                               @RequestParam(required = false, value = "builds") Integer builds) {
+
+		if (builds == null || builds < 1)
+			builds = DEFAULT_BUILDS;
+
+		List<BuildHistory> history = Context.getService(BuildHistoryService.class).getRecentBuildHistory(builds);
+
+		// builds in order of their first step, and steps in order of first appearance
+		Map<String, BuildHistory> buildStarts = new LinkedHashMap<String, BuildHistory>();
+		Set<String> steps = new LinkedHashSet<String>();
+
+		// total seconds per step per build; steps run in patient ranges are summed
+		Map<String, Map<String, Double>> durations = new LinkedHashMap<String, Map<String, Double>>();
+
+		for (BuildHistory h : history) {
+			if (!buildStarts.containsKey(h.getBuildId()))
+				buildStarts.put(h.getBuildId(), h);
+
+			String step = h.getBuilder() + ": " + h.getStep();
+			steps.add(step);
+
+			if (!durations.containsKey(step))
+				durations.put(step, new LinkedHashMap<String, Double>());
+
+			Long duration = h.getDuration();
+			if (duration != null) {
+				Double existing = durations.get(step).get(h.getBuildId());
+				durations.get(step).put(h.getBuildId(), (existing == null ? 0 : existing) + duration / 1000.0);
+			}
+		}
+
+		map.put("history", history);
+		map.put("builds", new ArrayList<BuildHistory>(buildStarts.values()));
+		map.put("steps", steps);
+		map.put("durations", durations);
+		map.put("buildCount", builds);
+
+		return "module/amrsreports/buildHistory";
+	}
+}
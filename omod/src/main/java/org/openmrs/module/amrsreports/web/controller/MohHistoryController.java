@@ -7,6 +7,7 @@ import org.openmrs.module.amrsreports.QueuedReport;
 import org.openmrs.module.amrsreports.service.QueuedReportService;
 import org.openmrs.module.amrsreports.util.MOHReportUtil;
 import org.openmrs.util.OpenmrsUtil;
+import org.openmrs.web.WebConstants;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.util.FileCopyUtils;
@@ -16,6 +17,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -45,6 +47,11 @@ public class MohHistoryController {
 		return Context.getService(QueuedReportService.class).getQueuedReportsWithStatus(QueuedReport.STATUS_ERROR);
 	}
 
+	@ModelAttribute("cancelledReports")
+	public List<QueuedReport> getCancelledReports() {
+		return Context.getService(QueuedReportService.class).getQueuedReportsWithStatus(QueuedReport.STATUS_CANCELLED);
+	}
+
 	@ModelAttribute("completeReports")
 	public List<QueuedReport> getCompleteReport() {
 		return Context.getService(QueuedReportService.class).getQueuedReportsWithStatus(QueuedReport.STATUS_COMPLETE);
@@ -55,6 +62,21 @@ public class MohHistoryController {
 		// pass
 	}
 
+	@RequestMapping(method = RequestMethod.POST, value = "module/amrsreports/cancelReport.form")
+	public String cancelReport(HttpSession httpSession,
+	                           @RequestParam(required = true, value = "reportId") Integer reportId) {
+
+		QueuedReportService queuedReportService = Context.getService(QueuedReportService.class);
+		QueuedReport report = queuedReportService.getQueuedReport(reportId);
+
+		if (report != null && queuedReportService.cancelQueuedReport(report))
+			httpSession.setAttribute(WebConstants.OPENMRS_MSG_ATTR, "Report cancelled; a running report stops shortly");
+		else
+			httpSession.setAttribute(WebConstants.OPENMRS_ERROR_ATTR, "Report is no longer queued or running");
+
+		return "redirect:mohHistory.form";
+	}
+
 	@RequestMapping(value = "/module/amrsreports/downloadxls")
 	public void downloadXLS(HttpServletResponse response,
 	                        @RequestParam(required = true, value = "reportId") Integer reportId) throws IOException {
@@ -76,7 +98,11 @@ public class MohHistoryController {
 		File fileDir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(folderName);
 		File amrsFileToDownload = new File(fileDir, report.getXlsFilename());
 
-		response.setContentType("application/vnd.ms-excel");
+		// streamed workbooks are XML spreadsheets
+		if (report.getXlsFilename().endsWith(".xml"))
+			response.setContentType("application/xml");
+		else
+			response.setContentType("application/vnd.ms-excel");
 		response.setHeader("Content-Disposition", "attachment; filename=" + report.getXlsFilename());
 		response.setContentLength((int) amrsFileToDownload.length());
 
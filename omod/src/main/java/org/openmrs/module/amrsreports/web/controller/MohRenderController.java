@@ -32,6 +32,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 
 /**
@@ -72,31 +73,53 @@ public class MohRenderController {
 	@RequestMapping(method = RequestMethod.POST, value = "module/amrsreports/mohRender.form")
 	public void processForm(HttpServletRequest request,
 	                        @RequestParam(value = "immediate", required = false) Boolean immediate,
+	                        @RequestParam(value = "priority", required = false) Integer priority,
 	                        @RequestParam("reportDate") Date reportDate,
 	                        @RequestParam("dateScheduled") Date dateScheduled,
-	                        @RequestParam("facility") Integer facilityId,
+	                        @RequestParam("facility") Integer[] facilityIds,
 	                        @RequestParam("reportName") String reportName) throws Exception {
 
-		// find the facility
-		MOHFacility facility = Context.getService(MOHFacilityService.class).getFacility(facilityId);
+		MOHFacilityService facilityService = Context.getService(MOHFacilityService.class);
+		QueuedReportService queuedReportService = Context.getService(QueuedReportService.class);
 
-		// create a queued report
-		QueuedReport queuedReport = new QueuedReport();
-		queuedReport.setFacility(facility);
-		queuedReport.setReportName(reportName);
-		queuedReport.setEvaluationDate(reportDate);
-		if (immediate == null)
-			queuedReport.setDateScheduled(dateScheduled);
+		// the priority comes from the request, so keep it to the levels the scheduler knows about
+		if (priority == null)
+			priority = QueuedReport.PRIORITY_NORMAL;
 		else
-			queuedReport.setDateScheduled(new Date());
-
-		// save it
-		QueuedReportService queuedReportService = Context.getService(QueuedReportService.class);
-		queuedReportService.saveQueuedReport(queuedReport);
+			priority = Math.max(QueuedReport.PRIORITY_LOW, Math.min(QueuedReport.PRIORITY_HIGH, priority));
+
+		// reports for several facilities are queued as a batch, so shared columns are evaluated only once
+		String batchId = facilityIds.length > 1 ? UUID.randomUUID().toString() : null;
+
+		for (Integer facilityId : facilityIds) {
+
+			// find the facility
+			MOHFacility facility = facilityService.getFacility(facilityId);
+
+			// create a queued report
+			QueuedReport queuedReport = new QueuedReport();
+			queuedReport.setFacility(facility);
+			queuedReport.setReportName(reportName);
+			queuedReport.setEvaluationDate(reportDate);
+			queuedReport.setRequestedBy(Context.getAuthenticatedUser());
+			queuedReport.setPriority(priority);
+			queuedReport.setBatchId(batchId);
+			if (immediate == null) {
+				queuedReport.setDateScheduled(dateScheduled);
+			} else {
+				// immediate requests go ahead of scheduled bulk jobs
+				queuedReport.setDateScheduled(new Date());
+				queuedReport.setPriority(QueuedReport.PRIORITY_HIGH);
+			}
+
+			// save it
+			queuedReportService.saveQueuedReport(queuedReport);
+		}
 
 		// kindly respond
 		HttpSession httpSession = request.getSession();
-		httpSession.setAttribute(WebConstants.OPENMRS_MSG_ATTR, "Report queued for processing.");
+		httpSession.setAttribute(WebConstants.OPENMRS_MSG_ATTR, facilityIds.length > 1
+				? facilityIds.length + " reports queued for processing." : "Report queued for processing.");
 
 //		return SUCCESS_VIEW;
 	}
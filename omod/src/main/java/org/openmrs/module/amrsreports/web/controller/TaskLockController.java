@@ -0,0 +1,31 @@
+package org.openmrs.module.amrsreports.web.controller;
+
+import org.openmrs.module.amrsreports.task.AMRSReportsCommonTaskLock;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * Shows who holds the common task lock, who is waiting for it and how long tasks have waited
+ */
+@Controller
+@RequestMapping("module/amrsreports/taskLocks.form")
+public class TaskLockController {
+
+	@RequestMapping(method = RequestMethod.GET)
+	public String viewTaskLocks(ModelMap map) {
+		AMRSReportsCommonTaskLock lock = AMRSReportsCommonTaskLock.getInstance();
+
+		map.put("holders", lock.getHolders());
+		map.put("waiters", lock.getWaiters());
+		map.put("queueDepth", lock.getQueueDepth());
+		map.put("grantedShared", lock.getGrantedShared());
+		map.put("grantedExclusive", lock.getGrantedExclusive());
+		map.put("timeouts", lock.getTimeouts());
+		map.put("averageWait", lock.getAverageWaitMillis());
+		map.put("maxWait", lock.getMaxWaitMillis());
+
+		return "module/amrsreports/taskLocks";
+	}
+}
@@ -11,11 +11,17 @@ import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.amrsreports.HIVCareEnrollment;
 import org.openmrs.module.amrsreports.MOHFacility;
+import org.openmrs.module.amrsreports.QueuedReport;
 import org.openmrs.module.amrsreports.reporting.cohort.definition.Moh361ACohortDefinition;
 import org.openmrs.module.amrsreports.service.HIVCareEnrollmentService;
 import org.openmrs.module.amrsreports.service.MOHFacilityService;
+import org.openmrs.module.amrsreports.service.QueuedReportService;
 import org.openmrs.module.amrsreports.task.AMRSReportsTask;
+import org.openmrs.module.amrsreports.task.BenchmarkARVTablesTask;
+import org.openmrs.module.amrsreports.task.BenchmarkPregnancyTableTask;
+import org.openmrs.module.amrsreports.task.CompareEnrollmentEnginesTask;
 import org.openmrs.module.amrsreports.task.UpdateHIVCareEnrollmentTask;
+import org.openmrs.module.amrsreports.task.VerifyARVTablesTask;
 import org.openmrs.module.amrsreports.util.TaskRunnerThread;
 import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
@@ -35,8 +41,10 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -245,6 +253,14 @@ public class DWRAmrsReportService {
 //			task = new UpdateARVEncountersTask();
 		if (OpenmrsUtil.nullSafeEquals("enrollment", taskName))
 			task = new UpdateHIVCareEnrollmentTask();
+		else if (OpenmrsUtil.nullSafeEquals("verifyArvs", taskName))
+			task = new VerifyARVTablesTask();
+		else if (OpenmrsUtil.nullSafeEquals("benchmarkArvs", taskName))
+			task = new BenchmarkARVTablesTask();
+		else if (OpenmrsUtil.nullSafeEquals("compareEnrollment", taskName))
+			task = new CompareEnrollmentEnginesTask();
+		else if (OpenmrsUtil.nullSafeEquals("benchmarkPregnancy", taskName))
+			task = new BenchmarkPregnancyTableTask();
 
 		if (task == null)
 			return null;
@@ -295,6 +311,48 @@ public class DWRAmrsReportService {
 		return null;
 	}
 
+	/**
+	 * Processes the ajax call for the progress of running reports
+	 *
+	 * @return a description of each running report's progress, by queued report id
+	 */
+	public Map<Integer, String> getRunningReportProgress() {
+		Map<Integer, String> progress = new HashMap<Integer, String>();
+
+		List<QueuedReport> running = Context.getService(QueuedReportService.class)
+				.getQueuedReportsWithStatus(QueuedReport.STATUS_RUNNING);
+
+		for (QueuedReport r : running) {
+			progress.put(r.getId(), describeProgress(r));
+		}
+
+		return progress;
+	}
+
+	private String describeProgress(QueuedReport r) {
+		if (r.getProgressPhase() == null)
+			return "Waiting to start";
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Evaluating ").append(r.getProgressPhase());
+
+		if (r.getProgressStep() != null && r.getProgressSteps() != null)
+			sb.append(" (step ").append(r.getProgressStep()).append(" of ").append(r.getProgressSteps()).append(")");
+
+		if (r.getPatientCount() != null && r.getPatientCount() > 0)
+			sb.append(", ").append(r.getPatientCount()).append(" patients");
+
+		if (r.getEstimatedCompletion() != null) {
+			long minutes = (r.getEstimatedCompletion().getTime() - System.currentTimeMillis()) / 60000;
+			if (minutes < 1)
+				sb.append(", finishing in less than a minute");
+			else
+				sb.append(", about ").append(minutes).append(minutes == 1 ? " minute" : " minutes").append(" left");
+		}
+
+		return sb.toString();
+	}
+
 	/**
 	 * Returns a facility's name indicated by its internal id
 	 */
@@ -0,0 +1,100 @@
+<%@ include file="/WEB-INF/template/include.jsp"%>
+
+<%@ include file="/WEB-INF/template/header.jsp"%>
+
+<openmrs:require privilege="View Reports" otherwise="/login.htm" redirect="/module/amrsreports/buildHistory.form" />
+
+<openmrs:htmlInclude file="/moduleResources/amrsreports/css/amrsreports.css" />
+<openmrs:htmlInclude file="/moduleResources/amrsreports/js/highcharts.js" />
+
+<style>
+    #historyTable th, #historyTable td { text-align: left; }
+    #stepChart { width: 98%; height: 500px; }
+</style>
+
+<script type="text/javascript">
+    $j(document).ready(function(){
+        new Highcharts.Chart({
+            chart: {
+                renderTo: "stepChart",
+                type: "line"
+            },
+            title: {
+                text: "Builder Step Durations"
+            },
+            xAxis: {
+                categories: [
+                    <c:forEach var="b" items="${builds}" varStatus="bStatus">
+                    "<openmrs:formatDate date="${b.dateStarted}" format="yyyy-MM-dd HH:mm"/>"<c:if test="${not bStatus.last}">,</c:if>
+                    </c:forEach>
+                ]
+            },
+            yAxis: {
+                min: 0,
+                title: { text: "Seconds" }
+            },
+            series: [
+                <c:forEach var="step" items="${steps}" varStatus="sStatus">
+                {
+                    name: "${step}",
+                    data: [
+                        <c:forEach var="b" items="${builds}" varStatus="bStatus">
+                        <c:set var="seconds" value="${durations[step][b.buildId]}"/>
+                        <c:choose><c:when test="${empty seconds}">null</c:when><c:otherwise>${seconds}</c:otherwise></c:choose><c:if test="${not bStatus.last}">,</c:if>
+                        </c:forEach>
+                    ]
+                }<c:if test="${not sStatus.last}">,</c:if>
+                </c:forEach>
+            ]
+        });
+    });
+</script>
+
+<%@ include file="localHeader.jsp"%>
+
+<b class="boxHeader">Derived Table Build History</b>
+<div class="box">
+
+    <form method="get">
+        Show the last <input type="text" name="builds" value="${buildCount}" size="3"/> builds
+        <input type="submit" value="Refresh"/>
+    </form>
+
+    <c:choose>
+        <c:when test="${empty history}">
+            <p>No builds have been recorded yet.</p>
+        </c:when>
+        <c:otherwise>
+            <div id="stepChart"></div>
+
+            <br/>
+
+            <table cellpadding="2" cellspacing="0" id="historyTable" width="98%">
+                <tr>
+                    <th>Build</th>
+                    <th>Builder</th>
+                    <th>Step</th>
+                    <th>Started</th>
+                    <th>Finished</th>
+                    <th>Duration (ms)</th>
+                    <th>Rows Affected</th>
+                </tr>
+                <c:forEach var="h" items="${history}" varStatus="status">
+                    <tr class="${status.index % 2 == 0 ? "evenRow" : "oddRow"}">
+                        <td>${h.buildId}</td>
+                        <td>${h.builder}</td>
+                        <td>${h.step}</td>
+                        <td><openmrs:formatDate date="${h.dateStarted}" format="yyyy-MM-dd HH:mm:ss"/></td>
+                        <td><openmrs:formatDate date="${h.dateFinished}" format="yyyy-MM-dd HH:mm:ss"/></td>
+                        <td>${h.duration}</td>
+                        <td>${h.rowsAffected}</td>
+                    </tr>
+                </c:forEach>
+            </table>
+        </c:otherwise>
+    </c:choose>
+
+    <br/>
+
+</div>
+<%@ include file="/WEB-INF/template/footer.jsp"%>
@@ -42,6 +42,20 @@
         </a>
     </li>
     </openmrs:hasPrivilege>
+    <openmrs:hasPrivilege privilege="View Reports">
+        <li <c:if test='<%= request.getRequestURI().contains("buildHistory") %>'>class="active"</c:if>>
+            <a href="${pageContext.request.contextPath}/module/amrsreports/buildHistory.form">
+                View Build History
+            </a>
+        </li>
+    </openmrs:hasPrivilege>
+    <openmrs:hasPrivilege privilege="View Reports">
+        <li <c:if test='<%= request.getRequestURI().contains("taskLocks") %>'>class="active"</c:if>>
+            <a href="${pageContext.request.contextPath}/module/amrsreports/taskLocks.form">
+                View Task Locks
+            </a>
+        </li>
+    </openmrs:hasPrivilege>
     <li <c:if test='<%= request.getRequestURI().contains("settings") %>'>class="active"</c:if>>
         <a href="${pageContext.request.contextPath}/module/amrsreports/settings.form">
             Settings
@@ -14,6 +14,26 @@
 </style>
 
 
+<script type="text/javascript">
+
+    function getRunningReportProgress() {
+        DWRAmrsReportService.getRunningReportProgress(function(progress){
+            for (var id in progress) {
+                $j("#progress_" + id).html(progress[id]);
+            }
+        });
+    }
+
+    $j(document).ready(function() {
+        // only poll while there are reports running
+        if ($j("td.progress").length > 0) {
+            getRunningReportProgress();
+            setInterval(getRunningReportProgress, 5000);
+        }
+    });
+
+</script>
+
 <%@ include file="localHeader.jsp"%>
 
 <b class="boxHeader">View AMRS Reports</b>
@@ -37,6 +57,10 @@
             <c:forEach var="r" items="${queuedReports}" varStatus="status">
                 <tr class="queued ${status.index % 2 == 0 ? "evenRow" : "oddRow"}">
                     <td>
+                        <form method="post" action="cancelReport.form" style="display: inline">
+                            <input type="hidden" name="reportId" value="${r.id}"/>
+                            <input type="submit" value="Cancel"/>
+                        </form>
                     </td>
                     <td>${r.reportName}</td>
                     <td>${r.facility}</td>
@@ -61,12 +85,20 @@
             <c:forEach var="r" items="${runningReports}" varStatus="status">
                 <tr class="running ${status.index % 2 == 0 ? "evenRow" : "oddRow"}">
                     <td>
+                        <form method="post" action="cancelReport.form" style="display: inline">
+                            <input type="hidden" name="reportId" value="${r.id}"/>
+                            <input type="submit" value="Cancel"/>
+                        </form>
                     </td>
                     <td>${r.reportName}</td>
                     <td>${r.facility}</td>
                     <td><openmrs:formatDate date="${r.evaluationDate}" type="textbox"/></td>
                     <td><openmrs:formatDate date="${r.dateScheduled}" type="textbox"/></td>
                 </tr>
+                <tr class="running ${status.index % 2 == 0 ? "evenRow" : "oddRow"}">
+                    <td></td>
+                    <td colspan="4" class="progress" id="progress_${r.id}"></td>
+                </tr>
             </c:forEach>
             <tr><td colspan="5">&nbsp;</td></tr>
         </c:if>
@@ -97,6 +129,30 @@
             <tr><td colspan="5">&nbsp;</td></tr>
         </c:if>
 
+        <c:if test="${not empty cancelledReports}">
+            <tr class="subheading">
+                <th colspan="5">Cancelled Reports</th>
+            </tr>
+            <tr>
+                <th>Actions</th>
+                <th>Report</th>
+                <th>Facility</th>
+                <th>Evaluation Date</th>
+                <th>Scheduled Date</th>
+            </tr>
+            <c:forEach var="r" items="${cancelledReports}" varStatus="status">
+                <tr class="cancelled ${status.index % 2 == 0 ? "evenRow" : "oddRow"}">
+                    <td>
+                    </td>
+                    <td>${r.reportName}</td>
+                    <td>${r.facility}</td>
+                    <td><openmrs:formatDate date="${r.evaluationDate}" type="textbox"/></td>
+                    <td><openmrs:formatDate date="${r.dateScheduled}" type="textbox"/></td>
+                </tr>
+            </c:forEach>
+            <tr><td colspan="5">&nbsp;</td></tr>
+        </c:if>
+
         <c:if test="${not empty errorReports}">
             <tr class="subheading">
                 <th colspan="5">Reports with errors</th>
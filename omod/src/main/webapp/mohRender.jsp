@@ -80,10 +80,20 @@
                     <em>or</em>
                 <input type="checkbox" name="immediate" id="immediate" value="true"/> Queue Immediately
         </fieldset>
+        <fieldset class="visualPadding">
+            <legend>Priority</legend>
+            <select name="priority" id="priority">
+                <option value="0">Low (bulk)</option>
+                <option value="1" selected="selected">Normal</option>
+                <option value="2">High</option>
+            </select>
+            <em>reports queued immediately always run at high priority</em>
+        </fieldset>
         <fieldset class="visualPadding">
             <legend>Location</legend>
+            <em>reports for several facilities are run together</em> <br/>
             <c:forEach var="facility" items="${facilities}">
-                <input type="radio" name="facility" value="${facility.facilityId}"/> ${facility.code} - ${facility.name} <br/>
+                <input type="checkbox" name="facility" value="${facility.facilityId}"/> ${facility.code} - ${facility.name} <br/>
             </c:forEach>
         </fieldset>
         <fieldset class="visualPadding">
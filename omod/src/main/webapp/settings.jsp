@@ -158,6 +158,10 @@
             <div class="choice"><input type="radio" name="taskName" value="pregnancy"/> Pregnancy Tables</div>
             -->
             <div class="choice"><input type="radio" name="taskName" value="enrollment"/> HIV Care Enrollment Table</div>
+            <div class="choice"><input type="radio" name="taskName" value="verifyArvs"/> Verify ARV Tables</div>
+            <div class="choice"><input type="radio" name="taskName" value="benchmarkArvs"/> Benchmark ARV Table Builder</div>
+            <div class="choice"><input type="radio" name="taskName" value="compareEnrollment"/> Compare Enrollment Engines</div>
+            <div class="choice"><input type="radio" name="taskName" value="benchmarkPregnancy"/> Benchmark Pregnancy Table Builder</div>
         </div>
 
         <div id="buttons">
@@ -0,0 +1,88 @@
+<%@ include file="/WEB-INF/template/include.jsp"%>
+
+<%@ include file="/WEB-INF/template/header.jsp"%>
+
+<openmrs:require privilege="View Reports" otherwise="/login.htm" redirect="/module/amrsreports/taskLocks.form" />
+
+<openmrs:htmlInclude file="/moduleResources/amrsreports/css/amrsreports.css" />
+
+<style>
+    .lockTable th, .lockTable td { text-align: left; }
+</style>
+
+<%@ include file="localHeader.jsp"%>
+
+<b class="boxHeader">Task Lock Holders</b>
+<div class="box">
+    <c:choose>
+        <c:when test="${empty holders}">
+            <p>No task holds the lock.</p>
+        </c:when>
+        <c:otherwise>
+            <table cellpadding="2" cellspacing="0" class="lockTable" width="98%">
+                <tr>
+                    <th>Task</th>
+                    <th>Mode</th>
+                    <th>Thread</th>
+                    <th>Held Since</th>
+                    <th>Held For (s)</th>
+                </tr>
+                <c:forEach var="h" items="${holders}" varStatus="status">
+                    <tr class="${status.index % 2 == 0 ? "evenRow" : "oddRow"}">
+                        <td>${h.lockingClass.simpleName}</td>
+                        <td>${h.mode}</td>
+                        <td>${h.threadName}</td>
+                        <td><openmrs:formatDate date="${h.since}" format="yyyy-MM-dd HH:mm:ss"/></td>
+                        <td>${h.elapsedSeconds}</td>
+                    </tr>
+                </c:forEach>
+            </table>
+        </c:otherwise>
+    </c:choose>
+</div>
+
+<br/>
+
+<b class="boxHeader">Waiting Tasks (${queueDepth})</b>
+<div class="box">
+    <c:choose>
+        <c:when test="${empty waiters}">
+            <p>No tasks are waiting for the lock.</p>
+        </c:when>
+        <c:otherwise>
+            <table cellpadding="2" cellspacing="0" class="lockTable" width="98%">
+                <tr>
+                    <th>Task</th>
+                    <th>Mode</th>
+                    <th>Thread</th>
+                    <th>Waiting Since</th>
+                    <th>Waited For (s)</th>
+                </tr>
+                <c:forEach var="w" items="${waiters}" varStatus="status">
+                    <tr class="${status.index % 2 == 0 ? "evenRow" : "oddRow"}">
+                        <td>${w.lockingClass.simpleName}</td>
+                        <td>${w.mode}</td>
+                        <td>${w.threadName}</td>
+                        <td><openmrs:formatDate date="${w.since}" format="yyyy-MM-dd HH:mm:ss"/></td>
+                        <td>${w.elapsedSeconds}</td>
+                    </tr>
+                </c:forEach>
+            </table>
+        </c:otherwise>
+    </c:choose>
+</div>
+
+<br/>
+
+<b class="boxHeader">Lock Statistics</b>
+<div class="box">
+    <table cellpadding="2" cellspacing="0" class="lockTable">
+        <tr><th>Shared holds granted</th><td>${grantedShared}</td></tr>
+        <tr><th>Exclusive holds granted</th><td>${grantedExclusive}</td></tr>
+        <tr><th>Requests timed out</th><td>${timeouts}</td></tr>
+        <tr><th>Average wait (ms)</th><td>${averageWait}</td></tr>
+        <tr><th>Longest wait (ms)</th><td>${maxWait}</td></tr>
+    </table>
+</div>
+
+<%@ include file="/WEB-INF/template/footer.jsp"%>